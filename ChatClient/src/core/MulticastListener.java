@@ -0,0 +1,193 @@
+package com.tanndev.subwave.client.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.MulticastDatagram;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Task that receives server-wide broadcasts from the server's multicast group.
+ * <p/>
+ * Started when the server tells the client to join the group. Messages are delivered to SubwaveClient for sorting, as
+ * though they had been received on the connection. Datagrams are checked against the expected sequence number: a gap
+ * is asked for again over the connection, and a datagram that arrives after its gap was asked for is dropped. If the
+ * group cannot be joined, the server is told to send broadcasts over the connection instead.
+ * <p/>
+ * The listener stops once the connection is closed.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.MulticastDatagram
+ */
+class MulticastListener implements Runnable {
+
+   /** Unique ID to identify the connection to the SubwaveClient */
+   private final int connectionID;
+
+   /** Connection the group was joined for, and over which missed messages are requested */
+   private final Connection connection;
+
+   /** Multicast group to receive from */
+   private final InetAddress group;
+
+   /** Port to receive on */
+   private final int port;
+
+   /** Group and port together, as used to join and leave the group */
+   private final InetSocketAddress groupAddress;
+
+   /** Sequence number of the next message expected. Only used by the listener thread. */
+   private int nextSequence;
+
+   /**
+    * Constructor
+    *
+    * @param connectionID unique ID to use for identifying the connection to the SubwaveClient
+    * @param connection   connection the group was joined for
+    * @param group        multicast group to receive from
+    * @param port         port to receive on
+    * @param nextSequence sequence number of the first message to expect
+    */
+   MulticastListener(int connectionID, Connection connection, InetAddress group, int port, int nextSequence) {
+      this.connectionID = connectionID;
+      this.connection = connection;
+      this.group = group;
+      this.port = port;
+      this.groupAddress = new InetSocketAddress(group, port);
+      this.nextSequence = nextSequence;
+   }
+
+   /**
+    * Creates a listener from the server's MULTICAST message.
+    *
+    * @param connectionID unique ID to use for identifying the connection to the SubwaveClient
+    * @param connection   connection the message was received on
+    * @param message      MULTICAST message carrying the first sequence number and the group's address and port
+    *
+    * @return new listener, or null if the message is malformed
+    */
+   static MulticastListener fromJoinMessage(int connectionID, Connection connection, Message message) {
+      String address = message.messageBody;
+      int separator = address == null ? -1 : address.lastIndexOf(':');
+      if (separator < 0) return null;
+      try {
+         InetAddress group = InetAddress.getByName(address.substring(0, separator));
+         int port = Integer.parseInt(address.substring(separator + 1));
+         return new MulticastListener(connectionID, connection, group, port, message.conversationID);
+      } catch (IOException e) {
+         return null;
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Executes when the task is run.
+    * <p/>
+    * Joins the group and receives datagrams so long as the connection remains open. If the group cannot be joined, the
+    * server is told to use the connection instead.
+    */
+   @Override
+   public void run() {
+      MulticastSocket socket = null;
+      try {
+         socket = new MulticastSocket(port);
+         // No interface is named, so the group is joined on the system's default multicast interface.
+         socket.joinGroup(groupAddress, null);
+         // Wake periodically to notice the connection closing.
+         socket.setSoTimeout((int) Defaults.DEFAULT_MULTICAST_BEACON_INTERVAL);
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not join multicast group " + group.getHostAddress() + ":" + port + ".", e);
+         if (socket != null) socket.close();
+         leave();
+         return;
+      }
+
+      byte[] buffer = new byte[MulticastDatagram.MAX_DATAGRAM_SIZE];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+         while (!connection.isClosed()) {
+            try {
+               packet.setLength(buffer.length);
+               socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+               continue;
+            }
+            receive(buffer, packet.getOffset(), packet.getLength());
+         }
+      } catch (IOException e) {
+         if (!connection.isClosed()) {
+            ErrorHandler.logError("Lost multicast group " + group.getHostAddress() + ":" + port + ".", e);
+            leave();
+         }
+      } finally {
+         try {
+            socket.leaveGroup(groupAddress, null);
+         } catch (IOException e) {
+            // The socket is being closed regardless.
+         }
+         socket.close();
+      }
+   }
+
+   /**
+    * Checks a datagram's sequence number, asks for any messages missed before it, and delivers its message.
+    *
+    * @param datagram array holding the datagram
+    * @param offset   index of the first datagram byte
+    * @param length   length of the datagram
+    */
+   private void receive(byte[] datagram, int offset, int length) {
+      if (length < MulticastDatagram.HEADER_SIZE) return;
+      int sequence = MulticastDatagram.readSequence(datagram, offset);
+
+      // A beacon carries the last sequence number sent, so anything up to and including it not yet seen was lost.
+      if (MulticastDatagram.isBeacon(length)) {
+         int missed = MulticastDatagram.distance(nextSequence, sequence) + 1;
+         if (missed > 0) requestResend(missed);
+         return;
+      }
+
+      // Anything behind the expected sequence number is a duplicate, or has already been asked for.
+      int missed = MulticastDatagram.distance(nextSequence, sequence);
+      if (missed < 0) return;
+      if (missed > 0) requestResend(missed);
+      nextSequence = sequence + 1;
+
+      Message message;
+      try {
+         message = MulticastDatagram.decode(datagram, offset, length);
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not decode multicast datagram " + sequence + ".", e);
+         return;
+      }
+      if (connection.isPrintMessages()) System.out.println("RX - MC - " + message.toString());
+      SubwaveClient.sortMessage(connectionID, message);
+   }
+
+   /**
+    * Asks the server to resend the messages from the expected sequence number onwards over the connection.
+    *
+    * @param count number of messages missed
+    */
+   private void requestResend(int count) {
+      connection.send(new Message(MessageType.MULTICAST, nextSequence, connection.getClientID(), String.valueOf(count)));
+      nextSequence += count;
+   }
+
+   /**
+    * Tells the server the group cannot be used, so it resends everything from the expected sequence number and sends
+    * later broadcasts over the connection.
+    */
+   private void leave() {
+      connection.send(new Message(MessageType.MULTICAST, nextSequence, connection.getClientID(), Message.MULTICAST_LEAVE));
+   }
+}
@@ -3,13 +3,14 @@ package com.tanndev.subwave.client.core;
 import com.tanndev.subwave.common.Connection;
 
 /**
- * Thread class that listens for messages from the remote server.
+ * Task that listens for messages from the remote server.
  * <p/>
- * Messages are delivered to SubwaveClient for sorting.
+ * Messages are delivered to SubwaveClient for sorting. Listeners are run by the executor set with {@link
+ * SubwaveClient#setListenerExecutor(java.util.concurrent.Executor)}, which may use platform or virtual threads.
  *
  * @author James Tanner
  */
-class ServerListener extends Thread {
+class ServerListener implements Runnable {
 
    /** Unique ID to identify the connection to the SubwaveClient */
    private final int connectionID;
@@ -29,7 +30,7 @@ class ServerListener extends Thread {
    }
 
    /**
-    * Executes on thread start.
+    * Executes when the task is run.
     * <p/>
     * Listens for messages from the server so long as the connection remains open. When messages are received, they are
     * processed using the sortMessages() method of SubwaveClient.
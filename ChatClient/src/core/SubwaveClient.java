@@ -5,10 +5,14 @@ import com.tanndev.subwave.client.ui.gui.SubwaveClientGUI;
 import com.tanndev.subwave.client.ui.tui.ClientTUI;
 import com.tanndev.subwave.common.*;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Client for the Subwave chat system. This client provides a connection to a remote server to create/join conversations
@@ -31,22 +35,126 @@ public class SubwaveClient {
 
    private static ClientUIFramework ui;
 
-   private static ConcurrentHashMap<Integer, Connection> connectionMap = new ConcurrentHashMap<Integer, Connection>();
-   private static int nextConnectionID = 1;
+   private static ConcurrentIntMap<Connection> connectionMap = new ConcurrentIntMap<Connection>();
+   private static AtomicInteger nextConnectionID = new AtomicInteger(1);
 
-   private static ConcurrentHashMap<Integer, Map<Integer, String>> nameMaps = new ConcurrentHashMap<Integer, Map<Integer, String>>();
+   private static ConcurrentIntMap<ConcurrentIntMap<String>> nameMaps = new ConcurrentIntMap<ConcurrentIntMap<String>>();
+
+   /** Executor used to run a {@link ServerListener} for each new connection. */
+   private static Executor listenerExecutor = ThreadMode.PLATFORM.createExecutor();
+
+   /**
+    * Context used to secure new connections with TLS, or null to connect in plain text. The same context is used for
+    * every connection, so a client reconnecting to a server resumes its earlier TLS session.
+    */
+   private static SSLContext tlsContext = null;
+
+   /** Connection IDs of the open sessions, keyed by session. */
+   private static ConcurrentHashMap<Connection, Integer> sessionIDs = new ConcurrentHashMap<Connection, Integer>();
+
+   /** Latches released when a session's sign-on is acknowledged, keyed by session. */
+   private static ConcurrentHashMap<Connection, CountDownLatch> pendingSessions = new ConcurrentHashMap<Connection, CountDownLatch>();
+
+   /**
+    * Delivers the messages of each session under the session's own connectionID, as though the session were a
+    * separate connection. Runs on the listener of the session's carrier.
+    */
+   private static final SessionHandler sessionHandler = new SessionHandler() {
+      @Override
+      public void sessionOpened(SessionConnection session, Message message) {
+         // Only clients open sessions.
+         session.close();
+      }
+
+      @Override
+      public void messageReceived(SessionConnection session, Message message) {
+         Integer connectionID = sessionIDs.get(session);
+         if (connectionID == null) return;
+
+         // The first message acknowledges the sign-on and carries the session's clientID.
+         if (session.getClientID() == 0) {
+            if (message.messageType == MessageType.NETWORK_CONNECT) session.setClientID(message.clientID);
+            CountDownLatch signOn = pendingSessions.get(session);
+            if (signOn != null) signOn.countDown();
+            return;
+         }
+         sortMessage(connectionID, message);
+      }
+
+      @Override
+      public void sessionClosed(SessionConnection session) {
+         CountDownLatch signOn = pendingSessions.get(session);
+         if (signOn != null) signOn.countDown();
+         Integer connectionID = sessionIDs.remove(session);
+         if (connectionID != null && session.getClientID() != 0) alertServerDisconnect(connectionID);
+      }
+   };
 
    public static void main(String[] args) {
+      // Load arguments
+      boolean useTUI = false;
+      boolean useTLS = false;
+      String tlsTrustStore = null;
+      String tlsPassword = Defaults.DEFAULT_TLS_PASSWORD;
+      for (String arg : args) {
+         if (arg.equalsIgnoreCase("-tui")) useTUI = true;
+         else if (arg.equalsIgnoreCase("-tls")) useTLS = true;
+         else if (arg.toLowerCase().startsWith("-tls=")) {
+            useTLS = true;
+            tlsTrustStore = arg.substring("-tls=".length());
+         }
+         else if (arg.toLowerCase().startsWith("-tlspassword=")) tlsPassword = arg.substring("-tlspassword=".length());
+         else if (arg.equalsIgnoreCase("-virtual")) {
+            setListenerExecutor(ThreadMode.VIRTUAL.createExecutor());
+            Connection.setWriterExecutor(ThreadMode.VIRTUAL.createExecutor());
+         }
+      }
+
+      // Trust the provided certificates, such as a server's self-signed one, or the default authorities.
+      if (useTLS) {
+         try {
+            setTlsContext(SecureTransport.createClientContext(tlsTrustStore, tlsPassword.toCharArray()));
+         } catch (IOException e) {
+            ErrorHandler.logError("Could not enable TLS.", e);
+            System.exit(1);
+         }
+      }
 
       // Start the UI
-      if (args.length > 0 && args[0].equalsIgnoreCase("-tui")) {
+      if (useTUI) {
          ui = new ClientTUI();
       } else ui = new SubwaveClientGUI();
       ui.start();
    }
 
+   /**
+    * Sets the executor used to run the listener for each new server connection. Connections that are already open are
+    * not affected.
+    *
+    * @param executor executor to run server listeners
+    *
+    * @see com.tanndev.subwave.common.ThreadMode#createExecutor()
+    */
+   public static void setListenerExecutor(Executor executor) {
+      listenerExecutor = executor;
+   }
+
+   /**
+    * Sets the context used to secure new connections with TLS. Connections that are already open are not affected.
+    *
+    * @param context context used to secure connections, or null to connect in plain text
+    *
+    * @see com.tanndev.subwave.common.SecureTransport#createClientContext(String, char[])
+    */
+   public static void setTlsContext(SSLContext context) {
+      tlsContext = context;
+   }
+
    /**
     * Attempts to create a connection to the selected remote server.
+    * <p/>
+    * If a TLS context has been set, the connection is secured with TLS, resuming an earlier session with the server
+    * when possible.
     *
     * @param serverAddress network address of the remote server. (If null, defaults to "{@value
     *                      Defaults#DEFAULT_SERVER_ADDRESS}".)
@@ -67,10 +175,13 @@ public class SubwaveClient {
       try {
          /*
          Create the socket and connection object.
-         The socket constructor will throw an exception if unable to connect.
+         The socket constructor will throw an exception if unable to connect, or if the TLS handshake fails.
          */
-         Socket socket = new Socket(serverAddress, port);
+         Socket socket;
+         if (tlsContext != null) socket = SecureTransport.connect(tlsContext, serverAddress, port);
+         else socket = new Socket(serverAddress, port);
          Connection connection = new Connection(socket);
+         connection.setSessionHandler(sessionHandler);
 
          /*
          Wait for server ack message.
@@ -85,9 +196,13 @@ public class SubwaveClient {
          int clientID = serverACK.clientID;
          connection.setClientID(clientID);
 
-         // Send a reply with the requested nickname.
-         Message clientACK = new Message(MessageType.NETWORK_CONNECT, 0, clientID, nickname);
+         // Select the offered features this client supports.
+         int features = ProtocolFeature.selectFeatures(serverACK.conversationID);
+
+         // Send a reply with the selected features and requested nickname, then switch to the selected features.
+         Message clientACK = new Message(MessageType.NETWORK_CONNECT, features, clientID, nickname);
          connection.send(clientACK);
+         connection.applyFeatures(features);
 
          // Wait for final ack. This, again, must be a valid NETWORK_CONNECT message.
          Message finalACK = connection.receive();
@@ -99,12 +214,12 @@ public class SubwaveClient {
          // TODO Test for invalid connectionID
 
          // Create a name map for the connection.
-         Map nameMap = new ConcurrentHashMap<Integer, String>();
+         ConcurrentIntMap<String> nameMap = new ConcurrentIntMap<String>();
          nameMap.put(clientID, nickname);
          nameMaps.put(connectionID, nameMap);
 
          // Start a server listener on the connection.
-         new ServerListener(connectionID, connection).start();
+         listenerExecutor.execute(new ServerListener(connectionID, connection));
 
          // Return the connection to the UI.
          return connectionID;
@@ -119,10 +234,65 @@ public class SubwaveClient {
       }
    }
 
+   /**
+    * Opens an additional session over an existing connection, signing on to the server as a separate client.
+    * <p/>
+    * The session shares the connection's socket, so many identities can be signed on at once without a socket each.
+    * It is otherwise used exactly like a connection: it has its own connectionID, clientID, and name map, its messages
+    * are delivered to the UI under its own connectionID, and it is closed with {@link #disconnectFromServer(int)}.
+    * Sessions are closed along with the connection that carries them.
+    *
+    * @param connectionID connection to open the session over
+    * @param nickname     the nickname to request. (If null, defaults to "{@value Defaults#DEFAULT_NICKNAME}".)
+    *
+    * @return connectionID of the new session. If the session could not be opened, returns zero.
+    */
+   public static int openSession(int connectionID, String nickname) {
+      if (nickname == null) nickname = Defaults.DEFAULT_NICKNAME;
+
+      // Sessions require a connection to a server that supports them.
+      Connection connection = connectionMap.get(connectionID);
+      if (connection == null) return 0;
+      SessionConnection session = connection.openSession();
+      if (session == null) {
+         ErrorHandler.logError("Server does not support sessions.");
+         return 0;
+      }
+
+      // Register the session first, so no message that follows the acknowledgement is missed.
+      int sessionConnectionID = addConnectionToMap(session);
+      ConcurrentIntMap<String> nameMap = new ConcurrentIntMap<String>();
+      nameMaps.put(sessionConnectionID, nameMap);
+      CountDownLatch signOn = new CountDownLatch(1);
+      pendingSessions.put(session, signOn);
+      sessionIDs.put(session, sessionConnectionID);
+
+      // Sign on and wait for the server to acknowledge with the session's clientID.
+      session.send(new Message(MessageType.NETWORK_CONNECT, 0, 0, nickname));
+      try {
+         signOn.await(Defaults.DEFAULT_HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      pendingSessions.remove(session);
+
+      if (session.getClientID() == 0 || session.isClosed()) {
+         ErrorHandler.logError("Could not open session.");
+         sessionIDs.remove(session);
+         session.close();
+         removeConnectionFromMap(sessionConnectionID);
+         nameMaps.remove(sessionConnectionID);
+         return 0;
+      }
+      nameMap.put(session.getClientID(), nickname);
+      return sessionConnectionID;
+   }
+
    /**
     * Attempts to disconnect gracefully from the provided connection.
     * <p/>
-    * The connection is closed regardless of whether or not the disconnect message is sent successfully.
+    * The connection is closed regardless of whether or not the disconnect message is sent successfully. Any messages
+    * already queued, including the disconnect message, are written before the connection closes.
     *
     * @param connectionID connection to disconnect and close
     */
@@ -137,8 +307,8 @@ public class SubwaveClient {
       Message disconnectNotice = new Message(MessageType.NETWORK_DISCONNECT, 0, connection.getClientID(), Message.DISCONNECT_INTENT);
       connection.send(disconnectNotice);
 
-      // Close the connection.
-      connection.close();
+      // Close the connection once the notice is written.
+      connection.closeGracefully();
 
       // Remove the connection from the connectionMap
       removeConnectionFromMap(connectionID);
@@ -262,6 +432,59 @@ public class SubwaveClient {
             ui.handleNetworkDisconnect(connectionID, clientID);
             break;
 
+         case PRESENCE: // Server announces a batch of peer clients signing on and off.
+            PresenceBatch batch;
+            try {
+               batch = PresenceBatch.parse(messageBody);
+            } catch (IOException e) {
+               ErrorHandler.logError("Invalid presence batch.", e);
+               break;
+            }
+
+            // Save the names of the peer clients signing on.
+            for (int i = 0; i < batch.size(); i++) {
+               if (batch.isConnect(i)) setName(connectionID, batch.getClientID(i), batch.getName(i));
+            }
+
+            // Pass the whole batch to the UI.
+            ui.handlePresence(connectionID, batch);
+            break;
+
+         case HISTORY: // Server sends a page of a conversation's history.
+            if (HistoryEntry.isEnd(message)) {
+               try {
+                  ui.handleHistoryEnd(connectionID, conversationID, HistoryEntry.parseRemaining(message));
+               } catch (IOException e) {
+                  ErrorHandler.logError("Invalid history page end.", e);
+               }
+               break;
+            }
+            HistoryEntry entry;
+            try {
+               entry = HistoryEntry.parse(message);
+            } catch (IOException e) {
+               ErrorHandler.logError("Invalid history entry.", e);
+               break;
+            }
+            ui.handleHistory(connectionID, conversationID, entry);
+            break;
+
+         case HEARTBEAT: // Server checking that the client is still present.
+            // Answer immediately; the server disconnects clients that stop answering.
+            connection.send(new Message(MessageType.HEARTBEAT, 0, connection.getClientID(), null));
+            break;
+
+         case MULTICAST: // Server sends broadcasts to a multicast group.
+            // Receive broadcasts from the group alongside the connection.
+            MulticastListener multicastListener = MulticastListener.fromJoinMessage(connectionID, connection, message);
+            if (multicastListener != null) listenerExecutor.execute(multicastListener);
+            else {
+               // Ask for broadcasts over the connection instead.
+               ErrorHandler.logError("Invalid multicast group: " + messageBody);
+               connection.send(new Message(MessageType.MULTICAST, conversationID, connection.getClientID(), Message.MULTICAST_LEAVE));
+            }
+            break;
+
          case DEBUG: // Received debug message.
             ui.handleDebug(connectionID, conversationID, clientID, messageBody);
             break;
@@ -282,10 +505,9 @@ public class SubwaveClient {
     *
     * @return a new, unique connectionID
     */
-   private synchronized static int addConnectionToMap(Connection connection) {
+   private static int addConnectionToMap(Connection connection) {
       // Get a new connection ID.
-      int connectionID = nextConnectionID;
-      nextConnectionID++;
+      int connectionID = nextConnectionID.getAndIncrement();
 
       // Attempt to add the connection to the map.
       if (connectionMap.putIfAbsent(connectionID, connection) != null) {
@@ -302,7 +524,7 @@ public class SubwaveClient {
     *
     * @param connectionID ID of the connection to remove
     */
-   private synchronized static void removeConnectionFromMap(int connectionID) {
+   private static void removeConnectionFromMap(int connectionID) {
       // Remove the connection from the map.
       connectionMap.remove(connectionID);
    }
@@ -318,7 +540,7 @@ public class SubwaveClient {
     */
    public static void setName(int connectionID, int uniqueID, String name) {
       // Get name map for the connection.
-      Map nameMap = nameMaps.get(connectionID);
+      ConcurrentIntMap<String> nameMap = nameMaps.get(connectionID);
       if (nameMap == null) {
          ErrorHandler.logError("No name map for that connection");
          return;
@@ -340,7 +562,7 @@ public class SubwaveClient {
     */
    public static String getName(int connectionID, int uniqueID) {
       // Get name map for the connection.
-      Map<Integer, String> nameMap = nameMaps.get(connectionID);
+      ConcurrentIntMap<String> nameMap = nameMaps.get(connectionID);
       if (nameMap == null) {
          ErrorHandler.logError("No name map for that connection");
          return "Unnamed";
@@ -405,6 +627,31 @@ public class SubwaveClient {
       connection.send(reply);
    }
 
+   /**
+    * Asks the server for a page of a conversation's history. The page is passed to the UI, newest message first,
+    * through {@link ClientUIFramework#handleHistory(int, int, HistoryEntry)}, followed by a call to {@link
+    * ClientUIFramework#handleHistoryEnd(int, int, long)}.
+    *
+    * @param connectionID   ID of the connection being used
+    * @param conversationID ID of the conversation
+    * @param beforeSequence sequence number the page ends before, or zero for the latest page
+    * @param pageSize       largest number of messages to send
+    *
+    * @return true if the request was sent, or false if the server does not keep history
+    */
+   public static boolean sendHistoryRequest(int connectionID, int conversationID, long beforeSequence, int pageSize) {
+      // Get the connection from the connectionID
+      Connection connection = connectionMap.get(connectionID);
+      if (connection == null) {
+         ErrorHandler.logError("Invalid connectionID");
+         return false;
+      }
+
+      // Only servers that negotiated history understand the request.
+      if (!ProtocolFeature.HISTORY.isSet(connection.getFeatures())) return false;
+      return connection.send(HistoryEntry.createRequest(conversationID, connection.getClientID(), beforeSequence, pageSize));
+   }
+
    public static void sendConversationLeave(int connectionID, int conversationID) {
       // Get the connection from the connectionID
       Connection connection = connectionMap.get(connectionID);
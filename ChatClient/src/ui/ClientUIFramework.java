@@ -2,7 +2,9 @@ package com.tanndev.subwave.client.ui;
 
 import com.tanndev.subwave.client.core.SubwaveClient;
 import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.HistoryEntry;
 import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.PresenceBatch;
 
 /**
  * Provides the framework required to build user interfaces for {@link com.tanndev.subwave.client.core.SubwaveClient}.
@@ -56,6 +58,46 @@ public abstract class ClientUIFramework extends Thread {
 
    public void handleNetworkDisconnect(int connectionID, int clientID) {handleUnhandled(connectionID, 0, clientID, Message.CLIENT_DISCONNECTED);}
 
+   /**
+    * Called with each batch of peer clients signing on and off, including the list of clients already signed on sent
+    * when connecting.
+    * <p/>
+    * SubwaveClient automatically saves the names of the clients signing on. By default, each entry is passed to {@link
+    * #handleNetworkConnect(int, int, String)} or {@link #handleNetworkDisconnect(int, int)} in order. UIs listing many
+    * clients should override this method to apply the whole batch at once.
+    *
+    * @param connectionID ID of the connection used
+    * @param batch        clients signing on and off, in order
+    */
+   public void handlePresence(int connectionID, PresenceBatch batch) {
+      for (int i = 0; i < batch.size(); i++) {
+         if (batch.isConnect(i)) handleNetworkConnect(connectionID, batch.getClientID(i), batch.getName(i));
+         else handleNetworkDisconnect(connectionID, batch.getClientID(i));
+      }
+   }
+
+   /**
+    * Called with each message of a page of history asked for with {@link SubwaveClient#sendHistoryRequest(int, int,
+    * long, int)}, newest first.
+    * <p/>
+    * Messages already received as they were sent may be repeated in the first page asked for after joining a
+    * conversation, as the page holds the latest messages. By default, history is ignored.
+    *
+    * @param connectionID   ID of the connection used
+    * @param conversationID ID of the conversation
+    * @param entry          message from the conversation's history
+    */
+   public void handleHistory(int connectionID, int conversationID, HistoryEntry entry) {}
+
+   /**
+    * Called at the end of each page of history, after every message of the page.
+    *
+    * @param connectionID   ID of the connection used
+    * @param conversationID ID of the conversation
+    * @param remaining      number of messages older than the page, or zero if the page reached the start of the history
+    */
+   public void handleHistoryEnd(int connectionID, int conversationID, long remaining) {}
+
    public void handleDebug(int connectionID, int conversationID, int clientID, String message) {
    /*
    By default, debug messages are sent to standard err.
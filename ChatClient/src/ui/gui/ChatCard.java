@@ -1,11 +1,15 @@
 package com.tanndev.subwave.client.ui.gui;
 
 import com.tanndev.subwave.client.core.SubwaveClient;
+import com.tanndev.subwave.common.Defaults;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.util.ArrayList;
 
 /**
  * Created by James Tanner on 7/5/2015.
@@ -16,8 +20,21 @@ public class ChatCard extends JPanel {
    private final int conversationID;
    private SubwaveClientGUI parentUI;
    private JTextArea outputArea;
+   private JScrollPane scrollPane;
    private JTextField inputField;
 
+   // History is inserted below the greeting, above every message already shown.
+   private int historyPosition;
+   private ArrayList<String> historyPage = new ArrayList<String>();
+   private volatile long oldestSequence = 0;
+   private volatile boolean fetchingHistory = false;
+   private volatile boolean moreHistory = true;
+
+   // The first page holds the latest messages, so it repeats those shown since joining.
+   private boolean firstPage = true;
+   private int liveMessages = 0;
+   private int skippedMessages = 0;
+
    public ChatCard(SubwaveClientGUI parentUI, ConversationElement conversation) {
       super(new BorderLayout());
 
@@ -37,10 +54,21 @@ public class ChatCard extends JPanel {
             BorderFactory.createLineBorder(Color.GRAY),
             BorderFactory.createEmptyBorder(2, 3, 2, 2)));
       outputArea.setEditable(false);
-      JScrollPane scrollPane = new JScrollPane(outputArea);
+      historyPosition = outputArea.getDocument().getLength();
+      scrollPane = new JScrollPane(outputArea);
       scrollPane.setPreferredSize(new Dimension(500, 300));
       scrollPane.setBorder(BorderFactory.createEmptyBorder(2, 2, 1, 2));
 
+      // Fetch older messages when the user scrolls to the top.
+      scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+         @Override
+         public void adjustmentValueChanged(AdjustmentEvent e) {
+            JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+            boolean scrollable = scrollBar.getVisibleAmount() < scrollBar.getMaximum() - scrollBar.getMinimum();
+            if (scrollable && scrollBar.getValue() == scrollBar.getMinimum()) requestHistory();
+         }
+      });
+
       // Create the input panel.
       JPanel inputPanel = createInputPanel();
       inputPanel.setBorder(BorderFactory.createEmptyBorder(1, 2, 2, 2));
@@ -49,6 +77,13 @@ public class ChatCard extends JPanel {
       add(labelConversations, BorderLayout.NORTH);
       add(scrollPane, BorderLayout.CENTER);
       add(inputPanel, BorderLayout.SOUTH);
+
+      // Fetch the latest messages, sent before joining.
+      fetchingHistory = true;
+      if (!SubwaveClient.sendHistoryRequest(connectionID, conversationID, 0, Defaults.DEFAULT_HISTORY_PAGE_SIZE)) {
+         fetchingHistory = false;
+         moreHistory = false;
+      }
    }
 
    private JPanel createInputPanel() {
@@ -96,4 +131,61 @@ public class ChatCard extends JPanel {
       outputArea.setCaretPosition(outputArea.getText().length());
    }
 
+   protected void postChatMessage(String message) {
+      if (firstPage) liveMessages++;
+      postMessage(message);
+   }
+
+   private void requestHistory() {
+      if (fetchingHistory || !moreHistory) return;
+      fetchingHistory = true;
+      if (!SubwaveClient.sendHistoryRequest(connectionID, conversationID, oldestSequence, Defaults.DEFAULT_HISTORY_PAGE_SIZE)) {
+         fetchingHistory = false;
+         moreHistory = false;
+      }
+   }
+
+   protected void postHistory(long sequence, String message) {
+      oldestSequence = sequence;
+
+      // Skip the messages already shown, which are the newest of the first page.
+      if (firstPage && skippedMessages < liveMessages) {
+         skippedMessages++;
+         return;
+      }
+      historyPage.add(message);
+   }
+
+   protected void endHistory(long remaining) {
+      // The page arrives newest first.
+      StringBuilder text = new StringBuilder();
+      for (int i = historyPage.size() - 1; i >= 0; i--) text.append("\n").append(historyPage.get(i));
+      historyPage.clear();
+      final String pageText = text.toString();
+      final boolean scrollToEnd = firstPage;
+      firstPage = false;
+      moreHistory = remaining > 0;
+
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            // Insert the page above the messages shown, keeping them where they are on screen.
+            JViewport viewport = scrollPane.getViewport();
+            int heightBefore = outputArea.getPreferredSize().height;
+            outputArea.insert(pageText, historyPosition);
+            scrollPane.validate();
+            if (scrollToEnd) outputArea.setCaretPosition(outputArea.getDocument().getLength());
+            else {
+               Point position = viewport.getViewPosition();
+               position.y += outputArea.getPreferredSize().height - heightBefore;
+               viewport.setViewPosition(position);
+            }
+            fetchingHistory = false;
+
+            // Keep fetching until the messages fill the view, as it cannot be scrolled until they do.
+            if (outputArea.getPreferredSize().height <= viewport.getExtentSize().height) requestHistory();
+         }
+      });
+   }
+
 }
@@ -68,6 +68,27 @@ public class ChatPanel extends JPanel {
       parentUI.repaint();
    }
 
+   public void postChatMessage(ConversationElement conversation, String message) {
+      if (conversation == null) return;
+      ChatCard chatCard = cardMap.get(buildCardName(conversation));
+      if (chatCard == null) return;
+      chatCard.postChatMessage(message);
+      if (displayedConversation != conversation) conversation.setNewMessageFlag(true);
+      parentUI.repaint();
+   }
+
+   public void postHistory(ConversationElement conversation, long sequence, String message) {
+      if (conversation == null) return;
+      ChatCard chatCard = cardMap.get(buildCardName(conversation));
+      if (chatCard != null) chatCard.postHistory(sequence, message);
+   }
+
+   public void endHistory(ConversationElement conversation, long remaining) {
+      if (conversation == null) return;
+      ChatCard chatCard = cardMap.get(buildCardName(conversation));
+      if (chatCard != null) chatCard.endHistory(remaining);
+   }
+
    public ConversationElement getDisplayedConversation() {
       return displayedConversation;
    }
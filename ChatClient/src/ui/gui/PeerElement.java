@@ -28,4 +28,9 @@ public class PeerElement implements Comparable<PeerElement> {
    public boolean equals(Object o) {
       return compareTo((PeerElement) o) == 0;
    }
+
+   @Override
+   public int hashCode() {
+      return 31 * connectionID + clientID;
+   }
 }
@@ -6,6 +6,8 @@ import javax.swing.event.ListSelectionListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Created by jtanner on 7/3/2015.
@@ -95,6 +97,35 @@ public class PeerListPanel extends JPanel {
       parentUI.repaint();
    }
 
+   /**
+    * Adds and removes many peers at once. The list is rebuilt and replaced in a single step, so a large batch costs one
+    * update and one repaint, rather than one per peer. Peers that stay listed keep their selection.
+    *
+    * @param added   peers to add, in order
+    * @param removed peers to remove
+    */
+   protected void updatePeers(Collection<PeerElement> added, Collection<PeerElement> removed) {
+      if (peerListModel == null || (added.isEmpty() && removed.isEmpty())) return;
+      List<PeerElement> selectedPeers = peerList.getSelectedValuesList();
+
+      DefaultListModel<PeerElement> updatedModel = new DefaultListModel<PeerElement>();
+      for (int i = 0; i < peerListModel.size(); i++) {
+         PeerElement peer = peerListModel.get(i);
+         if (!removed.contains(peer)) updatedModel.addElement(peer);
+      }
+      for (PeerElement peer : added) updatedModel.addElement(peer);
+      peerListModel = updatedModel;
+      peerList.setModel(updatedModel);
+
+      // Restore the selection of the peers still listed.
+      for (PeerElement peer : selectedPeers) {
+         int index = updatedModel.indexOf(peer);
+         if (index >= 0) peerList.addSelectionInterval(index, index);
+      }
+
+      parentUI.repaint();
+   }
+
    public void updateInviteButtonEnabled() {
       boolean peerSelected = peerList.getSelectedIndex() != -1;
       boolean conversationSelected = parentUI.isDisplayingConversation();
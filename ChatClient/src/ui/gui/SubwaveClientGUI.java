@@ -4,9 +4,15 @@ import com.tanndev.subwave.client.core.SubwaveClient;
 import com.tanndev.subwave.client.ui.ClientUIFramework;
 import com.tanndev.subwave.common.Defaults;
 import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.HistoryEntry;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.PresenceBatch;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -201,14 +207,28 @@ public class SubwaveClientGUI extends ClientUIFramework {
    public void handleChatMessage(int connectionID, int conversationID, int sourceClientID, String message) {
       String senderName = SubwaveClient.getName(connectionID, sourceClientID);
       String stringToPost = senderName + " says \"" + message + "\"";
-      chatPanel.postMessage(conversationMap.get(conversationID), stringToPost);
+      chatPanel.postChatMessage(conversationMap.get(conversationID), stringToPost);
    }
 
    @Override
    public void handleChatEmote(int connectionID, int conversationID, int sourceClientID, String message) {
       String senderName = SubwaveClient.getName(connectionID, sourceClientID);
       String stringToPost = senderName + " " + message;
-      chatPanel.postMessage(conversationMap.get(conversationID), stringToPost);
+      chatPanel.postChatMessage(conversationMap.get(conversationID), stringToPost);
+   }
+
+   @Override
+   public void handleHistory(int connectionID, int conversationID, HistoryEntry entry) {
+      String senderName = SubwaveClient.getName(connectionID, entry.clientID);
+      String stringToPost;
+      if (entry.messageType == MessageType.CHAT_EMOTE) stringToPost = senderName + " " + entry.text;
+      else stringToPost = senderName + " says \"" + entry.text + "\"";
+      chatPanel.postHistory(conversationMap.get(conversationID), entry.sequence, stringToPost);
+   }
+
+   @Override
+   public void handleHistoryEnd(int connectionID, int conversationID, long remaining) {
+      chatPanel.endHistory(conversationMap.get(conversationID), remaining);
    }
 
    @Override
@@ -269,13 +289,37 @@ public class SubwaveClientGUI extends ClientUIFramework {
    @Override
    public void handleNetworkDisconnect(int connectionID, int clientID) {
       // Remove the peer from the map.
-      PeerElement peer = peerMap.get(clientID);
+      PeerElement peer = peerMap.remove(clientID);
       if (peer == null) return;
 
       // Remove the peer from the UI list.
       peerListPanel.removePeer(peer);
    }
 
+   @Override
+   public void handlePresence(int connectionID, PresenceBatch batch) {
+      // Work out the net change to the peer list, so it is updated once for the whole batch.
+      Set<PeerElement> added = new LinkedHashSet<PeerElement>();
+      Set<PeerElement> removed = new HashSet<PeerElement>();
+      for (int i = 0; i < batch.size(); i++) {
+         int clientID = batch.getClientID(i);
+
+         // Ignore entries regarding this client.
+         if (clientID == myClientID) continue;
+
+         if (batch.isConnect(i)) {
+            PeerElement peer = new PeerElement(connectionID, clientID);
+            if (peerMap.putIfAbsent(clientID, peer) == null && !removed.remove(peer)) added.add(peer);
+         } else {
+            PeerElement peer = peerMap.remove(clientID);
+            if (peer != null && !added.remove(peer)) removed.add(peer);
+         }
+      }
+
+      // Update the UI list.
+      peerListPanel.updatePeers(added, removed);
+   }
+
    @Override
    public void handleDebug(int connectionID, int conversationID, int clientID, String message) {
       super.handleDebug(connectionID, conversationID, clientID, message);
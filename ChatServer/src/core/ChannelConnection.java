@@ -0,0 +1,243 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.BufferPool;
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.OutboundFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link com.tanndev.subwave.common.Connection} backed by a non-blocking {@link java.nio.channels.SocketChannel} and
+ * serviced by an {@link com.tanndev.subwave.server.core.EventLoop}.
+ * <p/>
+ * Sending a message encodes it into a frame and queues it for the event loop to write as the channel becomes writable.
+ * Messages are never received with {@link #receive()}; the event loop decodes incoming frames and hands them directly
+ * to the server. Work the server queues on a {@link ServerShard} for this connection is queued without waiting; if the
+ * shard's mailbox is full, the work is parked here and the event loop stops reading until the shard makes room.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.server.core.SelectorListener
+ */
+class ChannelConnection extends Connection {
+
+   /** Channel used to transmit and receive data. */
+   final SocketChannel channel;
+
+   /** Event loop servicing the channel. */
+   final EventLoop eventLoop;
+
+   /**
+    * Pooled buffer accumulating partially received frames, or null if no partial frame is waiting. Only accessed by the
+    * event loop.
+    */
+   ByteBuffer readBuffer;
+
+   /** Frame removed from the queue and partially written. Only accessed by the event loop. */
+   private OutboundFrame currentFrame;
+
+   /** Handshake tracking the connection until the client replies to the greeting. */
+   HandshakeStage.Handshake handshake;
+
+   /** True once the client has completed the sign-on handshake. Only accessed by the event loop. */
+   boolean handshakeComplete = false;
+
+   /** Work waiting for room in a shard's mailbox, or null if reading may go on. Only accessed by the event loop. */
+   private Runnable parkedTask;
+
+   /** Shard the parked work is queued on. Only accessed by the event loop. */
+   private ServerShard parkedShard;
+
+   /** Set once the connection has been closed. */
+   private volatile boolean closed = false;
+
+   /**
+    * Constructor
+    *
+    * @param channel   connected, non-blocking channel
+    * @param eventLoop event loop that will service the channel
+    */
+   ChannelConnection(SocketChannel channel, EventLoop eventLoop) {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+   }
+
+   /**
+    * Asks the event loop to write the queued frames.
+    */
+   @Override
+   protected void scheduleWrite() {
+      eventLoop.requestWrite(this);
+   }
+
+   /**
+    * Writes as many queued frames as the channel will accept. Only called by the event loop.
+    *
+    * @return true if the queue was drained, false if the channel filled first
+    *
+    * @throws IOException if the channel fails
+    */
+   boolean writeQueuedFrames() throws IOException {
+      do {
+         if (currentFrame == null) currentFrame = pollFrame();
+         while (currentFrame != null) {
+            channel.write(currentFrame.data);
+            if (currentFrame.data.hasRemaining()) return false;
+            currentFrame.release();
+            recordWriteProgress();
+            currentFrame = pollFrame();
+         }
+      } while (completeWrite());
+      return true;
+   }
+
+   /**
+    * Queues work read from this connection on a shard, without waiting. If the shard's mailbox is full, the work is
+    * parked, reading is suspended, and the event loop is asked to try again once the shard has room. Only called by the
+    * event loop.
+    *
+    * @param shard shard to run the work
+    * @param task  work to run
+    */
+   void dispatch(ServerShard shard, Runnable task) {
+      if (shard.tryDispatch(task)) return;
+      parkedTask = task;
+      parkedShard = shard;
+      eventLoop.suspendReading(this);
+      awaitRoom();
+   }
+
+   /**
+    * Tries again to queue the parked work. If the shard's mailbox is still full, the event loop is asked to try again
+    * once it has room. Only called by the event loop.
+    *
+    * @return true if the work was queued, and reading may resume
+    */
+   boolean retryParked() {
+      if (parkedTask == null) return true;
+      if (!parkedShard.tryDispatch(parkedTask)) {
+         awaitRoom();
+         return false;
+      }
+      parkedTask = null;
+      parkedShard = null;
+      return true;
+   }
+
+   /**
+    * @return true while work is parked and reading is suspended. Only called by the event loop.
+    */
+   boolean isReadSuspended() {
+      return parkedTask != null;
+   }
+
+   /**
+    * Asks the parked work's shard to report when it has room.
+    */
+   private void awaitRoom() {
+      parkedShard.awaitRoom(new Runnable() {
+         @Override
+         public void run() {
+            eventLoop.requestResume(ChannelConnection.this);
+         }
+      });
+   }
+
+   /**
+    * Returns the buffers held by the event loop to the pool. Only called by the event loop, once the connection is
+    * closed.
+    */
+   void releaseBuffers() {
+      if (currentFrame != null) {
+         currentFrame.release();
+         currentFrame = null;
+      }
+      if (readBuffer != null) {
+         BufferPool.release(readBuffer);
+         readBuffer = null;
+      }
+      discardQueuedFrames();
+   }
+
+   /**
+    * Not supported. Messages on this connection are delivered by the event loop.
+    *
+    * @return null
+    */
+   @Override
+   public Message receive() {
+      ErrorHandler.logError("Attempted to receive directly from a channel connection.");
+      return null;
+   }
+
+   /**
+    * Always false. Messages on this connection are delivered by the event loop.
+    *
+    * @return false
+    */
+   @Override
+   public boolean messageAvailable() {
+      return false;
+   }
+
+   /**
+    * Decodes a single frame received by the event loop. The payload array may be reused once this method returns.
+    *
+    * @param payload array holding the payload
+    * @param offset  index of the first payload byte
+    * @param length  number of payload bytes
+    *
+    * @return decoded message
+    *
+    * @throws IOException if the payload is malformed
+    */
+   Message decode(byte[] payload, int offset, int length) throws IOException {
+      Message message = getCodec().decode(payload, offset, length);
+      recordReceived(FRAME_HEADER_SIZE + length);
+      if (isPrintMessages()) System.out.println("RX - " + message.toString());
+      return message;
+   }
+
+   /**
+    * Routes a single frame received by the event loop for one of this connection's sessions. The payload array may be
+    * reused once this method returns.
+    *
+    * @param streamID stream ID from the frame header
+    * @param payload  array holding the payload
+    * @param offset   index of the first payload byte
+    * @param length   number of payload bytes
+    */
+   void decodeSession(int streamID, byte[] payload, int offset, int length) {
+      receiveSessionFrame(streamID, payload, offset, length);
+   }
+
+   /**
+    * Closes the connection permanently, along with its sessions. Any frames still queued are discarded, and the event
+    * loop is asked to release the buffers it holds.
+    */
+   @Override
+   public void close() {
+      if (closed) return;
+      closed = true;
+      discardQueuedFrames();
+      try {
+         channel.close();
+      } catch (IOException e) {
+         ErrorHandler.logError("IO exception thrown while closing channel.", e);
+      }
+      closeSessions();
+      getCodec().close();
+
+      // Buffers in use by the event loop can only be released there.
+      if (Thread.currentThread() == eventLoop) releaseBuffers();
+      else eventLoop.requestWrite(this);
+   }
+
+   @Override
+   public boolean isClosed() {
+      return closed;
+   }
+}
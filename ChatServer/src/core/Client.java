@@ -2,6 +2,8 @@ package com.tanndev.subwave.server.core;
 
 import com.tanndev.subwave.common.Connection;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Instances of this class represent a single client connected to the server and store relevant information about that
  * client.
@@ -20,6 +22,23 @@ public class Client implements Comparable<Client> {
     /** Friendly name used to represent the client to users. */
     private String nickname;
 
+    /**
+     * Set while the client's outbound queue is above the high watermark of the {@link SlowConsumerPolicy}.
+     */
+    final AtomicBoolean throttled = new AtomicBoolean(false);
+
+    /** Pending idle check of the {@link IdleReaper}, or null if the client is not watched. */
+    volatile TimerWheel.Timeout idleTimeout;
+
+    /** Set while the client receives server-wide broadcasts from the {@link MulticastChannel}. */
+    volatile boolean multicastMember;
+
+    /**
+     * Number of batches the {@link PresenceBatcher} had sent when the client was last sent the list of clients, all of
+     * which the list already reflects. Until the list is sent, no batch is sent to the client.
+     */
+    volatile long presenceListed = Long.MAX_VALUE;
+
     /**
      * Constructor
      *
@@ -0,0 +1,327 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.*;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Links this server to the other nodes of a cluster, so clients connected to any node can chat with each other.
+ * <p/>
+ * Every node is started with the same list of cluster addresses, and its own index in that list. A node hands out IDs
+ * that leave that index when divided by the number of nodes, so the node that owns any client or conversation is found
+ * from its ID alone. A conversation is owned by the node it was created on, which handles every message to it.
+ * <p/>
+ * Each pair of nodes is joined by a single {@link PeerLink}. A node connects to every node earlier in the list, and
+ * accepts connections from every node later in it. Links that close are reconnected by the same rule, so a node that
+ * restarts rejoins the cluster without the others being restarted.
+ * <p/>
+ * Each node sends a heartbeat over every link once a second. A link that has received nothing for several seconds is
+ * closed, so a node that stops responding is treated as lost even if its connections stay open. When a link is lost,
+ * the other node's clients are announced as disconnected, its members are removed from this node's conversations, and
+ * this node's members are told that the other node's conversations are no longer available.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#setCluster(int, java.net.InetSocketAddress[])
+ */
+public class Cluster {
+
+   /** Index of this node in the list of cluster addresses. */
+   private final int nodeIndex;
+
+   /** Address each node accepts cluster links on, by index. */
+   private final InetSocketAddress[] addresses;
+
+   /** Current link to each node, by index, or null if the node is not linked. This node's own entry is always null. */
+   private final AtomicReferenceArray<PeerLink> links;
+
+   /** Socket accepting links from the nodes later in the list. */
+   private final ServerSocket serverSocket;
+
+   /** Number of links opened. */
+   private final AtomicLong linkedCount = new AtomicLong();
+
+   /** Number of links lost. */
+   private final AtomicLong lostCount = new AtomicLong();
+
+   /**
+    * Constructor
+    * <p/>
+    * Starts accepting links on this node's cluster address. Links are not accepted or opened until the cluster is
+    * started.
+    *
+    * @param nodeIndex index of this node in the list of addresses
+    * @param addresses address each node accepts cluster links on
+    *
+    * @throws IOException if this node's cluster address cannot be listened on
+    */
+   public Cluster(int nodeIndex, InetSocketAddress[] addresses) throws IOException {
+      if (nodeIndex < 0 || nodeIndex >= addresses.length) {
+         throw new IllegalArgumentException("Node " + nodeIndex + " is not in the cluster of " + addresses.length + ".");
+      }
+      this.nodeIndex = nodeIndex;
+      this.addresses = addresses.clone();
+      this.links = new AtomicReferenceArray<PeerLink>(addresses.length);
+      try {
+         this.serverSocket = new ServerSocket(addresses[nodeIndex].getPort());
+      } catch (BindException e) {
+         throw new IOException("The cluster port " + addresses[nodeIndex].getPort() + " is already in use.", e);
+      }
+   }
+
+   /**
+    * Starts accepting links, and connecting to the nodes earlier in the list.
+    */
+   public void start() {
+      Thread acceptor = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            acceptLinks();
+         }
+      }, "ClusterListener");
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      Thread maintenance = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            maintainLinks();
+         }
+      }, "ClusterMaintenance");
+      maintenance.setDaemon(true);
+      maintenance.start();
+
+      System.out.println("Node " + nodeIndex + " of " + addresses.length + " accepting cluster links on port " + serverSocket.getLocalPort());
+   }
+
+   /**
+    * @param id clientID or conversationID handed out by any node
+    *
+    * @return index of the node that owns the ID
+    */
+   public int nodeOf(int id) {
+      return (id & Integer.MAX_VALUE) % addresses.length;
+   }
+
+   /**
+    * @return index of this node
+    */
+   public int getNodeIndex() {
+      return nodeIndex;
+   }
+
+   /**
+    * @return number of nodes in the cluster
+    */
+   public int getNodeCount() {
+      return addresses.length;
+   }
+
+   /**
+    * @param node index of a node
+    *
+    * @return current link to the node, or null if it is not linked
+    */
+   public PeerLink getLink(int node) {
+      return links.get(node);
+   }
+
+   /**
+    * @return current links to every linked node
+    */
+   public PeerLink[] getLinks() {
+      ArrayList<PeerLink> current = new ArrayList<PeerLink>(addresses.length);
+      for (int node = 0; node < addresses.length; node++) {
+         PeerLink link = links.get(node);
+         if (link != null) current.add(link);
+      }
+      return current.toArray(new PeerLink[current.size()]);
+   }
+
+   /**
+    * Announces the sign-on or sign-off of one of this node's clients to every linked node.
+    *
+    * @param message NETWORK_CONNECT or NETWORK_DISCONNECT message
+    */
+   public void announce(Message message) {
+      for (PeerLink link : getLinks()) link.announce(message);
+   }
+
+   /**
+    * @return number of links opened
+    */
+   public long getLinkedCount() {
+      return linkedCount.get();
+   }
+
+   /**
+    * @return number of links lost
+    */
+   public long getLostCount() {
+      return lostCount.get();
+   }
+
+   /**
+    * Accepts links from the nodes later in the list. Each is handled on its own thread, so a node that does not
+    * complete the handshake cannot delay the others.
+    */
+   private void acceptLinks() {
+      while (true) {
+         final Socket socket;
+         try {
+            socket = serverSocket.accept();
+         } catch (IOException e) {
+            ErrorHandler.logError("IO exception thrown by the cluster listener.", e);
+            continue;
+         }
+         Thread linkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               PeerLink link = handshake(socket, -1);
+               if (link != null) link.listen();
+            }
+         }, "PeerLink");
+         linkThread.setDaemon(true);
+         linkThread.start();
+      }
+   }
+
+   /**
+    * Connects to the nodes earlier in the list that are not linked, and checks every link for silence, once per
+    * heartbeat interval.
+    */
+   private void maintainLinks() {
+      while (true) {
+         for (int node = 0; node < nodeIndex; node++) {
+            if (links.get(node) == null) connect(node);
+         }
+
+         Message heartbeat = new Message(MessageType.HEARTBEAT, 0, nodeIndex, null);
+         for (PeerLink link : getLinks()) {
+            long idleMillis = link.getConnection().getIdleMillis();
+            if (idleMillis >= Defaults.DEFAULT_CLUSTER_LINK_TIMEOUT) {
+               System.out.println("CL - Node " + link.getNode() + " silent for " + idleMillis + " ms");
+               link.close();
+            } else link.send(heartbeat);
+         }
+
+         try {
+            Thread.sleep(Defaults.DEFAULT_CLUSTER_HEARTBEAT_INTERVAL);
+         } catch (InterruptedException e) {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Attempts to link to a node earlier in the list. Nodes that are not running are tried again later, without logging
+    * an error.
+    *
+    * @param node index of the node
+    */
+   private void connect(int node) {
+      Socket socket = new Socket();
+      try {
+         socket.connect(addresses[node], Defaults.DEFAULT_CLUSTER_CONNECT_TIMEOUT);
+      } catch (IOException e) {
+         try {
+            socket.close();
+         } catch (IOException ignored) {
+         }
+         return;
+      }
+
+      final PeerLink link = handshake(socket, node);
+      if (link == null) return;
+      Thread linkThread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            link.listen();
+         }
+      }, "PeerLink-" + node);
+      linkThread.setDaemon(true);
+      linkThread.start();
+   }
+
+   /**
+    * Exchanges CLUSTER hello messages over a new link and, if both nodes agree on the cluster, makes it the current
+    * link to the other node. Each hello carries the size of the cluster and the index of its sender.
+    *
+    * @param socket socket of the new link
+    * @param node   index of the node connected to, or -1 if the link was accepted
+    *
+    * @return new link, or null if the handshake failed
+    */
+   private PeerLink handshake(Socket socket, int node) {
+      Connection connection = new Connection(socket, Defaults.DEFAULT_CLUSTER_LINK_QUEUE_CAPACITY);
+      connection.setPrintMessages(false);
+      connection.applyFeatures(ProtocolFeature.BINARY_CODEC.mask);
+      Message hello = new Message(MessageType.CLUSTER, addresses.length, nodeIndex, Message.CLUSTER_HELLO);
+      boolean accepted = node < 0;
+
+      try {
+         socket.setKeepAlive(true);
+         socket.setSoTimeout((int) Defaults.DEFAULT_CLUSTER_LINK_TIMEOUT);
+         if (!accepted) connection.send(hello);
+
+         Message reply = connection.receive();
+         if (reply == null || reply.messageType != MessageType.CLUSTER || !Message.CLUSTER_HELLO.equals(reply.messageBody)) {
+            throw new IOException("No cluster hello received.");
+         }
+         if (reply.conversationID != addresses.length) {
+            throw new IOException("Node " + reply.clientID + " is in a cluster of " + reply.conversationID + ".");
+         }
+         // Only the node connected to may answer, and only nodes later in the list may connect.
+         if (accepted ? reply.clientID <= nodeIndex || reply.clientID >= addresses.length : reply.clientID != node) {
+            throw new IOException("Unexpected cluster hello from node " + reply.clientID + ".");
+         }
+         node = reply.clientID;
+
+         if (accepted) connection.send(hello);
+         socket.setSoTimeout(0);
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not link to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+         connection.close();
+         return null;
+      }
+      if (connection.isClosed()) return null;
+
+      PeerLink link = new PeerLink(this, node, connection, Defaults.DEFAULT_CLUSTER_LINK_QUEUE_CAPACITY);
+      linkUp(link);
+      return link;
+   }
+
+   /**
+    * Makes a link the current link to its node, replacing any previous link, and sends it this node's clients. The
+    * previous link is cleaned up before the new link receives anything, so its state never outlives the new link's.
+    *
+    * @param link new link
+    */
+   private void linkUp(PeerLink link) {
+      PeerLink previous = links.getAndSet(link.getNode(), link);
+      if (previous != null) linkLost(previous);
+      linkedCount.incrementAndGet();
+      System.out.println("CL - Linked to node " + link.getNode());
+      SubwaveServer.peerConnected(link);
+   }
+
+   /**
+    * Cleans up a link that has closed. Has no effect if the link was already cleaned up.
+    *
+    * @param link link that was lost
+    */
+   void linkLost(PeerLink link) {
+      if (!link.markLost()) return;
+      link.close();
+      links.compareAndSet(link.getNode(), link, null);
+      lostCount.incrementAndGet();
+      System.out.println("CL - Lost node " + link.getNode());
+      SubwaveServer.peerLost(link);
+   }
+}
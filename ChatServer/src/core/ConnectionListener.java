@@ -4,11 +4,14 @@ import com.tanndev.subwave.common.Connection;
 import com.tanndev.subwave.common.Message;
 
 /**
- * Thread class that listens for messages on a {@link com.tanndev.subwave.common.Connection}.
+ * Task that listens for messages on a {@link com.tanndev.subwave.common.Connection}.
+ * <p/>
+ * Listeners are run by the executor provided to the {@link SocketListener}, which may use platform or virtual threads.
  *
  * @author James Tanner
+ * @see com.tanndev.subwave.common.ThreadMode
  */
-public class ConnectionListener extends Thread {
+public class ConnectionListener implements Runnable {
 
     /** Connection to listen for messages on */
     private Connection connection;
@@ -23,7 +26,7 @@ public class ConnectionListener extends Thread {
     }
 
     /**
-     * Executes on thread start.
+     * Executes when the task is run.
      * <p/>
      * Listens for messages on the connection so long as the connection remains open. When messages are received, they
      * are processed {@link SubwaveServer} class.
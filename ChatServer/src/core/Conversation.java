@@ -2,20 +2,28 @@ package com.tanndev.subwave.server.core;
 
 import com.tanndev.subwave.common.*;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Instances of this class represent a single conversation on the server and store relevant information about that
  * conversation.
+ * <p/>
+ * In a {@link Cluster}, the node that owns a conversation also tracks the members connected to other nodes. Messages
+ * to the conversation are sent once to each of those nodes, over its {@link PeerLink}, rather than once per member.
+ * Every other node with members holds a mirror of the conversation: a Conversation listing only its own members, which
+ * passes on the messages sent to it by the owner.
  *
  * @author James Tanner
  */
 public class Conversation {
 
    /**
-    * Unique ID of the conversation This MUST be unique and should be generated using {@link
-    * SubwaveServer#getUniqueID()}
+    * Unique ID of the conversation This MUST be unique and should be generated using {@link ServerShard#nextID()} on
+    * the shard that will own the conversation.
     */
    public final int conversationID;
 
@@ -27,10 +35,42 @@ public class Conversation {
     */
    private String name;
 
+   /** Empty member list, shared by every conversation without members. */
+   private static final Client[] NO_MEMBERS = new Client[0];
+
+   /**
+    * Snapshot of all clients participating in the conversation.
+    * <p/>
+    * The array is never modified once published. Joins and leaves build a new array and swap it in, so broadcasts and
+    * other readers iterate the snapshot they read without locking, and never wait on each other or on a join.
+    */
+   private volatile Client[] members = NO_MEMBERS;
+
+   /**
+    * Lock serializing changes to {@link #members}, so concurrent joins and leaves do not lose each other's updates, and
+    * their CONVERSATION_JOIN and CONVERSATION_LEAVE announcements are queued in the same order as the changes. Readers
+    * never take it. Announcements only queue frames, so the lock is held briefly; an explicit lock is still used rather
+    * than synchronized methods so that a virtual thread waiting for it never pins its carrier thread.
+    */
+   private final ReentrantLock memberLock = new ReentrantLock();
+
+   /** Empty peer list, shared by every conversation without members on other nodes. */
+   private static final PeerLink[] NO_PEERS = new PeerLink[0];
+
+   /**
+    * Snapshot of the links to the other nodes with members in the conversation. Like {@link #members}, the array is
+    * never modified once published, and is read by broadcasts without locking.
+    */
+   private volatile PeerLink[] peers = NO_PEERS;
+
+   /** Members connected to other nodes, mapped to the link to their node. Only used under {@link #memberLock}. */
+   private final Map<Integer, PeerLink> remoteMembers = new HashMap<Integer, PeerLink>();
+
    /**
-    * Set of all clients participating in the conversation.
+    * Latest messages of the conversation, kept to answer requests for its history, or null until the first is recorded.
+    * Only set on the node that owns the conversation, from its shard thread.
     */
-   private HashSet<Client> members;
+   private volatile RecentMessageRing recentMessages = null;
 
    /**
     * Constructor
@@ -41,54 +81,89 @@ public class Conversation {
    public Conversation(int conversationID, String name) {
       this.conversationID = conversationID;
       this.name = name;
-      members = new HashSet<Client>();
    }
 
    /**
     * Add a new member to the conversation. If client is successfully added, all other members are notified with a
     * CONVERSATION_JOIN message and the new client's friendly name.
     * <p/>
-    * This method is synchronised to be thread-safe.
+    * This method is guarded by {@link #memberLock} to be thread-safe. Broadcasts already in progress finish with the
+    * previous snapshot, so the new member only receives messages broadcast after it joined.
     *
     * @param client new member to add to the conversation
     *
     * @return true if the client is added, otherwise false
     */
-   public synchronized boolean addMember(Client client) {
-      boolean result = members.add(client);
+   public boolean addMember(Client client) {
+      memberLock.lock();
+      try {
+         Client[] current = members;
+         boolean result = indexOf(current, client) < 0;
+         if (result) {
+            Client[] updated = new Client[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = client;
+            members = updated;
 
-      // Announce to all members if the add succeeded.
-      if (result) {
-         Message reply = new Message(MessageType.CONVERSATION_JOIN, conversationID, client.clientID, client.getNickname());
-         broadcastToConversation(reply);
+            // Announce to all members.
+            Message reply = new Message(MessageType.CONVERSATION_JOIN, conversationID, client.clientID, client.getNickname());
+            broadcastToConversation(reply);
+         }
+         return result;
+      } finally {
+         memberLock.unlock();
       }
-      return result;
    }
 
    /**
-    * Remove a member from the conversation. If client is successfully added, all other members are notified with a
-    * CONVERSATION_JOIN message and the new client's friendly name.
+    * Remove a member from the conversation. If client is successfully removed, all other members are notified with a
+    * CONVERSATION_LEAVE message. If no members remain, the conversation is removed from the server.
     * <p/>
-    * This method is synchronised to be thread-safe.
+    * This method is guarded by {@link #memberLock} to be thread-safe. Broadcasts already in progress finish with the
+    * previous snapshot, so the client may still receive messages broadcast before it left.
     *
-    * @param client new member to add to the conversation
+    * @param client member to remove from the conversation
     *
-    * @return true if the client is added, otherwise false
+    * @return true if the client is removed, otherwise false
     */
-   public synchronized boolean removeMember(Client client) {
-      boolean result = members.remove(client);
-      if (!hasMembers()) SubwaveServer.removeConversation(conversationID);
-      else {
-         // Notify all members that the member left.
-         Message notification = new Message(MessageType.CONVERSATION_LEAVE, conversationID, client.clientID, Message.LEFT_CONVERSATION);
-         broadcastToConversation(notification);
+   public boolean removeMember(Client client) {
+      memberLock.lock();
+      try {
+         Client[] current = members;
+         int index = indexOf(current, client);
+         boolean result = index >= 0;
+         if (result) {
+            if (current.length == 1) members = NO_MEMBERS;
+            else {
+               Client[] updated = new Client[current.length - 1];
+               System.arraycopy(current, 0, updated, 0, index);
+               System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+               members = updated;
+            }
+         }
+
+         if (!hasMembers()) SubwaveServer.removeConversation(conversationID);
+         else {
+            // Notify all members that the member left.
+            Message notification = new Message(MessageType.CONVERSATION_LEAVE, conversationID, client.clientID, Message.LEFT_CONVERSATION);
+            broadcastToConversation(notification);
+         }
+         return result;
+      } finally {
+         memberLock.unlock();
       }
-      return result;
    }
 
-   public synchronized Client[] getMemberList() {
-      Client[] memberListArray = new Client[members.size()];
-      return members.toArray(memberListArray);
+   /**
+    * Returns the current members of the conversation, without copying or locking.
+    * <p/>
+    * The array returned is the conversation's current snapshot, and is shared with every other caller, so it must not
+    * be modified. Later joins and leaves do not change it.
+    *
+    * @return snapshot of the members
+    */
+   public Client[] getMemberList() {
+      return members;
    }
 
    /**
@@ -96,42 +171,199 @@ public class Conversation {
     * <p/>
     * If the message is not addressed to this conversation, it will not be sent.
     * <p/>
-    * If any connection fails to send, that member is removed from the conversation.
+    * The message is encoded once and the same frame is queued for every member that shares a stateless codec. Members
+    * are read from the current snapshot without locking, so concurrent broadcasts to the same conversation do not wait
+    * on each other.
+    * <p/>
+    * Members that are not keeping up are handled by the server's {@link SlowConsumerPolicy}, which may skip the message
+    * or evict the member.
     *
     * @param message the {@link Message} to send to the conversation members
     *
     * @return false if the message is rejected as mis-addressed. Otherwise true.
     */
-   public synchronized boolean broadcastToConversation(Message message) {
+   public boolean broadcastToConversation(Message message) {
       // Verify that the message is addressed to this conversation.
       if (message.conversationID != conversationID) {
          ErrorHandler.logError("Attempted to broadcast message to a conversation using the wrong conversation ID.");
          return false;
       }
 
-      // Get an iterator on the set
-      Iterator<Client> iterator = members.iterator();
-
-      // Iterate through all members
-      while (iterator.hasNext()) {
-         Client client = iterator.next();
-
-         // Attempt to send to client.
-         if (!client.clientConnection.send(message)) {
-            // TODO Remove failing client.
-         }
+      // Encode once for all members, and for the nodes with members of their own.
+      SharedFrame frame = new SharedFrame(message);
+      try {
+         for (Client client : members) SubwaveServer.sendToClient(client, frame);
+         for (PeerLink peer : peers) peer.send(frame);
+      } finally {
+         frame.release();
       }
 
       return true;
    }
 
    /**
-    * Checks whether this conversation has members.
+    * Checks whether this conversation has members, on this node or any other.
     *
     * @return true if there are members listed, else false
     */
    public boolean hasMembers() {
-      return members.size() > 0;
+      return members.length > 0 || peers.length > 0;
+   }
+
+   /**
+    * Checks whether a client is a member of this conversation, on this node or, if the conversation is owned here, any
+    * other.
+    *
+    * @param clientID unique ID of the client
+    *
+    * @return true if the client is a member, else false
+    */
+   public boolean isMember(int clientID) {
+      for (Client client : members) {
+         if (client.clientID == clientID) return true;
+      }
+      memberLock.lock();
+      try {
+         return remoteMembers.containsKey(clientID);
+      } finally {
+         memberLock.unlock();
+      }
+   }
+
+   /**
+    * Adds a member connected to another node. Called on the node that owns the conversation. If the client is added,
+    * every member is notified with a CONVERSATION_JOIN message, including the members on the client's node, whose
+    * mirror of the conversation adds the client when the message reaches it.
+    * <p/>
+    * This method is guarded by {@link #memberLock} to be thread-safe.
+    *
+    * @param link     link to the client's node
+    * @param clientID unique ID of the client
+    * @param nickname friendly name of the client
+    *
+    * @return true if the client is added, otherwise false
+    */
+   public boolean addRemoteMember(PeerLink link, int clientID, String nickname) {
+      memberLock.lock();
+      try {
+         boolean result = !remoteMembers.containsKey(clientID);
+         if (result) {
+            remoteMembers.put(clientID, link);
+            updatePeers();
+
+            // Announce to all members.
+            broadcastToConversation(new Message(MessageType.CONVERSATION_JOIN, conversationID, clientID, nickname));
+         }
+         return result;
+      } finally {
+         memberLock.unlock();
+      }
+   }
+
+   /**
+    * Removes a member connected to another node. Called on the node that owns the conversation. If the client is
+    * removed, every member is notified with a CONVERSATION_LEAVE message. The client's node is notified before it is
+    * dropped from the conversation, so its mirror removes the client too. If no members remain, the conversation is
+    * removed from the server.
+    * <p/>
+    * This method is guarded by {@link #memberLock} to be thread-safe.
+    *
+    * @param clientID unique ID of the client
+    *
+    * @return true if the client is removed, otherwise false
+    */
+   public boolean removeRemoteMember(int clientID) {
+      memberLock.lock();
+      try {
+         boolean result = remoteMembers.containsKey(clientID);
+         if (result) {
+            Message notification = new Message(MessageType.CONVERSATION_LEAVE, conversationID, clientID, Message.LEFT_CONVERSATION);
+            broadcastToConversation(notification);
+            remoteMembers.remove(clientID);
+            updatePeers();
+            if (!hasMembers()) SubwaveServer.removeConversation(conversationID);
+         }
+         return result;
+      } finally {
+         memberLock.unlock();
+      }
+   }
+
+   /**
+    * Removes every member connected through a link that has been lost. Called on the node that owns the conversation.
+    * The remaining members are notified with a CONVERSATION_LEAVE message for each member removed. If no members remain,
+    * the conversation is removed from the server.
+    * <p/>
+    * This method is guarded by {@link #memberLock} to be thread-safe.
+    *
+    * @param link link that was lost
+    */
+   public void removePeer(PeerLink link) {
+      memberLock.lock();
+      try {
+         ArrayList<Integer> removed = new ArrayList<Integer>();
+         for (Iterator<Map.Entry<Integer, PeerLink>> entries = remoteMembers.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<Integer, PeerLink> entry = entries.next();
+            if (entry.getValue() == link) {
+               removed.add(entry.getKey());
+               entries.remove();
+            }
+         }
+         if (removed.isEmpty()) return;
+         updatePeers();
+
+         if (!hasMembers()) SubwaveServer.removeConversation(conversationID);
+         else {
+            for (int clientID : removed) {
+               Message notification = new Message(MessageType.CONVERSATION_LEAVE, conversationID, clientID, Message.LEFT_CONVERSATION);
+               broadcastToConversation(notification);
+            }
+         }
+      } finally {
+         memberLock.unlock();
+      }
+   }
+
+   /**
+    * Rebuilds the {@link #peers} snapshot from the remote members. Must be called under {@link #memberLock}.
+    */
+   private void updatePeers() {
+      ArrayList<PeerLink> linked = new ArrayList<PeerLink>();
+      for (PeerLink link : remoteMembers.values()) {
+         if (!linked.contains(link)) linked.add(link);
+      }
+      peers = linked.isEmpty() ? NO_PEERS : linked.toArray(new PeerLink[linked.size()]);
+   }
+
+   /**
+    * Finds a client in a member snapshot.
+    *
+    * @param snapshot member snapshot to search
+    * @param client   client to find
+    *
+    * @return index of the client, or -1 if it is not a member
+    */
+   private static int indexOf(Client[] snapshot, Client client) {
+      for (int i = 0; i < snapshot.length; i++) {
+         if (snapshot[i] == client) return i;
+      }
+      return -1;
+   }
+
+   /**
+    * @return the latest messages of the conversation, or null if none have been recorded
+    */
+   public RecentMessageRing getRecentMessages() {
+      return recentMessages;
+   }
+
+   /**
+    * Sets the ring holding the latest messages of the conversation. Must be called on the conversation's shard thread.
+    *
+    * @param ring ring holding the latest messages
+    */
+   void setRecentMessages(RecentMessageRing ring) {
+      recentMessages = ring;
    }
 
    /**
@@ -0,0 +1,391 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.BufferPool;
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.ProtocolFeature;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread class that services many {@link com.tanndev.subwave.server.core.ChannelConnection}s with a single {@link
+ * java.nio.channels.Selector}.
+ * <p/>
+ * The event loop reads and frames incoming data, completes the sign-on handshake, and hands decoded messages to the
+ * {@link SubwaveServer}. It also writes the frames queued by each connection as the channels become writable.
+ * <p/>
+ * The loop never waits on a {@link ServerShard}. A connection whose work finds a shard's mailbox full stops being read,
+ * and the frames it has already sent stay buffered, until the shard has room and the work is queued. The loop's other
+ * connections are read as usual meanwhile.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.server.core.SelectorListener
+ */
+class EventLoop extends Thread {
+
+   /** Initial size of each connection's read buffer. Buffers grow as needed to hold a complete frame. */
+   static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+   /** Selector used to wait for channel events. */
+   private final Selector selector;
+
+   /** Connections waiting to be registered with the selector. */
+   private final Queue<ChannelConnection> pendingRegistrations = new ConcurrentLinkedQueue<ChannelConnection>();
+
+   /** Connections with newly queued frames to write. */
+   private final Queue<ChannelConnection> pendingWrites = new ConcurrentLinkedQueue<ChannelConnection>();
+
+   /** Connections with parked work whose shard has made room. */
+   private final Queue<ChannelConnection> pendingResumes = new ConcurrentLinkedQueue<ChannelConnection>();
+
+   /** Array each received payload is copied into for decoding. Grows to fit the largest frame received. */
+   private byte[] decodeBuffer = new byte[INITIAL_READ_BUFFER_SIZE];
+
+   /**
+    * Constructor
+    *
+    * @param name name of the thread
+    *
+    * @throws IOException if the selector cannot be opened
+    */
+   EventLoop(String name) throws IOException {
+      super(name);
+      selector = Selector.open();
+   }
+
+   /**
+    * Hands a new connection to this event loop. May be called from any thread.
+    *
+    * @param connection connection to service
+    */
+   void register(ChannelConnection connection) {
+      pendingRegistrations.add(connection);
+      selector.wakeup();
+   }
+
+   /**
+    * Asks the event loop to write the frames queued on a connection. May be called from any thread.
+    *
+    * @param connection connection with queued frames
+    */
+   void requestWrite(ChannelConnection connection) {
+      pendingWrites.add(connection);
+      if (Thread.currentThread() != this) selector.wakeup();
+   }
+
+   /**
+    * Asks the event loop to queue the work parked on a connection, and resume reading from it. May be called from any
+    * thread.
+    *
+    * @param connection connection with parked work
+    */
+   void requestResume(ChannelConnection connection) {
+      pendingResumes.add(connection);
+      if (Thread.currentThread() != this) selector.wakeup();
+   }
+
+   /**
+    * Stops reading from a connection until {@link #processResumes()} resumes it. Only called by the event loop.
+    *
+    * @param connection connection with parked work
+    */
+   void suspendReading(ChannelConnection connection) {
+      SelectionKey key = connection.channel.keyFor(selector);
+      if (key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+   }
+
+   /**
+    * Executes on thread start.
+    * <p/>
+    * Waits for channel events and services them for as long as the server runs.
+    */
+   @Override
+   public void run() {
+      while (true) {
+         try {
+            // Only block if there is no outstanding work.
+            if (pendingRegistrations.isEmpty() && pendingWrites.isEmpty() && pendingResumes.isEmpty()) selector.select();
+            else selector.selectNow();
+
+            processRegistrations();
+            processWriteRequests();
+            processResumes();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+               SelectionKey key = iterator.next();
+               iterator.remove();
+               ChannelConnection connection = (ChannelConnection) key.attachment();
+               try {
+                  if (key.isReadable()) read(connection);
+                  if (key.isValid() && key.isWritable()) write(key, connection);
+               } catch (IOException e) {
+                  // Silently handle exception and close the connection.
+                  disconnect(connection);
+               } catch (CancelledKeyException e) {
+                  disconnect(connection);
+               } catch (RuntimeException e) {
+                  ErrorHandler.logError("Exception thrown while handling client " + connection.getClientID() + ".", e);
+                  disconnect(connection);
+               }
+            }
+
+         } catch (IOException e) {
+            ErrorHandler.logError("IO exception thrown by event loop.", e);
+         }
+      }
+   }
+
+   /**
+    * Registers all pending connections with the selector. Any frames queued before registration are written now.
+    */
+   private void processRegistrations() {
+      ChannelConnection connection;
+      while ((connection = pendingRegistrations.poll()) != null) {
+         try {
+            SelectionKey key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            write(key, connection);
+         } catch (IOException e) {
+            disconnect(connection);
+         } catch (CancelledKeyException e) {
+            disconnect(connection);
+         }
+      }
+   }
+
+   /**
+    * Writes the queued frames of every connection that requested a write.
+    */
+   private void processWriteRequests() {
+      ChannelConnection connection;
+      while ((connection = pendingWrites.poll()) != null) {
+         SelectionKey key = connection.channel.keyFor(selector);
+
+         // Connections that are not registered yet are flushed on registration. Closed connections only need their
+         // buffers released.
+         if (key == null || !key.isValid()) {
+            if (connection.isClosed()) connection.releaseBuffers();
+            continue;
+         }
+         try {
+            write(key, connection);
+         } catch (IOException e) {
+            disconnect(connection);
+         } catch (CancelledKeyException e) {
+            disconnect(connection);
+         }
+      }
+   }
+
+   /**
+    * Queues the parked work of every connection whose shard has made room, then resumes reading, starting with the
+    * frames already buffered. A connection whose shard is full again stays suspended. Parked work is queued even if the
+    * connection has closed since, as it would have been had it been queued on arrival.
+    */
+   private void processResumes() {
+      ChannelConnection connection;
+      while ((connection = pendingResumes.poll()) != null) {
+         if (!connection.retryParked() || connection.isClosed()) continue;
+         try {
+            SelectionKey key = connection.channel.keyFor(selector);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            processFrames(connection);
+         } catch (IOException e) {
+            disconnect(connection);
+         } catch (CancelledKeyException e) {
+            disconnect(connection);
+         } catch (RuntimeException e) {
+            ErrorHandler.logError("Exception thrown while handling client " + connection.getClientID() + ".", e);
+            disconnect(connection);
+         }
+      }
+   }
+
+   /**
+    * Reads available data from the channel and processes every complete frame.
+    * <p/>
+    * Data is read into a pooled buffer that the connection only holds while part of a frame, or frames held back while
+    * reading is suspended, are waiting, so idle connections hold no read buffer at all.
+    *
+    * @param connection connection to read from
+    *
+    * @throws IOException if the channel fails, reaches end of stream, or sends an invalid frame
+    */
+   private void read(ChannelConnection connection) throws IOException {
+      if (connection.readBuffer == null) connection.readBuffer = BufferPool.acquire(INITIAL_READ_BUFFER_SIZE);
+      ByteBuffer buffer = connection.readBuffer;
+      if (connection.channel.read(buffer) < 0) throw new IOException("End of stream.");
+      processFrames(connection);
+   }
+
+   /**
+    * Processes every complete frame in the connection's read buffer, stopping early if the connection closes or its
+    * reading is suspended. Frames not yet processed are kept for the next call.
+    *
+    * @param connection connection to process
+    *
+    * @throws IOException if the connection sent an invalid frame
+    */
+   private void processFrames(ChannelConnection connection) throws IOException {
+      ByteBuffer buffer = connection.readBuffer;
+      if (buffer == null) return;
+      buffer.flip();
+
+      while (buffer.remaining() >= Connection.FRAME_HEADER_SIZE) {
+         // Check that the whole frame has arrived. Session frames are only accepted once multiplexing is negotiated.
+         int header = buffer.getInt(buffer.position());
+         boolean sessionFrame = isSessionFrame(connection, header);
+         int headerSize = sessionFrame ? Connection.SESSION_FRAME_HEADER_SIZE : Connection.FRAME_HEADER_SIZE;
+         int length = payloadLength(connection, header);
+         if (buffer.remaining() < headerSize + length) break;
+
+         // Copy out the payload, then decode it and hand it off.
+         if (decodeBuffer.length < length) decodeBuffer = new byte[length];
+         int streamID = sessionFrame ? buffer.getInt(buffer.position() + Connection.FRAME_HEADER_SIZE) : 0;
+         buffer.position(buffer.position() + headerSize);
+         buffer.get(decodeBuffer, 0, length);
+         if (sessionFrame) {
+            connection.decodeSession(streamID, decodeBuffer, 0, length);
+            if (connection.isClosed()) return;
+            if (connection.isReadSuspended()) break;
+            continue;
+         }
+         Message message;
+         try {
+            message = connection.decode(decodeBuffer, 0, length);
+         } catch (IOException e) {
+            // A codec closed while the frame was being decoded has nothing to report.
+            if (!connection.isClosed()) ErrorHandler.logError("Could not decode received frame.", e);
+            throw e;
+         }
+         dispatch(connection, message);
+         if (connection.isClosed()) return;
+         if (connection.isReadSuspended()) break;
+      }
+
+      // Return the buffer to the pool if no partial frame remains.
+      if (!buffer.hasRemaining()) {
+         BufferPool.release(buffer);
+         connection.readBuffer = null;
+         return;
+      }
+
+      // Move to a larger buffer if the next frame will not fit. Reading may have been suspended before its header was
+      // checked, so it is checked here before anything is allocated for it.
+      if (buffer.remaining() >= Connection.FRAME_HEADER_SIZE) {
+         int header = buffer.getInt(buffer.position());
+         int headerSize = isSessionFrame(connection, header)
+               ? Connection.SESSION_FRAME_HEADER_SIZE : Connection.FRAME_HEADER_SIZE;
+         int frameSize = headerSize + payloadLength(connection, header);
+         if (frameSize > buffer.capacity()) {
+            ByteBuffer larger = BufferPool.acquire(frameSize);
+            larger.limit(larger.capacity());
+            larger.put(buffer);
+            BufferPool.release(buffer);
+            connection.readBuffer = larger;
+            return;
+         }
+      }
+      buffer.compact();
+   }
+
+   /**
+    * @param connection connection the frame was received on
+    * @param header     first four bytes of the frame
+    *
+    * @return true if the frame belongs to a session, which is only accepted once multiplexing is negotiated
+    */
+   private static boolean isSessionFrame(ChannelConnection connection, int header) {
+      return Connection.isSessionFrame(header) && connection.isMultiplexed();
+   }
+
+   /**
+    * @param connection connection the frame was received on
+    * @param header     first four bytes of the frame
+    *
+    * @return length of the frame's payload
+    *
+    * @throws IOException if the length is negative or longer than a frame may be
+    */
+   private static int payloadLength(ChannelConnection connection, int header) throws IOException {
+      int length = isSessionFrame(connection, header) ? Connection.frameLength(header) : header;
+      if (length < 0 || length > Defaults.DEFAULT_MAX_FRAME_SIZE) {
+         Connection.logInvalidHeader(header, length);
+         throw new IOException("Invalid frame length.");
+      }
+      return length;
+   }
+
+   /**
+    * Writes as many queued frames as the channel will accept. If the channel fills, write interest is kept so the
+    * remaining frames are written when it drains. A connection that is closing is disconnected once its queue is empty.
+    *
+    * @param key        selection key of the connection
+    * @param connection connection to write to
+    *
+    * @throws IOException if the channel fails
+    */
+   private void write(SelectionKey key, ChannelConnection connection) throws IOException {
+      if (!connection.writeQueuedFrames()) {
+         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+         return;
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      if (connection.isClosing()) disconnect(connection);
+   }
+
+   /**
+    * Handles a decoded message. The first message on a connection must complete the sign-on handshake; all others are
+    * passed to the server for sorting.
+    *
+    * @param connection connection the message was received on
+    * @param message    message received
+    *
+    * @see SubwaveServer#sortClientMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    */
+   private void dispatch(ChannelConnection connection, Message message) {
+      if (connection.handshakeComplete) {
+         SubwaveServer.sortClientMessage(connection, message);
+         return;
+      }
+
+      // Connection ack from the client must carry the requested nickname.
+      if (message.messageType != MessageType.NETWORK_CONNECT) {
+         connection.handshake.fail(HandshakeStage.Reason.INVALID_REPLY);
+         return;
+      }
+
+      // A handshake that already timed out has closed the connection.
+      if (!connection.handshake.complete()) return;
+      connection.handshakeComplete = true;
+
+      // Switch to the features selected by the client.
+      connection.applyFeatures(ProtocolFeature.selectFeatures(message.conversationID));
+      SubwaveServer.addClient(connection.getClientID(), connection, message.messageBody);
+   }
+
+   /**
+    * Closes the connection and, if the handshake was completed, shuts down the associated client. Otherwise, the
+    * handshake is failed.
+    *
+    * @param connection connection to close
+    *
+    * @see SubwaveServer#removeClient(int)
+    */
+   private void disconnect(ChannelConnection connection) {
+      if (!connection.handshakeComplete) connection.handshake.fail(HandshakeStage.Reason.CLOSED);
+      connection.close();
+      connection.releaseBuffers();
+      if (connection.handshakeComplete) SubwaveServer.removeClient(connection.getClientID());
+   }
+}
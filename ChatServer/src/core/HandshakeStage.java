@@ -0,0 +1,295 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.SecureTransport;
+
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the sign-on handshakes of newly accepted connections.
+ * <p/>
+ * Accepting a connection and completing its handshake are separate stages. A listener only accepts the connection,
+ * sends the greeting, and calls {@link #begin(com.tanndev.subwave.common.Connection)}; the client's reply is awaited
+ * elsewhere, so a client that never replies cannot delay the connections accepted after it. Any handshake that is not
+ * resolved within the timeout is failed and its connection closed.
+ * <p/>
+ * The stage also keeps the accept rate, handshake latency, and failures by {@link Reason} for monitoring. For TLS
+ * connections, it also keeps the time taken by full and resumed TLS handshakes, and the share that were resumed, as a
+ * reconnect storm that cannot resume its sessions costs a full handshake per client.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.server.core.SocketListener
+ * @see com.tanndev.subwave.server.core.SelectorListener
+ */
+public class HandshakeStage {
+
+   /**
+    * Defines the reasons a handshake may fail.
+    */
+   public enum Reason {
+      /** The client did not reply within the handshake timeout. */
+      TIMEOUT,
+      /** The client's reply was not a valid NETWORK_CONNECT message. */
+      INVALID_REPLY,
+      /** The connection closed before the client replied. */
+      CLOSED,
+      /** The TLS handshake failed or was abandoned. */
+      TLS_FAILED
+   }
+
+   /** Longest time, in milliseconds, a client may take to complete its handshake. */
+   private final long timeoutMillis;
+
+   /** Timer used to fail handshakes that time out. */
+   private final TimerWheel timer;
+
+   /** Time, from {@link System#nanoTime()}, the stage was created. */
+   private final long startTime = System.nanoTime();
+
+   /** Number of connections accepted. */
+   private final AtomicLong acceptedCount = new AtomicLong();
+
+   /** Number of handshakes completed successfully. */
+   private final AtomicLong completedCount = new AtomicLong();
+
+   /** Total time taken by successful handshakes, in nanoseconds. */
+   private final AtomicLong totalLatency = new AtomicLong();
+
+   /** Longest time taken by a successful handshake, in nanoseconds. */
+   private final AtomicLong maxLatency = new AtomicLong();
+
+   /** Number of full TLS handshakes completed. */
+   private final AtomicLong tlsFullCount = new AtomicLong();
+
+   /** Number of TLS handshakes completed by resuming an earlier session. */
+   private final AtomicLong tlsResumedCount = new AtomicLong();
+
+   /** Total time taken by full TLS handshakes, in nanoseconds. */
+   private final AtomicLong tlsFullTime = new AtomicLong();
+
+   /** Total time taken by resumed TLS handshakes, in nanoseconds. */
+   private final AtomicLong tlsResumedTime = new AtomicLong();
+
+   /** Number of failed handshakes, indexed by {@link Reason} ordinal. */
+   private final AtomicLongArray failureCounts = new AtomicLongArray(Reason.values().length);
+
+   /**
+    * Constructor
+    *
+    * @param timer         timer wheel used to fail handshakes that time out
+    * @param timeoutMillis longest time a client may take to complete its handshake
+    */
+   public HandshakeStage(TimerWheel timer, long timeoutMillis) {
+      this.timer = timer;
+      this.timeoutMillis = timeoutMillis;
+   }
+
+   /**
+    * Starts tracking the handshake of a newly accepted connection. The handshake fails with {@link Reason#TIMEOUT} if
+    * it has not been resolved once the timeout elapses.
+    *
+    * @param connection connection that was accepted
+    *
+    * @return handshake to resolve once the client replies
+    */
+   public Handshake begin(Connection connection) {
+      acceptedCount.incrementAndGet();
+      final Handshake handshake = new Handshake(connection);
+      handshake.timeout = timer.schedule(new Runnable() {
+         @Override
+         public void run() {
+            handshake.fail(Reason.TIMEOUT);
+         }
+      }, timeoutMillis);
+      return handshake;
+   }
+
+   /**
+    * @return longest time, in milliseconds, a client may take to complete its handshake
+    */
+   public long getTimeoutMillis() {
+      return timeoutMillis;
+   }
+
+   /**
+    * @return number of connections accepted
+    */
+   public long getAcceptedCount() {
+      return acceptedCount.get();
+   }
+
+   /**
+    * @return average number of connections accepted per second since the stage was created
+    */
+   public double getAcceptRate() {
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      return seconds > 0 ? acceptedCount.get() / seconds : 0;
+   }
+
+   /**
+    * @return number of handshakes completed successfully
+    */
+   public long getCompletedCount() {
+      return completedCount.get();
+   }
+
+   /**
+    * @return number of handshakes accepted but not yet resolved
+    */
+   public long getPendingCount() {
+      long failed = 0;
+      for (int i = 0; i < failureCounts.length(); i++) failed += failureCounts.get(i);
+      return acceptedCount.get() - completedCount.get() - failed;
+   }
+
+   /**
+    * @param reason reason to report
+    *
+    * @return number of handshakes that failed for the provided reason
+    */
+   public long getFailureCount(Reason reason) {
+      return failureCounts.get(reason.ordinal());
+   }
+
+   /**
+    * @return average time taken by successful handshakes, in milliseconds
+    */
+   public double getMeanLatencyMillis() {
+      long completed = completedCount.get();
+      return completed > 0 ? totalLatency.get() / 1e6 / completed : 0;
+   }
+
+   /**
+    * @return longest time taken by a successful handshake, in milliseconds
+    */
+   public double getMaxLatencyMillis() {
+      return maxLatency.get() / 1e6;
+   }
+
+   /**
+    * @return number of full TLS handshakes completed
+    */
+   public long getTlsFullCount() {
+      return tlsFullCount.get();
+   }
+
+   /**
+    * @return number of TLS handshakes completed by resuming an earlier session
+    */
+   public long getTlsResumedCount() {
+      return tlsResumedCount.get();
+   }
+
+   /**
+    * @return share of completed TLS handshakes that resumed an earlier session, from 0 to 1
+    */
+   public double getTlsResumedRatio() {
+      long resumed = tlsResumedCount.get();
+      long total = resumed + tlsFullCount.get();
+      return total > 0 ? (double) resumed / total : 0;
+   }
+
+   /**
+    * @param resumed true for resumed TLS handshakes, false for full ones
+    *
+    * @return average time taken by TLS handshakes of that kind, in milliseconds
+    */
+   public double getMeanTlsHandshakeMillis(boolean resumed) {
+      long count = resumed ? tlsResumedCount.get() : tlsFullCount.get();
+      long time = resumed ? tlsResumedTime.get() : tlsFullTime.get();
+      return count > 0 ? time / 1e6 / count : 0;
+   }
+
+   /**
+    * The handshake of a single connection. Exactly one of {@link #complete()} or {@link #fail(Reason)} takes effect,
+    * whichever is called first, so a reply racing the timeout is resolved consistently.
+    */
+   public class Handshake {
+
+      /** Connection performing the handshake. */
+      private final Connection connection;
+
+      /** Time, from {@link System#nanoTime()}, the connection was accepted. */
+      private final long acceptTime = System.nanoTime();
+
+      /** Set once the handshake has been resolved. */
+      private final AtomicBoolean resolved = new AtomicBoolean(false);
+
+      /** Pending timeout task. */
+      private volatile TimerWheel.Timeout timeout;
+
+      /**
+       * Constructor
+       *
+       * @param connection connection performing the handshake
+       */
+      private Handshake(Connection connection) {
+         this.connection = connection;
+      }
+
+      /**
+       * Marks the handshake as completed successfully.
+       *
+       * @return true if the handshake completed, false if it had already failed, in which case the connection has been
+       * closed and the client must not be added
+       */
+      public boolean complete() {
+         if (!resolve()) return false;
+         long latency = System.nanoTime() - acceptTime;
+         completedCount.incrementAndGet();
+         totalLatency.addAndGet(latency);
+         long max = maxLatency.get();
+         while (latency > max && !maxLatency.compareAndSet(max, latency)) max = maxLatency.get();
+         return true;
+      }
+
+      /**
+       * Records the completed TLS handshake of the connection. The sign-on handshake continues over the secured
+       * connection.
+       *
+       * @param session        session negotiated by the TLS handshake
+       * @param handshakeStart time, from {@link System#currentTimeMillis()}, the TLS handshake started
+       * @param duration       time taken by the TLS handshake, in nanoseconds
+       */
+      public void secured(SSLSession session, long handshakeStart, long duration) {
+         boolean resumed = SecureTransport.isResumed(session, handshakeStart);
+         if (resumed) {
+            tlsResumedCount.incrementAndGet();
+            tlsResumedTime.addAndGet(duration);
+         } else {
+            tlsFullCount.incrementAndGet();
+            tlsFullTime.addAndGet(duration);
+         }
+         String format = "TL - ClientID: %d %s %s in %.1f ms";
+         System.out.println(String.format(format, connection.getClientID(), session.getProtocol(),
+               resumed ? "resumed" : "full handshake", duration / 1e6));
+      }
+
+      /**
+       * Marks the handshake as failed and closes the connection. Has no effect if the handshake was already resolved.
+       *
+       * @param reason reason the handshake failed
+       */
+      public void fail(Reason reason) {
+         if (!resolve()) return;
+         failureCounts.incrementAndGet(reason.ordinal());
+         System.out.println("HF - ClientID: " + connection.getClientID() + " handshake failed (" + reason + ")");
+         connection.close();
+      }
+
+      /**
+       * Resolves the handshake and cancels its timeout.
+       *
+       * @return true if this call resolved the handshake, false if it was already resolved
+       */
+      private boolean resolve() {
+         if (!resolved.compareAndSet(false, true)) return false;
+         TimerWheel.Timeout pending = timeout;
+         if (pending != null) pending.cancel();
+         return true;
+      }
+   }
+}
@@ -0,0 +1,179 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.ProtocolFeature;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disconnects clients that have stopped responding.
+ * <p/>
+ * A peer that vanishes without closing its socket, such as one whose network has dropped, leaves a half-open
+ * connection that never reports an error while the server only sends. The reaper watches every client that negotiated
+ * {@link com.tanndev.subwave.common.ProtocolFeature#HEARTBEAT}. Once such a client has sent nothing for the heartbeat
+ * interval, it is sent a HEARTBEAT message, which it must answer. A client that has sent nothing for the idle timeout
+ * is removed from the server.
+ * <p/>
+ * Each watched client has a single timeout on the shared {@link TimerWheel}. Receiving a message only records the time
+ * on the connection; when the timeout expires it checks how long the client has actually been idle and, if the client
+ * is still active, reschedules itself for the moment it could next become idle. Busy clients therefore cost nothing
+ * per message, and the wheel holds one timeout per client however many clients are connected.
+ * <p/>
+ * Clients that predate the heartbeat cannot be pinged, and are never reaped by idle time alone.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection#getIdleMillis()
+ */
+public class IdleReaper {
+
+   /** Timer wheel used to schedule idle checks. */
+   private final TimerWheel timer;
+
+   /** Time, in milliseconds, a client may be idle before it is sent a heartbeat. */
+   private final long intervalMillis;
+
+   /** Time, in milliseconds, a client may be idle before it is removed. */
+   private final long timeoutMillis;
+
+   /** Executor used to remove idle clients, as removal broadcasts to every client and must not delay the timer. */
+   private final ExecutorService reapExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+         Thread thread = new Thread(task, "IdleReaper");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   /** Number of clients that were ever watched. */
+   private final AtomicLong watchedCount = new AtomicLong();
+
+   /** Number of heartbeats sent to idle clients. */
+   private final AtomicLong heartbeatCount = new AtomicLong();
+
+   /** Number of clients removed for being idle. */
+   private final AtomicLong reapedCount = new AtomicLong();
+
+   /**
+    * Constructor
+    *
+    * @param timer          timer wheel used to schedule idle checks
+    * @param intervalMillis time a client may be idle before it is sent a heartbeat
+    * @param timeoutMillis  time a client may be idle before it is removed
+    */
+   public IdleReaper(TimerWheel timer, long intervalMillis, long timeoutMillis) {
+      if (intervalMillis <= 0 || timeoutMillis < intervalMillis) {
+         throw new IllegalArgumentException("Idle timeout must be at least the heartbeat interval.");
+      }
+      this.timer = timer;
+      this.intervalMillis = intervalMillis;
+      this.timeoutMillis = timeoutMillis;
+   }
+
+   /**
+    * Starts watching a newly added client. Has no effect if the client did not negotiate the heartbeat.
+    *
+    * @param client client to watch
+    */
+   public void watch(Client client) {
+      if (!ProtocolFeature.HEARTBEAT.isSet(client.clientConnection.getFeatures())) return;
+      watchedCount.incrementAndGet();
+      schedule(client, intervalMillis);
+   }
+
+   /**
+    * Stops watching a client that has been removed.
+    *
+    * @param client client to stop watching
+    */
+   public void unwatch(Client client) {
+      TimerWheel.Timeout timeout = client.idleTimeout;
+      if (timeout != null) timeout.cancel();
+   }
+
+   /**
+    * Schedules the next idle check of a client.
+    *
+    * @param client      client to check
+    * @param delayMillis delay before the check
+    */
+   private void schedule(final Client client, long delayMillis) {
+      client.idleTimeout = timer.schedule(new Runnable() {
+         @Override
+         public void run() {
+            check(client);
+         }
+      }, delayMillis);
+   }
+
+   /**
+    * Checks how long a client has been idle, sending a heartbeat or removing the client as necessary, and schedules
+    * the next check. Runs on the timer thread.
+    *
+    * @param client client to check
+    */
+   private void check(final Client client) {
+      Connection connection = client.clientConnection;
+      if (connection.isClosed() || connection.isClosing()) return;
+
+      long idleMillis = connection.getIdleMillis();
+      if (idleMillis >= timeoutMillis) {
+         reapedCount.incrementAndGet();
+         System.out.println("IR - ClientID: " + client.clientID + " idle for " + idleMillis + " ms");
+         reapExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+               SubwaveServer.removeClient(client.clientID);
+            }
+         });
+         return;
+      }
+
+      if (idleMillis >= intervalMillis) {
+         // The interval is sent so the client knows how often to expect heartbeats.
+         Message heartbeat = new Message(MessageType.HEARTBEAT, (int) intervalMillis, client.clientID, null);
+         if (connection.send(heartbeat)) heartbeatCount.incrementAndGet();
+         schedule(client, Math.min(intervalMillis, timeoutMillis - idleMillis));
+      } else schedule(client, intervalMillis - idleMillis);
+   }
+
+   /**
+    * @return time, in milliseconds, a client may be idle before it is sent a heartbeat
+    */
+   public long getIntervalMillis() {
+      return intervalMillis;
+   }
+
+   /**
+    * @return time, in milliseconds, a client may be idle before it is removed
+    */
+   public long getTimeoutMillis() {
+      return timeoutMillis;
+   }
+
+   /**
+    * @return number of clients that were ever watched
+    */
+   public long getWatchedCount() {
+      return watchedCount.get();
+   }
+
+   /**
+    * @return number of heartbeats sent to idle clients
+    */
+   public long getHeartbeatCount() {
+      return heartbeatCount.get();
+   }
+
+   /**
+    * @return number of clients removed for being idle
+    */
+   public long getReapedCount() {
+      return reapedCount.get();
+   }
+}
@@ -0,0 +1,747 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.ConcurrentIntMap;
+import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only record of every chat message and emote accepted by the server.
+ * <p/>
+ * The log is a directory of segment files, each named after the offset of its first record and mapped into memory
+ * whole. Records are appended to the last segment until it is full, then a new segment is started. Every record is
+ * given the next offset in the log, and the next sequence number in its conversation, starting from 1. Each record is
+ * laid out as:
+ * <blockquote>length (4) | CRC-32 of the rest (4) | offset (8) | sequence (8) | address of the conversation's
+ * previous record (8) | conversationID (4) | clientID (4) | type (1) | body length, or -1 if null (4) | body (UTF-8)
+ * </blockquote>
+ * A record length of zero marks the end of a segment's records. The log starts each run with a record of type -1 in
+ * conversation zero, as IDs are only unique for a single runtime.
+ * <p/>
+ * The records of each conversation are chained backwards through the address of the previous record, and the address
+ * of every Nth record is kept in memory, N being the index interval, so any page of a conversation's history is found
+ * by reading fewer than N records before the page itself. Only records written in the current
+ * run are indexed.
+ * <p/>
+ * Written records reach the disk according to the {@link SyncPolicy}. With {@link SyncPolicy#GROUP_COMMIT}, each
+ * append names the work to run once the record is on disk, such as broadcasting the message. A single thread forces
+ * every record appended since the last force to disk at once, then runs their work in the order they were appended, so
+ * appends never wait on the disk themselves.
+ * <p/>
+ * When the log is opened, the last segment is checked record by record, and the first record that is incomplete or
+ * does not follow its predecessor marks the end of the log. Records written after it are overwritten.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#setMessageLog(java.io.File, MessageLog.SyncPolicy)
+ */
+public class MessageLog {
+
+   /**
+    * When appended records are forced to disk. Records left in memory still reach the disk if the server stops, as the
+    * operating system writes them back, but may be lost if the machine itself fails.
+    */
+   public enum SyncPolicy {
+      /** Records are never forced. The operating system writes them back in its own time. */
+      NONE,
+
+      /** Records are forced once per sync interval, so at most one interval of records is lost if the machine fails. */
+      PERIODIC,
+
+      /** Each record is forced before the work appended with it runs, together with every record appended meanwhile. */
+      GROUP_COMMIT
+   }
+
+   /** Number of bytes in a record before the body. */
+   static final int HEADER_SIZE = 45;
+
+   /** Type recorded for the record marking the start of a run. */
+   private static final byte RUN_MARKER = -1;
+
+   /** Address recorded for the first record of a conversation, which has no previous record. */
+   private static final long NO_RECORD = -1;
+
+   /** Extension of segment files. */
+   private static final String SEGMENT_SUFFIX = ".log";
+
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** Directory holding the segment files. */
+   private final File directory;
+
+   /** Size of each new segment, in bytes. */
+   private final int segmentSize;
+
+   /** When appended records are forced to disk. */
+   private final SyncPolicy syncPolicy;
+
+   /** Every INDEX_INTERVAL-th record of each conversation is indexed. */
+   private final int indexInterval;
+
+   /**
+    * Lock held while appending, so each record is written whole at the end of the log, and offsets and sequence
+    * numbers follow the order of the records. An explicit lock is used, as appends come from many shard threads.
+    */
+   private final ReentrantLock appendLock = new ReentrantLock();
+
+   /** Signalled when work is appended for the group commit thread. */
+   private final Condition workAppended = appendLock.newCondition();
+
+   /**
+    * Every mapped segment, in order. Like {@link Conversation}'s members, the array is never modified once published,
+    * so readers use it without locking.
+    */
+   private volatile MappedByteBuffer[] segments;
+
+   /** Offset of the first record of each segment, in order. Only changed under {@link #appendLock}. */
+   private final ArrayList<Long> firstOffsets = new ArrayList<Long>();
+
+   /** Position in the last segment the next record is written at. Only used under {@link #appendLock}. */
+   private int writePosition;
+
+   /** Offset given to the next record. Only changed under {@link #appendLock}. */
+   private long nextOffset;
+
+   /** Index of the first segment written to since it was last forced. Only used under {@link #appendLock}. */
+   private int firstUnsyncedSegment;
+
+   /** Buffer each record is assembled in before it is copied into its segment. Only used under {@link #appendLock}. */
+   private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+   /** Checksum of each record. Only used under {@link #appendLock}. */
+   private final CRC32 checksum = new CRC32();
+
+   /** Work to run once the records appended with it are on disk, in append order. Only used under {@link #appendLock}. */
+   private List<Runnable> pendingWork = new ArrayList<Runnable>();
+
+   /** Index of each conversation written to in this run, keyed by conversationID. */
+   private final ConcurrentIntMap<ConversationIndex> conversations = new ConcurrentIntMap<ConversationIndex>();
+
+   /** Thread forcing records to disk, or null if the policy never forces them. */
+   private final Thread syncThread;
+
+   /** Set once the log is closed. */
+   private volatile boolean closed = false;
+
+   /** Number of records appended in this run. */
+   private final AtomicLong appendedCount = new AtomicLong();
+
+   /** Number of bytes appended in this run. */
+   private final AtomicLong appendedBytes = new AtomicLong();
+
+   /** Number of times records were forced to disk. */
+   private final AtomicLong syncCount = new AtomicLong();
+
+   /** Total time spent forcing records to disk, in nanoseconds. */
+   private final AtomicLong syncNanos = new AtomicLong();
+
+   /**
+    * Constructor
+    * <p/>
+    * Opens the log in the provided directory, creating it if necessary, and finds the end of the records already
+    * written. Starts the thread that forces records to disk, if the policy needs one.
+    *
+    * @param directory          directory holding the segment files
+    * @param segmentSize        size of each new segment, in bytes
+    * @param syncPolicy         when appended records are forced to disk
+    * @param syncIntervalMillis time between forces with {@link SyncPolicy#PERIODIC}
+    * @param indexInterval      every indexInterval-th record of each conversation is indexed
+    *
+    * @throws IOException if the directory or its segments cannot be opened
+    */
+   public MessageLog(File directory, int segmentSize, SyncPolicy syncPolicy, final long syncIntervalMillis,
+                     int indexInterval) throws IOException {
+      if (segmentSize < HEADER_SIZE * 2) throw new IllegalArgumentException("Log segments must hold a record.");
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IOException("Could not create the log directory " + directory + ".");
+      }
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+      this.syncPolicy = syncPolicy;
+      this.indexInterval = indexInterval;
+
+      recover();
+      append(new Message(MessageType.DEBUG, 0, 0, "Started " + System.currentTimeMillis()), RUN_MARKER, null);
+
+      switch (syncPolicy) {
+         case PERIODIC:
+            syncThread = new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  syncPeriodically(syncIntervalMillis);
+               }
+            }, "MessageLogSync");
+            break;
+
+         case GROUP_COMMIT:
+            syncThread = new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  commitGroups();
+               }
+            }, "MessageLogCommit");
+            break;
+
+         default:
+            syncThread = null;
+      }
+      if (syncThread != null) {
+         syncThread.setDaemon(true);
+         syncThread.start();
+      }
+   }
+
+   /**
+    * Maps the existing segments, and finds the end of the records in the last one. Starts the first segment if there
+    * are none.
+    *
+    * @throws IOException if a segment cannot be mapped
+    */
+   private void recover() throws IOException {
+      File[] files = directory.listFiles(new FilenameFilter() {
+         @Override
+         public boolean accept(File dir, String name) {
+            return name.endsWith(SEGMENT_SUFFIX);
+         }
+      });
+      if (files == null) throw new IOException("Could not list the log directory " + directory + ".");
+      Arrays.sort(files);
+
+      ArrayList<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+      for (File file : files) {
+         String name = file.getName();
+         try {
+            firstOffsets.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+         } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in the log directory: " + name, e);
+         }
+         mapped.add(map(file, (int) Math.max(file.length(), HEADER_SIZE * 2)));
+      }
+      segments = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+
+      if (segments.length == 0) {
+         nextOffset = 0;
+         startSegment();
+         return;
+      }
+
+      // Walk the last segment until a record is missing, damaged, or out of order.
+      ByteBuffer last = segments[segments.length - 1].duplicate();
+      long offset = firstOffsets.get(firstOffsets.size() - 1);
+      int position = 0;
+      while (position + HEADER_SIZE <= last.capacity()) {
+         int length = last.getInt(position);
+         if (length < HEADER_SIZE || position + length > last.capacity()) break;
+         if (last.getLong(position + 8) != offset || !checksumMatches(last, position, length)) break;
+         position += length;
+         offset++;
+      }
+      writePosition = position;
+      nextOffset = offset;
+      firstUnsyncedSegment = segments.length - 1;
+      System.out.println("LG - Recovered " + segments.length + " log segments ending at offset " + offset);
+   }
+
+   /**
+    * @param buffer   segment holding the record
+    * @param position position of the record
+    * @param length   length of the record
+    *
+    * @return true if the record's checksum matches its contents
+    */
+   private static boolean checksumMatches(ByteBuffer buffer, int position, int length) {
+      byte[] contents = new byte[length - 8];
+      ByteBuffer view = buffer.duplicate();
+      view.position(position + 8);
+      view.get(contents);
+      CRC32 crc = new CRC32();
+      crc.update(contents, 0, contents.length);
+      return (int) crc.getValue() == buffer.getInt(position + 4);
+   }
+
+   /**
+    * Maps a segment file into memory, extending it to the provided size.
+    *
+    * @param file segment file
+    * @param size size to map, in bytes
+    *
+    * @return mapped segment
+    *
+    * @throws IOException if the file cannot be mapped
+    */
+   private static MappedByteBuffer map(File file, int size) throws IOException {
+      RandomAccessFile access = new RandomAccessFile(file, "rw");
+      try {
+         // The mapping stays valid after the file is closed.
+         return access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+         access.close();
+      }
+   }
+
+   /**
+    * Starts a new segment at the next offset. Must be called under {@link #appendLock}.
+    *
+    * @throws IOException if the segment cannot be created
+    */
+   private void startSegment() throws IOException {
+      File file = new File(directory, String.format("%020d%s", nextOffset, SEGMENT_SUFFIX));
+      MappedByteBuffer segment = map(file, segmentSize);
+      MappedByteBuffer[] current = segments;
+      MappedByteBuffer[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = segment;
+      firstOffsets.add(nextOffset);
+      segments = updated;
+      writePosition = 0;
+   }
+
+   /**
+    * Appends a chat message or emote to the log.
+    * <p/>
+    * With {@link SyncPolicy#GROUP_COMMIT}, the provided work runs on the log's commit thread once the record is on
+    * disk, after the work of every record appended before it. Otherwise it runs on the calling thread before this
+    * method returns. If the record cannot be written, the error is logged and the work runs anyway, so the log never
+    * stops messages being delivered.
+    *
+    * @param message  message to record
+    * @param onLogged work to run once the record is logged, or null
+    *
+    * @return offset of the record, or -1 if it could not be written
+    */
+   public long append(Message message, Runnable onLogged) {
+      return append(message, (byte) message.messageType.ordinal(), onLogged);
+   }
+
+   /**
+    * Appends a record to the log.
+    *
+    * @param message  message to record
+    * @param type     type to record
+    * @param onLogged work to run once the record is logged, or null
+    *
+    * @return offset of the record, or -1 if it could not be written
+    */
+   private long append(Message message, byte type, Runnable onLogged) {
+      byte[] body = message.messageBody == null ? null : message.messageBody.getBytes(UTF_8);
+      int length = HEADER_SIZE + (body == null ? 0 : body.length);
+      if (length > segmentSize || closed) {
+         ErrorHandler.logError("Could not log message: " + (closed ? "the log is closed." : "too large."));
+         if (onLogged != null) onLogged.run();
+         return -1;
+      }
+
+      long offset;
+      boolean deferred = false;
+      appendLock.lock();
+      try {
+         // Start a new segment if the record does not fit, marking the end of the last.
+         MappedByteBuffer segment = segments[segments.length - 1];
+         if (writePosition + length > segment.capacity()) {
+            if (writePosition + 4 <= segment.capacity()) segment.putInt(writePosition, 0);
+            startSegment();
+            segment = segments[segments.length - 1];
+         }
+
+         // Chain the record to the conversation's previous record.
+         int conversationID = message.conversationID;
+         ConversationIndex index = null;
+         long sequence = 0;
+         long previous = NO_RECORD;
+         if (conversationID != 0) {
+            index = conversations.get(conversationID);
+            if (index == null) {
+               index = new ConversationIndex();
+               conversations.put(conversationID, index);
+            }
+            ConversationIndex.Tail tail = index.tail;
+            if (tail != null) {
+               sequence = tail.sequence;
+               previous = tail.address;
+            }
+            sequence++;
+         }
+         offset = nextOffset;
+         long address = ((long) (segments.length - 1) << 32) | writePosition;
+
+         // Assemble the record, then copy it into the segment.
+         if (scratch.capacity() < length) scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+         scratch.clear();
+         scratch.putInt(length).putInt(0).putLong(offset).putLong(sequence).putLong(previous);
+         scratch.putInt(conversationID).putInt(message.clientID).put(type);
+         if (body == null) scratch.putInt(-1);
+         else scratch.putInt(body.length).put(body);
+         checksum.reset();
+         checksum.update(scratch.array(), 8, length - 8);
+         scratch.putInt(4, (int) checksum.getValue());
+         ByteBuffer target = segment.duplicate();
+         target.position(writePosition);
+         target.put(scratch.array(), 0, length);
+         writePosition += length;
+         nextOffset++;
+
+         // Publish the record to readers of the conversation.
+         if (index != null) index.add(sequence, address, indexInterval);
+
+         if (onLogged != null && syncPolicy == SyncPolicy.GROUP_COMMIT) {
+            pendingWork.add(onLogged);
+            if (pendingWork.size() == 1) workAppended.signal();
+            deferred = true;
+         }
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not start a new log segment.", e);
+         offset = -1;
+      } finally {
+         appendLock.unlock();
+      }
+
+      if (offset >= 0) {
+         appendedCount.incrementAndGet();
+         appendedBytes.addAndGet(length);
+      }
+      if (onLogged != null && !deferred) onLogged.run();
+      return offset;
+   }
+
+   /**
+    * Runs work once every record appended before it is logged, as if it were appended with a record of its own. With
+    * {@link SyncPolicy#GROUP_COMMIT}, the work runs on the log's commit thread after the work of every record appended
+    * before it. Otherwise it runs on the calling thread before this method returns.
+    *
+    * @param work work to run
+    */
+   public void afterLogged(Runnable work) {
+      if (syncPolicy == SyncPolicy.GROUP_COMMIT) {
+         appendLock.lock();
+         try {
+            if (!closed) {
+               pendingWork.add(work);
+               if (pendingWork.size() == 1) workAppended.signal();
+               return;
+            }
+         } finally {
+            appendLock.unlock();
+         }
+      }
+      work.run();
+   }
+
+   /**
+    * Reads a page of a conversation's history.
+    *
+    * @param conversationID unique ID of the conversation
+    * @param beforeSequence sequence number the page ends before, or zero for the latest page
+    * @param limit          largest number of records to read
+    *
+    * @return the records, oldest first, or none if the conversation has no records before the sequence number
+    */
+   public List<Entry> read(int conversationID, long beforeSequence, int limit) {
+      ArrayList<Entry> page = new ArrayList<Entry>();
+      Iterator<Entry> records = readBackwards(conversationID, beforeSequence);
+      while (records.hasNext() && page.size() < limit) page.add(records.next());
+      Collections.reverse(page);
+      return page;
+   }
+
+   /**
+    * Reads a conversation's history backwards, one record at a time, so that any amount of history can be streamed
+    * without holding it in memory. Each record is decoded from its segment as it is reached.
+    *
+    * @param conversationID unique ID of the conversation
+    * @param beforeSequence sequence number to read back from, exclusive, or zero to read back from the latest record
+    *
+    * @return the records, newest first
+    */
+   public Iterator<Entry> readBackwards(int conversationID, long beforeSequence) {
+      ConversationIndex index = conversations.get(conversationID);
+      if (index == null) return Collections.<Entry>emptyList().iterator();
+      ConversationIndex.Tail tail = index.tail;
+      long target = beforeSequence <= 0 ? tail.sequence : Math.min(beforeSequence - 1, tail.sequence);
+      if (target < 1) return Collections.<Entry>emptyList().iterator();
+
+      // Start from the first indexed record at or after the target, and walk back to it.
+      long sequence = tail.sequence;
+      long address = tail.address;
+      long checkpoint = (target - 1 + indexInterval - 1) / indexInterval;
+      if (checkpoint < index.checkpointCount) {
+         sequence = 1 + checkpoint * indexInterval;
+         address = index.checkpoints[(int) checkpoint];
+      }
+      final MappedByteBuffer[] current = segments;
+      while (sequence > target) {
+         address = current[(int) (address >>> 32)].getLong((int) address + 24);
+         sequence--;
+      }
+
+      final long first = address;
+      return new Iterator<Entry>() {
+         private long next = first;
+
+         @Override
+         public boolean hasNext() {
+            return next != NO_RECORD;
+         }
+
+         @Override
+         public Entry next() {
+            if (next == NO_RECORD) throw new NoSuchElementException();
+            ByteBuffer segment = current[(int) (next >>> 32)];
+            int position = (int) next;
+            next = segment.getLong(position + 24);
+            return readEntry(segment, position);
+         }
+
+         @Override
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   /**
+    * Decodes a record.
+    *
+    * @param segment  segment holding the record
+    * @param position position of the record
+    *
+    * @return the record
+    */
+   private static Entry readEntry(ByteBuffer segment, int position) {
+      long offset = segment.getLong(position + 8);
+      long sequence = segment.getLong(position + 16);
+      int conversationID = segment.getInt(position + 32);
+      int clientID = segment.getInt(position + 36);
+      MessageType type = MessageType.values()[segment.get(position + 40)];
+      int bodyLength = segment.getInt(position + 41);
+      String body = null;
+      if (bodyLength >= 0) {
+         byte[] bytes = new byte[bodyLength];
+         ByteBuffer view = segment.duplicate();
+         view.position(position + HEADER_SIZE);
+         view.get(bytes);
+         body = new String(bytes, UTF_8);
+      }
+      return new Entry(offset, sequence, new Message(type, conversationID, clientID, body));
+   }
+
+   /**
+    * @param conversationID unique ID of the conversation
+    *
+    * @return sequence number of the conversation's latest record, or zero if it has none
+    */
+   public long getLastSequence(int conversationID) {
+      ConversationIndex index = conversations.get(conversationID);
+      return index == null ? 0 : index.tail.sequence;
+   }
+
+   /**
+    * Forces every record appended since the last force to disk.
+    */
+   public void sync() {
+      MappedByteBuffer[] unsynced;
+      appendLock.lock();
+      try {
+         unsynced = Arrays.copyOfRange(segments, firstUnsyncedSegment, segments.length);
+         firstUnsyncedSegment = segments.length - 1;
+      } finally {
+         appendLock.unlock();
+      }
+      long start = System.nanoTime();
+      for (MappedByteBuffer segment : unsynced) segment.force();
+      syncNanos.addAndGet(System.nanoTime() - start);
+      syncCount.incrementAndGet();
+   }
+
+   /**
+    * Forces records to disk once per interval, until the log is closed. Runs on the sync thread.
+    *
+    * @param intervalMillis time between forces
+    */
+   private void syncPeriodically(long intervalMillis) {
+      while (!closed) {
+         try {
+            Thread.sleep(intervalMillis);
+         } catch (InterruptedException e) {
+            return;
+         }
+         sync();
+      }
+   }
+
+   /**
+    * Waits for work to be appended, forces every record appended meanwhile to disk, then runs the work, until the log
+    * is closed. Runs on the commit thread.
+    */
+   private void commitGroups() {
+      while (true) {
+         List<Runnable> group;
+         appendLock.lock();
+         try {
+            while (pendingWork.isEmpty() && !closed) workAppended.awaitUninterruptibly();
+            if (pendingWork.isEmpty()) return;
+            group = pendingWork;
+            pendingWork = new ArrayList<Runnable>();
+         } finally {
+            appendLock.unlock();
+         }
+
+         sync();
+         for (Runnable work : group) {
+            try {
+               work.run();
+            } catch (RuntimeException e) {
+               ErrorHandler.logError("Work after a log commit failed.", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Forces every record to disk and stops the sync thread. Work still waiting for a group commit is run first.
+    */
+   public void close() {
+      appendLock.lock();
+      try {
+         closed = true;
+         workAppended.signal();
+      } finally {
+         appendLock.unlock();
+      }
+      if (syncThread != null) syncThread.interrupt();
+      if (syncPolicy == SyncPolicy.GROUP_COMMIT && syncThread != null) {
+         try {
+            syncThread.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      sync();
+   }
+
+   /**
+    * @return when appended records are forced to disk
+    */
+   public SyncPolicy getSyncPolicy() {
+      return syncPolicy;
+   }
+
+   /**
+    * @return number of records appended in this run
+    */
+   public long getAppendedCount() {
+      return appendedCount.get();
+   }
+
+   /**
+    * @return number of bytes appended in this run
+    */
+   public long getAppendedBytes() {
+      return appendedBytes.get();
+   }
+
+   /**
+    * @return number of times records were forced to disk
+    */
+   public long getSyncCount() {
+      return syncCount.get();
+   }
+
+   /**
+    * @return total time spent forcing records to disk, in nanoseconds
+    */
+   public long getSyncNanos() {
+      return syncNanos.get();
+   }
+
+   /**
+    * @return number of segments in the log
+    */
+   public int getSegmentCount() {
+      return segments.length;
+   }
+
+   /**
+    * A record read back from the log.
+    */
+   public static class Entry {
+
+      /** Offset of the record in the log. */
+      public final long offset;
+
+      /** Sequence number of the record in its conversation. */
+      public final long sequence;
+
+      /** Message recorded. */
+      public final Message message;
+
+      Entry(long offset, long sequence, Message message) {
+         this.offset = offset;
+         this.sequence = sequence;
+         this.message = message;
+      }
+   }
+
+   /**
+    * Finds the records of a single conversation. Written only under the log's append lock; read without locking.
+    */
+   private static class ConversationIndex {
+
+      /** Sequence number and address of a conversation's latest record. Never modified once published. */
+      static class Tail {
+         final long sequence;
+         final long address;
+
+         Tail(long sequence, long address) {
+            this.sequence = sequence;
+            this.address = address;
+         }
+      }
+
+      /** Latest record of the conversation, or null before the first record is published. */
+      volatile Tail tail;
+
+      /** Address of every indexed record, in order. Replaced, never shrunk, as it grows. */
+      volatile long[] checkpoints = new long[4];
+
+      /** Number of indexed records. Written after the records it counts, so readers never see an unset one. */
+      volatile int checkpointCount = 0;
+
+      /**
+       * Publishes a new latest record, indexing it if it falls on the interval.
+       *
+       * @param sequence sequence number of the record
+       * @param address  address of the record
+       * @param interval interval between indexed records
+       */
+      void add(long sequence, long address, int interval) {
+         if ((sequence - 1) % interval == 0) {
+            long[] current = checkpoints;
+            int count = checkpointCount;
+            if (count == current.length) {
+               current = Arrays.copyOf(current, current.length * 2);
+               checkpoints = current;
+            }
+            current[count] = address;
+            checkpointCount = count + 1;
+         }
+         tail = new Tail(sequence, address);
+      }
+   }
+}
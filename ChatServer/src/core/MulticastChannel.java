@@ -0,0 +1,294 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.ErrorHandler;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.MulticastDatagram;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends server-wide broadcasts to a UDP multicast group, so a broadcast costs one datagram however many clients are
+ * connected, instead of a write to every client's connection.
+ * <p/>
+ * Clients that negotiate {@link com.tanndev.subwave.common.ProtocolFeature#MULTICAST} are told the group and the next
+ * sequence number when they are added, and from then on receive broadcasts from the group instead of over their
+ * connections. Multicast is unreliable, so every datagram carries a sequence number. A client that sees a gap asks for
+ * the missing messages with a MULTICAST message, and they are resent over its connection from a window of recently
+ * sent messages. A client that falls further behind than the window is sent the current client list instead. While
+ * nothing is being broadcast, a beacon carrying the last sequence number is sent periodically, so a loss is noticed
+ * even when no datagram follows it.
+ * <p/>
+ * Datagrams are encoded with {@link com.tanndev.subwave.common.BinaryCodec} regardless of the features each client
+ * negotiated. Messages too large for a single datagram are not multicast, and are broadcast over every connection
+ * instead.
+ * <p/>
+ * Broadcasts from the group are not ordered with the messages sent over a client's connection. Only server-wide
+ * broadcasts, which announce clients connecting and disconnecting, are multicast.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.MulticastDatagram
+ */
+public class MulticastChannel {
+
+   /** Multicast group that broadcasts are sent to. */
+   private final InetAddress group;
+
+   /** Port that clients receive broadcasts on. */
+   private final int port;
+
+   /** Socket used to send datagrams. */
+   private final MulticastSocket socket;
+
+   /** Timer wheel used to schedule beacons. */
+   private final TimerWheel timer;
+
+   /** Time, in milliseconds, the channel may be quiet before a beacon is sent. */
+   private final long beaconMillis;
+
+   /** Messages most recently sent, indexed by sequence number, for resending. Guarded by this. */
+   private final Message[] retainedMessages;
+
+   /** Sequence numbers of the retained messages. Guarded by this. */
+   private final int[] retainedSequences;
+
+   /** Mask used to find the slot of a sequence number. The number of slots is a power of two. */
+   private final int retainedMask;
+
+   /** Sequence number given to the next message sent. Guarded by this. */
+   private int nextSequence = 1;
+
+   /** Time, from {@link System#currentTimeMillis()}, the last datagram was sent. */
+   private volatile long lastSendTime = System.currentTimeMillis();
+
+   /** Number of messages sent to the group. */
+   private final AtomicLong sentCount = new AtomicLong();
+
+   /** Number of beacons sent to the group. */
+   private final AtomicLong beaconCount = new AtomicLong();
+
+   /** Number of messages resent over client connections. */
+   private final AtomicLong resentCount = new AtomicLong();
+
+   /** Number of requests that could not be met from the retained messages. */
+   private final AtomicLong expiredCount = new AtomicLong();
+
+   /**
+    * Constructor
+    * <p/>
+    * Opens the sending socket and starts sending beacons.
+    *
+    * @param groupAddress address of the multicast group
+    * @param port         port that clients receive broadcasts on
+    * @param timeToLive   number of router hops datagrams may cross; 1 keeps them on the local network
+    * @param timer        timer wheel used to schedule beacons
+    * @param beaconMillis time the channel may be quiet before a beacon is sent
+    * @param retained     number of recent messages kept for resending, rounded up to a power of two
+    *
+    * @throws IOException if the address is not a multicast group, or the socket cannot be opened
+    */
+   public MulticastChannel(String groupAddress, int port, int timeToLive, TimerWheel timer, long beaconMillis,
+                           int retained) throws IOException {
+      this.group = InetAddress.getByName(groupAddress);
+      if (!group.isMulticastAddress()) throw new IOException(groupAddress + " is not a multicast address.");
+      this.port = port;
+      this.timer = timer;
+      this.beaconMillis = beaconMillis;
+
+      int slots = Integer.highestOneBit(Math.max(retained, 1) - 1) << 1;
+      if (slots == 0) slots = 1;
+      this.retainedMessages = new Message[slots];
+      this.retainedSequences = new int[slots];
+      this.retainedMask = slots - 1;
+
+      socket = new MulticastSocket();
+      socket.setTimeToLive(timeToLive);
+      enableLoopback(socket);
+
+      scheduleBeacon(beaconMillis);
+   }
+
+   /**
+    * Has datagrams sent to the group delivered to clients on this machine too.
+    * <p/>
+    * {@link MulticastSocket#setLoopbackMode(boolean)} is deprecated, but its replacement, setting {@link
+    * java.net.StandardSocketOptions#IP_MULTICAST_LOOP} with setOption, needs Java 9, and the server still builds for
+    * Java 6. Note that false enables loopback.
+    *
+    * @param socket socket sending to the group
+    *
+    * @throws IOException if the option cannot be set
+    */
+   @SuppressWarnings("deprecation")
+   private static void enableLoopback(MulticastSocket socket) throws IOException {
+      socket.setLoopbackMode(false);
+   }
+
+   /**
+    * Sends a message to the group with the next sequence number.
+    *
+    * @param message message to broadcast
+    *
+    * @return true if the message was sent, false if it must be broadcast over each connection instead
+    */
+   public boolean send(Message message) {
+      byte[] datagram;
+      synchronized (this) {
+         // Sequence numbers are assigned and sent under the lock, so datagrams leave in sequence order.
+         try {
+            datagram = MulticastDatagram.encode(nextSequence, message);
+            if (datagram == null) return false;
+            socket.send(new DatagramPacket(datagram, datagram.length, group, port));
+         } catch (IOException e) {
+            ErrorHandler.logError("Could not send multicast datagram.", e);
+            return false;
+         }
+         int slot = nextSequence & retainedMask;
+         retainedMessages[slot] = message;
+         retainedSequences[slot] = nextSequence;
+         nextSequence++;
+      }
+      lastSendTime = System.currentTimeMillis();
+      sentCount.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Returns the message telling a new client to join the group. The client expects every message sent from now on
+    * through the group, so broadcasts must still be sent to it over its connection until the message has been sent.
+    *
+    * @param clientID ID of the new client
+    *
+    * @return MULTICAST message carrying the next sequence number and the group's address and port
+    */
+   public synchronized Message getJoinMessage(int clientID) {
+      return new Message(MessageType.MULTICAST, nextSequence, clientID, group.getHostAddress() + ":" + port);
+   }
+
+   /**
+    * @return sequence number given to the next message sent
+    */
+   public synchronized int getNextSequence() {
+      return nextSequence;
+   }
+
+   /**
+    * Resends a range of messages over a client's connection. Messages that have not been sent yet are ignored.
+    *
+    * @param connection    connection of the client that asked
+    * @param firstSequence sequence number of the first message to resend
+    * @param count         number of messages to resend
+    *
+    * @return true if every message was resent, false if some were no longer retained
+    */
+   public boolean resend(Connection connection, int firstSequence, int count) {
+      List<Message> messages = new ArrayList<Message>(Math.min(Math.max(count, 0), retainedMessages.length));
+      boolean complete = true;
+      synchronized (this) {
+         int available = Math.min(count, MulticastDatagram.distance(firstSequence, nextSequence));
+         if (available > retainedMessages.length) {
+            // The oldest messages have been overwritten; resend only those still retained.
+            firstSequence += available - retainedMessages.length;
+            available = retainedMessages.length;
+            complete = false;
+         }
+         for (int i = 0; i < available; i++) {
+            int sequence = firstSequence + i;
+            int slot = sequence & retainedMask;
+            if (retainedSequences[slot] == sequence && retainedMessages[slot] != null) {
+               messages.add(retainedMessages[slot]);
+            } else complete = false;
+         }
+      }
+
+      for (Message message : messages) connection.send(message);
+      resentCount.addAndGet(messages.size());
+      if (!complete) expiredCount.incrementAndGet();
+      return complete;
+   }
+
+   /**
+    * Schedules the next beacon check.
+    *
+    * @param delayMillis delay before the check
+    */
+   private void scheduleBeacon(long delayMillis) {
+      timer.schedule(new Runnable() {
+         @Override
+         public void run() {
+            sendBeacon();
+         }
+      }, delayMillis);
+   }
+
+   /**
+    * Sends a beacon if nothing has been sent for the beacon interval, then schedules the next check. Runs on the timer
+    * thread.
+    */
+   private void sendBeacon() {
+      long quietMillis = System.currentTimeMillis() - lastSendTime;
+      if (quietMillis >= beaconMillis) {
+         synchronized (this) {
+            byte[] beacon = MulticastDatagram.encodeBeacon(nextSequence - 1);
+            try {
+               socket.send(new DatagramPacket(beacon, beacon.length, group, port));
+               beaconCount.incrementAndGet();
+            } catch (IOException e) {
+               ErrorHandler.logError("Could not send multicast beacon.", e);
+            }
+         }
+         lastSendTime = System.currentTimeMillis();
+         quietMillis = 0;
+      }
+      scheduleBeacon(beaconMillis - quietMillis);
+   }
+
+   /**
+    * @return address of the multicast group
+    */
+   public InetAddress getGroup() {
+      return group;
+   }
+
+   /**
+    * @return port that clients receive broadcasts on
+    */
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * @return number of messages sent to the group
+    */
+   public long getSentCount() {
+      return sentCount.get();
+   }
+
+   /**
+    * @return number of beacons sent to the group
+    */
+   public long getBeaconCount() {
+      return beaconCount.get();
+   }
+
+   /**
+    * @return number of messages resent over client connections
+    */
+   public long getResentCount() {
+      return resentCount.get();
+   }
+
+   /**
+    * @return number of requests that could not be met from the retained messages
+    */
+   public long getExpiredCount() {
+      return expiredCount.get();
+   }
+}
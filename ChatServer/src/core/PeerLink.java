@@ -0,0 +1,227 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection between this node and another node of the {@link Cluster}.
+ * <p/>
+ * A link carries the requests of this node's clients to the conversations the other node owns, the messages of the
+ * conversations this node owns to the other node's members, and the sign-ons and sign-offs of each node's clients.
+ * Messages for a single client on the other node, such as an invitation, are preceded by a CLUSTER message naming the
+ * client.
+ * <p/>
+ * The link also holds the directory of the clients connected to the other node, so that they can be listed to this
+ * node's clients, and announced as disconnected if the link is lost.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#sortPeerMessage(PeerLink, com.tanndev.subwave.common.Message)
+ */
+public class PeerLink {
+
+   /** Cluster the link belongs to. */
+   private final Cluster cluster;
+
+   /** Index of the node at the other end of the link. */
+   private final int node;
+
+   /** Connection to the other node. */
+   private final Connection connection;
+
+   /** Capacity of the connection's outbound queue. */
+   private final int queueCapacity;
+
+   /** Sign-on messages of the clients connected to the other node, keyed by clientID. */
+   final ConcurrentIntMap<Message> clients = new ConcurrentIntMap<Message>();
+
+   /**
+    * Lock held while queuing messages, so that a message for a single client is never separated from the CLUSTER
+    * message naming it. An explicit lock is used, as on the connection itself, so virtual threads never pin.
+    */
+   private final ReentrantLock sendLock = new ReentrantLock();
+
+   /**
+    * Monitor held while announcing this node's clients to the other node, so that the list sent when the link opens and
+    * the sign-ons and sign-offs that follow reach the other node in the order they happened.
+    */
+   final Object presenceLock = new Object();
+
+   /** Set once the list of this node's clients has been sent. Only changed under {@link #presenceLock}. */
+   boolean presenceOpen = false;
+
+   /** Set once the link has been lost, so that it is only cleaned up once. */
+   private final AtomicBoolean lost = new AtomicBoolean(false);
+
+   /** Number of messages that could not be queued because the connection was full. */
+   private final AtomicLong droppedCount = new AtomicLong();
+
+   /**
+    * Constructor
+    *
+    * @param cluster       cluster the link belongs to
+    * @param node          index of the node at the other end of the link
+    * @param connection    connection to the other node, which has completed the cluster handshake
+    * @param queueCapacity capacity of the connection's outbound queue
+    */
+   PeerLink(Cluster cluster, int node, Connection connection, int queueCapacity) {
+      this.cluster = cluster;
+      this.node = node;
+      this.connection = connection;
+      this.queueCapacity = queueCapacity;
+   }
+
+   /**
+    * Queues a message for the other node. Never waits.
+    *
+    * @param message message to send
+    *
+    * @return true if the message was queued, otherwise false
+    */
+   public boolean send(Message message) {
+      sendLock.lock();
+      try {
+         return recordSend(connection.send(message));
+      } finally {
+         sendLock.unlock();
+      }
+   }
+
+   /**
+    * Queues a broadcast frame for the other node, reusing its encoding. Never waits.
+    *
+    * @param frame broadcast frame to send
+    *
+    * @return true if the message was queued, otherwise false
+    */
+   public boolean send(SharedFrame frame) {
+      sendLock.lock();
+      try {
+         return recordSend(connection.send(frame));
+      } finally {
+         sendLock.unlock();
+      }
+   }
+
+   /**
+    * Queues a message for a single client connected to the other node. Never waits.
+    * <p/>
+    * The message is only queued if there is room for both it and the CLUSTER message naming the client, so that the
+    * other node never mistakes the following message for this one.
+    *
+    * @param clientID unique ID of the client
+    * @param message  message to deliver
+    *
+    * @return true if the message was queued, otherwise false
+    */
+   public boolean deliver(int clientID, Message message) {
+      sendLock.lock();
+      try {
+         if (connection.getQueueDepth() + 2 > queueCapacity) return recordSend(false);
+         Message header = new Message(MessageType.CLUSTER, 0, clientID, Message.CLUSTER_DELIVER);
+         return recordSend(connection.send(header) && connection.send(message));
+      } finally {
+         sendLock.unlock();
+      }
+   }
+
+   /**
+    * Announces the sign-on or sign-off of one of this node's clients, once the list of this node's clients has been
+    * sent.
+    *
+    * @param message NETWORK_CONNECT or NETWORK_DISCONNECT message
+    */
+   void announce(Message message) {
+      synchronized (presenceLock) {
+         if (presenceOpen) send(message);
+      }
+   }
+
+   /**
+    * Counts a message that could not be queued, unless the link has already closed.
+    *
+    * @param queued true if the message was queued
+    *
+    * @return the provided result
+    */
+   private boolean recordSend(boolean queued) {
+      if (!queued && !connection.isClosed()) droppedCount.incrementAndGet();
+      return queued;
+   }
+
+   /**
+    * Receives messages from the other node until the link closes, then reports the link lost. Runs on the link's own
+    * thread.
+    */
+   void listen() {
+      while (!connection.isClosed()) {
+         Message message = connection.receive();
+         if (message == null) continue;
+         if (message.messageType == MessageType.CLUSTER && Message.CLUSTER_DELIVER.equals(message.messageBody)) {
+            Message delivered = connection.receive();
+            if (delivered != null) SubwaveServer.deliverFromPeer(message.clientID, delivered);
+         } else SubwaveServer.sortPeerMessage(this, message);
+      }
+      cluster.linkLost(this);
+   }
+
+   /**
+    * Marks the link as lost.
+    *
+    * @return true if the link was not already marked lost
+    */
+   boolean markLost() {
+      return lost.compareAndSet(false, true);
+   }
+
+   /**
+    * Closes the link. The other node sees the link lost, as does this node once the link's thread wakes.
+    */
+   void close() {
+      connection.close();
+   }
+
+   /**
+    * @return true if the link has closed
+    */
+   public boolean isClosed() {
+      return connection.isClosed();
+   }
+
+   /**
+    * @return index of the node at the other end of the link
+    */
+   public int getNode() {
+      return node;
+   }
+
+   /**
+    * @return connection to the other node
+    */
+   Connection getConnection() {
+      return connection;
+   }
+
+   /**
+    * @return number of clients connected to the other node
+    */
+   public int getRemoteClientCount() {
+      return clients.size();
+   }
+
+   /**
+    * @return number of messages that could not be queued because the connection was full
+    */
+   public long getDroppedCount() {
+      return droppedCount.get();
+   }
+
+   /**
+    * @return number of messages sent to the other node
+    */
+   public long getMessagesSent() {
+      return connection.getMessagesSent();
+   }
+}
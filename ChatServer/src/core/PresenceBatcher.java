@@ -0,0 +1,258 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers the sign-ons and sign-offs of clients, on this node and every other node of the cluster, and announces them
+ * to every client in batches.
+ * <p/>
+ * Announcing each change to every client as it happens costs a message per client per change, so a storm of N clients
+ * signing on costs N squared messages. Changes are instead queued, and the changes queued within a short window are
+ * sent as one {@link com.tanndev.subwave.common.PresenceBatch}, which clients apply in a single pass. The first change
+ * queued after a batch is sent schedules the next batch on the shared {@link TimerWheel}. Clients that predate
+ * batching are still sent a message per change, at the same time.
+ * <p/>
+ * Each batch carries only the net change since the last batch. The batcher keeps the directory of clients it has
+ * announced, and only the last change queued for each client within the window is compared with it. A client that
+ * signs on and off within the window is never announced, and the sign-off and sign-on of the same client, such as the
+ * clients of a cluster node whose link drops and reconnects, cancel out. Changes already announced, such as the clients
+ * of a node announced again, are not sent at all.
+ * <p/>
+ * A new client is sent the directory as its list of clients already signed on, while no batch is being sent, and every
+ * batch sent after it. The list and the batches together therefore always bring the client to the same state as every
+ * other client.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#broadcastPresence(com.tanndev.subwave.common.Message[], java.util.List, long)
+ */
+public class PresenceBatcher {
+
+   /** Timer wheel used to schedule batches. */
+   private final TimerWheel timer;
+
+   /** Time, in milliseconds, changes are gathered before they are sent. */
+   private final long windowMillis;
+
+   /** Longest body, in characters, of each message a batch is split into. */
+   private final int chunkSize;
+
+   /**
+    * Lock held while queuing changes, sending a batch, and sending a new client its list, so that the list and the
+    * batches reach each client in the order the changes happened. An explicit lock is used, as the list is sent from the
+    * connection's thread, which may be virtual.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /** Sign-on messages of the clients announced to every client, keyed by clientID. Only changed under {@link #lock}. */
+   private final ConcurrentIntMap<Message> directory = new ConcurrentIntMap<Message>();
+
+   /**
+    * Last change queued for each client since the last batch was sent, keyed by clientID, in the order each client was
+    * first changed. Only used under {@link #lock}.
+    */
+   private Map<Integer, Message> pending = new LinkedHashMap<Integer, Message>();
+
+   /** Set while a batch is scheduled. Only used under {@link #lock}. */
+   private boolean scheduled = false;
+
+   /** Executor used to send batches, as each is sent to every client and must not delay the timer. */
+   private final ExecutorService sendExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+         Thread thread = new Thread(task, "PresenceBatcher");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   /** Sends the queued changes. Scheduled on the timer, and run by the {@link #sendExecutor}. */
+   private final Runnable sendTask = new Runnable() {
+      @Override
+      public void run() {
+         sendExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+               flush();
+            }
+         });
+      }
+   };
+
+   /** Number of changes queued. */
+   private final AtomicLong changeCount = new AtomicLong();
+
+   /** Number of changes announced, after changes that cancel out or were already announced are left out. */
+   private final AtomicLong announcedCount = new AtomicLong();
+
+   /** Number of batches sent. */
+   private final AtomicLong batchCount = new AtomicLong();
+
+   /** Number of lists sent to new clients. */
+   private final AtomicLong listCount = new AtomicLong();
+
+   /**
+    * Constructor
+    *
+    * @param timer        timer wheel used to schedule batches
+    * @param windowMillis time changes are gathered before they are sent
+    * @param chunkSize    longest body, in characters, of each message a batch is split into
+    */
+   public PresenceBatcher(TimerWheel timer, long windowMillis, int chunkSize) {
+      if (windowMillis <= 0) throw new IllegalArgumentException("The presence window must be positive.");
+      this.timer = timer;
+      this.windowMillis = windowMillis;
+      this.chunkSize = chunkSize;
+   }
+
+   /**
+    * Queues a change, to be sent with the next batch. Replaces any change already queued for the same client.
+    *
+    * @param announcement NETWORK_CONNECT or NETWORK_DISCONNECT message announcing the change
+    */
+   public void queue(Message announcement) {
+      lock.lock();
+      try {
+         pending.put(announcement.clientID, announcement);
+         changeCount.incrementAndGet();
+         if (!scheduled) {
+            scheduled = true;
+            timer.schedule(sendTask, windowMillis);
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sends the net change since the last batch to every client, and applies it to the directory. Has no effect if
+    * nothing is queued, and sends nothing if the changes queued cancel out.
+    */
+   void flush() {
+      lock.lock();
+      try {
+         scheduled = false;
+         if (pending.isEmpty()) return;
+         Map<Integer, Message> queued = pending;
+         pending = new LinkedHashMap<Integer, Message>();
+
+         // Compare the last change to each client with the directory.
+         List<Message> changes = new ArrayList<Message>(queued.size());
+         PresenceBatch batch = new PresenceBatch();
+         for (Message change : queued.values()) {
+            Message announced = directory.get(change.clientID);
+            if (change.messageType == MessageType.NETWORK_CONNECT) {
+               if (announced != null && equalNames(announced.messageBody, change.messageBody)) continue;
+               directory.put(change.clientID, change);
+            } else {
+               if (announced == null) continue;
+               directory.remove(change.clientID);
+            }
+            changes.add(change);
+            batch.add(change);
+         }
+         if (changes.isEmpty()) {
+            System.out.println("PR - " + queued.size() + " presence changes cancelled out");
+            return;
+         }
+
+         SubwaveServer.broadcastPresence(batch.toMessages(chunkSize, 0), changes, batchCount.getAndIncrement());
+         announcedCount.addAndGet(changes.size());
+         if (changes.size() < queued.size()) {
+            System.out.println("PR - " + changes.size() + " of " + queued.size() + " presence changes announced");
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sends a new client the list of clients already announced, other than itself. The client must already be listed
+    * on the server, so that every batch sent after the list reaches it.
+    * <p/>
+    * Clients that negotiated {@link ProtocolFeature#PRESENCE} are sent the list as PRESENCE messages. Others are sent a
+    * NETWORK_CONNECT message per client.
+    *
+    * @param client new client
+    */
+   public void sendList(Client client) {
+      lock.lock();
+      try {
+         Connection connection = client.clientConnection;
+         boolean batched = ProtocolFeature.PRESENCE.isSet(connection.getFeatures());
+         PresenceBatch list = new PresenceBatch();
+         for (Message announced : directory.values()) {
+            if (announced.clientID == client.clientID) continue;
+            if (batched) list.add(announced);
+            else connection.send(announced);
+         }
+         for (Message chunk : list.toMessages(chunkSize, 0)) connection.send(chunk);
+
+         client.presenceListed = batchCount.get();
+         listCount.incrementAndGet();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @param a name, or null
+    * @param b name, or null
+    *
+    * @return true if the names are equal or both null
+    */
+   private static boolean equalNames(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+   }
+
+   /**
+    * @return time, in milliseconds, changes are gathered before they are sent
+    */
+   public long getWindowMillis() {
+      return windowMillis;
+   }
+
+   /**
+    * @return number of clients announced to every client
+    */
+   public int getDirectorySize() {
+      return directory.size();
+   }
+
+   /**
+    * @return number of changes queued
+    */
+   public long getChangeCount() {
+      return changeCount.get();
+   }
+
+   /**
+    * @return number of changes announced, after changes that cancel out or were already announced are left out
+    */
+   public long getAnnouncedCount() {
+      return announcedCount.get();
+   }
+
+   /**
+    * @return number of batches sent
+    */
+   public long getBatchCount() {
+      return batchCount.get();
+   }
+
+   /**
+    * @return number of lists sent to new clients
+    */
+   public long getListCount() {
+      return listCount.get();
+   }
+}
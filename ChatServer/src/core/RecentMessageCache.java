@@ -0,0 +1,216 @@
+package com.tanndev.subwave.server.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the {@link RecentMessageRing} of every conversation owned by this node within a single memory budget.
+ * <p/>
+ * Members joining a conversation almost always ask for its latest page of history, which the conversation's ring
+ * answers from memory, encoded once for every member. Rings are charged for the messages they hold and the frames they
+ * have encoded. Once the total passes the budget, whole rings of idle conversations are evicted using the CLOCK
+ * algorithm: a hand sweeps the listed rings, clearing the flag each sets when it is used, and evicts the first ring
+ * found still clear. Busy conversations keep their rings, and an evicted ring is listed again when its conversation
+ * next records a message, or fills it from the log on a miss.
+ * <p/>
+ * Evicting a ring takes its lock while holding the cache's, so a ring never takes the cache's lock while holding its
+ * own. Charges are counted atomically instead, and the budget is enforced after each change.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#getRecentMessageCache()
+ */
+public class RecentMessageCache {
+
+   /** Number of messages each ring holds. */
+   private final int ringCapacity;
+
+   /** Bytes the rings may hold before idle rings are evicted. */
+   private final long budgetBytes;
+
+   /** Lock guarding the list of rings and the clock hand. */
+   private final ReentrantLock clockLock = new ReentrantLock();
+
+   /** Rings holding messages, in the order the clock hand visits them. Only used under {@link #clockLock}. */
+   private final ArrayList<RecentMessageRing> rings = new ArrayList<RecentMessageRing>();
+
+   /** Index of the next ring the clock hand visits. Only used under {@link #clockLock}. */
+   private int hand = 0;
+
+   /** Bytes charged by every ring. */
+   private final AtomicLong residentBytes = new AtomicLong();
+
+   /** Number of pages of history sent from a ring. */
+   private final AtomicLong hitCount = new AtomicLong();
+
+   /** Number of pages of history read from the log because the ring did not hold them. */
+   private final AtomicLong missCount = new AtomicLong();
+
+   /** Number of rings evicted to stay within the budget. */
+   private final AtomicLong evictionCount = new AtomicLong();
+
+   /**
+    * Constructor
+    *
+    * @param ringCapacity number of messages each ring holds
+    * @param budgetBytes  bytes the rings may hold before idle rings are evicted
+    */
+   public RecentMessageCache(int ringCapacity, long budgetBytes) {
+      this.ringCapacity = ringCapacity;
+      this.budgetBytes = budgetBytes;
+   }
+
+   /**
+    * Creates an empty ring for a conversation. The ring holds nothing, and is not charged, until its first message is
+    * recorded.
+    *
+    * @param conversationID unique ID of the conversation
+    *
+    * @return new ring
+    */
+   public RecentMessageRing createRing(int conversationID) {
+      return new RecentMessageRing(this, conversationID, ringCapacity);
+   }
+
+   /**
+    * Lists a ring that has just become resident, behind the clock hand, so it is visited last.
+    *
+    * @param ring ring to list
+    */
+   void admit(RecentMessageRing ring) {
+      clockLock.lock();
+      try {
+         rings.add(hand, ring);
+         hand++;
+      } finally {
+         clockLock.unlock();
+      }
+   }
+
+   /**
+    * Stops listing a ring whose conversation has been removed.
+    *
+    * @param ring ring to remove
+    */
+   void remove(RecentMessageRing ring) {
+      clockLock.lock();
+      try {
+         int index = rings.indexOf(ring);
+         if (index < 0) return;
+         rings.remove(index);
+         if (index < hand) hand--;
+      } finally {
+         clockLock.unlock();
+      }
+   }
+
+   /**
+    * Counts bytes held or freed by a ring.
+    *
+    * @param delta change in the bytes held
+    */
+   void charge(long delta) {
+      residentBytes.addAndGet(delta);
+   }
+
+   /**
+    * Evicts idle rings until the bytes held are within the budget.
+    */
+   void trim() {
+      if (residentBytes.get() <= budgetBytes) return;
+      clockLock.lock();
+      try {
+         while (residentBytes.get() > budgetBytes && !rings.isEmpty()) {
+            if (hand >= rings.size()) hand = 0;
+            RecentMessageRing ring = rings.get(hand);
+            if (ring.referenced) {
+               ring.referenced = false;
+               hand++;
+            } else {
+               rings.remove(hand);
+               ring.evict();
+               evictionCount.incrementAndGet();
+            }
+         }
+      } finally {
+         clockLock.unlock();
+      }
+   }
+
+   /**
+    * Counts a page of history sent from a ring.
+    */
+   void recordHit() {
+      hitCount.incrementAndGet();
+   }
+
+   /**
+    * Counts a page of history read from the log because the ring did not hold it.
+    */
+   void recordMiss() {
+      missCount.incrementAndGet();
+   }
+
+   /**
+    * @return number of messages each ring holds
+    */
+   public int getRingCapacity() {
+      return ringCapacity;
+   }
+
+   /**
+    * @return bytes the rings may hold before idle rings are evicted
+    */
+   public long getBudgetBytes() {
+      return budgetBytes;
+   }
+
+   /**
+    * @return estimated bytes held by every ring, including their encoded frames
+    */
+   public long getResidentBytes() {
+      return residentBytes.get();
+   }
+
+   /**
+    * @return number of rings holding messages
+    */
+   public int getRingCount() {
+      clockLock.lock();
+      try {
+         return rings.size();
+      } finally {
+         clockLock.unlock();
+      }
+   }
+
+   /**
+    * @return number of pages of history sent from a ring
+    */
+   public long getHitCount() {
+      return hitCount.get();
+   }
+
+   /**
+    * @return number of pages of history read from the log instead
+    */
+   public long getMissCount() {
+      return missCount.get();
+   }
+
+   /**
+    * @return fraction of pages of history sent from a ring, or zero if none have been asked for
+    */
+   public double getHitRate() {
+      long hits = hitCount.get();
+      long total = hits + missCount.get();
+      return total == 0 ? 0 : (double) hits / total;
+   }
+
+   /**
+    * @return number of rings evicted to stay within the budget
+    */
+   public long getEvictionCount() {
+      return evictionCount.get();
+   }
+}
@@ -0,0 +1,344 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.HistoryEntry;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.SharedFrame;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The latest messages of one {@link Conversation}, kept in memory so the pages of history most often asked for, those
+ * of members joining, are sent without reading the {@link MessageLog}.
+ * <p/>
+ * The ring holds a fixed number of consecutive messages, each stored in the slot of its sequence number modulo the
+ * capacity, so recording a message overwrites the oldest once the ring is full. Each message is wrapped in a {@link
+ * SharedFrame} carrying its HISTORY message the first time it is sent as history, and the frame is kept, so every later
+ * member is sent the same encoded bytes.
+ * <p/>
+ * Messages are recorded and sent on the conversation's shard thread, while the {@link RecentMessageCache} may evict the
+ * ring from any thread. The slots are therefore guarded by a lock, which is only ever held briefly and never while
+ * taking the cache's lock.
+ *
+ * @author James Tanner
+ * @see RecentMessageCache
+ */
+public class RecentMessageRing {
+
+   /** Estimated size, in bytes, of a message and its fields, excluding the characters of its body. */
+   private static final int MESSAGE_OVERHEAD = 64;
+
+   /** Estimated size, in bytes, of each slot of the ring's arrays. */
+   private static final int SLOT_OVERHEAD = 8;
+
+   /** Unique ID of the conversation. */
+   public final int conversationID;
+
+   /** Cache the ring is charged to. */
+   private final RecentMessageCache cache;
+
+   /** Number of messages the ring holds. */
+   private final int capacity;
+
+   /** Lock guarding the slots and counters below. */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /** Messages held, by sequence number modulo the capacity, or null while the ring is not resident. */
+   private Message[] messages;
+
+   /** HISTORY frames of the messages already sent as history, in the same slots, or null while not resident. */
+   private SharedFrame[] frames;
+
+   /** Bytes of each slot charged to the cache, or null while not resident. */
+   private int[] slotBytes;
+
+   /** Sequence number of the newest message held. */
+   private long newest = 0;
+
+   /** Number of messages held, all consecutive and ending at {@link #newest}. */
+   private int count = 0;
+
+   /** Bytes charged to the cache, including the arrays. */
+   private long bytes = 0;
+
+   /** Set while the ring is listed by the cache and holds its arrays. */
+   private boolean resident = false;
+
+   /** Set once the conversation has been removed, after which nothing more is recorded. */
+   private boolean discarded = false;
+
+   /**
+    * Set whenever the ring is used, and cleared as the cache's clock hand passes it. Rings still clear when the hand
+    * comes round again have been idle for a whole sweep, and are evicted first.
+    */
+   volatile boolean referenced = false;
+
+   /**
+    * Constructor
+    *
+    * @param cache          cache the ring is charged to
+    * @param conversationID unique ID of the conversation
+    * @param capacity       number of messages the ring holds
+    */
+   RecentMessageRing(RecentMessageCache cache, int conversationID, int capacity) {
+      this.cache = cache;
+      this.conversationID = conversationID;
+      this.capacity = capacity;
+   }
+
+   /**
+    * Records the conversation's newest message. If it does not directly follow the newest message held, such as after
+    * a message could not be logged, the messages held are dropped first, as they no longer lead up to it.
+    *
+    * @param sequence sequence number of the message in the {@link MessageLog}
+    * @param message  chat message or emote
+    */
+   public void add(long sequence, Message message) {
+      boolean admitted;
+      lock.lock();
+      try {
+         if (discarded) return;
+         admitted = makeResident();
+         if (count > 0 && sequence != newest + 1) clear();
+         int slot = slotOf(sequence);
+         if (count == capacity) drop(slot);
+         else count++;
+         store(slot, message);
+         newest = sequence;
+         referenced = true;
+      } finally {
+         lock.unlock();
+      }
+      if (admitted) cache.admit(this);
+      cache.trim();
+   }
+
+   /**
+    * Fills the ring with older messages read from the log, so the next member asking for the same page is sent it
+    * from memory. Only the messages directly preceding the oldest held are added, while there is room. An empty ring
+    * only takes a page ending with the conversation's newest message.
+    *
+    * @param records      records of consecutive messages read from the log, newest first
+    * @param lastSequence sequence number of the conversation's newest record in the log
+    */
+   public void fill(List<MessageLog.Entry> records, long lastSequence) {
+      boolean admitted;
+      lock.lock();
+      try {
+         if (discarded) return;
+         admitted = makeResident();
+         if (count == 0) newest = lastSequence;
+         for (MessageLog.Entry record : records) {
+            if (count == capacity) break;
+            long oldest = newest - count + 1;
+            if (record.sequence >= oldest) continue;
+            if (record.sequence != oldest - 1) break;
+            store(slotOf(record.sequence), record.message);
+            count++;
+         }
+         referenced = true;
+      } finally {
+         lock.unlock();
+      }
+      if (admitted) cache.admit(this);
+      cache.trim();
+   }
+
+   /**
+    * Collects the HISTORY frames of a page of history, newest first, if the ring holds every message of it. Frames not
+    * yet built are built and kept. Each frame collected holds a reference the caller must release once it has been
+    * sent, so the frames stay valid if the ring is evicted meanwhile.
+    *
+    * @param before   sequence number the page ends before
+    * @param pageSize largest number of messages in the page, at least one
+    * @param page     list the frames are added to
+    *
+    * @return number of messages older than the page, or -1 if the ring does not hold the page
+    */
+   public long collectPage(long before, int pageSize, List<SharedFrame> page) {
+      lock.lock();
+      try {
+         referenced = true;
+         long first = Math.max(1, before - pageSize);
+         if (count == 0 || before - 1 > newest || first < newest - count + 1) return -1;
+         for (long sequence = before - 1; sequence >= first; sequence--) {
+            int slot = slotOf(sequence);
+            SharedFrame frame = frames[slot];
+            if (frame == null) {
+               Message message = messages[slot];
+               HistoryEntry entry = new HistoryEntry(sequence, message.messageType, message.clientID, message.messageBody);
+               frame = new SharedFrame(entry.toMessage(conversationID));
+               frames[slot] = frame;
+               charge(slot, sizeOf(slot));
+            }
+            page.add(frame.retain());
+         }
+         return first - 1;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Charges the cache for the frames encoded since the last call, once a page collected from the ring has been sent.
+    */
+   public void accountEncoded() {
+      lock.lock();
+      try {
+         if (!resident) return;
+         for (int slot = 0; slot < capacity; slot++) {
+            if (frames[slot] != null) charge(slot, sizeOf(slot));
+         }
+      } finally {
+         lock.unlock();
+      }
+      cache.trim();
+   }
+
+   /**
+    * Drops every message held and frees the ring's arrays. Called by the cache, which has already stopped listing it.
+    * The ring is listed again when a message is next recorded.
+    */
+   void evict() {
+      lock.lock();
+      try {
+         if (!resident) return;
+         clear();
+         messages = null;
+         frames = null;
+         slotBytes = null;
+         resident = false;
+         cache.charge(-bytes);
+         bytes = 0;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Drops every message held once the conversation has been removed, and stops the cache listing the ring.
+    */
+   void discard() {
+      lock.lock();
+      try {
+         discarded = true;
+      } finally {
+         lock.unlock();
+      }
+      cache.remove(this);
+      evict();
+   }
+
+   /**
+    * @return number of messages held
+    */
+   public int getCount() {
+      lock.lock();
+      try {
+         return count;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Allocates the arrays of a ring that is not resident. Must be called under {@link #lock}.
+    *
+    * @return true if the ring was not resident, and must now be listed by the cache
+    */
+   private boolean makeResident() {
+      if (resident) return false;
+      messages = new Message[capacity];
+      frames = new SharedFrame[capacity];
+      slotBytes = new int[capacity];
+      resident = true;
+      count = 0;
+      long overhead = (long) capacity * SLOT_OVERHEAD;
+      bytes += overhead;
+      cache.charge(overhead);
+      return true;
+   }
+
+   /**
+    * Stores a message in an empty slot. Must be called under {@link #lock}.
+    *
+    * @param slot    slot to store the message in
+    * @param message message to store
+    */
+   private void store(int slot, Message message) {
+      messages[slot] = message;
+      charge(slot, sizeOf(slot));
+   }
+
+   /**
+    * Empties a slot, releasing its frame. Must be called under {@link #lock}.
+    *
+    * @param slot slot to empty
+    */
+   private void drop(int slot) {
+      messages[slot] = null;
+      if (frames[slot] != null) {
+         frames[slot].release();
+         frames[slot] = null;
+      }
+      charge(slot, 0);
+   }
+
+   /**
+    * Empties every slot. Must be called under {@link #lock}.
+    */
+   private void clear() {
+      for (int slot = 0; slot < capacity; slot++) {
+         if (messages[slot] != null) drop(slot);
+      }
+      count = 0;
+   }
+
+   /**
+    * Sets the bytes charged for a slot, charging the difference to the cache. Must be called under {@link #lock}, so
+    * an eviction never misses a charge.
+    *
+    * @param slot     slot charged
+    * @param newBytes bytes now held by the slot
+    */
+   private void charge(int slot, int newBytes) {
+      int delta = newBytes - slotBytes[slot];
+      if (delta == 0) return;
+      slotBytes[slot] = newBytes;
+      bytes += delta;
+      cache.charge(delta);
+   }
+
+   /**
+    * @param sequence sequence number of a message
+    *
+    * @return slot holding the message
+    */
+   private int slotOf(long sequence) {
+      return (int) (sequence % capacity);
+   }
+
+   /**
+    * Estimates the size of a slot, including its frame and the buffers it has been encoded into. Must be called under
+    * {@link #lock}.
+    *
+    * @param slot slot holding a message
+    *
+    * @return estimated size, in bytes, of the slot
+    */
+   private int sizeOf(int slot) {
+      int size = estimate(messages[slot]);
+      SharedFrame frame = frames[slot];
+      if (frame != null) size += estimate(frame.message) + frame.getEncodedBytes();
+      return size;
+   }
+
+   /**
+    * @param message message held
+    *
+    * @return estimated size, in bytes, of the message
+    */
+   private static int estimate(Message message) {
+      return MESSAGE_OVERHEAD + (message.messageBody == null ? 0 : 2 * message.messageBody.length());
+   }
+}
@@ -0,0 +1,110 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.*;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Thread class listens for new connections on an open port and hands them to a fixed pool of {@link
+ * com.tanndev.subwave.server.core.EventLoop}s.
+ * <p/>
+ * This is the non-blocking alternative to {@link com.tanndev.subwave.server.core.SocketListener}. Rather than one
+ * thread per client, every client is serviced by one of a small number of selector threads. The sign-on handshake is
+ * completed by the event loop, so a slow client never delays new connections.
+ *
+ * @author James Tanner
+ */
+public class SelectorListener extends Thread {
+
+   /** ServerSocketChannel to listen for connections */
+   private ServerSocketChannel serverChannel;
+
+   /** Event loops servicing accepted connections. */
+   private EventLoop[] eventLoops;
+
+   /** Index of the event loop to receive the next connection. */
+   private int nextEventLoop = 0;
+
+   /**
+    * Constructor
+    * <p/>
+    * Attempts to initialize a new ServerSocketChannel on the provided port and starts the event loops.
+    *
+    * @param port           port to listen on
+    * @param eventLoopCount number of event loop threads to service connections
+    */
+   public SelectorListener(int port, int eventLoopCount) {
+      // Create the channel and event loops.
+      try {
+         serverChannel = ServerSocketChannel.open();
+         serverChannel.socket().bind(new InetSocketAddress(port));
+
+         eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+         for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("EventLoop-" + i);
+            eventLoops[i].start();
+         }
+         return;
+      } catch (BindException e) {
+         ErrorHandler.logError("The selected port is already in use.");
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not create socket.", e);
+      }
+      // If an error occurred, exit.
+      System.exit(1);
+   }
+
+   /**
+    * Executes on thread start.
+    * <p/>
+    * Accepts incoming connections, assigns each a clientID, and sends the server greeting. The remainder of the
+    * handshake is completed by the event loop that receives the connection.
+    */
+   @Override
+   public void run() {
+      // Inform user
+      try {
+         String ip = InetAddress.getLocalHost().getHostAddress();
+         int port = serverChannel.socket().getLocalPort();
+         System.out.println("Now listening for connections at " + ip + ":" + port + " using " + eventLoops.length + " event loops ...");
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not determine local address.", e);
+      }
+
+      // Wait for incoming connections.
+      while (true) {
+         try {
+            // Wait for and attempt to accept an inbound connection.
+            // This is a method blocks the thread.
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            // Clients that do not negotiate heartbeats are only checked by TCP keepalive.
+            channel.socket().setKeepAlive(true);
+
+            // Create a new connection on the next event loop.
+            EventLoop eventLoop = eventLoops[nextEventLoop];
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            ChannelConnection connection = new ChannelConnection(channel, eventLoop);
+
+            // Get a new client ID and send greeting.
+            int clientID = SubwaveServer.getUniqueID();
+            connection.setClientID(clientID);
+            System.out.println("NC - ClientID: " + clientID);
+            connection.handshake = SubwaveServer.getHandshakeStage().begin(connection);
+            eventLoop.register(connection);
+            Message serverACK = new Message(MessageType.NETWORK_CONNECT, SubwaveServer.getOfferedFeatures(), clientID, Message.CONNECTION_START_ACK);
+            connection.send(serverACK);
+
+         } catch (IOException e) {
+            ErrorHandler.logError("IO exception thrown by SelectorListener.", e);
+         }
+      }
+   }
+}
@@ -0,0 +1,292 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.ConcurrentIntMap;
+import com.tanndev.subwave.common.ErrorHandler;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One partition of the server's state, owning the clients and conversations whose IDs it handed out.
+ * <p/>
+ * Every shard hands out IDs from its own stripe: shard i of n gives out i + n, i + 2n, and so on. The shard that owns
+ * any ID is therefore found by arithmetic alone, and no counter is shared between shards. In a {@link Cluster}, each
+ * ID from the stripe is multiplied by the number of nodes and the node's index added, so the owning node is also
+ * found from the ID. Clients are spread across
+ * the shards as they sign on, and a conversation belongs to the shard of the client that created it.
+ * <p/>
+ * Each shard runs the work on its conversations, such as broadcasting chat messages and adding members, on its own
+ * thread, in the order the work was queued. Conversations on different shards are therefore handled in parallel, and
+ * messages to a conversation are handled in the order they were received. Readers queue work through a bounded
+ * mailbox. A reader with a thread of its own waits for room when it is full, which slows its connection as the handling
+ * itself used to. An {@link EventLoop} reads for many connections and must never wait, so it uses {@link
+ * #tryDispatch(Runnable)}, and when the mailbox is full, parks the work on the connection and stops reading from it
+ * until {@link #awaitRoom(Runnable)} reports room. Only that connection is slowed, and the loop's others carry on.
+ * <p/>
+ * Work that a shard passes to another, such as an invitation to a client owned elsewhere, is queued without waiting,
+ * so two shards passing work to each other can never wait on each other.
+ *
+ * @author James Tanner
+ * @see SubwaveServer#getShard(int)
+ */
+public class ServerShard {
+
+   /** Index of the shard, which is also the remainder of every ID it hands out. */
+   private final int index;
+
+   /** Number of shards, which is also the step between the IDs this shard hands out. */
+   private final int shardCount;
+
+   /** Index of the node the shard belongs to, which is also the remainder of every ID it hands out by node count. */
+   private final int nodeIndex;
+
+   /** Number of nodes in the cluster, or 1 if the server is not clustered. */
+   private final int nodeCount;
+
+   /** Clients owned by the shard, keyed by clientID. */
+   final ConcurrentIntMap<Client> clients = new ConcurrentIntMap<Client>();
+
+   /** Conversations owned by the shard, keyed by conversationID. */
+   final ConcurrentIntMap<Conversation> conversations = new ConcurrentIntMap<Conversation>();
+
+   /** Friendly names of the clients and conversations owned by the shard, keyed by ID. */
+   final ConcurrentIntMap<String> names = new ConcurrentIntMap<String>();
+
+   /** Position in the stripe of the next ID handed out. */
+   private final AtomicInteger nextStripeID = new AtomicInteger(1);
+
+   /** Work waiting to run on the shard's thread, in the order it was queued. */
+   private final BlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<Runnable>();
+
+   /** Room left in the mailbox for work queued by readers. Work passed from other shards takes no room. */
+   private final Semaphore readerPermits;
+
+   /** Callbacks of readers that found the mailbox full and did not wait, each run once when room is made. */
+   private final Queue<Runnable> roomWaiters = new ConcurrentLinkedQueue<Runnable>();
+
+   /** Thread running the shard's work. */
+   private final Thread thread;
+
+   /** Number of tasks queued by readers. */
+   private final AtomicLong dispatchedCount = new AtomicLong();
+
+   /** Number of tasks passed from other shards. */
+   private final AtomicLong forwardedCount = new AtomicLong();
+
+   /** Number of times a reader found the mailbox full. */
+   private final AtomicLong waitCount = new AtomicLong();
+
+   /**
+    * Constructor
+    * <p/>
+    * Starts the shard's thread.
+    *
+    * @param index           index of the shard
+    * @param shardCount      number of shards
+    * @param nodeIndex       index of the node the shard belongs to
+    * @param nodeCount       number of nodes in the cluster, or 1 if the server is not clustered
+    * @param mailboxCapacity number of tasks readers may queue before waiting
+    */
+   public ServerShard(int index, int shardCount, int nodeIndex, int nodeCount, int mailboxCapacity) {
+      this.index = index;
+      this.shardCount = shardCount;
+      this.nodeIndex = nodeIndex;
+      this.nodeCount = nodeCount;
+      this.readerPermits = new Semaphore(mailboxCapacity);
+
+      thread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            runMailbox();
+         }
+      }, "ServerShard-" + index);
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Returns the next ID from the shard's stripe. The ID is unique across every shard, and every node of the cluster,
+    * for the current runtime.
+    *
+    * @return new, unique ID owned by this shard
+    */
+   public int nextID() {
+      return (nextStripeID.getAndIncrement() * shardCount + index) * nodeCount + nodeIndex;
+   }
+
+   /**
+    * Queues work read from a connection, to run on the shard's thread after the work already queued. Waits if the
+    * mailbox is full. Must not be called from a shard's thread; use {@link #forward(Runnable)} instead, nor from an
+    * {@link EventLoop}; use {@link #tryDispatch(Runnable)} instead.
+    *
+    * @param task work to run
+    */
+   public void dispatch(Runnable task) {
+      if (!readerPermits.tryAcquire()) {
+         waitCount.incrementAndGet();
+         try {
+            readerPermits.acquire();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ErrorHandler.logError("Interrupted while dispatching to shard " + index + ".", e);
+            return;
+         }
+      }
+      enqueue(task);
+   }
+
+   /**
+    * Queues work read from a connection, like {@link #dispatch(Runnable)}, but never waits. If the mailbox is full,
+    * nothing is queued, and the caller may use {@link #awaitRoom(Runnable)} to learn when to try again.
+    *
+    * @param task work to run
+    *
+    * @return true if the work was queued, false if the mailbox was full
+    */
+   public boolean tryDispatch(Runnable task) {
+      if (!readerPermits.tryAcquire()) {
+         waitCount.incrementAndGet();
+         return false;
+      }
+      enqueue(task);
+      return true;
+   }
+
+   /**
+    * Runs a callback once the mailbox has room, for a reader that found it full and did not wait. The callback runs
+    * once, on the shard's thread or the calling thread, and must not block. Room is not reserved, so the reader must
+    * try again, and may find the mailbox full again.
+    *
+    * @param callback callback to run
+    */
+   public void awaitRoom(Runnable callback) {
+      roomWaiters.add(callback);
+
+      // Room made before the callback was added has reported to no one.
+      if (readerPermits.availablePermits() > 0) reportRoom();
+   }
+
+   /**
+    * Queues work read from a connection, once room has been taken for it.
+    *
+    * @param task work to run
+    */
+   private void enqueue(final Runnable task) {
+      dispatchedCount.incrementAndGet();
+      mailbox.add(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               task.run();
+            } finally {
+               readerPermits.release();
+               if (!roomWaiters.isEmpty()) reportRoom();
+            }
+         }
+      });
+   }
+
+   /**
+    * Runs the callback of the reader that has waited longest for room, if any.
+    */
+   private void reportRoom() {
+      Runnable callback = roomWaiters.poll();
+      if (callback == null) return;
+      try {
+         callback.run();
+      } catch (RuntimeException e) {
+         ErrorHandler.logError("Shard " + index + " room callback failed.", e);
+      }
+   }
+
+   /**
+    * Queues work passed from another shard, or from a {@link PeerLink} being cleaned up, to run on this shard's thread
+    * after the work already queued. Never waits.
+    *
+    * @param task work to run
+    */
+   public void forward(Runnable task) {
+      forwardedCount.incrementAndGet();
+      mailbox.add(task);
+   }
+
+   /**
+    * Runs queued work until the server exits. Runs on the shard's thread.
+    */
+   private void runMailbox() {
+      while (true) {
+         Runnable task;
+         try {
+            task = mailbox.take();
+         } catch (InterruptedException e) {
+            return;
+         }
+         try {
+            task.run();
+         } catch (RuntimeException e) {
+            ErrorHandler.logError("Shard " + index + " task failed.", e);
+         }
+      }
+   }
+
+   /**
+    * @return index of the shard
+    */
+   public int getIndex() {
+      return index;
+   }
+
+   /**
+    * Stops the shard's thread. Work still queued is discarded.
+    */
+   void shutdown() {
+      thread.interrupt();
+   }
+
+   /**
+    * @return number of tasks waiting in the shard's mailbox
+    */
+   public int getMailboxDepth() {
+      return mailbox.size();
+   }
+
+   /**
+    * @return number of clients owned by the shard
+    */
+   public int getClientCount() {
+      return clients.size();
+   }
+
+   /**
+    * @return number of conversations owned by the shard
+    */
+   public int getConversationCount() {
+      return conversations.size();
+   }
+
+   /**
+    * @return number of tasks queued by readers
+    */
+   public long getDispatchedCount() {
+      return dispatchedCount.get();
+   }
+
+   /**
+    * @return number of tasks passed from other shards
+    */
+   public long getForwardedCount() {
+      return forwardedCount.get();
+   }
+
+   /**
+    * @return number of times a reader found the mailbox full, and either waited or stopped reading
+    */
+   public long getWaitCount() {
+      return waitCount.get();
+   }
+}
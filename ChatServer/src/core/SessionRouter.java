@@ -0,0 +1,53 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.SessionConnection;
+import com.tanndev.subwave.common.SessionHandler;
+
+/**
+ * Signs on and routes the sessions that clients multiplex over their connections.
+ * <p/>
+ * Each session signs on with a NETWORK_CONNECT message carrying the requested nickname, and is given a client ID and a
+ * {@link Client} record of its own. The session inherits the features negotiated by its carrier, so there is no
+ * greeting or feature exchange. From then on, the session's messages are sorted exactly like those of any other client,
+ * and its outbound queue is subject to the {@link SlowConsumerPolicy} independently of the other sessions.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.SessionConnection
+ */
+class SessionRouter implements SessionHandler {
+
+   /**
+    * Signs on a new session, or closes it if its first message is not a NETWORK_CONNECT.
+    *
+    * @param session new session
+    * @param message first message received on the session
+    */
+   @Override
+   public void sessionOpened(SessionConnection session, Message message) {
+      if (message.messageType != MessageType.NETWORK_CONNECT) {
+         session.close();
+         return;
+      }
+      int clientID = SubwaveServer.getUniqueID();
+      session.setClientID(clientID);
+      System.out.println("NC - ClientID: " + clientID + " (session " + session.getStreamID() + " of ClientID: " +
+            session.getCarrier().getClientID() + ")");
+
+      // Acknowledge with the new client ID, then add the client as usual.
+      Message reply = new Message(MessageType.NETWORK_CONNECT, 0, clientID, Message.CONNECTION_START_ACK);
+      session.send(reply);
+      SubwaveServer.addClient(clientID, session, message.messageBody);
+   }
+
+   @Override
+   public void messageReceived(SessionConnection session, Message message) {
+      SubwaveServer.sortClientMessage(session, message);
+   }
+
+   @Override
+   public void sessionClosed(SessionConnection session) {
+      if (session.getClientID() != 0) SubwaveServer.removeClient(session.getClientID());
+   }
+}
@@ -0,0 +1,212 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides what to do with clients that cannot keep up with the messages sent to them.
+ * <p/>
+ * A client whose outbound queue reaches the high watermark is throttled until the queue falls back to the low
+ * watermark. What happens to a throttled client depends on the configured {@link Action}. Independently, any client
+ * whose writer has made no progress for longer than the maximum write stall is evicted, as is any client whose queue is
+ * completely full.
+ * <p/>
+ * Counters of throttled clients, dropped messages, and evictions by {@link Reason} are kept for monitoring.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection#getQueueDepth()
+ * @see com.tanndev.subwave.common.Connection#getWriteStallMillis()
+ */
+public class SlowConsumerPolicy {
+
+   /**
+    * Defines what is done with a client once it reaches the high watermark.
+    */
+   public enum Action {
+      /** Chat messages are dropped until the queue drains. Control messages are still queued. */
+      DROP_MESSAGES,
+      /** The client is disconnected immediately. */
+      DISCONNECT,
+      /** The client is sent a REFUSE message explaining why, then disconnected once it has been written. */
+      REFUSE
+   }
+
+   /**
+    * Defines the reasons a client may be evicted.
+    */
+   public enum Reason {
+      /** The queue reached the high watermark and the action does not allow the client to catch up. */
+      HIGH_WATERMARK,
+      /** The queue was completely full, so a message could not be queued at all. */
+      QUEUE_FULL,
+      /** The writer made no progress for longer than the maximum write stall. */
+      WRITE_STALL
+   }
+
+   /** Action taken when a client reaches the high watermark. */
+   private final Action action;
+
+   /** Queue depth at which a client is throttled. */
+   private final int highWatermark;
+
+   /** Queue depth at which a throttled client is released. */
+   private final int lowWatermark;
+
+   /** Longest time, in milliseconds, a writer may make no progress before the client is evicted. */
+   private final long maxWriteStallMillis;
+
+   /** Number of times a client has been throttled. */
+   private final AtomicLong throttleCount = new AtomicLong();
+
+   /** Number of chat messages dropped for throttled clients. */
+   private final AtomicLong droppedMessages = new AtomicLong();
+
+   /** Number of clients evicted, indexed by {@link Reason} ordinal. */
+   private final AtomicLongArray evictionCounts = new AtomicLongArray(Reason.values().length);
+
+   /**
+    * Constructor
+    *
+    * @param action              action taken when a client reaches the high watermark
+    * @param highWatermark       queue depth at which a client is throttled
+    * @param lowWatermark        queue depth at which a throttled client is released
+    * @param maxWriteStallMillis longest time a writer may make no progress before the client is evicted
+    */
+   public SlowConsumerPolicy(Action action, int highWatermark, int lowWatermark, long maxWriteStallMillis) {
+      this.action = action;
+      this.highWatermark = highWatermark;
+      this.lowWatermark = Math.min(lowWatermark, highWatermark);
+      this.maxWriteStallMillis = maxWriteStallMillis;
+   }
+
+   /**
+    * Applies the policy to a client before a broadcast message is queued for it.
+    * <p/>
+    * Updates the client's throttled state and, depending on the {@link Action}, may evict the client.
+    *
+    * @param client  client the message is addressed to
+    * @param message message about to be queued
+    *
+    * @return true if the message should be queued, false if it should be skipped
+    */
+   public boolean admit(Client client, Message message) {
+      Connection connection = client.clientConnection;
+
+      // Clients already on their way out are not sent anything further.
+      if (connection.isClosed() || connection.isClosing()) return false;
+      int depth = connection.getQueueDepth();
+
+      // Release clients that have caught up.
+      if (depth <= lowWatermark) {
+         client.throttled.set(false);
+         return true;
+      }
+
+      // Throttle clients that have fallen behind.
+      if (depth >= highWatermark && client.throttled.compareAndSet(false, true)) {
+         throttleCount.incrementAndGet();
+         if (action != Action.DROP_MESSAGES) {
+            evict(client, Reason.HIGH_WATERMARK);
+            return false;
+         }
+      }
+
+      // Throttled clients only receive control messages.
+      if (client.throttled.get() && !isControlMessage(message.messageType)) {
+         droppedMessages.incrementAndGet();
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Applies the policy to a client whose connection refused a message.
+    *
+    * @param client client whose connection refused the message
+    */
+   public void sendFailed(Client client) {
+      Connection connection = client.clientConnection;
+      if (connection.isClosed() || connection.isClosing()) return;
+      evict(client, Reason.QUEUE_FULL);
+   }
+
+   /**
+    * Evicts every client whose writer has stalled for longer than the maximum write stall.
+    *
+    * @param clients clients to check
+    */
+   public void checkWriteStalls(Collection<Client> clients) {
+      for (Client client : clients) {
+         Connection connection = client.clientConnection;
+         if (connection.getWriteStallMillis() <= maxWriteStallMillis) continue;
+
+         // A client already being refused is closed outright; otherwise the refusal could never be written.
+         if (connection.isClosing()) connection.close();
+         else evict(client, Reason.WRITE_STALL);
+      }
+   }
+
+   /**
+    * Evicts a client from the server, sending a refusal first if the {@link Action} calls for it.
+    *
+    * @param client client to evict
+    * @param reason reason for the eviction
+    */
+   private void evict(Client client, Reason reason) {
+      evictionCounts.incrementAndGet(reason.ordinal());
+      System.out.println("SC - ClientID: " + client.clientID + " evicted (" + reason + ")");
+
+      if (action == Action.REFUSE && reason != Reason.WRITE_STALL) {
+         Message refusal = new Message(MessageType.REFUSE, 0, client.clientID, Message.SLOW_CONSUMER);
+         client.clientConnection.send(refusal);
+         SubwaveServer.removeClient(client.clientID, true);
+      } else SubwaveServer.removeClient(client.clientID);
+   }
+
+   /**
+    * Checks whether a message type carries control information rather than chat traffic. Control messages are never
+    * dropped for throttled clients, as losing them would leave the client's view of the server inconsistent.
+    *
+    * @param messageType type to check
+    *
+    * @return true if the type is a control message, otherwise false
+    */
+   private static boolean isControlMessage(MessageType messageType) {
+      return messageType != MessageType.CHAT_MESSAGE && messageType != MessageType.CHAT_EMOTE && messageType != MessageType.DEBUG;
+   }
+
+   /**
+    * @return action taken when a client reaches the high watermark
+    */
+   public Action getAction() {
+      return action;
+   }
+
+   /**
+    * @return number of times a client has been throttled
+    */
+   public long getThrottleCount() {
+      return throttleCount.get();
+   }
+
+   /**
+    * @return number of chat messages dropped for throttled clients
+    */
+   public long getDroppedMessages() {
+      return droppedMessages.get();
+   }
+
+   /**
+    * @param reason reason to report
+    *
+    * @return number of clients evicted for the provided reason
+    */
+   public long getEvictionCount(Reason reason) {
+      return evictionCounts.get(reason.ordinal());
+   }
+}
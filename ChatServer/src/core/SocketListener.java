@@ -2,11 +2,17 @@ package com.tanndev.subwave.server.core;
 
 import com.tanndev.subwave.common.*;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.*;
+import java.util.concurrent.Executor;
 
 /**
  * Thread class listens for new connections on an open port and registers new clients as they connect..
+ * <p/>
+ * Connections may optionally be secured with TLS. The TLS handshake runs on the client's own thread, before the
+ * greeting, and is covered by the sign-on timeout of the {@link HandshakeStage}.
  *
  * @author James Tanner
  */
@@ -15,18 +21,59 @@ public class SocketListener extends Thread {
    /** ServerSocket to listen for connections */
    private static ServerSocket serverSocket;
 
+   /** Executor used to run a {@link ConnectionListener} for each new client. */
+   private final Executor listenerExecutor;
+
+   /** Set if connections are secured with TLS. */
+   private final boolean secure;
+
 
    /**
     * Constructor
     * <p/>
-    * Attempts to initialize a new ServerSocket on the provided port.
+    * Attempts to initialize a new ServerSocket on the provided port. Each client is listened to on its own platform
+    * thread.
     *
     * @param port port to listen on
     */
    public SocketListener(int port) {
+      this(port, ThreadMode.PLATFORM.createExecutor());
+   }
+
+   /**
+    * Constructor
+    * <p/>
+    * Attempts to initialize a new ServerSocket on the provided port.
+    *
+    * @param port             port to listen on
+    * @param listenerExecutor executor used to run the listener for each new client
+    *
+    * @see com.tanndev.subwave.common.ThreadMode#createExecutor()
+    */
+   public SocketListener(int port, Executor listenerExecutor) {
+      this(port, listenerExecutor, null);
+   }
+
+   /**
+    * Constructor
+    * <p/>
+    * Attempts to initialize a new ServerSocket on the provided port, securing every connection with TLS if a context is
+    * provided.
+    *
+    * @param port             port to listen on
+    * @param listenerExecutor executor used to run the listener for each new client
+    * @param tlsContext       context used to secure connections, or null to accept plain connections
+    *
+    * @see com.tanndev.subwave.common.SecureTransport#createServerContext(String, char[])
+    */
+   public SocketListener(int port, Executor listenerExecutor, SSLContext tlsContext) {
+      this.listenerExecutor = listenerExecutor;
+      this.secure = tlsContext != null;
+
       // Create the socket.
       try {
-         serverSocket = new ServerSocket(port);
+         if (secure) serverSocket = tlsContext.getServerSocketFactory().createServerSocket(port);
+         else serverSocket = new ServerSocket(port);
          return;
       } catch (BindException e) {
          ErrorHandler.logError("The selected port is already in use.");
@@ -40,58 +87,116 @@ public class SocketListener extends Thread {
    /**
     * Executes on thread start.
     * <p/>
-    * Listens for incoming connections using the thread's assigned ServerSocket. Also performs the sign-on handshake to
-    * add the new client to the server's client list.
+    * Listens for incoming connections using the thread's assigned ServerSocket. Each new connection is greeted and
+    * then handed to the listener executor, which completes the sign-on handshake before listening for messages. The
+    * handshake never runs on this thread, so a client that does not reply cannot delay other connections.
     */
    @Override
    public void run() {
+      // Inform user
+      try {
+         String ip = InetAddress.getLocalHost().getHostAddress();
+         int port = serverSocket.getLocalPort();
+         System.out.println("Now listening for " + (secure ? "TLS " : "") + "connections at " + ip + ":" + port + " ...");
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not determine local address.", e);
+      }
 
       // Wait for incoming connections.
       while (true) {
          try {
-            // Get local IP
-            String ip = InetAddress.getLocalHost().getHostAddress();
-            int port = serverSocket.getLocalPort();
-
-            // Inform user
-            System.out.println("Now listening for connections at " + ip + ":" + port + " ...");
-
             // Wait for and attempt to accept an inbound connection.
             // This is a method blocks the thread.
-            Socket clientSocket = serverSocket.accept();
+            final Socket clientSocket = serverSocket.accept();
 
-            // Create a new connection with this socket.
-            Connection connection = new Connection(clientSocket);
+            // Clients that do not negotiate heartbeats are only checked by TCP keepalive.
+            clientSocket.setKeepAlive(true);
 
+            // Create a new connection with this socket.
+            final Connection connection = new Connection(clientSocket);
 
             // Get a new client ID and send greeting.
             int clientID = SubwaveServer.getUniqueID();
             connection.setClientID(clientID);
             System.out.println("NC - ClientID: " + clientID);
-            Message serverACK = new Message(MessageType.NETWORK_CONNECT, 0, clientID, Message.CONNECTION_START_ACK);
-            connection.send(serverACK);
-
-            // Wait for connection ack from client.
-            // TODO Fix possible deadlock here. See GitHub issue #12.
-            Message clientACK = connection.receive();
-            if (clientACK == null || clientACK.messageType != MessageType.NETWORK_CONNECT) {
-               System.err.println("Invalid or no response from client.");
-               continue;
-            }
-
-            // Create and add client record.
-            String nickname = clientACK.messageBody;
-            Client client = SubwaveServer.addClient(clientID, connection, nickname);
-
-            // Start message listener.
-            new ConnectionListener(connection).start();
-
-            // TODO Send lists of all currently connected clients.
+            final HandshakeStage.Handshake handshake = SubwaveServer.getHandshakeStage().begin(connection);
+            final Message serverACK = new Message(MessageType.NETWORK_CONNECT, SubwaveServer.getOfferedFeatures(), clientID, Message.CONNECTION_START_ACK);
+            if (!secure) connection.send(serverACK);
+
+            // Complete the handshake and listen for messages on the client's own thread.
+            listenerExecutor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  // Secured connections are greeted once the TLS handshake completes.
+                  if (secure) {
+                     if (!completeTlsHandshake((SSLSocket) clientSocket, handshake)) return;
+                     connection.send(serverACK);
+                  }
+                  if (completeHandshake(connection, handshake)) new ConnectionListener(connection).run();
+               }
+            });
 
          } catch (IOException e) {
             ErrorHandler.logError("IO exception thrown by SeverListener.", e);
          }
       }
+   }
+
+   /**
+    * Performs the TLS handshake of a newly accepted connection, resuming the client's earlier session if it offers one.
+    * <p/>
+    * If the sign-on handshake times out, the connection is closed by the {@link HandshakeStage}, which wakes this
+    * method.
+    *
+    * @param socket    socket performing the TLS handshake
+    * @param handshake handshake tracking the connection
+    *
+    * @return true if the connection was secured, otherwise false
+    */
+   private static boolean completeTlsHandshake(SSLSocket socket, HandshakeStage.Handshake handshake) {
+      long handshakeStart = System.currentTimeMillis();
+      long startTime = System.nanoTime();
+      try {
+         socket.startHandshake();
+      } catch (IOException e) {
+         handshake.fail(HandshakeStage.Reason.TLS_FAILED);
+         return false;
+      }
+      handshake.secured(socket.getSession(), handshakeStart, System.nanoTime() - startTime);
+      return true;
+   }
+
+   /**
+    * Waits for the client's reply to the greeting and adds the client to the server.
+    * <p/>
+    * If the handshake times out, the connection is closed by the {@link HandshakeStage}, which wakes this method.
+    *
+    * @param connection connection performing the handshake
+    * @param handshake  handshake tracking the connection
+    *
+    * @return true if the client was added, otherwise false
+    */
+   private static boolean completeHandshake(Connection connection, HandshakeStage.Handshake handshake) {
+      // Wait for connection ack from client.
+      Message clientACK = connection.receive();
+      if (clientACK == null) {
+         handshake.fail(HandshakeStage.Reason.CLOSED);
+         return false;
+      }
+      if (clientACK.messageType != MessageType.NETWORK_CONNECT) {
+         handshake.fail(HandshakeStage.Reason.INVALID_REPLY);
+         return false;
+      }
+      if (!handshake.complete()) return false;
+
+      // Switch to the features selected by the client.
+      connection.applyFeatures(ProtocolFeature.selectFeatures(clientACK.conversationID));
+
+      // Create and add client record.
+      String nickname = clientACK.messageBody;
+      SubwaveServer.addClient(connection.getClientID(), connection, nickname);
 
+      // TODO Send lists of all currently connected clients.
+      return true;
    }
 }
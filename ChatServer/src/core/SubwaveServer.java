@@ -3,29 +3,139 @@ package com.tanndev.subwave.server.core;
 import com.tanndev.subwave.common.*;
 import com.tanndev.subwave.server.ui.BasicServerGUI;
 
-import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Supports multiple chat clients and relays messages between them using a conversation framework.
  * <p/>
  * Messages received by a {@link com.tanndev.subwave.server.core.ConnectionListener} are parsed by the server and, where
  * applicable, relayed to all members of the relevant {@link com.tanndev.subwave.server.core.Conversation}.
+ * <p/>
+ * Clients, conversations, and their names are partitioned across {@link ServerShard}s. The shard owning any ID is found
+ * from the ID itself. Messages to a conversation are handled on the thread of the shard that owns it, in the order they
+ * were received, so conversations on different shards are handled in parallel.
+ * <p/>
+ * Several servers may be run as the nodes of a {@link Cluster}. Each conversation is owned by the node it was created
+ * on. Messages to it from clients of other nodes are routed over a {@link PeerLink} to the owner, which sends them
+ * back once per node with members. Clients signing on and off are announced to every node.
  *
  * @author James Tanner
  */
 public class SubwaveServer {
 
    private static final int SERVER_ID = 0;
-   private static ConcurrentHashMap<Integer, Client> clientMap = new ConcurrentHashMap<Integer, Client>();
-   private static ConcurrentHashMap<Integer, Conversation> conversationMap = new ConcurrentHashMap<Integer, Conversation>();
-   private static ConcurrentHashMap<Integer, String> nameMap = new ConcurrentHashMap<Integer, String>();
-   private static int nextUniqueID = 1;
+
+   /** Index of this node in the cluster, or 0 if the server runs alone. */
+   private static int nodeIndex = 0;
+
+   /** Number of nodes in the cluster, or 1 if the server runs alone. */
+   private static int nodeCount = 1;
+
+   /**
+    * Partitions of the server's clients, conversations, and names. Each owns the IDs it hands out. Declared after the
+    * node's index and count, which the IDs depend on, so that they are set when the first shards are created.
+    */
+   private static volatile ServerShard[] shards = createShards(Defaults.DEFAULT_SHARDS);
+
+   /** Turn counter used to spread new clients across the shards. */
+   private static final AtomicInteger nextShard = new AtomicInteger();
+
+   /** Cluster this server is a node of, or null if the server runs alone. */
+   private static Cluster cluster = null;
+
+   private static SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicy(SlowConsumerPolicy.Action.DROP_MESSAGES,
+         Defaults.DEFAULT_QUEUE_HIGH_WATERMARK, Defaults.DEFAULT_QUEUE_LOW_WATERMARK, Defaults.DEFAULT_MAX_WRITE_STALL);
+
+   /** Timer wheel shared by every per-connection timeout. */
+   private static final TimerWheel timerWheel = new TimerWheel("ServerTimer", Defaults.DEFAULT_TIMER_TICK,
+         Defaults.DEFAULT_TIMER_WHEEL_SIZE);
+
+   /** Announces clients signing on and off to every client in batches. */
+   private static PresenceBatcher presenceBatcher = new PresenceBatcher(timerWheel,
+         Defaults.DEFAULT_PRESENCE_BATCH_WINDOW, Defaults.DEFAULT_PRESENCE_CHUNK_SIZE);
+
+   /** Tracks the sign-on handshakes of new connections. */
+   private static final HandshakeStage handshakeStage = new HandshakeStage(timerWheel, Defaults.DEFAULT_HANDSHAKE_TIMEOUT);
+
+   /** Sends heartbeats to idle clients and removes those that stop responding. */
+   private static IdleReaper idleReaper = new IdleReaper(timerWheel, Defaults.DEFAULT_HEARTBEAT_INTERVAL,
+         Defaults.DEFAULT_IDLE_TIMEOUT);
+
+   /** Sends server-wide broadcasts to a multicast group, or null if multicast is disabled. */
+   private static MulticastChannel multicastChannel = null;
+
+   /** Log every chat message and emote is recorded in, or null if messages are not recorded. */
+   private static MessageLog messageLog = null;
+
+   /** Latest messages of each conversation owned by this node, kept to answer requests for history from memory. */
+   private static RecentMessageCache recentMessageCache = new RecentMessageCache(Defaults.DEFAULT_RECENT_MESSAGES,
+         Defaults.DEFAULT_RECENT_MESSAGE_BUDGET);
+
+   static {
+      // Sessions multiplexed over a client's connection sign on and are sorted like any other client.
+      Connection.setDefaultSessionHandler(new SessionRouter());
+   }
 
    /**
     * Launcher for the Subwave server.
     * <p/>
-    * Performs various setup tasks and starts the core.SocketListener to wait for incoming connections.
+    * Performs various setup tasks and starts a listener to wait for incoming connections. By default, the blocking
+    * core.SocketListener is used. If the "-nio" argument is provided, the selector based core.SelectorListener is used
+    * instead. If the "-virtual" argument is provided, the blocking listener runs each client on a virtual thread.
+    * <p/>
+    * The "-slow=drop", "-slow=disconnect", and "-slow=refuse" arguments select the {@link SlowConsumerPolicy.Action}
+    * taken when a client cannot keep up. Chat messages are dropped by default.
+    * <p/>
+    * The "-compress=N" argument sets the shortest message body, in characters, compressed for clients that negotiate
+    * compression.
+    * <p/>
+    * The "-heartbeat=N" argument sets the time, in milliseconds, a client may be silent before it is sent a heartbeat.
+    * Clients that stay silent for three times as long are disconnected.
+    * <p/>
+    * The "-presence=N" argument sets the time, in milliseconds, clients signing on and off are gathered before they are
+    * announced. Changes that cancel out within this time, such as a client signing on and straight off, are never
+    * announced.
+    * <p/>
+    * The "-log" argument records every chat message and emote in a {@link MessageLog} in the "{@value
+    * Defaults#DEFAULT_LOG_DIRECTORY}" directory, or the directory given as "-log=path". The "-logsync=none",
+    * "-logsync=periodic", and "-logsync=group" arguments select the {@link MessageLog.SyncPolicy}. Records are forced to
+    * disk periodically by default.
+    * <p/>
+    * The "-historycache=N" argument sets the memory, in megabytes, used to keep the latest messages of busy
+    * conversations, so members joining them are sent their history without reading the log. Zero disables it.
+    * <p/>
+    * The "-multicast" argument sends server-wide broadcasts to clients that support it through a UDP multicast group,
+    * instead of over each connection. A group other than the default may be given as "-multicast=group:port". Each
+    * server on a network must use its own group.
+    * <p/>
+    * The "-tls=path" argument secures every connection with TLS, using the private key and certificate in the key store
+    * at the provided path. The key store password is given with "-tlspassword=password", and defaults to "{@value
+    * Defaults#DEFAULT_TLS_PASSWORD}". TLS is only supported by the blocking listener, so "-nio" is ignored when it is
+    * used.
+    * <p/>
+    * The "-shards=N" argument sets the number of {@link ServerShard}s the server's state is partitioned across, each
+    * with its own thread. The default, {@value Defaults#DEFAULT_SHARDS}, suits a machine with as many cores.
+    * <p/>
+    * The "-cluster=host:port,host:port,..." argument runs the server as a node of a {@link Cluster}, linked to the other
+    * nodes at the listed addresses. Every node must be given the same list, and its own index in it with "-node=N".
+    * The nodes listen for links on the listed ports, and for clients on their own client ports as usual.
+    * <p/>
+    * The "-debugbuffers" argument enables leak detection in the {@link com.tanndev.subwave.common.BufferPool}. Buffers
+    * held for longer than twice the maximum write stall are reported periodically.
+    * <p/>
+    * Any other argument made only of digits is taken as the port. An unrecognized argument, or a value that is not a
+    * number in range, is reported and the server exits.
     *
     * @param args Application arguments.
     */
@@ -36,19 +146,176 @@ public class SubwaveServer {
       // Load arguments
       // TODO Handle arguments more elegantly.
       int port = Defaults.DEFAULT_SERVER_PORT;
-      if (args.length > 0) port = Integer.parseInt(args[0]);
+      boolean useSelector = false;
+      boolean debugBuffers = false;
+      String tlsKeyStore = null;
+      String tlsPassword = Defaults.DEFAULT_TLS_PASSWORD;
+      String clusterAddresses = null;
+      int clusterNode = 0;
+      String logDirectory = null;
+      MessageLog.SyncPolicy logSyncPolicy = MessageLog.SyncPolicy.PERIODIC;
+      ThreadMode threadMode = ThreadMode.PLATFORM;
+      for (String arg : args) {
+         try {
+            if (arg.equalsIgnoreCase("-nio")) useSelector = true;
+            else if (arg.equalsIgnoreCase("-virtual")) threadMode = ThreadMode.VIRTUAL;
+            else if (arg.equalsIgnoreCase("-slow=drop")) {
+               setSlowConsumerAction(SlowConsumerPolicy.Action.DROP_MESSAGES);
+            }
+            else if (arg.equalsIgnoreCase("-slow=disconnect")) {
+               setSlowConsumerAction(SlowConsumerPolicy.Action.DISCONNECT);
+            }
+            else if (arg.equalsIgnoreCase("-slow=refuse")) setSlowConsumerAction(SlowConsumerPolicy.Action.REFUSE);
+            else if (arg.equalsIgnoreCase("-debugbuffers")) debugBuffers = true;
+            else if (arg.equalsIgnoreCase("-multicast")) {
+               setMulticast(Defaults.DEFAULT_MULTICAST_GROUP, Defaults.DEFAULT_MULTICAST_PORT);
+            }
+            else if (arg.toLowerCase().startsWith("-multicast=")) {
+               String address = arg.substring("-multicast=".length());
+               int separator = address.lastIndexOf(':');
+               if (separator < 0) setMulticast(address, Defaults.DEFAULT_MULTICAST_PORT);
+               else setMulticast(address.substring(0, separator), parsePort(address.substring(separator + 1)));
+            }
+            else if (arg.toLowerCase().startsWith("-tls=")) tlsKeyStore = arg.substring("-tls=".length());
+            else if (arg.toLowerCase().startsWith("-tlspassword=")) {
+               tlsPassword = arg.substring("-tlspassword=".length());
+            }
+            else if (arg.toLowerCase().startsWith("-compress=")) {
+               Connection.setCompressionThreshold((int) parseValue(arg, "-compress=", 0));
+            }
+            else if (arg.toLowerCase().startsWith("-shards=")) {
+               setShardCount((int) parseValue(arg, "-shards=", 1));
+            }
+            else if (arg.toLowerCase().startsWith("-cluster=")) clusterAddresses = arg.substring("-cluster=".length());
+            else if (arg.toLowerCase().startsWith("-node=")) clusterNode = (int) parseValue(arg, "-node=", 0);
+            else if (arg.equalsIgnoreCase("-log")) logDirectory = Defaults.DEFAULT_LOG_DIRECTORY;
+            else if (arg.toLowerCase().startsWith("-log=")) logDirectory = arg.substring("-log=".length());
+            else if (arg.equalsIgnoreCase("-logsync=none")) logSyncPolicy = MessageLog.SyncPolicy.NONE;
+            else if (arg.equalsIgnoreCase("-logsync=periodic")) logSyncPolicy = MessageLog.SyncPolicy.PERIODIC;
+            else if (arg.equalsIgnoreCase("-logsync=group")) logSyncPolicy = MessageLog.SyncPolicy.GROUP_COMMIT;
+            else if (arg.toLowerCase().startsWith("-historycache=")) {
+               setRecentMessageBudget(parseValue(arg, "-historycache=", 0) * 1024 * 1024);
+            }
+            else if (arg.toLowerCase().startsWith("-presence=")) {
+               setPresenceWindow(parseValue(arg, "-presence=", 0));
+            }
+            else if (arg.toLowerCase().startsWith("-heartbeat=")) {
+               long interval = parseValue(arg, "-heartbeat=", 1);
+               setHeartbeat(interval, 3 * interval);
+            }
+            else if (arg.matches("\\d+")) port = parsePort(arg);
+            else {
+               ErrorHandler.logError("Unrecognized argument: " + arg);
+               System.exit(1);
+            }
+         } catch (IllegalArgumentException e) {
+            // Thrown for values that are not numbers, or are out of range.
+            ErrorHandler.logError("Invalid value in argument: " + arg, e);
+            System.exit(1);
+         }
+      }
+      if (threadMode == ThreadMode.VIRTUAL) Connection.setWriterExecutor(threadMode.createExecutor());
+      BufferPool.setLeakDetection(debugBuffers);
+
+      // Periodically evict clients that have stopped reading.
+      ScheduledExecutorService maintenanceTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "ServerMaintenance");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      maintenanceTimer.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            for (ServerShard shard : shards) slowConsumerPolicy.checkWriteStalls(shard.clients.values());
+            BufferPool.reportLeaks(2 * Defaults.DEFAULT_MAX_WRITE_STALL);
+         }
+      }, Defaults.DEFAULT_MAX_WRITE_STALL, Defaults.DEFAULT_MAX_WRITE_STALL / 4, TimeUnit.MILLISECONDS);
+
+      // Load the server's key before listening, as no client could connect without it.
+      SSLContext tlsContext = null;
+      if (tlsKeyStore != null) {
+         try {
+            tlsContext = SecureTransport.createServerContext(tlsKeyStore, tlsPassword.toCharArray());
+         } catch (IOException e) {
+            ErrorHandler.logError("Could not enable TLS.", e);
+            System.exit(1);
+         }
+         if (useSelector) ErrorHandler.logError("TLS is not supported with -nio. Using the blocking listener.");
+         useSelector = false;
+      }
+
+      // Open the message log before listening, so no message goes unrecorded.
+      if (logDirectory != null) {
+         try {
+            setMessageLog(new File(logDirectory), logSyncPolicy);
+         } catch (IOException e) {
+            ErrorHandler.logError("Could not open the message log.", e);
+            System.exit(1);
+         }
+      }
+
+      // Join the cluster before listening, so the first client's ID already names this node.
+      if (clusterAddresses != null) {
+         try {
+            setCluster(clusterNode, parseAddresses(clusterAddresses));
+         } catch (IOException e) {
+            ErrorHandler.logError("Could not join the cluster.", e);
+            System.exit(1);
+         } catch (IllegalArgumentException e) {
+            ErrorHandler.logError("Invalid cluster addresses or node: " + e.getMessage(), e);
+            System.exit(1);
+         }
+         cluster.start();
+      }
+
+      // Start the listener thread to listen for incoming connections.
+      if (useSelector) new SelectorListener(port, Defaults.DEFAULT_EVENT_LOOP_THREADS).start();
+      else new SocketListener(port, threadMode.createExecutor(), tlsContext).start();
+   }
+
+   /**
+    * Parses the number given in an argument, such as "-shards=4".
+    *
+    * @param arg     argument
+    * @param prefix  flag preceding the number, including the "="
+    * @param minimum smallest value allowed
+    *
+    * @return value given
+    *
+    * @throws IllegalArgumentException if the value is not a whole number of at least the minimum, and at most
+    *                                  Integer.MAX_VALUE
+    */
+   private static long parseValue(String arg, String prefix, long minimum) {
+      int value = Integer.parseInt(arg.substring(prefix.length()));
+      if (value < minimum) throw new IllegalArgumentException("Value must be at least " + minimum + ".");
+      return value;
+   }
 
-      // Start the core.SocketListener thread to listen for incoming connections.
-      new SocketListener(port).start();
+   /**
+    * Parses a port number given as an argument.
+    *
+    * @param value digits of the port
+    *
+    * @return port number
+    *
+    * @throws IllegalArgumentException if the value is not a number from 0 to 65535
+    */
+   private static int parsePort(String value) {
+      int port = Integer.parseInt(value);
+      if (port < 0 || port > 65535) throw new IllegalArgumentException("Port " + port + " is out of range.");
+      return port;
    }
 
    /**
     * Generates a Client object representing a new client and attempts to add it to the client list.
     * <p/>
-    * If the clientID already exists in the {@link #clientMap} the new client will not be added and this method will
-    * return null.
+    * The client is added to the {@link ServerShard} that owns its clientID. If the clientID already exists, the new client
+    * will not be added, its connection is refused and closed, and this method will return null.
     * <p/>
-    * This method relies on {@link java.util.concurrent.ConcurrentHashMap} to be thread-safe.
+    * This method relies on {@link com.tanndev.subwave.common.ConcurrentIntMap} to be thread-safe.
     *
     * @param clientID         unique ID for the new client
     * @param clientConnection connection used to communicate with the client
@@ -61,39 +328,62 @@ public class SubwaveServer {
     * @see com.tanndev.subwave.common.Connection
     */
    public static Client addClient(int clientID, Connection clientConnection, String nickname) {
+      // Reserve the ID first, so a client is only confirmed once it is registered.
       Client client = new Client(clientID, clientConnection, nickname);
-      if (clientMap.putIfAbsent(clientID, client) != null) {
+      ServerShard shard = shardOf(clientID);
+      if (shard.clients.putIfAbsent(clientID, client) != null) {
          System.err.println("Attempted to add a non-unique client ID to the client map.");
+         clientConnection.send(new Message(MessageType.REFUSE, SERVER_ID, clientID, Message.DUPLICATE_CLIENT_ID));
+         // Clear the ID, so closing the connection does not remove the client already holding it.
+         clientConnection.setClientID(0);
+         clientConnection.closeGracefully();
          return null;
       }
 
+      /*
+      The client stays unlisted until its list of clients is sent below, so no batch of changes is sent to it before
+      the confirmation, which completes the sign-on.
+      */
+      Message message = new Message(MessageType.NETWORK_CONNECT, SERVER_ID, clientID, nickname);
+      clientConnection.send(message);
+
       // Add the name to the name list.
-      nameMap.put(clientID, nickname);
+      shard.names.put(clientID, nickname);
 
-      // Broadcast message to all users
-      Message message = new Message(MessageType.NETWORK_CONNECT, SERVER_ID, clientID, nickname);
-      broadcastToAll(message);
+      // Watch for the client going silent.
+      idleReaper.watch(client);
+
+      // Announce the client to all users with the next batch, and to every other node.
+      presenceBatcher.queue(message);
+      if (cluster != null) cluster.announce(message);
 
       // Update the client with the other existing clients.
-      Collection<Client> clients = clientMap.values();
-      for (Client existingClient : clients) {
-         int existingClientID = existingClient.clientID;
-         String existingClientName = nameMap.get(existingClientID);
-         message = new Message(MessageType.NETWORK_CONNECT, SERVER_ID, existingClientID, existingClientName);
-         clientConnection.send(message);
+      presenceBatcher.sendList(client);
+
+      /*
+      Clients that support multicast then join the group, and receive every broadcast from the join message's sequence
+      number on through it. The join message follows the list, so the client cannot apply a batch from the group before
+      the list. Broadcasts made while joining may arrive both ways, but none are missed. Only clients that support
+      presence batches join, as the group carries batches in place of individual announcements.
+      */
+      MulticastChannel multicast = multicastChannel;
+      int features = clientConnection.getFeatures();
+      if (multicast != null && ProtocolFeature.MULTICAST.isSet(features) && ProtocolFeature.PRESENCE.isSet(features)) {
+         clientConnection.send(multicast.getJoinMessage(clientID));
+         client.multicastMember = true;
       }
 
       return client;
    }
 
    /**
-    * Removes a client from the {@link #clientMap}.
+    * Removes a client from the server.
     * <p/>
-    * If a Client matching the provided clientIDis in the clientMap, it will be removed. In addition, the client's
+    * If a Client matching the provided clientID is on the server, it will be removed. In addition, the client's
     * connection will be forcefully closed. When possible, the client should disconnected gracefully through other means
     * before calling this method.
     * <p/>
-    * This method relies on {@link java.util.concurrent.ConcurrentHashMap} to be thread-safe.
+    * This method relies on {@link com.tanndev.subwave.common.ConcurrentIntMap} to be thread-safe.
     *
     * @param clientID unique ID of the client to remove
     *
@@ -101,24 +391,56 @@ public class SubwaveServer {
     * @see Client
     */
    public static void removeClient(int clientID) {
-      Client client = clientMap.remove(clientID);
+      removeClient(clientID, false);
+   }
+
+   /**
+    * Removes a client from the server.
+    * <p/>
+    * Behaves the same as {@link #removeClient(int)}, except that the client's connection may optionally be closed
+    * only after any messages already queued for it, such as a refusal explaining the disconnect, have been written.
+    *
+    * @param clientID unique ID of the client to remove
+    * @param graceful true to write queued messages before closing, false to close immediately
+    *
+    * @see com.tanndev.subwave.common.Connection#closeGracefully()
+    */
+   public static void removeClient(int clientID, boolean graceful) {
+      Client client = shardOf(clientID).clients.remove(clientID);
       if (client != null) {
-         client.clientConnection.close();
+         idleReaper.unwatch(client);
+         if (graceful) client.clientConnection.closeGracefully();
+         else client.clientConnection.close();
          System.out.println("DC - ClientID: " + clientID);
+         printCompressionReport(client);
 
-         // Broadcast message to all users
+         // Announce to all users with the next batch, and to every other node.
          Message message = new Message(MessageType.NETWORK_DISCONNECT, SERVER_ID, clientID, Message.CLIENT_DISCONNECTED);
-         broadcastToAll(message);
+         presenceBatcher.queue(message);
+         if (cluster != null) cluster.announce(message);
       }
    }
 
    /**
-    * Generates a new Conversation and adds it to the {@link #conversationMap}.
+    * Prints the compression achieved for a client, if the client negotiated compression.
+    *
+    * @param client client to report on
+    */
+   private static void printCompressionReport(Client client) {
+      CompressingCodec compression = client.clientConnection.getCompression();
+      if (compression == null) return;
+      String format = "CS - ClientID: %d compressed %d frames to %.1f%% in %.1f ms, inflated %d in %.1f ms";
+      System.out.println(String.format(format, client.clientID, compression.getFramesCompressed(),
+            compression.getCompressionRatio() * 100, compression.getCompressionNanos() / 1e6,
+            compression.getFramesDecompressed(), compression.getDecompressionNanos() / 1e6));
+   }
+
+   /**
+    * Generates a new Conversation and adds it to the {@link ServerShard} that owns its conversationID.
     * <p/>
-    * If the conversationID already exists in the conversation map the new conversation will not be added and this
-    * method will return null.
+    * If the conversationID already exists the new conversation will not be added and this method will return null.
     * <p/>
-    * This method relies on {@link java.util.concurrent.ConcurrentHashMap} to be thread-safe.
+    * This method relies on {@link com.tanndev.subwave.common.ConcurrentIntMap} to be thread-safe.
     *
     * @param conversationID   unique ID for the conversation
     * @param conversationName friendly name to display to users
@@ -130,24 +452,25 @@ public class SubwaveServer {
     */
    public static Conversation addConversation(int conversationID, String conversationName) {
       Conversation conversation = new Conversation(conversationID, conversationName);
-      if (conversationMap.putIfAbsent(conversationID, conversation) != null) {
+      ServerShard shard = shardOf(conversationID);
+      if (shard.conversations.putIfAbsent(conversationID, conversation) != null) {
          System.err.println("Attempted to add a non-unique conversationID to the conversation map.");
          return null;
       }
 
       // Add the conversation name to the name list.
-      nameMap.put(conversationID, conversationName);
+      shard.names.put(conversationID, conversationName);
 
       return conversation;
    }
 
    /**
-    * Removes a conversation from the {@link #conversationMap}.
+    * Removes a conversation from the server.
     * <p/>
-    * If a Conversation matching the provided conversationID is in the conversationMap, it will be removed. In addition,
+    * If a Conversation matching the provided conversationID is on the server, it will be removed. In addition,
     * any clients still listed as members will be removed from the conversation.
     * <p/>
-    * This method relies on {@link java.util.concurrent.ConcurrentHashMap} to be thread-safe.
+    * This method relies on {@link com.tanndev.subwave.common.ConcurrentIntMap} to be thread-safe.
     *
     * @param conversationID unique ID of the conversation to remove
     *
@@ -155,30 +478,146 @@ public class SubwaveServer {
     * @see com.tanndev.subwave.server.core.Conversation
     */
    public static void removeConversation(int conversationID) {
-      Conversation conversation = conversationMap.remove(conversationID);
+      Conversation conversation = shardOf(conversationID).conversations.remove(conversationID);
       if (conversation != null) {
+         RecentMessageRing recentMessages = conversation.getRecentMessages();
+         if (recentMessages != null) recentMessages.discard();
          // TODO Kick existing members of the conversation.
       }
    }
 
    /**
-    * Returns the next available unique ID for a client or conversation.
+    * Returns the next available unique ID for a new client.
     * <p/>
-    * This method should be used for ALL cases where a new, unique ID is necessary. Each call to this method is
-    * guaranteed to return a unique ID for the current runtime. Please note, however, that IDs are only unique for a
-    * single runtime. Launching a new server instance will result in repeat IDs. If a server is restarted, all clients
-    * will have to renegotiate clientIDs using the normal connection process.
+    * This method should be used for ALL cases where a new clientID is necessary. Each call to this method is guaranteed
+    * to return a unique ID for the current runtime. Please note, however, that IDs are only unique for a single
+    * runtime. Launching a new server instance will result in repeat IDs. If a server is restarted, all clients will have
+    * to renegotiate clientIDs using the normal connection process.
     * <p/>
-    * Method is synchronized to be thread-safe.
+    * The ID is handed out by one of the {@link ServerShard}s, which then owns the client. Shards are chosen in turn, so
+    * clients are spread evenly across them. Only sign-ons touch the shared turn counter; IDs come from each shard's own
+    * stripe.
     *
     * @return a new, unique ID
     *
     * @see #addClient(int, com.tanndev.subwave.common.Connection, String)
-    * @see #addConversation(int, String)
+    * @see ServerShard#nextID()
+    */
+   public static int getUniqueID() {
+      ServerShard[] current = shards;
+      int turn = nextShard.getAndIncrement() & Integer.MAX_VALUE;
+      return current[turn % current.length].nextID();
+   }
+
+   /**
+    * Returns the shard that owns an ID. IDs the server never handed out map to a shard that does not hold them. IDs
+    * owned by other nodes of the cluster map to the shard holding this node's mirror of them, if any.
+    *
+    * @param id clientID or conversationID
+    *
+    * @return owning shard
+    */
+   static ServerShard shardOf(int id) {
+      ServerShard[] current = shards;
+      return current[((id & Integer.MAX_VALUE) / nodeCount) % current.length];
+   }
+
+   /**
+    * @param id clientID or conversationID
+    *
+    * @return true if the ID was handed out by this node, which is always the case if the server runs alone
     */
-   public synchronized static int getUniqueID() {
-      // Return the next client ID available and increment the counter.
-      return nextUniqueID++;
+   static boolean isLocalID(int id) {
+      return (id & Integer.MAX_VALUE) % nodeCount == nodeIndex;
+   }
+
+   /**
+    * Creates a set of shards.
+    *
+    * @param count number of shards
+    *
+    * @return new shards, each with its thread started
+    */
+   private static ServerShard[] createShards(int count) {
+      ServerShard[] created = new ServerShard[count];
+      for (int i = 0; i < count; i++) {
+         created[i] = new ServerShard(i, count, nodeIndex, nodeCount, Defaults.DEFAULT_SHARD_MAILBOX_CAPACITY);
+      }
+      return created;
+   }
+
+   /**
+    * Replaces the shards with the provided number of new, empty shards. Clients and conversations already on the
+    * server would be lost, so this must be called before the server starts listening.
+    *
+    * @param count number of shards
+    */
+   public static void setShardCount(int count) {
+      if (count < 1) throw new IllegalArgumentException("The server needs at least one shard.");
+      ServerShard[] previous = shards;
+      shards = createShards(count);
+      for (ServerShard shard : previous) shard.shutdown();
+   }
+
+   /**
+    * Makes the server a node of a {@link Cluster}, and replaces the shards with new, empty shards handing out the
+    * node's IDs. The cluster must then be started. Like {@link #setShardCount(int)}, this must be called before the
+    * server starts listening.
+    *
+    * @param index     index of this node in the list of addresses
+    * @param addresses address each node accepts cluster links on
+    *
+    * @throws IOException if this node's cluster address cannot be listened on
+    */
+   public static void setCluster(int index, InetSocketAddress[] addresses) throws IOException {
+      cluster = new Cluster(index, addresses);
+      nodeIndex = index;
+      nodeCount = addresses.length;
+      setShardCount(shards.length);
+   }
+
+   /**
+    * @return the {@link Cluster} this server is a node of, or null if the server runs alone
+    */
+   public static Cluster getCluster() {
+      return cluster;
+   }
+
+   /**
+    * Parses a comma separated list of cluster addresses, each given as host:port.
+    *
+    * @param list list of addresses
+    *
+    * @return parsed addresses
+    *
+    * @throws IllegalArgumentException if an address has no host or a port that is not a number from 0 to 65535
+    */
+   private static InetSocketAddress[] parseAddresses(String list) {
+      String[] entries = list.split(",");
+      InetSocketAddress[] addresses = new InetSocketAddress[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+         String entry = entries[i].trim();
+         int separator = entry.lastIndexOf(':');
+         if (separator <= 0) throw new IllegalArgumentException("Address " + entry + " is not host:port.");
+         addresses[i] = new InetSocketAddress(entry.substring(0, separator), parsePort(entry.substring(separator + 1)));
+      }
+      return addresses;
+   }
+
+   /**
+    * @return number of shards the server's state is partitioned across
+    */
+   public static int getShardCount() {
+      return shards.length;
+   }
+
+   /**
+    * @param index index of the shard
+    *
+    * @return the {@link ServerShard}, including its mailbox depth and counters
+    */
+   public static ServerShard getShard(int index) {
+      return shards[index];
    }
 
    /**
@@ -188,22 +627,243 @@ public class SubwaveServer {
     * Calling methods should take care to provide proper message data. Do not use this method to broadcast messages
     * intended for a single client or conversation.
     * <p/>
-    * This method relies on {@link java.util.concurrent.ConcurrentHashMap} to be thread-safe.
+    * The message is encoded once and the same frame is queued for every client that shares a stateless codec. If
+    * multicast is enabled, the message is instead sent once to the {@link MulticastChannel}, and only queued for the
+    * clients that do not receive from the group.
+    * <p/>
+    * This method relies on {@link com.tanndev.subwave.common.ConcurrentIntMap} to be thread-safe. Clients on every shard
+    * are sent the message from the calling thread.
     *
     * @param message message to broadcast to all clients
     */
    public static void broadcastToAll(Message message) {
-      Collection<Client> clients = clientMap.values();
-      for (Client client : clients) {
-         client.clientConnection.send(message);
+      MulticastChannel multicast = multicastChannel;
+      boolean multicastSent = multicast != null && multicast.send(message);
+      SharedFrame frame = new SharedFrame(message);
+      try {
+         for (ServerShard shard : shards) {
+            for (Client client : shard.clients.values()) {
+               if (multicastSent && client.multicastMember) continue;
+               sendToClient(client, frame);
+            }
+         }
+      } finally {
+         frame.release();
+      }
+   }
+
+   /**
+    * Sends a batch of sign-ons and sign-offs to all clients listed on the server. Called by the {@link
+    * PresenceBatcher}.
+    * <p/>
+    * Clients that negotiated {@link ProtocolFeature#PRESENCE} are sent the batch, each message encoded once for all of
+    * them. If multicast is enabled, each message of the batch that fits in a datagram is instead sent once to the
+    * {@link MulticastChannel}. Other clients are sent the individual announcements, except their own. Clients that
+    * have not yet been sent their list of clients, or whose list already reflects the batch, are skipped.
+    *
+    * @param batch       PRESENCE messages carrying the batch, in order
+    * @param changes     NETWORK_CONNECT and NETWORK_DISCONNECT messages announcing the same changes, in order
+    * @param batchNumber number of batches sent before this one
+    */
+   static void broadcastPresence(Message[] batch, List<Message> changes, long batchNumber) {
+      MulticastChannel multicast = multicastChannel;
+      boolean[] multicastSent = new boolean[batch.length];
+      SharedFrame[] batchFrames = new SharedFrame[batch.length];
+      for (int i = 0; i < batch.length; i++) {
+         multicastSent[i] = multicast != null && multicast.send(batch[i]);
+         batchFrames[i] = new SharedFrame(batch[i]);
+      }
+      SharedFrame[] changeFrames = new SharedFrame[changes.size()];
+      for (int i = 0; i < changeFrames.length; i++) changeFrames[i] = new SharedFrame(changes.get(i));
+
+      try {
+         for (ServerShard shard : shards) {
+            for (Client client : shard.clients.values()) {
+               if (client.presenceListed > batchNumber) continue;
+               if (ProtocolFeature.PRESENCE.isSet(client.clientConnection.getFeatures())) {
+                  for (int i = 0; i < batchFrames.length; i++) {
+                     if (multicastSent[i] && client.multicastMember) continue;
+                     sendToClient(client, batchFrames[i]);
+                  }
+               } else {
+                  for (SharedFrame frame : changeFrames) {
+                     if (frame.message.clientID != client.clientID) sendToClient(client, frame);
+                  }
+               }
+            }
+         }
+      } finally {
+         for (SharedFrame frame : batchFrames) frame.release();
+         for (SharedFrame frame : changeFrames) frame.release();
+      }
+   }
+
+   /**
+    * Queues a broadcast frame for a single client, subject to the {@link SlowConsumerPolicy}.
+    * <p/>
+    * The message may be skipped, or the client evicted, if the client is not keeping up with its messages.
+    *
+    * @param client client to send to
+    * @param frame  broadcast frame to send
+    *
+    * @return true if the message was queued, otherwise false
+    */
+   static boolean sendToClient(Client client, SharedFrame frame) {
+      if (!slowConsumerPolicy.admit(client, frame.message)) return false;
+      if (client.clientConnection.send(frame)) return true;
+      slowConsumerPolicy.sendFailed(client);
+      return false;
+   }
+
+   /**
+    * Replaces the {@link SlowConsumerPolicy} with one using the provided action and the default limits.
+    *
+    * @param action action taken when a client reaches the high watermark
+    */
+   public static void setSlowConsumerAction(SlowConsumerPolicy.Action action) {
+      slowConsumerPolicy = new SlowConsumerPolicy(action, Defaults.DEFAULT_QUEUE_HIGH_WATERMARK,
+            Defaults.DEFAULT_QUEUE_LOW_WATERMARK, Defaults.DEFAULT_MAX_WRITE_STALL);
+   }
+
+   /**
+    * @return the current {@link SlowConsumerPolicy}, including its throttle and eviction counters
+    */
+   public static SlowConsumerPolicy getSlowConsumerPolicy() {
+      return slowConsumerPolicy;
+   }
+
+   /**
+    * Replaces the {@link PresenceBatcher} with one gathering changes for the provided time. Changes already queued and
+    * clients already announced would be lost, so this must be called before the server starts listening.
+    *
+    * @param windowMillis time changes are gathered before they are announced
+    */
+   public static void setPresenceWindow(long windowMillis) {
+      presenceBatcher = new PresenceBatcher(timerWheel, windowMillis, Defaults.DEFAULT_PRESENCE_CHUNK_SIZE);
+   }
+
+   /**
+    * @return the {@link PresenceBatcher} announcing clients signing on and off, including its batch and cancellation
+    * counters
+    */
+   public static PresenceBatcher getPresenceBatcher() {
+      return presenceBatcher;
+   }
+
+   /**
+    * Opens a {@link MessageLog} in the provided directory, and records every chat message and emote accepted after it.
+    * Closes the log already open, if any.
+    *
+    * @param directory  directory holding the log's segments
+    * @param syncPolicy when records are forced to disk
+    *
+    * @throws IOException if the log cannot be opened
+    */
+   public static void setMessageLog(File directory, MessageLog.SyncPolicy syncPolicy) throws IOException {
+      MessageLog previous = messageLog;
+      messageLog = new MessageLog(directory, Defaults.DEFAULT_LOG_SEGMENT_SIZE, syncPolicy,
+            Defaults.DEFAULT_LOG_SYNC_INTERVAL, Defaults.DEFAULT_LOG_INDEX_INTERVAL);
+      if (previous != null) previous.close();
+   }
+
+   /**
+    * @return the {@link MessageLog} chat messages are recorded in, including its append and sync counters, or null if
+    * messages are not recorded
+    */
+   public static MessageLog getMessageLog() {
+      return messageLog;
+   }
+
+   /**
+    * Replaces the {@link RecentMessageCache} with one holding the provided number of bytes. Messages already held would
+    * be lost, so this must be called before the server starts listening.
+    *
+    * @param budgetBytes bytes the latest messages of conversations may hold, or zero to always read history from the log
+    */
+   public static void setRecentMessageBudget(long budgetBytes) {
+      recentMessageCache = new RecentMessageCache(Defaults.DEFAULT_RECENT_MESSAGES, budgetBytes);
+   }
+
+   /**
+    * @return the {@link RecentMessageCache} answering requests for history from memory, including its hit, miss, and
+    * resident byte counters
+    */
+   public static RecentMessageCache getRecentMessageCache() {
+      return recentMessageCache;
+   }
+
+   /**
+    * @return the {@link HandshakeStage} tracking new connections, including its accept and handshake metrics
+    */
+   public static HandshakeStage getHandshakeStage() {
+      return handshakeStage;
+   }
+
+   /**
+    * Replaces the {@link IdleReaper} with one using the provided limits. Clients already connected keep the previous
+    * limits, so this should be called before the server starts listening.
+    *
+    * @param intervalMillis time a client may be idle before it is sent a heartbeat
+    * @param timeoutMillis  time a client may be idle before it is removed
+    */
+   public static void setHeartbeat(long intervalMillis, long timeoutMillis) {
+      idleReaper = new IdleReaper(timerWheel, intervalMillis, timeoutMillis);
+   }
+
+   /**
+    * @return the {@link IdleReaper} watching for unresponsive clients, including its heartbeat and reaped counters
+    */
+   public static IdleReaper getIdleReaper() {
+      return idleReaper;
+   }
+
+   /**
+    * Enables multicast of server-wide broadcasts to the provided group. Clients already connected are not affected, so
+    * this should be called before the server starts listening. Multicast remains disabled if the group cannot be used.
+    *
+    * @param groupAddress address of the multicast group
+    * @param port         port that clients receive broadcasts on
+    */
+   public static void setMulticast(String groupAddress, int port) {
+      try {
+         multicastChannel = new MulticastChannel(groupAddress, port, Defaults.DEFAULT_MULTICAST_TTL, timerWheel,
+               Defaults.DEFAULT_MULTICAST_BEACON_INTERVAL, Defaults.DEFAULT_MULTICAST_RETAINED);
+         System.out.println("Multicasting broadcasts to " + groupAddress + ":" + port);
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not enable multicast.", e);
       }
    }
 
+   /**
+    * @return the {@link MulticastChannel} sending server-wide broadcasts, or null if multicast is disabled
+    */
+   public static MulticastChannel getMulticastChannel() {
+      return multicastChannel;
+   }
+
+   /**
+    * Returns the features offered in the greeting to new connections. Multicast is only offered while enabled.
+    *
+    * @return offered feature mask
+    */
+   public static int getOfferedFeatures() {
+      int features = ProtocolFeature.offeredFeatures();
+      if (multicastChannel == null) features &= ~ProtocolFeature.MULTICAST.mask;
+      return features;
+   }
+
+   /**
+    * @return the {@link TimerWheel} running the server's per-connection timeouts
+    */
+   public static TimerWheel getTimerWheel() {
+      return timerWheel;
+   }
+
    public static Message getNameUpdateMessage(int conversationID, int clientID) {
       // Get the appropriate friendly name
       String friendlyName;
-      if (conversationID == SERVER_ID) friendlyName = nameMap.get(clientID);
-      else friendlyName = nameMap.get(conversationID);
+      if (conversationID == SERVER_ID) friendlyName = shardOf(clientID).names.get(clientID);
+      else friendlyName = shardOf(conversationID).names.get(conversationID);
 
       // Default if no name is stored
       if (friendlyName == null) friendlyName = "Unnamed";
@@ -216,7 +876,9 @@ public class SubwaveServer {
     * Processes an incoming message from a client via a {@link com.tanndev.subwave.server.core.ConnectionListener} and
     * processes it using the appropriate message handler.
     * <p/>
-    * All incoming messages, except the initial handshake, should be passed to this method.
+    * All incoming messages, except the initial handshake, should be passed to this method. Messages to a conversation
+    * are validated against the connection here, then handled on the thread of the {@link ServerShard} that owns the
+    * conversation; all others are handled on the calling thread.
     *
     * @param connection connection used to recieve the message
     * @param message    message recieved
@@ -228,7 +890,9 @@ public class SubwaveServer {
       switch (message.messageType) {
          case CHAT_MESSAGE: // Client sending a message to an existing chat.
          case CHAT_EMOTE: // Client is sending an emote to an existing chat.
-            handleChatMessage(connection, message);
+         case CONVERSATION_JOIN: // Client wants to join a conversation
+         case CONVERSATION_LEAVE: // Client wants to leave a conversation
+            dispatchConversationMessage(connection, message);
             break;
 
          case CONVERSATION_NEW: // Client wants a new conversation.
@@ -236,16 +900,7 @@ public class SubwaveServer {
             break;
 
          case CONVERSATION_INVITE: // Client wants to invite another client to a conversation
-            handleConversationInvite(connection, message);
-            break;
-
-         case CONVERSATION_JOIN: // Client wants to join a conversation
-            handleConversationJoin(connection, message);
-            break;
-
-         case CONVERSATION_LEAVE: // Client wants to leave a conversation
-            // TODO Remove user from conversation
-            handleConversationLeave(connection, message);
+            dispatchConversationInvite(connection, message);
             break;
 
          case NAME_UPDATE: // Client wants to change a friendly name
@@ -271,6 +926,31 @@ public class SubwaveServer {
             handleNetworkDisconnect(connection, message);
             break;
 
+         case HEARTBEAT: // Client answering a heartbeat.
+            // Nothing to do; receiving the message has already reset the client's idle time.
+            break;
+
+         case MULTICAST: // Client missed multicast broadcasts.
+            handleMulticastResend(connection, message);
+            break;
+
+         case CLUSTER: // Only sent between the nodes of a cluster.
+            replyToUnhandledMessage(connection, message);
+            break;
+
+         case PRESENCE: // Only sent by the server.
+            replyToUnhandledMessage(connection, message);
+            break;
+
+         case HISTORY_REQUEST: // Client wants a page of a conversation's history.
+            if (ProtocolFeature.HISTORY.isSet(connection.getFeatures())) dispatchConversationMessage(connection, message);
+            else replyToUnhandledMessage(connection, message);
+            break;
+
+         case HISTORY: // Only sent by the server.
+            replyToUnhandledMessage(connection, message);
+            break;
+
          case DEBUG: // Received debug message.
             /*
             Debug messages are sent to standard err.
@@ -289,30 +969,332 @@ public class SubwaveServer {
       }
    }
 
+   /**
+    * Validates the source of a message to a conversation, then queues it on the {@link ServerShard} that owns the
+    * conversation, where it is passed to the appropriate message handler. Messages to a conversation owned by another
+    * node are routed to that node instead.
+    * <p/>
+    * The client is looked up before the message is queued, so a message sent just before the client signs off is still
+    * handled, as it would have been had it been handled on arrival.
+    *
+    * @param connection connection the message was received on
+    * @param message    message received
+    *
+    * @see #validateClientMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    */
+   private static void dispatchConversationMessage(final Connection connection, final Message message) {
+      final Client client = validateClientMessage(connection, message);
+      if (client == null) return; // TODO Send reject message
+
+      if (!isLocalID(message.conversationID)) {
+         // The owner announces joins with the member's name.
+         if (message.messageType == MessageType.CONVERSATION_JOIN) {
+            routeToOwner(connection, new Message(MessageType.CONVERSATION_JOIN, message.conversationID, client.clientID, client.getNickname()));
+         } else routeToOwner(connection, message);
+         return;
+      }
+
+      dispatchFromClient(connection, shardOf(message.conversationID), new Runnable() {
+         @Override
+         public void run() {
+            switch (message.messageType) {
+               case CHAT_MESSAGE:
+               case CHAT_EMOTE:
+                  handleChatMessage(connection, message);
+                  break;
+
+               case CONVERSATION_JOIN:
+                  handleConversationJoin(connection, client, message);
+                  break;
+
+               case CONVERSATION_LEAVE:
+                  handleConversationLeave(connection, client, message);
+                  break;
+
+               case HISTORY_REQUEST:
+                  handleHistoryRequest(connection, client, message);
+                  break;
+            }
+         }
+      });
+   }
+
+   /**
+    * Queues an invitation on the {@link ServerShard} that owns the conversation, where it is passed to the message
+    * handler.
+    * <p/>
+    * The clientID of an invitation names the client invited, not the sender, so there is no source to validate.
+    * Invitations to a conversation owned by another node are routed to that node, with the sender's clientID, and the
+    * invited client's clientID in the body.
+    *
+    * @param connection connection the message was received on
+    * @param message    message received
+    */
+   private static void dispatchConversationInvite(final Connection connection, final Message message) {
+      if (!isLocalID(message.conversationID)) {
+         String targetClientID = Integer.toString(message.clientID);
+         routeToOwner(connection, new Message(MessageType.CONVERSATION_INVITE, message.conversationID, connection.getClientID(), targetClientID));
+         return;
+      }
+
+      dispatchFromClient(connection, shardOf(message.conversationID), new Runnable() {
+         @Override
+         public void run() {
+            handleConversationInvite(connection, message);
+         }
+      });
+   }
+
+   /**
+    * Queues work read from a client's connection on a {@link ServerShard}. Connections read by their own thread wait
+    * for room in the shard's mailbox. Connections, and the sessions they carry, read by an {@link EventLoop} never wait,
+    * as the loop reads for many others; the work is parked on the connection instead, which is not read again until
+    * the work is queued.
+    *
+    * @param connection connection the work was read from
+    * @param shard      shard to run the work
+    * @param task       work to run
+    */
+   private static void dispatchFromClient(Connection connection, ServerShard shard, Runnable task) {
+      Connection carrier = connection instanceof SessionConnection ? ((SessionConnection) connection).getCarrier() : connection;
+      if (carrier instanceof ChannelConnection) ((ChannelConnection) carrier).dispatch(shard, task);
+      else shard.dispatch(task);
+   }
+
    /**
     * Message Handler: CHAT_MESSAGE and CHAT_EMOTE
     * <p/>
-    * Requirements: Message must pass both client and conversation validation tests.
+    * Requirements: Message must pass both client and conversation validation tests. The client is validated before the
+    * message is dispatched.
     * <p/>
     * Broadcasts the message to all members of the appropriate conversation.
     *
     * @param connection connection the message was received on
     * @param message    message received
     *
-    * @see #validateClientMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    * @see #dispatchConversationMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
     * @see #validateConversation(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
     */
    private static void handleChatMessage(Connection connection, Message message) {
-      // Validate client.
-      Client client = validateClientMessage(connection, message);
-      if (client == null) return;
-
       // Validate conversation.
       Conversation conversation = validateConversation(connection, message);
       if (conversation == null) return;
 
       // Send the message.
-      conversation.broadcastToConversation(message);
+      recordAndBroadcast(conversation, message);
+   }
+
+   /**
+    * Message Handler: HISTORY_REQUEST
+    * <p/>
+    * Requirements: Message must pass both client and conversation validation tests, and the client must be a member of
+    * the conversation. The client is validated before the message is dispatched.
+    * <p/>
+    * Sends the client the requested page of the conversation's history.
+    *
+    * @param connection connection the message was received on
+    * @param client     client asking for the history
+    * @param message    message received
+    *
+    * @see #sendHistory(Conversation, int, com.tanndev.subwave.common.Message)
+    */
+   private static void handleHistoryRequest(Connection connection, Client client, Message message) {
+      // Validate conversation.
+      Conversation conversation = validateConversation(connection, message);
+      if (conversation == null) return;
+      if (!conversation.isMember(client.clientID)) {
+         connection.send(new Message(MessageType.REFUSE, SERVER_ID, client.clientID, Message.NOT_A_MEMBER));
+         return;
+      }
+
+      sendHistory(conversation, client.clientID, message);
+   }
+
+   /**
+    * Sends a page of a conversation's history from the {@link MessageLog} to a member, on this node or any other, as
+    * described by {@link HistoryEntry}. If messages are not recorded, the page is empty. Must be called on the
+    * conversation's shard thread.
+    * <p/>
+    * Pages held by the conversation's {@link RecentMessageRing}, such as the latest page asked for by members joining,
+    * are sent from memory. Other pages are read from the log one message at a time as they are sent, so they are never
+    * held in memory whole. The page holds
+    * only messages broadcast before it is sent: when the log commits records in groups, the page is sent from the
+    * conversation's shard once every message recorded before the request has been passed back there for broadcast, and
+    * messages recorded meanwhile are left out.
+    *
+    * @param conversation conversation to read
+    * @param clientID     unique ID of the member asking for the history
+    * @param request      HISTORY_REQUEST message
+    */
+   private static void sendHistory(final Conversation conversation, final int clientID, Message request) {
+      long[] parameters;
+      try {
+         parameters = HistoryEntry.parseRequest(request);
+      } catch (IOException e) {
+         ErrorHandler.logError("Could not handle history request: " + request.toString(), e);
+         deliver(clientID, new Message(MessageType.REFUSE, SERVER_ID, clientID, Message.INVALID_HISTORY_REQUEST));
+         return;
+      }
+
+      final int conversationID = conversation.conversationID;
+      final MessageLog log = messageLog;
+      if (log == null) {
+         deliver(clientID, HistoryEntry.createEnd(conversationID, 0));
+         return;
+      }
+
+      // Fix the end of the page now, before later messages are recorded.
+      long next = log.getLastSequence(conversationID) + 1;
+      final long before = parameters[0] == 0 ? next : Math.min(parameters[0], next);
+      final int pageSize = (int) Math.min(parameters[1], Defaults.DEFAULT_HISTORY_PAGE_LIMIT);
+      if (log.getSyncPolicy() != MessageLog.SyncPolicy.GROUP_COMMIT) {
+         streamHistory(log, conversation, clientID, before, pageSize);
+         return;
+      }
+      final ServerShard shard = shardOf(conversationID);
+      log.afterLogged(new Runnable() {
+         @Override
+         public void run() {
+            shard.forward(new Runnable() {
+               @Override
+               public void run() {
+                  streamHistory(log, conversation, clientID, before, pageSize);
+               }
+            });
+         }
+      });
+   }
+
+   /**
+    * Sends a page of a conversation's history to a member, newest first, followed by the message ending the page.
+    * <p/>
+    * The page is sent from the conversation's {@link RecentMessageRing} if it holds the whole page. Otherwise it is read
+    * from the log, and the newest messages read are given to the ring, so the next member asking for the same page is
+    * sent it from memory.
+    *
+    * @param log          log to read
+    * @param conversation conversation to read
+    * @param clientID     unique ID of the member
+    * @param before       sequence number the page ends before
+    * @param pageSize     largest number of messages to send
+    */
+   private static void streamHistory(MessageLog log, Conversation conversation, int clientID, long before, int pageSize) {
+      int conversationID = conversation.conversationID;
+      RecentMessageRing recentMessages = recentMessagesOf(conversation);
+      if (recentMessages != null && pageSize > 0) {
+         ArrayList<SharedFrame> page = new ArrayList<SharedFrame>(pageSize);
+         long remaining = recentMessages.collectPage(before, pageSize, page);
+         if (remaining >= 0) {
+            recentMessageCache.recordHit();
+            sendHistoryPage(clientID, page);
+            recentMessages.accountEncoded();
+            deliver(clientID, HistoryEntry.createEnd(conversationID, remaining));
+            return;
+         }
+         recentMessageCache.recordMiss();
+      }
+
+      long lastSequence = log.getLastSequence(conversationID);
+      List<MessageLog.Entry> newest = recentMessages == null ? null : new ArrayList<MessageLog.Entry>();
+      Iterator<MessageLog.Entry> records = log.readBackwards(conversationID, before);
+      long remaining = 0;
+      for (int sent = 0; sent < pageSize && records.hasNext(); sent++) {
+         MessageLog.Entry record = records.next();
+         Message original = record.message;
+         HistoryEntry entry = new HistoryEntry(record.sequence, original.messageType, original.clientID, original.messageBody);
+         deliver(clientID, entry.toMessage(conversationID));
+         remaining = record.sequence - 1;
+         if (newest != null && newest.size() < recentMessageCache.getRingCapacity()) newest.add(record);
+      }
+      deliver(clientID, HistoryEntry.createEnd(conversationID, remaining));
+      if (newest != null) recentMessages.fill(newest, lastSequence);
+   }
+
+   /**
+    * Sends the frames of a page of history collected from a {@link RecentMessageRing} to a member, on this node or any
+    * other, releasing each once it is sent. A member of this node shares the frames encoded for every other member
+    * using the same codec.
+    *
+    * @param clientID unique ID of the member
+    * @param page     frames of the page, newest first
+    */
+   private static void sendHistoryPage(int clientID, List<SharedFrame> page) {
+      boolean local = isLocalID(clientID);
+      Client client = local ? shardOf(clientID).clients.get(clientID) : null;
+      for (SharedFrame frame : page) {
+         try {
+            if (!local) deliver(clientID, frame.message);
+            else if (client != null) client.clientConnection.send(frame);
+         } finally {
+            frame.release();
+         }
+      }
+   }
+
+   /**
+    * Returns the {@link RecentMessageRing} of a conversation owned by this node, creating it if necessary. Must be
+    * called on the conversation's shard thread.
+    *
+    * @param conversation conversation owned by this node
+    *
+    * @return the conversation's ring, or null if no memory is set aside for recent messages
+    */
+   private static RecentMessageRing recentMessagesOf(Conversation conversation) {
+      RecentMessageRing ring = conversation.getRecentMessages();
+      if (ring == null && recentMessageCache.getBudgetBytes() > 0) {
+         ring = recentMessageCache.createRing(conversation.conversationID);
+         conversation.setRecentMessages(ring);
+      }
+      return ring;
+   }
+
+   /**
+    * Records a chat message or emote in the {@link MessageLog}, if there is one, and in its conversation's {@link
+    * RecentMessageRing}, then broadcasts it to the members of its conversation. Must be called on the conversation's
+    * shard thread.
+    * <p/>
+    * When the log commits records in groups, the broadcast is passed back to the conversation's shard once the record
+    * is on disk, so no member sees a message that could still be lost. Messages are logged and committed in order, so
+    * they are still broadcast in the order they were received.
+    *
+    * @param conversation conversation the message was sent to
+    * @param message      message to record and broadcast
+    */
+   private static void recordAndBroadcast(final Conversation conversation, final Message message) {
+      MessageLog log = messageLog;
+      if (log == null) conversation.broadcastToConversation(message);
+      else if (log.getSyncPolicy() != MessageLog.SyncPolicy.GROUP_COMMIT) {
+         if (log.append(message, null) >= 0) recordRecent(log, conversation, message);
+         conversation.broadcastToConversation(message);
+      } else {
+         final ServerShard shard = shardOf(conversation.conversationID);
+         long offset = log.append(message, new Runnable() {
+            @Override
+            public void run() {
+               shard.forward(new Runnable() {
+                  @Override
+                  public void run() {
+                     conversation.broadcastToConversation(message);
+                  }
+               });
+            }
+         });
+         if (offset >= 0) recordRecent(log, conversation, message);
+      }
+   }
+
+   /**
+    * Records a chat message or emote just appended to the log in its conversation's {@link RecentMessageRing}. Must be
+    * called on the conversation's shard thread, which is the only thread appending to the conversation, straight after
+    * the message is appended.
+    *
+    * @param log          log the message was appended to
+    * @param conversation conversation the message was sent to
+    * @param message      message appended
+    */
+   private static void recordRecent(MessageLog log, Conversation conversation, Message message) {
+      RecentMessageRing recentMessages = recentMessagesOf(conversation);
+      if (recentMessages != null) recentMessages.add(log.getLastSequence(conversation.conversationID), message);
    }
 
    /**
@@ -332,8 +1314,8 @@ public class SubwaveServer {
       Client client = validateClientMessage(connection, message);
       if (client == null) return;
 
-      // Create a new conversation.
-      int conversationID = getUniqueID();
+      // Create a new conversation, owned by the same shard as its creator.
+      int conversationID = shardOf(client.clientID).nextID();
       String conversationName = message.messageBody;
       if (conversationName == null || conversationName.trim().length() < 1)
          conversationName = Defaults.DEFAULT_CONVERSATION_NAME;
@@ -344,49 +1326,74 @@ public class SubwaveServer {
       connection.send(invitation);
    }
 
+   /**
+    * Message Handler: CONVERSATION_INVITE
+    * <p/>
+    * Requirements: Message must pass the conversation validation test. Runs on the thread of the shard that owns the
+    * conversation.
+    * <p/>
+    * Sends an invitation, carrying the conversation's name and the sender's clientID, to the client named by the
+    * message. The invited client may be owned by another shard, in which case the invitation is passed to that shard,
+    * which looks the client up and sends it, or by another node, in which case it is delivered over the cluster.
+    *
+    * @param connection connection the message was received on
+    * @param message    message received
+    *
+    * @see #validateConversation(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    */
    private static void handleConversationInvite(Connection connection, Message message) {
       // TODO Verify that the client has the right to send the invite.
 
       // Validate conversation.
       Conversation conversation = validateConversation(connection, message);
-
-      // Validate the target.
-      int targetClientID = message.clientID;
-      Client targetClient = clientMap.get(targetClientID);
-      if (targetClient == null) {
-         // TODO send rejection
-         return;
-      }
+      if (conversation == null) return;
 
       // Build the new message
+      final int targetClientID = message.clientID;
       int sourceClientID = connection.getClientID();
       int conversationID = message.conversationID;
       String conversationName = conversation.getName();
-      Message invitation = new Message(MessageType.CONVERSATION_INVITE, conversationID, sourceClientID, conversationName);
+      final Message invitation = new Message(MessageType.CONVERSATION_INVITE, conversationID, sourceClientID, conversationName);
 
-      // Send the invitation.
-      targetClient.clientConnection.send(invitation);
+      // Clients of other nodes are sent the invitation over the cluster.
+      if (!isLocalID(targetClientID)) {
+         deliver(targetClientID, invitation);
+         return;
+      }
 
+      // Send the invitation from the shard that owns the target.
+      final ServerShard targetShard = shardOf(targetClientID);
+      Runnable send = new Runnable() {
+         @Override
+         public void run() {
+            Client targetClient = targetShard.clients.get(targetClientID);
+            if (targetClient == null) {
+               // TODO send rejection
+               return;
+            }
+            targetClient.clientConnection.send(invitation);
+         }
+      };
+      if (targetShard == shardOf(conversationID)) send.run();
+      else targetShard.forward(send);
    }
 
    /**
     * Message Handler: CONVERSATION_JOIN
     * <p/>
-    * Requirements: Message must pass both client and conversation validation tests.
+    * Requirements: Message must pass both client and conversation validation tests. The client is validated before the
+    * message is dispatched.
     * <p/>
     * Adds the client to requested conversation as a member
     *
     * @param connection connection the message was received on
+    * @param client     client that sent the message
     * @param message    message received
     *
-    * @see #validateClientMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    * @see #dispatchConversationMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
     * @see #validateConversation(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
     */
-   private static void handleConversationJoin(Connection connection, Message message) {
-      // Verify sourceID.
-      Client client = validateClientMessage(connection, message);
-      if (client == null) return; // TODO Send reject message
-
+   private static void handleConversationJoin(Connection connection, Client client, Message message) {
       // Validate conversation.
       Conversation conversation = validateConversation(connection, message);
       if (conversation == null) return; // TODO Send reject message
@@ -395,11 +1402,7 @@ public class SubwaveServer {
       conversation.addMember(client);
    }
 
-   private static void handleConversationLeave(Connection connection, Message message) {
-      // Verify sourceID.
-      Client client = validateClientMessage(connection, message);
-      if (client == null) return; // TODO Send reject message
-
+   private static void handleConversationLeave(Connection connection, Client client, Message message) {
       // Validate conversation.
       Conversation conversation = validateConversation(connection, message);
       if (conversation == null) return; // TODO Send reject message
@@ -427,6 +1430,314 @@ public class SubwaveServer {
       removeClient(client.clientID);
    }
 
+   /**
+    * Message Handler: MULTICAST
+    * <p/>
+    * Requirements: Message must pass client validation, and multicast must be enabled.
+    * <p/>
+    * Resends the broadcasts a client missed from the multicast group over its connection. The conversationID holds the
+    * sequence number of the first message missed, and the body holds the number of messages missed. If the messages are
+    * no longer retained, the current client list is sent instead.
+    * <p/>
+    * A body of {@link com.tanndev.subwave.common.Message#MULTICAST_LEAVE} means the client cannot receive from the
+    * group. Every broadcast since the conversationID is resent, and later broadcasts are sent over the connection.
+    *
+    * @param connection connection the message was received on
+    * @param message    message received
+    *
+    * @see #validateClientMessage(com.tanndev.subwave.common.Connection, com.tanndev.subwave.common.Message)
+    */
+   private static void handleMulticastResend(Connection connection, Message message) {
+      Client client = validateClientMessage(connection, message);
+      if (client == null) return;
+      MulticastChannel multicast = multicastChannel;
+      if (multicast == null || !client.multicastMember) {
+         replyToUnhandledMessage(connection, message);
+         return;
+      }
+
+      int count;
+      if (Message.MULTICAST_LEAVE.equals(message.messageBody)) {
+         client.multicastMember = false;
+         count = MulticastDatagram.distance(message.conversationID, multicast.getNextSequence());
+         System.out.println("MC - ClientID: " + client.clientID + " left the multicast group");
+      } else {
+         try {
+            count = Integer.parseInt(message.messageBody);
+         } catch (NumberFormatException e) {
+            replyToUnhandledMessage(connection, message);
+            return;
+         }
+      }
+
+      if (!multicast.resend(connection, message.conversationID, count)) {
+         System.out.println("MC - ClientID: " + client.clientID + " missed more than the retained broadcasts");
+         presenceBatcher.sendList(client);
+      }
+   }
+
+   /**
+    * Sends a client's message to the node that owns its conversation. If the node is not linked, the client is told the
+    * conversation is not available.
+    *
+    * @param connection connection the message was received on
+    * @param message    message to route, carrying the sender's clientID
+    */
+   private static void routeToOwner(Connection connection, Message message) {
+      PeerLink owner = cluster.getLink(cluster.nodeOf(message.conversationID));
+      if (owner == null || !owner.send(message)) {
+         Message reply = new Message(MessageType.REFUSE, SERVER_ID, connection.getClientID(), Message.INVALID_CONVERSATION);
+         connection.send(reply);
+      }
+   }
+
+   /**
+    * Sends a message to a single client, on this node or any other.
+    *
+    * @param clientID unique ID of the client
+    * @param message  message to send
+    */
+   private static void deliver(int clientID, Message message) {
+      if (isLocalID(clientID)) deliverToLocalClient(clientID, message);
+      else {
+         PeerLink link = cluster.getLink(cluster.nodeOf(clientID));
+         if (link != null) link.deliver(clientID, message);
+      }
+   }
+
+   /**
+    * Sends a message to a single client of this node, if it is still connected.
+    *
+    * @param clientID unique ID of the client
+    * @param message  message to send
+    */
+   static void deliverToLocalClient(int clientID, Message message) {
+      Client client = shardOf(clientID).clients.get(clientID);
+      if (client != null) client.clientConnection.send(message);
+   }
+
+   /**
+    * Sends a message delivered by another node of the cluster to a single client of this node, if it is still
+    * connected.
+    * <p/>
+    * A page of history must reach the client after the messages the owner broadcast before it, which this node passes
+    * on from the thread of the shard holding its mirror of the conversation. History is therefore passed on from that
+    * thread too. Other messages are sent on the calling thread.
+    *
+    * @param clientID unique ID of the client
+    * @param message  message to send
+    */
+   static void deliverFromPeer(final int clientID, final Message message) {
+      if (message.messageType != MessageType.HISTORY) {
+         deliverToLocalClient(clientID, message);
+         return;
+      }
+      shardOf(message.conversationID).dispatch(new Runnable() {
+         @Override
+         public void run() {
+            deliverToLocalClient(clientID, message);
+         }
+      });
+   }
+
+   /**
+    * Processes an incoming message from another node of the cluster via its {@link PeerLink}, and processes it using
+    * the appropriate message handler.
+    * <p/>
+    * Messages to a conversation are handled on the thread of the {@link ServerShard} holding it, in the order they were
+    * received, as messages from clients are. Announcements of the other node's clients are handled on the calling
+    * thread.
+    *
+    * @param link    link the message was received on
+    * @param message message received
+    */
+   static void sortPeerMessage(final PeerLink link, final Message message) {
+      switch (message.messageType) {
+         case CHAT_MESSAGE:
+         case CHAT_EMOTE:
+         case CONVERSATION_JOIN:
+         case CONVERSATION_LEAVE:
+         case CONVERSATION_INVITE:
+         case HISTORY_REQUEST:
+            shardOf(message.conversationID).dispatch(new Runnable() {
+               @Override
+               public void run() {
+                  if (isLocalID(message.conversationID)) handleRoutedMessage(link, message);
+                  else handleOwnerMessage(link, message);
+               }
+            });
+            break;
+
+         case NETWORK_CONNECT: // A client signed on to the other node.
+            if (cluster.nodeOf(message.clientID) != link.getNode()) break;
+            link.clients.put(message.clientID, message);
+            presenceBatcher.queue(message);
+            break;
+
+         case NETWORK_DISCONNECT: // A client signed off from the other node.
+            if (link.clients.remove(message.clientID) != null) presenceBatcher.queue(message);
+            break;
+
+         case HEARTBEAT: // Nothing to do; receiving the message has already reset the link's idle time.
+            break;
+
+         default:
+            ErrorHandler.logError("Unhandled message received from node " + link.getNode() + ": " + message.toString());
+      }
+   }
+
+   /**
+    * Peer Message Handler: messages routed to a conversation this node owns
+    * <p/>
+    * Requirements: The sender must be a client of the node the message was received from, and the conversation must
+    * exist. Runs on the thread of the shard that owns the conversation.
+    * <p/>
+    * Handles a message sent by a client of another node as if the client were connected here. Joins and leaves update
+    * the conversation's remote members. An invitation carries the invited client's clientID in its body.
+    *
+    * @param link    link the message was received on
+    * @param message message received
+    */
+   private static void handleRoutedMessage(PeerLink link, Message message) {
+      if (cluster.nodeOf(message.clientID) != link.getNode()) {
+         ErrorHandler.logError("Node " + link.getNode() + " routed a message for a client it does not own: " + message.toString());
+         return;
+      }
+      Conversation conversation = shardOf(message.conversationID).conversations.get(message.conversationID);
+      if (conversation == null) {
+         deliver(message.clientID, new Message(MessageType.REFUSE, SERVER_ID, message.clientID, Message.INVALID_CONVERSATION));
+         return;
+      }
+
+      switch (message.messageType) {
+         case CHAT_MESSAGE:
+         case CHAT_EMOTE:
+            recordAndBroadcast(conversation, message);
+            break;
+
+         case CONVERSATION_JOIN:
+            conversation.addRemoteMember(link, message.clientID, message.messageBody);
+            break;
+
+         case CONVERSATION_LEAVE:
+            conversation.removeRemoteMember(message.clientID);
+            break;
+
+         case HISTORY_REQUEST:
+            if (conversation.isMember(message.clientID)) sendHistory(conversation, message.clientID, message);
+            else deliver(message.clientID, new Message(MessageType.REFUSE, SERVER_ID, message.clientID, Message.NOT_A_MEMBER));
+            break;
+
+         case CONVERSATION_INVITE:
+            int targetClientID;
+            try {
+               targetClientID = Integer.parseInt(message.messageBody);
+            } catch (NumberFormatException e) {
+               ErrorHandler.logError("Could not handle routed invitation: " + message.toString());
+               return;
+            }
+            String conversationName = conversation.getName();
+            deliver(targetClientID, new Message(MessageType.CONVERSATION_INVITE, message.conversationID, message.clientID, conversationName));
+            break;
+      }
+   }
+
+   /**
+    * Peer Message Handler: messages from the owner of a conversation
+    * <p/>
+    * Requirements: The message must come from the node that owns the conversation. Runs on the thread of the shard
+    * holding this node's mirror of the conversation.
+    * <p/>
+    * Passes the message on to this node's members of the conversation. A join or leave of one of this node's clients
+    * adds it to or removes it from the mirror, which is created by the first join and removed once it has no members.
+    * If a client joined but has since signed off, the owner is told it left.
+    *
+    * @param link    link the message was received on
+    * @param message message received
+    */
+   private static void handleOwnerMessage(PeerLink link, Message message) {
+      int conversationID = message.conversationID;
+      if (cluster.nodeOf(conversationID) != link.getNode()) {
+         ErrorHandler.logError("Node " + link.getNode() + " sent a message for a conversation it does not own: " + message.toString());
+         return;
+      }
+      ServerShard shard = shardOf(conversationID);
+      Conversation mirror = shard.conversations.get(conversationID);
+
+      boolean memberChange = message.messageType == MessageType.CONVERSATION_JOIN || message.messageType == MessageType.CONVERSATION_LEAVE;
+      if (memberChange && isLocalID(message.clientID)) {
+         Client client = shardOf(message.clientID).clients.get(message.clientID);
+         if (message.messageType == MessageType.CONVERSATION_JOIN) {
+            if (client == null) {
+               link.send(new Message(MessageType.CONVERSATION_LEAVE, conversationID, message.clientID, Message.LEFT_CONVERSATION));
+               return;
+            }
+            // Mirrors hold no name, and are not listed with the conversations this node owns.
+            if (mirror == null) {
+               mirror = new Conversation(conversationID, null);
+               shard.conversations.put(conversationID, mirror);
+            }
+            mirror.addMember(client);
+            return;
+         }
+         if (client != null && mirror != null) {
+            mirror.removeMember(client);
+            return;
+         }
+      }
+
+      if (mirror != null) mirror.broadcastToConversation(message);
+   }
+
+   /**
+    * Sends this node's clients to a newly linked node. Sign-ons and sign-offs are announced over the link from then on.
+    *
+    * @param link new link
+    */
+   static void peerConnected(PeerLink link) {
+      synchronized (link.presenceLock) {
+         link.presenceOpen = true;
+         for (ServerShard shard : shards) {
+            for (Client client : shard.clients.values()) {
+               String nickname = shard.names.get(client.clientID);
+               link.send(new Message(MessageType.NETWORK_CONNECT, SERVER_ID, client.clientID, nickname));
+            }
+         }
+      }
+   }
+
+   /**
+    * Cleans up after a lost link. The other node's clients are announced as disconnected. Each shard then removes the
+    * other node's members from the conversations this node owns, and drops its mirrors of the conversations the other
+    * node owns, telling their members the conversations are no longer available.
+    *
+    * @param link link that was lost
+    */
+   static void peerLost(final PeerLink link) {
+      for (Message remoteClient : link.clients.values()) {
+         presenceBatcher.queue(new Message(MessageType.NETWORK_DISCONNECT, SERVER_ID, remoteClient.clientID, Message.CLIENT_DISCONNECTED));
+      }
+
+      for (final ServerShard shard : shards) {
+         shard.forward(new Runnable() {
+            @Override
+            public void run() {
+               for (Conversation conversation : shard.conversations.values()) {
+                  int conversationID = conversation.conversationID;
+                  if (isLocalID(conversationID)) conversation.removePeer(link);
+                  else if (cluster.nodeOf(conversationID) == link.getNode()) {
+                     shard.conversations.remove(conversationID);
+                     for (Client member : conversation.getMemberList()) {
+                        Message notice = new Message(MessageType.REFUSE, conversationID, member.clientID, Message.INVALID_CONVERSATION);
+                        member.clientConnection.send(notice);
+                     }
+                  }
+               }
+            }
+         });
+      }
+   }
+
    /**
     * Message Handler: default
     * <p/>
@@ -463,11 +1774,11 @@ public class SubwaveServer {
          return null;
       }
       // TODO Check if connection object matches client record.
-      return clientMap.get(sourceID);
+      return shardOf(sourceID).clients.get(sourceID);
    }
 
    /**
-    * Validates a message to ensure the conversationID matches a valid conversation from the {@link #conversationMap}
+    * Validates a message to ensure the conversationID matches a valid conversation on the server
     * <p/>
     * Returns the Conversation matching that conversationID if validation succeeds. Otherwise, automatically sends a
     * refusal message and returns null
@@ -478,7 +1789,7 @@ public class SubwaveServer {
     * @return Conversation matching the conversationID in the message if validated. Otherwise null.
     */
    private static Conversation validateConversation(Connection connection, Message message) {
-      Conversation conversation = conversationMap.get(message.conversationID);
+      Conversation conversation = shardOf(message.conversationID).conversations.get(message.conversationID);
       if (conversation == null) {
          Message reply = new Message(MessageType.REFUSE, SERVER_ID, connection.getClientID(), Message.INVALID_CONVERSATION);
          connection.send(reply);
@@ -0,0 +1,309 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.ErrorHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timer wheel that runs many short timeouts on a single thread.
+ * <p/>
+ * Time is divided into ticks, and the wheel is a ring of buckets, one per tick. A timeout is placed in the bucket of
+ * the tick it expires on, along with the number of full turns of the wheel still to wait. Each tick, the wheel thread
+ * visits one bucket and runs the timeouts that are due. Scheduling and cancelling are O(1) regardless of how many
+ * timeouts are pending, unlike a scheduled executor, which keeps its tasks in a heap. The cost is precision: timeouts
+ * run up to one tick late.
+ * <p/>
+ * Any thread may schedule or cancel a timeout. Both only add the timeout to a lock-free queue, which the wheel thread
+ * drains at the start of each tick, so buckets are only ever touched by the wheel thread.
+ * <p/>
+ * Tasks run on the wheel thread and must be short. Anything that may block or take long should be handed to another
+ * executor.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.server.core.HandshakeStage
+ * @see com.tanndev.subwave.server.core.IdleReaper
+ */
+public class TimerWheel {
+
+   /** Most timeouts moved from the pending queue into buckets each tick, so a burst cannot stall the wheel. */
+   private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+   /** Length of a tick, in nanoseconds. */
+   private final long tickNanos;
+
+   /** Buckets of the wheel, one per tick. */
+   private final Bucket[] buckets;
+
+   /** Mask used to find the bucket of a tick. The number of buckets is a power of two. */
+   private final int mask;
+
+   /** Time, from {@link System#nanoTime()}, the wheel started. Deadlines are relative to this time. */
+   private final long startTime = System.nanoTime();
+
+   /** Timeouts scheduled but not yet placed in a bucket. */
+   private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+   /** Timeouts cancelled but not yet removed from their bucket. */
+   private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+   /** Number of timeouts scheduled that have neither run nor been cancelled. */
+   private final AtomicInteger pendingCount = new AtomicInteger();
+
+   /** Number of timeouts that have run. */
+   private final AtomicLong expiredCount = new AtomicLong();
+
+   /**
+    * Constructor
+    * <p/>
+    * Starts the wheel thread, which runs for the life of the application.
+    *
+    * @param name          name of the wheel thread
+    * @param tickMillis    length of a tick, in milliseconds
+    * @param ticksPerWheel number of buckets, rounded up to a power of two
+    */
+   public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+      if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+      if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+         throw new IllegalArgumentException("Invalid number of ticks per wheel: " + ticksPerWheel);
+      }
+      this.tickNanos = tickMillis * 1000000;
+      int size = Integer.highestOneBit(ticksPerWheel);
+      if (size < ticksPerWheel) size <<= 1;
+      buckets = new Bucket[size];
+      for (int i = 0; i < size; i++) buckets[i] = new Bucket();
+      mask = size - 1;
+
+      Thread thread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            turn();
+         }
+      }, name);
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Schedules a task to run once the provided delay has elapsed.
+    *
+    * @param task        task to run on the wheel thread
+    * @param delayMillis delay, in milliseconds
+    *
+    * @return timeout that may be used to cancel the task
+    */
+   public Timeout schedule(Runnable task, long delayMillis) {
+      Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(delayMillis, 0) * 1000000);
+      pendingCount.incrementAndGet();
+      pendingTimeouts.add(timeout);
+      return timeout;
+   }
+
+   /**
+    * @return number of timeouts scheduled that have neither run nor been cancelled
+    */
+   public int getPendingCount() {
+      return pendingCount.get();
+   }
+
+   /**
+    * @return number of timeouts that have run
+    */
+   public long getExpiredCount() {
+      return expiredCount.get();
+   }
+
+   /**
+    * Runs the wheel. Each tick waits for the tick to end, applies the cancellations and new timeouts received since
+    * the last tick, and then runs the timeouts due in the tick's bucket.
+    */
+   private void turn() {
+      long tick = 0;
+      while (true) {
+         long tickEnd = tickNanos * (tick + 1);
+         waitUntil(tickEnd);
+         removeCancelled();
+         transferPending(tick);
+         buckets[(int) (tick & mask)].expire(tickEnd);
+         tick++;
+      }
+   }
+
+   /**
+    * Sleeps until the provided time, relative to {@link #startTime}, has been reached.
+    *
+    * @param deadline time to wait for, in nanoseconds
+    */
+   private void waitUntil(long deadline) {
+      long remaining;
+      while ((remaining = deadline - (System.nanoTime() - startTime)) > 0) {
+         try {
+            Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+         } catch (InterruptedException e) {
+            // The wheel runs for the life of the application; keep waiting.
+         }
+      }
+   }
+
+   /**
+    * Removes every cancelled timeout from its bucket.
+    */
+   private void removeCancelled() {
+      Timeout timeout;
+      while ((timeout = cancelledTimeouts.poll()) != null) {
+         if (timeout.bucket != null) timeout.bucket.remove(timeout);
+      }
+   }
+
+   /**
+    * Places newly scheduled timeouts in the bucket of the tick they expire on. Timeouts already due are placed in the
+    * current tick's bucket.
+    *
+    * @param tick current tick
+    */
+   private void transferPending(long tick) {
+      for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+         Timeout timeout = pendingTimeouts.poll();
+         if (timeout == null) return;
+         if (timeout.state != Timeout.PENDING) continue;
+
+         long expiryTick = timeout.deadline / tickNanos;
+         timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+         buckets[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+      }
+   }
+
+   /**
+    * A task scheduled on the wheel.
+    */
+   public class Timeout {
+
+      static final int PENDING = 0;
+      static final int CANCELLED = 1;
+      static final int EXPIRED = 2;
+
+      /** Task to run once the timeout expires. */
+      private final Runnable task;
+
+      /** Time, in nanoseconds relative to {@link #startTime}, the timeout expires. */
+      private final long deadline;
+
+      /** Number of full turns of the wheel to wait before expiring. Only used by the wheel thread. */
+      private long remainingRounds;
+
+      /** Bucket holding the timeout, or null if it has not been placed yet. Only used by the wheel thread. */
+      private Bucket bucket;
+
+      /** Neighbours within the bucket. Only used by the wheel thread. */
+      private Timeout previous, next;
+
+      /** One of {@link #PENDING}, {@link #CANCELLED}, or {@link #EXPIRED}. */
+      volatile int state = PENDING;
+
+      /**
+       * Constructor
+       *
+       * @param task     task to run once the timeout expires
+       * @param deadline time the timeout expires, in nanoseconds relative to {@link #startTime}
+       */
+      private Timeout(Runnable task, long deadline) {
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Cancels the timeout, so that its task will not run. Has no effect if the task has already run.
+       *
+       * @return true if this call cancelled the timeout, otherwise false
+       */
+      public boolean cancel() {
+         if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+         pendingCount.decrementAndGet();
+         cancelledTimeouts.add(this);
+         return true;
+      }
+
+      /**
+       * @return true if the timeout was cancelled before its task ran
+       */
+      public boolean isCancelled() {
+         return state == CANCELLED;
+      }
+
+      /**
+       * Runs the task, unless the timeout was cancelled first.
+       */
+      private void expire() {
+         if (!STATE.compareAndSet(this, PENDING, EXPIRED)) return;
+         pendingCount.decrementAndGet();
+         expiredCount.incrementAndGet();
+         try {
+            task.run();
+         } catch (RuntimeException e) {
+            ErrorHandler.logError("Timer task threw an exception.", e);
+         }
+      }
+   }
+
+   /** Updates the state of timeouts without an atomic object per timeout. */
+   private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+   /**
+    * Doubly linked list of the timeouts placed in one slot of the wheel. Only used by the wheel thread.
+    */
+   private static class Bucket {
+
+      private Timeout head, tail;
+
+      /**
+       * Appends a timeout to the bucket.
+       *
+       * @param timeout timeout to add
+       */
+      void add(Timeout timeout) {
+         timeout.bucket = this;
+         if (head == null) head = tail = timeout;
+         else {
+            tail.next = timeout;
+            timeout.previous = tail;
+            tail = timeout;
+         }
+      }
+
+      /**
+       * Unlinks a timeout from the bucket.
+       *
+       * @param timeout timeout to remove
+       */
+      void remove(Timeout timeout) {
+         if (timeout.previous != null) timeout.previous.next = timeout.next;
+         else head = timeout.next;
+         if (timeout.next != null) timeout.next.previous = timeout.previous;
+         else tail = timeout.previous;
+         timeout.previous = timeout.next = null;
+         timeout.bucket = null;
+      }
+
+      /**
+       * Runs every timeout in the bucket that is due by the end of the current tick, and counts down the remaining
+       * rounds of the rest.
+       *
+       * @param tickEnd end of the current tick, in nanoseconds relative to the wheel's start
+       */
+      void expire(long tickEnd) {
+         Timeout timeout = head;
+         while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state != Timeout.PENDING) remove(timeout);
+            else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickEnd) {
+               remove(timeout);
+               timeout.expire();
+            } else timeout.remainingRounds--;
+            timeout = next;
+         }
+      }
+   }
+}
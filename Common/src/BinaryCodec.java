@@ -0,0 +1,209 @@
+package com.tanndev.subwave.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Compact {@link com.tanndev.subwave.common.MessageCodec} that writes message fields directly.
+ * <p/>
+ * Each payload is laid out as:
+ * <blockquote>type (1 byte) | conversationID (varint) | clientID (varint) | body length + 1 (varint) | body (UTF-8)
+ * </blockquote>
+ * A body length of zero represents a null body. Varints are unsigned, seven bits per byte, least significant group
+ * first. The codec is stateless, so {@link #INSTANCE} is shared safely between threads and connections.
+ * <p/>
+ * When a {@link com.tanndev.subwave.common.MessageDictionary} has been negotiated, the body length field is replaced
+ * by a body header. A header of zero represents a null body. An odd header carries the dictionary code of the body in
+ * its remaining bits, and no body bytes follow. An even header carries the body length + 1 in its remaining bits,
+ * followed by the body as above. Each dictionary version has its own shared instance, from {@link
+ * #forDictionary(int)}.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#BINARY_CODEC
+ */
+public class BinaryCodec implements MessageCodec {
+
+   /** Character set used for message bodies. */
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** Cached copy of the message types, indexed by ordinal. */
+   private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+   /** Shared instance used by every connection, so broadcast frames encoded for one connection can be reused. */
+   public static final BinaryCodec INSTANCE = new BinaryCodec(null);
+
+   /** Shared instances for each dictionary version, indexed by version. Version zero uses {@link #INSTANCE}. */
+   private static final BinaryCodec[] DICTIONARY_INSTANCES = new BinaryCodec[MessageDictionary.CURRENT_VERSION + 1];
+
+   static {
+      DICTIONARY_INSTANCES[0] = INSTANCE;
+      for (int version = 1; version < DICTIONARY_INSTANCES.length; version++) {
+         DICTIONARY_INSTANCES[version] = new BinaryCodec(MessageDictionary.forVersion(version));
+      }
+   }
+
+   /** Dictionary used to encode common bodies, or null to always send bodies as text. */
+   private final MessageDictionary dictionary;
+
+   /**
+    * Constructor
+    * <p/>
+    * Creates a codec that always sends bodies as text. Prefer the shared {@link #INSTANCE}, so that broadcast frames
+    * can be reused between connections.
+    */
+   public BinaryCodec() {
+      this(null);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param dictionary dictionary used to encode common bodies, or null to always send bodies as text
+    */
+   private BinaryCodec(MessageDictionary dictionary) {
+      this.dictionary = dictionary;
+   }
+
+   /**
+    * Returns the shared codec for the provided dictionary version.
+    *
+    * @param version negotiated dictionary version, or zero for no dictionary
+    *
+    * @return shared codec using the dictionary
+    *
+    * @see com.tanndev.subwave.common.ProtocolFeature#dictionaryVersion(int)
+    */
+   public static BinaryCodec forDictionary(int version) {
+      return DICTIONARY_INSTANCES[version];
+   }
+
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
+   /**
+    * Does nothing, as instances are shared between connections and hold no resources.
+    */
+   @Override
+   public void close() {
+   }
+
+   @Override
+   public byte[] encode(Message message) throws IOException {
+      if (dictionary != null) {
+         int code = dictionary.codeOf(message.messageBody);
+         if (code >= 0) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+            writeHeader(out, message);
+            writeVarint(out, (code << 1) | 1);
+            return out.toByteArray();
+         }
+      }
+
+      byte[] body = message.messageBody == null ? null : message.messageBody.getBytes(UTF_8);
+      int bodyLength = body == null ? 0 : body.length;
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(16 + bodyLength);
+      writeHeader(out, message);
+      if (body == null) writeVarint(out, 0);
+      else {
+         // With a dictionary, the length is shifted to leave the low bit clear.
+         writeVarint(out, dictionary == null ? body.length + 1 : (body.length + 1) << 1);
+         out.write(body);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Writes the fields that precede the body.
+    *
+    * @param out     stream to write to
+    * @param message message being encoded
+    */
+   private static void writeHeader(ByteArrayOutputStream out, Message message) {
+      out.write(message.messageType.ordinal());
+      writeVarint(out, message.conversationID);
+      writeVarint(out, message.clientID);
+   }
+
+   @Override
+   public Message decode(byte[] payload, int offset, int length) throws IOException {
+      Reader reader = new Reader(payload, offset, length);
+
+      int typeIndex = reader.readByte();
+      if (typeIndex >= MESSAGE_TYPES.length) throw new IOException("Unknown message type: " + typeIndex);
+      int conversationID = reader.readVarint();
+      int clientID = reader.readVarint();
+
+      String body = null;
+      int bodyHeader = reader.readVarint();
+      if (dictionary != null && (bodyHeader & 1) != 0) {
+         body = dictionary.entry(bodyHeader >>> 1);
+         if (body == null) throw new IOException("Unknown dictionary code: " + (bodyHeader >>> 1));
+      } else {
+         int bodyLength = (dictionary == null ? bodyHeader : bodyHeader >>> 1) - 1;
+         if (bodyLength < -1) throw new IOException("Invalid body length.");
+         if (bodyLength >= 0) body = reader.readString(bodyLength);
+      }
+
+      if (reader.remaining() > 0) throw new IOException("Frame contains trailing data.");
+      return new Message(MESSAGE_TYPES[typeIndex], conversationID, clientID, body);
+   }
+
+   /**
+    * Writes an int as an unsigned varint.
+    *
+    * @param out   stream to write to
+    * @param value value to write
+    */
+   private static void writeVarint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+         out.write((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.write(value);
+   }
+
+   /**
+    * Reads fields from a single payload, checking every read against the payload bounds.
+    */
+   private static class Reader {
+      private final byte[] payload;
+      private final int limit;
+      private int position;
+
+      Reader(byte[] payload, int offset, int length) {
+         this.payload = payload;
+         this.position = offset;
+         this.limit = offset + length;
+      }
+
+      int remaining() {
+         return limit - position;
+      }
+
+      int readByte() throws IOException {
+         if (position >= limit) throw new IOException("Frame is truncated.");
+         return payload[position++] & 0xFF;
+      }
+
+      int readVarint() throws IOException {
+         int value = 0;
+         for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+         }
+         throw new IOException("Varint is too long.");
+      }
+
+      String readString(int length) throws IOException {
+         if (length > remaining()) throw new IOException("Frame is truncated.");
+         String value = new String(payload, position, length, UTF_8);
+         position += length;
+         return value;
+      }
+   }
+}
@@ -0,0 +1,240 @@
+package com.tanndev.subwave.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of direct byte buffers used for network frames.
+ * <p/>
+ * Buffers are grouped into power-of-two size classes from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. A
+ * request is served from the smallest class that fits, reusing an idle buffer when one is available. Each class keeps
+ * at most {@link #setMaxIdleBytes(long)} bytes of idle buffers; anything released beyond that, and any request larger
+ * than the largest class, is left to the garbage collector.
+ * <p/>
+ * A buffer that is never released is not lost, as the garbage collector still reclaims it, but it cannot be reused.
+ * With leak detection enabled, the pool remembers where each outstanding buffer was acquired so that buffers held for
+ * too long can be reported, and logs any buffer released twice.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.OutboundFrame
+ */
+public class BufferPool {
+
+   /** Capacity of the smallest size class. */
+   public static final int MIN_BUFFER_SIZE = 256;
+
+   /** Capacity of the largest size class. Large enough for any valid frame. */
+   public static final int MAX_BUFFER_SIZE = 2 * 1024 * 1024;
+
+   /** Number of size classes. */
+   private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+
+   /** Idle buffers, indexed by size class. */
+   private static final List<Queue<ByteBuffer>> idleBuffers = new ArrayList<Queue<ByteBuffer>>(CLASS_COUNT);
+
+   /** Number of idle buffers, indexed by size class. */
+   private static final AtomicInteger[] idleCounts = new AtomicInteger[CLASS_COUNT];
+
+   static {
+      for (int i = 0; i < CLASS_COUNT; i++) {
+         idleBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+         idleCounts[i] = new AtomicInteger();
+      }
+   }
+
+   /** Largest number of idle bytes kept in each size class. */
+   private static volatile long maxIdleBytes = Defaults.DEFAULT_BUFFER_POOL_IDLE_BYTES;
+
+   /** Number of buffers acquired. */
+   private static final AtomicLong acquireCount = new AtomicLong();
+
+   /** Number of buffers acquired that reused an idle buffer. */
+   private static final AtomicLong hitCount = new AtomicLong();
+
+   /** Number of buffers released. */
+   private static final AtomicLong releaseCount = new AtomicLong();
+
+   /** Total capacity of the buffers currently acquired and not yet released. */
+   private static final AtomicLong bytesInUse = new AtomicLong();
+
+   /** Allocation sites of outstanding buffers, or null if leak detection is disabled. */
+   private static volatile Map<ByteBuffer, Allocation> allocations = null;
+
+   /**
+    * Returns a cleared direct buffer with a limit of the requested size. The buffer must be handed back with {@link
+    * #release(ByteBuffer)} once it is no longer used, and must not be touched afterwards.
+    *
+    * @param size number of bytes required
+    *
+    * @return buffer with position zero and limit equal to the requested size
+    */
+   public static ByteBuffer acquire(int size) {
+      acquireCount.incrementAndGet();
+      ByteBuffer buffer = null;
+      int sizeClass = sizeClass(size);
+      if (sizeClass < CLASS_COUNT) {
+         buffer = idleBuffers.get(sizeClass).poll();
+         if (buffer != null) {
+            idleCounts[sizeClass].decrementAndGet();
+            hitCount.incrementAndGet();
+         } else buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+      } else buffer = ByteBuffer.allocateDirect(size);
+      buffer.clear();
+      buffer.limit(size);
+      bytesInUse.addAndGet(buffer.capacity());
+
+      Map<ByteBuffer, Allocation> tracked = allocations;
+      if (tracked != null) tracked.put(buffer, new Allocation());
+      return buffer;
+   }
+
+   /**
+    * Hands a buffer back to the pool. It may be reused immediately, so the caller must not touch it afterwards.
+    *
+    * @param buffer buffer acquired from {@link #acquire(int)}
+    */
+   public static void release(ByteBuffer buffer) {
+      Map<ByteBuffer, Allocation> tracked = allocations;
+      if (tracked != null && tracked.remove(buffer) == null) {
+         ErrorHandler.logError("Buffer released twice or not acquired from the pool.", new IllegalStateException());
+         return;
+      }
+      releaseCount.incrementAndGet();
+      bytesInUse.addAndGet(-buffer.capacity());
+
+      // Only buffers that exactly match a size class are pooled.
+      int capacity = buffer.capacity();
+      int sizeClass = sizeClass(capacity);
+      if (sizeClass >= CLASS_COUNT || capacity != MIN_BUFFER_SIZE << sizeClass) return;
+      if ((long) (idleCounts[sizeClass].get() + 1) * capacity > maxIdleBytes) return;
+      idleCounts[sizeClass].incrementAndGet();
+      idleBuffers.get(sizeClass).add(buffer);
+   }
+
+   /**
+    * Returns the index of the smallest size class that can hold the provided number of bytes.
+    *
+    * @param size number of bytes required
+    *
+    * @return size class index, which is at least {@link #CLASS_COUNT} if no class is large enough
+    */
+   private static int sizeClass(int size) {
+      if (size <= MIN_BUFFER_SIZE) return 0;
+      return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+   }
+
+   /**
+    * Sets the largest number of idle bytes kept in each size class. Buffers released beyond this limit are left to
+    * the garbage collector.
+    *
+    * @param bytes idle bytes kept per size class
+    */
+   public static void setMaxIdleBytes(long bytes) {
+      maxIdleBytes = bytes;
+   }
+
+   /**
+    * Enables or disables leak detection. While enabled, every acquisition records a stack trace, so this is intended
+    * for debugging only. It should be enabled before any connection is opened, as releasing a buffer acquired while it
+    * was disabled is reported as an error.
+    *
+    * @param enabled true to enable leak detection
+    *
+    * @see #reportLeaks(long)
+    */
+   public static void setLeakDetection(boolean enabled) {
+      if (enabled) allocations = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Allocation>());
+      else allocations = null;
+   }
+
+   /**
+    * Logs every outstanding buffer that has been held for longer than the provided age, along with the stack trace
+    * of the code that acquired it. Each buffer is only reported once. Does nothing unless leak detection is enabled.
+    *
+    * @param minAgeMillis shortest time, in milliseconds, a buffer must have been held to be reported
+    *
+    * @return number of buffers reported
+    */
+   public static int reportLeaks(long minAgeMillis) {
+      Map<ByteBuffer, Allocation> tracked = allocations;
+      if (tracked == null) return 0;
+      List<Allocation> leaks = new ArrayList<Allocation>();
+      long now = System.currentTimeMillis();
+      synchronized (tracked) {
+         for (Allocation allocation : tracked.values()) {
+            if (allocation.reported || now - allocation.time < minAgeMillis) continue;
+            allocation.reported = true;
+            leaks.add(allocation);
+         }
+      }
+      for (Allocation leak : leaks) {
+         ErrorHandler.logError("Buffer held for " + (now - leak.time) + " ms without being released.", leak);
+      }
+      return leaks.size();
+   }
+
+   /**
+    * @return number of buffers acquired
+    */
+   public static long getAcquireCount() {
+      return acquireCount.get();
+   }
+
+   /**
+    * @return fraction of acquisitions that reused an idle buffer
+    */
+   public static double getHitRate() {
+      long acquired = acquireCount.get();
+      return acquired > 0 ? (double) hitCount.get() / acquired : 0;
+   }
+
+   /**
+    * @return number of buffers acquired and not yet released
+    */
+   public static long getOutstandingCount() {
+      return acquireCount.get() - releaseCount.get();
+   }
+
+   /**
+    * @return total capacity, in bytes, of the buffers acquired and not yet released
+    */
+   public static long getBytesInUse() {
+      return bytesInUse.get();
+   }
+
+   /**
+    * @return total capacity, in bytes, of the idle buffers held by the pool
+    */
+   public static long getIdleBytes() {
+      long idle = 0;
+      for (int i = 0; i < CLASS_COUNT; i++) idle += (long) idleCounts[i].get() * (MIN_BUFFER_SIZE << i);
+      return idle;
+   }
+
+   /**
+    * Records where and when a buffer was acquired. Only created while leak detection is enabled.
+    */
+   private static class Allocation extends Exception {
+
+      /** Allocations are never serialized; declared because every exception is serializable. */
+      private static final long serialVersionUID = 1L;
+
+      /** Time, from {@link System#currentTimeMillis()}, the buffer was acquired. */
+      final long time = System.currentTimeMillis();
+
+      /** Set once the buffer has been reported as a possible leak. */
+      boolean reported = false;
+
+      Allocation() {
+         super("Buffer acquired here.");
+      }
+   }
+}
@@ -0,0 +1,298 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link com.tanndev.subwave.common.MessageCodec} that compresses the payloads of another codec.
+ * <p/>
+ * Only messages whose body is at least the threshold length are compressed, so short chat lines cost nothing extra.
+ * Each payload starts with a flag byte. A flag of zero is followed by the inner codec's payload unchanged. A flag of
+ * one is followed by the four byte length of the inner payload and the inner payload compressed with raw deflate,
+ * using {@link #DICTIONARY} as a preset dictionary.
+ * <p/>
+ * Every frame is compressed independently, so the output for a message depends only on the inner codec. Wrapping a
+ * stateless codec therefore produces a stateless codec, and any two instances with the same inner codec and threshold
+ * are equal, allowing broadcast frames to be compressed once and shared between connections.
+ * <p/>
+ * Each connection owns its own instance, which also records how much its compression saved and what it cost. A broadcast
+ * frame is compressed only once, by the instance of whichever connection encodes it first, so its cost is recorded by
+ * that connection alone; the others send the same bytes and record nothing. The zlib streams, which hold native
+ * memory, are only created once a message long enough to compress is sent or received, and are ended by {@link
+ * #close()}.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#COMPRESSION
+ */
+public class CompressingCodec implements MessageCodec {
+
+   /** Flag byte marking an uncompressed payload. */
+   private static final int FLAG_RAW = 0;
+
+   /** Flag byte marking a deflated payload. */
+   private static final int FLAG_DEFLATED = 1;
+
+   /** Number of bytes added in front of a deflated payload: the flag and the inflated length. */
+   private static final int DEFLATED_HEADER_SIZE = 5;
+
+   /**
+    * Preset dictionary shared by both ends of every compressed connection. It holds the strings most likely to appear
+    * in a payload: the serialized names of the message classes and fields, and the standard message bodies.
+    * <p/>
+    * Both peers must use exactly the same dictionary. It must never be changed; a different dictionary requires a new
+    * {@link ProtocolFeature}.
+    */
+   static final byte[] DICTIONARY = (
+         "\n\tat java.base/java.lang.Thread.run(Thread.java:" + "\n\tat com.tanndev.subwave." + "Exception in thread " +
+         "Ljava/lang/String;" + "Lcom/tanndev/subwave/common/MessageType;" + "java.lang.Enum" +
+         "com.tanndev.subwave.common.MessageType" + "com.tanndev.subwave.common.Message" + "clientID" +
+         "conversationID" + "messageBody" + "messageType" + "Connection request received." + "Goodbye." +
+         "Not configured to handle that message type." + "A critical error has occurred. Shutting down." +
+         "ClientID does not match ID of source." + "ConversationID does not match a valid conversation." +
+         "Requesting to join conversation." + "Invitation to join conversation." + "Client left conversation." +
+         "Client disconnected from server." + "Client is not reading messages fast enough. Disconnecting.")
+         .getBytes(Charset.forName("UTF-8"));
+
+   /** Codec producing the payloads to compress. */
+   private final MessageCodec inner;
+
+   /** Shortest message body, in characters, that will be compressed. */
+   private final int threshold;
+
+   /** Lock guarding {@link #deflater}. */
+   private final Object deflaterLock = new Object();
+
+   /** Lock guarding {@link #inflater}. */
+   private final Object inflaterLock = new Object();
+
+   /** Compressor used for outgoing payloads, created with the first payload compressed. */
+   private Deflater deflater;
+
+   /** Decompressor used for incoming payloads, created with the first payload inflated. */
+   private Inflater inflater;
+
+   /** Set once the codec has been closed, after which nothing more is compressed or inflated. */
+   private volatile boolean closed = false;
+
+   /** Number of payloads compressed by this instance. */
+   private final AtomicLong framesCompressed = new AtomicLong();
+
+   /** Total size of the payloads compressed, before compression. */
+   private final AtomicLong bytesBeforeCompression = new AtomicLong();
+
+   /** Total size of the payloads compressed, after compression. */
+   private final AtomicLong bytesAfterCompression = new AtomicLong();
+
+   /** Time spent compressing, in nanoseconds. */
+   private final AtomicLong compressionNanos = new AtomicLong();
+
+   /** Number of payloads decompressed by this instance. */
+   private final AtomicLong framesDecompressed = new AtomicLong();
+
+   /** Time spent decompressing, in nanoseconds. */
+   private final AtomicLong decompressionNanos = new AtomicLong();
+
+   /**
+    * Constructor
+    *
+    * @param inner     codec producing the payloads to compress
+    * @param threshold shortest message body, in characters, that will be compressed
+    */
+   public CompressingCodec(MessageCodec inner, int threshold) {
+      this.inner = inner;
+      this.threshold = threshold;
+   }
+
+   @Override
+   public boolean isStateless() {
+      return inner.isStateless();
+   }
+
+   @Override
+   public byte[] encode(Message message) throws IOException {
+      byte[] payload = inner.encode(message);
+      if (message.messageBody == null || message.messageBody.length() < threshold) return withFlag(payload);
+
+      synchronized (deflaterLock) {
+         if (closed) throw new IOException("Codec has been closed.");
+         if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+         long start = System.nanoTime();
+         deflater.reset();
+         deflater.setDictionary(DICTIONARY);
+         deflater.setInput(payload);
+         deflater.finish();
+
+         // Give up as soon as the output would be no smaller than the input.
+         byte[] output = new byte[payload.length];
+         int length = DEFLATED_HEADER_SIZE;
+         while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+         }
+         compressionNanos.addAndGet(System.nanoTime() - start);
+         if (!deflater.finished()) return withFlag(payload);
+
+         output[0] = FLAG_DEFLATED;
+         output[1] = (byte) (payload.length >>> 24);
+         output[2] = (byte) (payload.length >>> 16);
+         output[3] = (byte) (payload.length >>> 8);
+         output[4] = (byte) payload.length;
+         framesCompressed.incrementAndGet();
+         bytesBeforeCompression.addAndGet(payload.length);
+         bytesAfterCompression.addAndGet(length);
+
+         byte[] compressed = new byte[length];
+         System.arraycopy(output, 0, compressed, 0, length);
+         return compressed;
+      }
+   }
+
+   @Override
+   public Message decode(byte[] payload, int offset, int length) throws IOException {
+      if (length < 1) throw new IOException("Frame is empty.");
+      int flag = payload[offset];
+      if (flag == FLAG_RAW) return inner.decode(payload, offset + 1, length - 1);
+      if (flag != FLAG_DEFLATED) throw new IOException("Unknown compression flag: " + flag);
+      if (length < DEFLATED_HEADER_SIZE) throw new IOException("Compressed frame is truncated.");
+
+      int inflatedLength = ((payload[offset + 1] & 0xFF) << 24) | ((payload[offset + 2] & 0xFF) << 16) |
+            ((payload[offset + 3] & 0xFF) << 8) | (payload[offset + 4] & 0xFF);
+      if (inflatedLength < 0 || inflatedLength > Defaults.DEFAULT_MAX_FRAME_SIZE) {
+         throw new IOException("Invalid inflated length: " + inflatedLength);
+      }
+
+      byte[] inflated = new byte[inflatedLength];
+      synchronized (inflaterLock) {
+         if (closed) throw new IOException("Codec has been closed.");
+         if (inflater == null) inflater = new Inflater(true);
+         long start = System.nanoTime();
+         inflater.reset();
+         inflater.setDictionary(DICTIONARY);
+         inflater.setInput(payload, offset + DEFLATED_HEADER_SIZE, length - DEFLATED_HEADER_SIZE);
+         try {
+            int count = 0;
+            while (count < inflatedLength && !inflater.finished()) {
+               int read = inflater.inflate(inflated, count, inflatedLength - count);
+               if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+               count += read;
+            }
+            if (count != inflatedLength) throw new IOException("Compressed frame does not match its length.");
+         } catch (DataFormatException e) {
+            throw new IOException("Compressed frame is malformed.", e);
+         } finally {
+            decompressionNanos.addAndGet(System.nanoTime() - start);
+         }
+         framesDecompressed.incrementAndGet();
+      }
+      return inner.decode(inflated, 0, inflatedLength);
+   }
+
+   /**
+    * Ends the zlib streams, if they were ever created, freeing their native memory, and closes the inner codec.
+    */
+   @Override
+   public void close() {
+      closed = true;
+      synchronized (deflaterLock) {
+         if (deflater != null) {
+            deflater.end();
+            deflater = null;
+         }
+      }
+      synchronized (inflaterLock) {
+         if (inflater != null) {
+            inflater.end();
+            inflater = null;
+         }
+      }
+      inner.close();
+   }
+
+   /**
+    * Prefixes an uncompressed payload with its flag byte.
+    *
+    * @param payload payload from the inner codec
+    *
+    * @return flagged payload
+    */
+   private static byte[] withFlag(byte[] payload) {
+      byte[] flagged = new byte[payload.length + 1];
+      flagged[0] = FLAG_RAW;
+      System.arraycopy(payload, 0, flagged, 1, payload.length);
+      return flagged;
+   }
+
+   /**
+    * Two compressing codecs are equal if they wrap the same codec with the same threshold, as they then produce the
+    * same payloads.
+    */
+   @Override
+   public boolean equals(Object other) {
+      if (!(other instanceof CompressingCodec)) return false;
+      CompressingCodec codec = (CompressingCodec) other;
+      return inner.equals(codec.inner) && threshold == codec.threshold;
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * inner.hashCode() + threshold;
+   }
+
+   /**
+    * @return number of payloads compressed by this instance, including broadcast frames it compressed for others
+    */
+   public long getFramesCompressed() {
+      return framesCompressed.get();
+   }
+
+   /**
+    * @return total size of the payloads compressed by this instance, before compression
+    */
+   public long getBytesBeforeCompression() {
+      return bytesBeforeCompression.get();
+   }
+
+   /**
+    * @return total size of the payloads compressed by this instance, after compression
+    */
+   public long getBytesAfterCompression() {
+      return bytesAfterCompression.get();
+   }
+
+   /**
+    * Returns the compressed size as a fraction of the original size, over every payload compressed by this instance.
+    * Broadcast frames compressed by another connection's codec and reused by this one are not included.
+    *
+    * @return compression ratio, or 1 if nothing has been compressed
+    */
+   public double getCompressionRatio() {
+      long before = bytesBeforeCompression.get();
+      if (before == 0) return 1;
+      return (double) bytesAfterCompression.get() / before;
+   }
+
+   /**
+    * @return time spent compressing, in nanoseconds, including attempts abandoned because they did not save space and
+    * broadcast frames compressed for other connections
+    */
+   public long getCompressionNanos() {
+      return compressionNanos.get();
+   }
+
+   /**
+    * @return number of payloads decompressed by this instance
+    */
+   public long getFramesDecompressed() {
+      return framesDecompressed.get();
+   }
+
+   /**
+    * @return time spent decompressing, in nanoseconds
+    */
+   public long getDecompressionNanos() {
+      return decompressionNanos.get();
+   }
+}
@@ -0,0 +1,334 @@
+package com.tanndev.subwave.common;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe map from primitive int keys to objects, used for the registries looked up by ID on every message.
+ * <p/>
+ * Keys are held in a plain int array and values in a parallel array, using open addressing with linear probing, so a
+ * lookup neither boxes its key nor follows a chain of nodes. Lookups never lock. Changes are made under the map's
+ * monitor, and are visible to lookups as soon as they complete.
+ * <p/>
+ * A slot, once given a key, holds that key for as long as its table is in use. Removing a key leaves a marker in its
+ * slot, which is reused only if the same key is added again. A lookup therefore never sees a value beside the wrong
+ * key. When the table fills with keys and markers, the remaining entries are copied into a new table sized for them,
+ * and the new table replaces the old one. A lookup already in progress finishes on the old table, which is never
+ * changed again.
+ * <p/>
+ * Null values are not permitted. Like the maps in java.util.concurrent, {@link #values()} iterates the entries present
+ * when it reaches them, and never throws a ConcurrentModificationException.
+ *
+ * @param <V> type of the values
+ *
+ * @author James Tanner
+ */
+public class ConcurrentIntMap<V> {
+
+   /** Smallest number of slots in a table. */
+   private static final int MIN_CAPACITY = 16;
+
+   /** Marker left in the slot of a removed key. */
+   private static final Object REMOVED = new Object();
+
+   /** Current table. Replaced, never changed, when the map is resized. */
+   private volatile Table table = new Table(MIN_CAPACITY);
+
+   /** Number of keys in the map. Only changed under the map's monitor. */
+   private volatile int size = 0;
+
+   /**
+    * Returns the value of a key, without locking.
+    *
+    * @param key key to look up
+    *
+    * @return value of the key, or null if the key is not in the map
+    */
+   @SuppressWarnings("unchecked")
+   public V get(int key) {
+      Table current = table;
+      int slot = current.indexOf(key);
+      if (slot < 0) return null;
+      Object value = current.values.get(slot);
+      return value == REMOVED ? null : (V) value;
+   }
+
+   /**
+    * @param key key to look up
+    *
+    * @return true if the key is in the map
+    */
+   public boolean containsKey(int key) {
+      return get(key) != null;
+   }
+
+   /**
+    * Sets the value of a key, replacing any previous value.
+    *
+    * @param key   key to set
+    * @param value new value
+    *
+    * @return previous value of the key, or null if the key was not in the map
+    */
+   public V put(int key, V value) {
+      return put(key, value, false);
+   }
+
+   /**
+    * Sets the value of a key, unless the key is already in the map.
+    *
+    * @param key   key to set
+    * @param value new value
+    *
+    * @return current value of the key if it was already in the map, in which case nothing is changed, otherwise null
+    */
+   public V putIfAbsent(int key, V value) {
+      return put(key, value, true);
+   }
+
+   /**
+    * Removes a key from the map.
+    *
+    * @param key key to remove
+    *
+    * @return previous value of the key, or null if the key was not in the map
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized V remove(int key) {
+      Table current = table;
+      int slot = current.indexOf(key);
+      if (slot < 0) return null;
+      Object previous = current.values.get(slot);
+      if (previous == REMOVED) return null;
+      current.values.set(slot, REMOVED);
+      size--;
+      return (V) previous;
+   }
+
+   /**
+    * @return number of keys in the map
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * @return true if the map holds no keys
+    */
+   public boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * Returns a view of the values in the map. The view reflects later changes, but its iterator only visits the table
+    * in use when it was created.
+    *
+    * @return view of the values
+    */
+   public Collection<V> values() {
+      return new AbstractCollection<V>() {
+         @Override
+         public Iterator<V> iterator() {
+            return new ValueIterator(table);
+         }
+
+         @Override
+         public int size() {
+            return size;
+         }
+      };
+   }
+
+   /**
+    * Sets the value of a key.
+    *
+    * @param key          key to set
+    * @param value        new value
+    * @param onlyIfAbsent true to leave a key already in the map unchanged
+    *
+    * @return previous value of the key, or null if the key was not in the map
+    */
+   @SuppressWarnings("unchecked")
+   private synchronized V put(int key, V value, boolean onlyIfAbsent) {
+      if (value == null) throw new NullPointerException("ConcurrentIntMap does not permit null values.");
+      Table current = table;
+      int slot = current.indexOf(key);
+
+      // The key has a slot already, and keeps it.
+      if (slot >= 0) {
+         Object previous = current.values.get(slot);
+         if (previous == REMOVED) {
+            current.values.set(slot, value);
+            size++;
+            return null;
+         }
+         if (!onlyIfAbsent) current.values.set(slot, value);
+         return (V) previous;
+      }
+
+      // Claim a new slot, moving to a larger table first if this one is full.
+      if (current.usedSlots >= current.maxUsedSlots) {
+         current = resize(current);
+      }
+      current.claim(key, value);
+      size++;
+      return null;
+   }
+
+   /**
+    * Copies the entries of a full table into a new table sized for them, and makes it the current table. Must be
+    * called under the map's monitor.
+    *
+    * @param full table that is full
+    *
+    * @return new table
+    */
+   private Table resize(Table full) {
+      // Leave room for the map to grow by half again before the next resize.
+      int capacity = MIN_CAPACITY;
+      while (capacity < 3 * (size + 1)) capacity <<= 1;
+
+      Table resized = new Table(capacity);
+      for (int slot = 0; slot < full.keys.length; slot++) {
+         Object value = full.values.get(slot);
+         if (value != null && value != REMOVED) resized.claim(full.keys[slot], value);
+      }
+      table = resized;
+      return resized;
+   }
+
+   /**
+    * Mixes a key, so that keys handed out in sequence do not fill neighbouring slots.
+    *
+    * @param key key to mix
+    *
+    * @return mixed hash of the key
+    */
+   private static int hash(int key) {
+      int hash = key * 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+   }
+
+   /**
+    * Open addressing table of keys and values. A slot whose value is null has never been used.
+    */
+   private static class Table {
+
+      /** Key of each slot. Written before the slot's value is published, and never changed afterwards. */
+      final int[] keys;
+
+      /** Value of each slot, null if the slot is unused, or {@link #REMOVED} if its key was removed. */
+      final AtomicReferenceArray<Object> values;
+
+      /** Mask used to find the first slot of a key. The number of slots is a power of two. */
+      final int mask;
+
+      /** Number of slots the table may use before it is replaced, so that probes stay short and always end. */
+      final int maxUsedSlots;
+
+      /** Number of slots that have been given a key. Only used under the map's monitor. */
+      int usedSlots = 0;
+
+      /**
+       * Constructor
+       *
+       * @param capacity number of slots, a power of two
+       */
+      Table(int capacity) {
+         keys = new int[capacity];
+         values = new AtomicReferenceArray<Object>(capacity);
+         mask = capacity - 1;
+         maxUsedSlots = capacity / 2;
+      }
+
+      /**
+       * Finds the slot of a key. The value is read before the key, so a key is only compared once its slot has been
+       * published.
+       *
+       * @param key key to find
+       *
+       * @return slot of the key, or -1 if the key has no slot
+       */
+      int indexOf(int key) {
+         for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values.get(slot) == null) return -1;
+            if (keys[slot] == key) return slot;
+         }
+      }
+
+      /**
+       * Gives a key without a slot the first unused slot along its probe. Must be called under the map's monitor.
+       *
+       * @param key   key to add
+       * @param value value of the key
+       */
+      void claim(int key, Object value) {
+         int slot = hash(key) & mask;
+         while (values.get(slot) != null) slot = (slot + 1) & mask;
+         keys[slot] = key;
+         values.set(slot, value);
+         usedSlots++;
+      }
+   }
+
+   /**
+    * Iterates the values of a single table, skipping unused slots and removed keys.
+    */
+   private class ValueIterator implements Iterator<V> {
+
+      /** Table being iterated. */
+      private final Table iterated;
+
+      /** Slot of the next value to return, or the table's length once there are no more. */
+      private int nextSlot = -1;
+
+      /** Next value to return. */
+      private Object nextValue;
+
+      /**
+       * Constructor
+       *
+       * @param iterated table to iterate
+       */
+      ValueIterator(Table iterated) {
+         this.iterated = iterated;
+         advance();
+      }
+
+      @Override
+      public boolean hasNext() {
+         return nextValue != null;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public V next() {
+         if (nextValue == null) throw new NoSuchElementException();
+         Object value = nextValue;
+         advance();
+         return (V) value;
+      }
+
+      @Override
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+
+      /**
+       * Moves to the next slot holding a value.
+       */
+      private void advance() {
+         nextValue = null;
+         while (++nextSlot < iterated.keys.length) {
+            Object value = iterated.values.get(nextSlot);
+            if (value != null && value != REMOVED) {
+               nextValue = value;
+               return;
+            }
+         }
+      }
+   }
+}
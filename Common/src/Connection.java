@@ -2,26 +2,153 @@ package com.tanndev.subwave.common;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a connection to the server or client and provides the mechanism to exchange messages.
+ * <p/>
+ * Messages are exchanged as length-prefixed frames. Each frame is a four byte payload length followed by the payload
+ * produced by the connection's {@link com.tanndev.subwave.common.MessageCodec}. Framing allows the same wire protocol
+ * to be spoken by blocking sockets and non-blocking channels alike.
+ * <p/>
+ * Framing is not compatible with releases up to 0.0.5, which exchanged a raw Java serialization stream. Such peers are
+ * recognised by the stream header they send first, and are disconnected with an error rather than an invalid length.
+ * <p/>
+ * Sending never blocks on the network. Each connection owns a bounded queue of encoded frames that is drained by a
+ * writer task, so a peer that stops reading can only fill its own queue. Frames are encoded into buffers from the
+ * {@link com.tanndev.subwave.common.BufferPool}, which are returned once the frame has been written or discarded.
+ * <p/>
+ * Connections that negotiate {@link ProtocolFeature#MULTIPLEX} may also carry any number of {@link
+ * com.tanndev.subwave.common.SessionConnection}s. Session frames set the high bit of the length and are followed by the
+ * session's stream ID; the connection's own frames are unchanged.
+ * <p/>
+ * Subclasses may provide other transports by overriding {@link #scheduleWrite()}, {@link #receive()}, {@link
+ * #messageAvailable()}, {@link #close()}, and {@link #isClosed()}.
  *
  * @author James Tanner
  * @see com.tanndev.subwave.common.Message
  */
 public class Connection {
 
+   /** Number of bytes in the header of each frame. */
+   public static final int FRAME_HEADER_SIZE = 4;
+
+   /** Number of bytes in the header of each session frame: the flagged length followed by the stream ID. */
+   public static final int SESSION_FRAME_HEADER_SIZE = 8;
+
+   /** First four bytes sent by peers of releases up to 0.0.5: the header of a Java serialization stream. */
+   public static final int UNFRAMED_STREAM_HEADER = 0xACED0005;
+
+   /** Flag set in the length of frames belonging to a session. */
+   private static final int SESSION_FRAME_FLAG = 0x80000000;
+
+   /** Size of the array reused to receive frames. Larger frames are received into an array of their own. */
+   private static final int RECEIVE_BUFFER_SIZE = 8 * 1024;
+
+   /** Executor used to run the writer task of socket connections. */
+   private static Executor writerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+         Thread thread = new Thread(task, "ConnectionWriter");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   /** Shortest message body, in characters, compressed on connections that negotiate compression. */
+   private static int compressionThreshold = Defaults.DEFAULT_COMPRESSION_THRESHOLD;
+
+   /** Handler of session events on connections that do not set their own. */
+   private static volatile SessionHandler defaultSessionHandler;
+
    /** Unique ID of the connected client. */
    private int clientID;
 
    /** Network socket used to transmit and receive data */
    private Socket socket;
 
-   /** Output stream to send message objects. */
-   private ObjectOutputStream objOutStream;
+   /** Output stream to send message frames. */
+   private DataOutputStream outStream;
+
+   /** Channel view of {@link #outStream}, used to write queued frames. */
+   private WritableByteChannel outChannel;
+
+   /** Input stream to receive message frames. */
+   private DataInputStream inStream;
+
+   /** Array reused to receive frames of up to {@link #RECEIVE_BUFFER_SIZE} bytes. Created with the first frame. */
+   private byte[] receiveBuffer;
+
+   /**
+    * Lock held while encoding and queuing a frame, so frames are queued in the order the codec produced them. An
+    * explicit lock is used rather than a monitor so that virtual threads never pin their carrier thread.
+    */
+   private final ReentrantLock sendLock = new ReentrantLock();
+
+   /** Encoded frames waiting to be written. Each frame removed from the queue must be released. */
+   protected final BlockingQueue<OutboundFrame> outboundQueue;
+
+   /** Set while a write has been scheduled and has not yet drained {@link #outboundQueue}. */
+   private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+   /** Set once the connection should close after writing any queued frames. */
+   private volatile boolean closing = false;
+
+   /**
+    * Set once the outbound queue has been discarded, after which no frame is queued. Only used under {@link
+    * #sendLock}, so a frame is never queued after the queue has been drained for the last time.
+    */
+   private boolean queueClosed = false;
+
+   /** Time, from {@link System#nanoTime()}, that the writer last made progress or the queue became non-empty. */
+   private volatile long lastWriteProgress = System.nanoTime();
+
+   /** Time, from {@link System#nanoTime()}, that a frame was last received or the connection was opened. */
+   private volatile long lastReceiveTime = System.nanoTime();
+
+   /** Task that writes queued frames to the socket. */
+   private final Runnable writerTask = new Runnable() {
+      @Override
+      public void run() {
+         writeQueuedFrames();
+      }
+   };
+
+   /** Serialization codec every connection starts with, used until another codec is negotiated. */
+   private final SerializationCodec serializationCodec = new SerializationCodec();
+
+   /** Codec used to encode and decode frame payloads. */
+   private MessageCodec codec = serializationCodec;
+
+   /** Mask of the {@link ProtocolFeature}s negotiated for this connection. */
+   private int features = 0;
+
+   /** Number of messages sent on this connection. */
+   private final AtomicLong messagesSent = new AtomicLong();
 
-   /** Input stream to receive message objects. */
-   private ObjectInputStream objInStream;
+   /** Number of bytes sent on this connection, including frame headers. */
+   private final AtomicLong bytesSent = new AtomicLong();
+
+   /** Number of messages received on this connection. */
+   private final AtomicLong messagesReceived = new AtomicLong();
+
+   /** Number of bytes received on this connection, including frame headers. */
+   private final AtomicLong bytesReceived = new AtomicLong();
+
+   /** Number of messages refused because the outbound queue was full. */
+   private final AtomicLong messagesRejected = new AtomicLong();
+
+   /** Sessions multiplexed over this connection, or null if none has been opened. */
+   private volatile Multiplexer multiplexer;
+
+   /** Handler of session events on this connection, or null to use the default handler. */
+   private volatile SessionHandler sessionHandler;
 
    /** Setting to print RX/TX messages. */
    private boolean printMessages = Defaults.DEFAULT_CONNECTION_PRINT_MESSAGES;
@@ -34,19 +161,44 @@ public class Connection {
     * @param socket network socket to create the connection on.
     */
    public Connection(Socket socket) {
+      this(socket, Defaults.DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+   }
+
+   /**
+    * Constructor
+    * <p/>
+    * Creates a new connection on the provided socket, queuing up to the provided number of frames before messages are
+    * refused. Used for connections that carry the traffic of many clients.
+    *
+    * @param socket        network socket to create the connection on.
+    * @param queueCapacity number of frames that may wait to be written
+    */
+   public Connection(Socket socket, int queueCapacity) {
       this.socket = socket;
+      this.outboundQueue = new ArrayBlockingQueue<OutboundFrame>(queueCapacity);
       try {
          // Set up the output stream.
-         objOutStream = new ObjectOutputStream(socket.getOutputStream());
+         outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         outChannel = Channels.newChannel(outStream);
 
          // Set up the input stream.
-         objInStream = new ObjectInputStream(socket.getInputStream());
+         inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
       } catch (IOException e) {
          ErrorHandler.logError("IO exception thrown while setting up connection.", e);
       }
    }
 
+   /**
+    * Constructor
+    * <p/>
+    * For use by subclasses that provide their own transport. Subclasses must override every method that would
+    * otherwise use the socket.
+    */
+   protected Connection() {
+      this.outboundQueue = new ArrayBlockingQueue<OutboundFrame>(Defaults.DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+   }
+
    /**
     * Set whether or not RX/TX messages should be printed for this connection.
     * <p/>
@@ -65,30 +217,519 @@ public class Connection {
    }
 
    /**
-    * Sends the provided message to the remote server/client using this connection.
+    * @return true if RX/TX messages should be printed for this connection
+    *
+    * @see #setPrintMessages(boolean)
+    */
+   public boolean isPrintMessages() {
+      return printMessages;
+   }
+
+   /**
+    * @return codec used to encode and decode frame payloads on this connection
+    */
+   protected MessageCodec getCodec() {
+      return codec;
+   }
+
+   /**
+    * Switches the connection to the provided set of negotiated protocol features.
     * <p/>
-    * If the connection is closed, the message will not be sent and no error will be logged. Errors are only logged if
-    * an exception is thrown during transmission.
+    * This must be called at the same point in the message stream on both sides of the connection: by the client
+    * immediately after sending its handshake reply, and by the server immediately after receiving it. No other
+    * messages may be sent on the connection in between.
+    *
+    * @param features mask of negotiated {@link ProtocolFeature}s
+    *
+    * @see ProtocolFeature
+    */
+   public void applyFeatures(int features) {
+      this.features = features;
+      if (ProtocolFeature.BINARY_CODEC.isSet(features)) {
+         codec = BinaryCodec.forDictionary(ProtocolFeature.dictionaryVersion(features));
+      }
+      if (ProtocolFeature.COMPRESSION.isSet(features)) codec = new CompressingCodec(codec, compressionThreshold);
+   }
+
+   /**
+    * @return mask of the {@link ProtocolFeature}s negotiated for this connection
+    */
+   public int getFeatures() {
+      return features;
+   }
+
+   /**
+    * @return true if this connection may carry sessions
+    *
+    * @see ProtocolFeature#MULTIPLEX
+    */
+   public boolean isMultiplexed() {
+      return ProtocolFeature.MULTIPLEX.isSet(features);
+   }
+
+   /**
+    * @return stream ID tagging this connection's frames, which is zero unless this is a session
+    */
+   public int getStreamID() {
+      return 0;
+   }
+
+   /**
+    * Opens a new session over this connection. The session shares this connection's socket but is otherwise
+    * independent: the remote peer treats it as a new client, which must sign on by sending a NETWORK_CONNECT message
+    * on the session.
+    *
+    * @return new session, or null if this connection did not negotiate {@link ProtocolFeature#MULTIPLEX}
+    */
+   public SessionConnection openSession() {
+      if (!isMultiplexed()) return null;
+      return getMultiplexer().open();
+   }
+
+   /**
+    * @return number of sessions currently open over this connection
+    */
+   public int getSessionCount() {
+      Multiplexer sessions = multiplexer;
+      return sessions == null ? 0 : sessions.size();
+   }
+
+   /**
+    * Returns the multiplexer of this connection, creating it if necessary.
+    *
+    * @return multiplexer tracking this connection's sessions
+    */
+   private Multiplexer getMultiplexer() {
+      Multiplexer sessions = multiplexer;
+      if (sessions != null) return sessions;
+      sendLock.lock();
+      try {
+         if (multiplexer == null) multiplexer = new Multiplexer(this);
+         return multiplexer;
+      } finally {
+         sendLock.unlock();
+      }
+   }
+
+   /**
+    * Sets the handler of session events on this connection. Must be set before the first session is opened.
+    *
+    * @param handler handler of session events, or null to use the default handler
+    */
+   public void setSessionHandler(SessionHandler handler) {
+      this.sessionHandler = handler;
+   }
+
+   /**
+    * @return handler of session events on this connection
+    */
+   SessionHandler getSessionHandler() {
+      SessionHandler handler = sessionHandler;
+      return handler != null ? handler : defaultSessionHandler;
+   }
+
+   /**
+    * Sets the handler of session events on connections that do not set their own. Sessions opened by the remote peer
+    * on such a connection are refused if no default handler has been set.
+    *
+    * @param handler default handler of session events
+    */
+   public static void setDefaultSessionHandler(SessionHandler handler) {
+      defaultSessionHandler = handler;
+   }
+
+   /**
+    * Returns the compressing codec of this connection, which reports the compression ratio achieved and the time spent
+    * compressing and decompressing.
+    *
+    * @return compressing codec, or null if compression was not negotiated
+    */
+   public CompressingCodec getCompression() {
+      if (codec instanceof CompressingCodec) return (CompressingCodec) codec;
+      return null;
+   }
+
+   /**
+    * Returns the serialization codec of this connection, which reports how much memory its object streams retain.
+    *
+    * @return serialization codec, or null if the connection negotiated a different codec
+    */
+   public SerializationCodec getSerialization() {
+      if (ProtocolFeature.BINARY_CODEC.isSet(features)) return null;
+      return serializationCodec;
+   }
+
+   /**
+    * Records a frame sent on this connection.
+    *
+    * @param frameSize size of the frame in bytes, including the header
+    */
+   protected void recordSent(int frameSize) {
+      messagesSent.incrementAndGet();
+      bytesSent.addAndGet(frameSize);
+   }
+
+   /**
+    * Records a frame received on this connection.
+    *
+    * @param frameSize size of the frame in bytes, including the header
+    */
+   protected void recordReceived(int frameSize) {
+      messagesReceived.incrementAndGet();
+      bytesReceived.addAndGet(frameSize);
+      lastReceiveTime = System.nanoTime();
+   }
+
+   /**
+    * @return number of messages sent on this connection
+    */
+   public long getMessagesSent() {
+      return messagesSent.get();
+   }
+
+   /**
+    * @return number of bytes sent on this connection, including frame headers
+    */
+   public long getBytesSent() {
+      return bytesSent.get();
+   }
+
+   /**
+    * @return number of messages received on this connection
+    */
+   public long getMessagesReceived() {
+      return messagesReceived.get();
+   }
+
+   /**
+    * @return number of bytes received on this connection, including frame headers
+    */
+   public long getBytesReceived() {
+      return bytesReceived.get();
+   }
+
+   /**
+    * @return number of messages refused because the outbound queue was full
+    */
+   public long getMessagesRejected() {
+      return messagesRejected.get();
+   }
+
+   /**
+    * @return number of frames currently waiting to be written
+    */
+   public int getQueueDepth() {
+      return outboundQueue.size();
+   }
+
+   /**
+    * Returns how long the writer has gone without writing a frame while frames are waiting. A peer that has stopped
+    * reading will eventually fill its TCP window, after which this value grows without bound.
+    *
+    * @return milliseconds since the writer last made progress, or zero if nothing is queued
+    */
+   public long getWriteStallMillis() {
+      if (outboundQueue.isEmpty()) return 0;
+      return (System.nanoTime() - lastWriteProgress) / 1000000;
+   }
+
+   /**
+    * Returns how long the connection has gone without receiving a frame. A peer that negotiated {@link
+    * ProtocolFeature#HEARTBEAT} answers every heartbeat, so a large value means the peer is gone even though the
+    * socket still appears open.
+    *
+    * @return milliseconds since a frame was last received, or since the connection was opened if none has been
+    */
+   public long getIdleMillis() {
+      return (System.nanoTime() - lastReceiveTime) / 1000000;
+   }
+
+   /**
+    * Records that the writer has finished writing a frame.
+    */
+   protected void recordWriteProgress() {
+      lastWriteProgress = System.nanoTime();
+   }
+
+   /**
+    * Sets the executor used to run the writer task of socket connections. By default, a pool of platform threads is
+    * used.
+    *
+    * @param executor executor to run connection writers
+    *
+    * @see com.tanndev.subwave.common.ThreadMode#createExecutor()
+    */
+   public static void setWriterExecutor(Executor executor) {
+      writerExecutor = executor;
+   }
+
+   /**
+    * Sets the shortest message body, in characters, that is compressed on connections that negotiate compression.
+    * Shorter messages are sent uncompressed, as the time spent compressing them would save little. Only affects
+    * connections that apply their features after the change.
+    *
+    * @param threshold shortest message body to compress
+    *
+    * @see ProtocolFeature#COMPRESSION
+    */
+   public static void setCompressionThreshold(int threshold) {
+      compressionThreshold = threshold;
+   }
+
+   /**
+    * Queues the provided message to be sent to the remote server/client using this connection.
+    * <p/>
+    * This method never blocks on the network. The message is encoded immediately and written later by the
+    * connection's writer. If the connection is closed or closing, or if the outbound queue is full, the message is not
+    * queued and no error will be logged. Errors are only logged if the message cannot be encoded.
     * <p/>
     * If {@link #printMessages} is true, the message will also be printed to standard out using the prefix "TX - "
     *
     * @param message message to send to the remote server/client
     *
-    * @return true if message is sent successfully, otherwise false.
+    * @return true if message is queued successfully, otherwise false.
     */
    public boolean send(Message message) {
-      if (isClosed()) return false;
+      return send(message, null);
+   }
+
+   /**
+    * Queues a broadcast message to be sent to the remote server/client using this connection.
+    * <p/>
+    * Behaves the same as {@link #send(Message)}, except that if this connection uses a stateless codec the frame
+    * already encoded for the broadcast is reused rather than encoding the message again.
+    *
+    * @param sharedFrame broadcast message to send to the remote server/client
+    *
+    * @return true if message is queued successfully, otherwise false.
+    */
+   public boolean send(SharedFrame sharedFrame) {
+      return send(sharedFrame.message, sharedFrame);
+   }
+
+   /**
+    * Encodes and queues a message.
+    *
+    * @param message     message to send
+    * @param sharedFrame shared encoding of the message, or null if the message is only sent to this connection
+    *
+    * @return true if message is queued successfully, otherwise false.
+    */
+   private boolean send(Message message, SharedFrame sharedFrame) {
+      if (isClosed() || closing) return false;
+      sendLock.lock();
       try {
-         objOutStream.writeObject(message);
-         if (printMessages) System.out.println("TX - " + message.toString());
-         return true;
+         // The connection may have closed since the check above, and nothing would then write or release the frame.
+         if (queueClosed) return false;
+
+         // Check for space first; a stateful codec must never encode a frame that is then discarded.
+         if (outboundQueue.remainingCapacity() == 0) {
+            messagesRejected.incrementAndGet();
+            return false;
+         }
+         OutboundFrame frame;
+         if (sharedFrame != null && codec.isStateless() && getStreamID() == 0) frame = sharedFrame.getFrame(codec);
+         else frame = new OutboundFrame(encodeFrame(codec, message, getStreamID()), null);
+
+         // Stall time is measured from the moment frames start waiting.
+         if (outboundQueue.isEmpty()) recordWriteProgress();
+         outboundQueue.add(frame);
+         recordSent(frame.data.remaining());
 
       } catch (IOException e) {
-         ErrorHandler.logError("IO exception thrown while sending message.", e);
+         ErrorHandler.logError("IO exception thrown while encoding message.", e);
+         return false;
+      } finally {
+         sendLock.unlock();
       }
 
-      //Message failed to send.
-      return false;
+      if (printMessages) System.out.println("TX - " + message.toString());
+      requestWrite();
+      return true;
+   }
+
+   /**
+    * Queues an empty frame telling the remote peer that a session has closed. Nothing is sent if the queue is full; the
+    * session is then closed along with this connection instead.
+    *
+    * @param streamID stream ID of the session
+    */
+   void sendSessionClose(int streamID) {
+      if (isClosed() || closing) return;
+      ByteBuffer buffer = BufferPool.acquire(SESSION_FRAME_HEADER_SIZE);
+      buffer.putInt(SESSION_FRAME_FLAG);
+      buffer.putInt(streamID);
+      buffer.flip();
+      OutboundFrame frame = new OutboundFrame(buffer, null);
+      sendLock.lock();
+      try {
+         if (queueClosed) {
+            frame.release();
+            return;
+         }
+         if (outboundQueue.isEmpty()) recordWriteProgress();
+         if (!outboundQueue.offer(frame)) {
+            frame.release();
+            return;
+         }
+      } finally {
+         sendLock.unlock();
+      }
+      requestWrite();
+   }
+
+   /**
+    * Arranges for queued frames to be written, unless a write is already scheduled.
+    */
+   void requestWrite() {
+      if (writeScheduled.compareAndSet(false, true)) scheduleWrite();
+   }
+
+   /**
+    * Encodes a message into a complete frame, including the header.
+    *
+    * @param codec   codec to encode the payload with
+    * @param message message to encode
+    *
+    * @return frame ready to be written, in a buffer that must be returned to the {@link BufferPool}
+    *
+    * @throws IOException if the message cannot be encoded
+    */
+   static ByteBuffer encodeFrame(MessageCodec codec, Message message) throws IOException {
+      return encodeFrame(codec, message, 0);
+   }
+
+   /**
+    * Encodes a message into a complete frame for a stream, including the header. Frames for stream zero, the
+    * connection's own, have no stream ID.
+    *
+    * @param codec    codec to encode the payload with
+    * @param message  message to encode
+    * @param streamID stream ID of the session sending the frame, or zero
+    *
+    * @return frame ready to be written, in a buffer that must be returned to the {@link BufferPool}
+    *
+    * @throws IOException if the message cannot be encoded
+    */
+   static ByteBuffer encodeFrame(MessageCodec codec, Message message, int streamID) throws IOException {
+      byte[] payload = codec.encode(message);
+      if (streamID == 0) {
+         ByteBuffer frame = BufferPool.acquire(FRAME_HEADER_SIZE + payload.length);
+         frame.putInt(payload.length);
+         frame.put(payload);
+         frame.flip();
+         return frame;
+      }
+      ByteBuffer frame = BufferPool.acquire(SESSION_FRAME_HEADER_SIZE + payload.length);
+      frame.putInt(payload.length | SESSION_FRAME_FLAG);
+      frame.putInt(streamID);
+      frame.put(payload);
+      frame.flip();
+      return frame;
+   }
+
+   /**
+    * Checks whether a frame header belongs to a session frame.
+    *
+    * @param header first four bytes of the frame
+    *
+    * @return true if the frame belongs to a session and a stream ID follows the length
+    */
+   public static boolean isSessionFrame(int header) {
+      return (header & SESSION_FRAME_FLAG) != 0;
+   }
+
+   /**
+    * Logs why a frame header was rejected.
+    *
+    * @param header first four bytes of the frame
+    * @param length payload length taken from the header
+    */
+   public static void logInvalidHeader(int header, int length) {
+      if (header == UNFRAMED_STREAM_HEADER) {
+         ErrorHandler.logError("Peer speaks the unframed protocol of release 0.0.5 or earlier, which is not supported.");
+      } else {
+         ErrorHandler.logError("Invalid frame length received: " + length);
+      }
+   }
+
+   /**
+    * Extracts the payload length from a frame header.
+    *
+    * @param header first four bytes of the frame
+    *
+    * @return payload length, in bytes
+    */
+   public static int frameLength(int header) {
+      return header & ~SESSION_FRAME_FLAG;
+   }
+
+   /**
+    * Arranges for the queued frames to be written. Called at most once until the writer reports completion with {@link
+    * #completeWrite()}.
+    * <p/>
+    * Socket connections run their writer task on the shared writer executor. Subclasses override this to write through
+    * their own transport.
+    */
+   protected void scheduleWrite() {
+      writerExecutor.execute(writerTask);
+   }
+
+   /**
+    * Marks the current write as complete once the writer has drained the queue.
+    *
+    * @return true if frames were queued while the flag was being cleared, in which case the caller remains responsible
+    * for writing them
+    */
+   protected boolean completeWrite() {
+      writeScheduled.set(false);
+      return hasQueuedFrames() && writeScheduled.compareAndSet(false, true);
+   }
+
+   /**
+    * @return true if this connection or any of its sessions has frames waiting
+    */
+   private boolean hasQueuedFrames() {
+      Multiplexer sessions = multiplexer;
+      return !outboundQueue.isEmpty() || (sessions != null && sessions.hasReadySessions());
+   }
+
+   /**
+    * Takes the next frame to write, whether this connection's own or one of its sessions'. Only called by the writer.
+    *
+    * @return next frame, which must be released once written, or null if nothing is waiting
+    */
+   protected OutboundFrame pollFrame() {
+      Multiplexer sessions = multiplexer;
+      if (sessions == null) return outboundQueue.poll();
+      return sessions.poll(outboundQueue);
+   }
+
+   /**
+    * Writes every queued frame to the socket. The stream is flushed whenever the queue drains, so bursts of messages
+    * are written together. If the connection is closing, it is closed once the queue is empty.
+    */
+   private void writeQueuedFrames() {
+      try {
+         do {
+            OutboundFrame frame;
+            while ((frame = pollFrame()) != null) {
+               try {
+                  outChannel.write(frame.data);
+               } finally {
+                  frame.release();
+               }
+               recordWriteProgress();
+            }
+            outStream.flush();
+         } while (completeWrite());
+
+      } catch (IOException e) {
+         // Silently handle exception and close the socket.
+         close();
+         return;
+      }
+      if (closing) close();
    }
 
    /**
@@ -98,30 +739,84 @@ public class Connection {
     * <p/>
     * If the connection is closed, this method will immediately return null and no error will be logged. Likewise, the
     * connection will be closed and no error will be logged if an IO exception is thrown while waiting for or receiving
-    * a message. Errors are only logged if the object received on the input stream is not of the appropriate class
-    * type.
+    * a message. Errors are only logged if a frame is too large or cannot be decoded, in which case the connection is
+    * also closed.
     * <p/>
     * If {@link #printMessages} is true, the received message will be printed to standard out using the prefix "RX - "
+    * <p/>
+    * Frames received for sessions while waiting are passed to the {@link SessionHandler} on the calling thread.
     *
     * @return message received. Or, if the socket is closed
     */
    public Message receive() {
-      if (isClosed()) return null;
+      byte[] payload;
+      int length;
+      while (true) {
+         if (isClosed()) return null;
+         int streamID = 0;
+         try {
+            int header = inStream.readInt();
+            length = header;
+            if (isSessionFrame(header) && isMultiplexed()) {
+               length = frameLength(header);
+               streamID = inStream.readInt();
+            }
+            if (length < 0 || length > Defaults.DEFAULT_MAX_FRAME_SIZE) {
+               logInvalidHeader(header, length);
+               close();
+               return null;
+            }
+            if (length > RECEIVE_BUFFER_SIZE) payload = new byte[length];
+            else if (receiveBuffer != null) payload = receiveBuffer;
+            else payload = receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+            inStream.readFully(payload, 0, length);
+
+         } catch (IOException e) {
+            // Silently handle exception and close the socket.
+            close();
+            return null;
+         }
+
+         // Session frames are handed to the session handler while waiting for this connection's next message.
+         if (streamID == 0) break;
+         receiveSessionFrame(streamID, payload, 0, length);
+      }
+
       try {
-         Message message = (Message) objInStream.readObject();
+         Message message = codec.decode(payload, 0, length);
+         recordReceived(FRAME_HEADER_SIZE + length);
          if (printMessages) System.out.println("RX - " + message.toString());
          return message;
 
       } catch (IOException e) {
-         // Silently handle exception and close the socket.
+         // The codec state can no longer be trusted, so the connection cannot continue. A codec closed while the frame
+         // was being decoded has nothing to report.
+         if (!isClosed()) ErrorHandler.logError("Could not decode received frame.", e);
          close();
-         return null;
-      } catch (ClassNotFoundException e) {
-         ErrorHandler.logError("Class exception thrown while receiving message.", e);
       }
       return null;
    }
 
+   /**
+    * Routes a frame received for one of this connection's sessions. Called by the thread reading from the connection.
+    *
+    * @param streamID stream ID from the frame header
+    * @param payload  array holding the payload, which may be reused once this method returns
+    * @param offset   index of the first payload byte
+    * @param length   number of payload bytes
+    */
+   protected void receiveSessionFrame(int streamID, byte[] payload, int offset, int length) {
+      getMultiplexer().receive(streamID, payload, offset, length);
+   }
+
+   /**
+    * Closes every session carried by this connection. Subclasses must call this once the connection has closed.
+    */
+   protected void closeSessions() {
+      Multiplexer sessions = multiplexer;
+      if (sessions != null) sessions.closeAll();
+   }
+
    /**
     * Checks if a message is currently available on the connection.
     * <p/>
@@ -136,7 +831,7 @@ public class Connection {
    public boolean messageAvailable() {
       if (isClosed()) return false;
       try {
-         return objInStream.available() > 0;
+         return inStream.available() > 0;
       } catch (IOException e) {
          ErrorHandler.logError("IO exception thrown while checking raw stream.", e);
       }
@@ -144,19 +839,55 @@ public class Connection {
    }
 
    /**
-    * Closes the connection permanently.
+    * Closes the connection once every queued frame has been written. No further messages are accepted.
+    * <p/>
+    * Use this when a final message, such as a disconnect notice, must reach the remote server/client.
+    */
+   public void closeGracefully() {
+      closing = true;
+      requestWrite();
+   }
+
+   /**
+    * @return true if {@link #closeGracefully()} has been called
+    */
+   public boolean isClosing() {
+      return closing;
+   }
+
+   /**
+    * Closes the connection permanently. Any frames still queued are discarded.
     * <p/>
     * If the connection is already closed, this method returns without logging an error. An error will only be logged if
     * an exception is thrown while closing the socket.
     */
    public void close() {
       if (socket.isClosed()) return;
+      discardQueuedFrames();
       try {
          socket.close();
       } catch (IOException e) {
          System.err.println("IO exception thrown while closing socket.");
          e.printStackTrace();
       }
+      closeSessions();
+      codec.close();
+   }
+
+   /**
+    * Stops the outbound queue accepting frames, then removes and releases every frame still waiting in it. A frame
+    * being queued by another thread is either queued first, and released here, or refused. Must be called by every
+    * implementation of {@link #close()}.
+    */
+   protected void discardQueuedFrames() {
+      sendLock.lock();
+      try {
+         queueClosed = true;
+      } finally {
+         sendLock.unlock();
+      }
+      OutboundFrame frame;
+      while ((frame = outboundQueue.poll()) != null) frame.release();
    }
 
    /**
@@ -8,10 +8,50 @@ package com.tanndev.subwave.common;
 public class Defaults {
    public static final int DEFAULT_SERVER_PORT = 4444;
    public static final int DEFAULT_UI_LAUNCH_WAIT = 5000;
+   public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+   public static final int DEFAULT_EVENT_LOOP_THREADS = 4;
+   public static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 1024;
+   public static final int DEFAULT_QUEUE_HIGH_WATERMARK = 768;
+   public static final int DEFAULT_QUEUE_LOW_WATERMARK = 256;
+   public static final long DEFAULT_MAX_WRITE_STALL = 30000;
+   public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+   public static final long DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+   public static final int DEFAULT_SERIALIZATION_RESET_INTERVAL = 1024;
+   public static final int DEFAULT_SERIALIZATION_RESET_BYTES = 256 * 1024;
+   public static final long DEFAULT_BUFFER_POOL_IDLE_BYTES = 4 * 1024 * 1024;
+   public static final long DEFAULT_HEARTBEAT_INTERVAL = 30000;
+   public static final long DEFAULT_IDLE_TIMEOUT = 90000;
+   public static final long DEFAULT_TIMER_TICK = 100;
+   public static final int DEFAULT_TIMER_WHEEL_SIZE = 512;
+   public static final int DEFAULT_MAX_SESSIONS = 1024;
+   public static final int DEFAULT_MULTICAST_PORT = 4445;
+   public static final int DEFAULT_MULTICAST_TTL = 1;
+   public static final int DEFAULT_MULTICAST_RETAINED = 4096;
+   public static final long DEFAULT_MULTICAST_BEACON_INTERVAL = 1000;
+   public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 20480;
+   public static final int DEFAULT_TLS_SESSION_TIMEOUT = 86400;
+   public static final int DEFAULT_SHARDS = 4;
+   public static final int DEFAULT_SHARD_MAILBOX_CAPACITY = 1024;
+   public static final int DEFAULT_CLUSTER_LINK_QUEUE_CAPACITY = 16384;
+   public static final long DEFAULT_CLUSTER_HEARTBEAT_INTERVAL = 1000;
+   public static final long DEFAULT_CLUSTER_LINK_TIMEOUT = 3000;
+   public static final int DEFAULT_CLUSTER_CONNECT_TIMEOUT = 1000;
+   public static final long DEFAULT_PRESENCE_BATCH_WINDOW = 100;
+   public static final int DEFAULT_PRESENCE_CHUNK_SIZE = 16 * 1024;
+   public static final int DEFAULT_LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+   public static final long DEFAULT_LOG_SYNC_INTERVAL = 100;
+   public static final int DEFAULT_LOG_INDEX_INTERVAL = 64;
+   public static final int DEFAULT_HISTORY_PAGE_SIZE = 50;
+   public static final int DEFAULT_HISTORY_PAGE_LIMIT = 500;
+   public static final int DEFAULT_RECENT_MESSAGES = 128;
+   public static final long DEFAULT_RECENT_MESSAGE_BUDGET = 32 * 1024 * 1024;
 
    public static final String DEFAULT_SERVER_ADDRESS = "localhost";
+   public static final String DEFAULT_MULTICAST_GROUP = "239.255.44.44";
+   public static final String DEFAULT_TLS_PASSWORD = "changeit";
    public static final String DEFAULT_NICKNAME = "Someone";
    public static final String DEFAULT_CONVERSATION_NAME = "Conversation";
+   public static final String DEFAULT_LOG_DIRECTORY = "subwave-log";
 
    public static final boolean DEFAULT_CONNECTION_PRINT_MESSAGES = true;
 }
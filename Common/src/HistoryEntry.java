@@ -0,0 +1,166 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+
+/**
+ * A chat message or emote from a conversation's history, sent as the body of a {@link
+ * com.tanndev.subwave.common.MessageType#HISTORY} message.
+ * <p/>
+ * A client asks for a page of history with a HISTORY_REQUEST message, whose body is laid out as:
+ * <blockquote>sequence number:page size</blockquote>
+ * The page holds the messages sent to the conversation before the given sequence number, or the latest messages if it
+ * is zero. Sequence numbers count the messages of each conversation from 1.
+ * <p/>
+ * The server answers with a HISTORY message for each message of the page, newest first, so a client showing them above
+ * its older messages can insert each as it arrives. The clientID of each is the original sender, and the body is laid
+ * out as:
+ * <blockquote>sequence number:M or E:text</blockquote>
+ * for a chat message or an emote. The page ends with a HISTORY message from clientID zero, whose body is the number of
+ * messages older than the page. Every message of a page arrives after any message broadcast to the conversation with a
+ * lower sequence number, and before any with a higher one.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#HISTORY
+ */
+public class HistoryEntry {
+
+   /** Sequence number of the message in its conversation. */
+   public final long sequence;
+
+   /** Type of the message, either CHAT_MESSAGE or CHAT_EMOTE. */
+   public final MessageType messageType;
+
+   /** Unique ID of the client that sent the message. */
+   public final int clientID;
+
+   /** Text of the message. */
+   public final String text;
+
+   /**
+    * Constructor
+    *
+    * @param sequence    sequence number of the message in its conversation
+    * @param messageType type of the message, either CHAT_MESSAGE or CHAT_EMOTE
+    * @param clientID    unique ID of the client that sent the message
+    * @param text        text of the message
+    */
+   public HistoryEntry(long sequence, MessageType messageType, int clientID, String text) {
+      this.sequence = sequence;
+      this.messageType = messageType;
+      this.clientID = clientID;
+      this.text = text == null ? "" : text;
+   }
+
+   /**
+    * Encodes the entry as a HISTORY message.
+    *
+    * @param conversationID unique ID of the conversation
+    *
+    * @return HISTORY message carrying the entry
+    */
+   public Message toMessage(int conversationID) {
+      char kind = messageType == MessageType.CHAT_EMOTE ? 'E' : 'M';
+      return new Message(MessageType.HISTORY, conversationID, clientID, sequence + ":" + kind + ":" + text);
+   }
+
+   /**
+    * Decodes a HISTORY message carrying an entry.
+    *
+    * @param message HISTORY message to decode
+    *
+    * @return the entry
+    *
+    * @throws IOException if the body is not a valid entry
+    */
+   public static HistoryEntry parse(Message message) throws IOException {
+      String body = message.messageBody;
+      int separator = body == null ? -1 : body.indexOf(':');
+      if (separator < 0 || body.length() < separator + 3 || body.charAt(separator + 2) != ':') {
+         throw new IOException("Invalid history entry.");
+      }
+      long sequence;
+      try {
+         sequence = Long.parseLong(body.substring(0, separator));
+      } catch (NumberFormatException e) {
+         throw new IOException("Invalid history sequence number.", e);
+      }
+      char kind = body.charAt(separator + 1);
+      if (kind != 'M' && kind != 'E') throw new IOException("Invalid history entry type: " + kind);
+      MessageType type = kind == 'E' ? MessageType.CHAT_EMOTE : MessageType.CHAT_MESSAGE;
+      return new HistoryEntry(sequence, type, message.clientID, body.substring(separator + 3));
+   }
+
+   /**
+    * Builds the HISTORY message ending a page.
+    *
+    * @param conversationID unique ID of the conversation
+    * @param remaining      number of messages older than the page
+    *
+    * @return HISTORY message ending the page
+    */
+   public static Message createEnd(int conversationID, long remaining) {
+      return new Message(MessageType.HISTORY, conversationID, 0, Long.toString(remaining));
+   }
+
+   /**
+    * @param message HISTORY message
+    *
+    * @return true if the message ends a page rather than carrying an entry
+    */
+   public static boolean isEnd(Message message) {
+      return message.clientID == 0;
+   }
+
+   /**
+    * Decodes the number of messages older than a page from the HISTORY message ending it.
+    *
+    * @param message HISTORY message ending a page
+    *
+    * @return number of messages older than the page
+    *
+    * @throws IOException if the body is not a number
+    */
+   public static long parseRemaining(Message message) throws IOException {
+      try {
+         return Long.parseLong(message.messageBody);
+      } catch (NumberFormatException e) {
+         throw new IOException("Invalid history page end.", e);
+      }
+   }
+
+   /**
+    * Builds a HISTORY_REQUEST message.
+    *
+    * @param conversationID unique ID of the conversation
+    * @param clientID       unique ID of the requesting client
+    * @param beforeSequence sequence number the page ends before, or zero for the latest page
+    * @param pageSize       largest number of messages to send
+    *
+    * @return HISTORY_REQUEST message
+    */
+   public static Message createRequest(int conversationID, int clientID, long beforeSequence, int pageSize) {
+      return new Message(MessageType.HISTORY_REQUEST, conversationID, clientID, beforeSequence + ":" + pageSize);
+   }
+
+   /**
+    * Decodes the sequence number and page size of a HISTORY_REQUEST message.
+    *
+    * @param request HISTORY_REQUEST message
+    *
+    * @return the sequence number the page ends before, and the page size
+    *
+    * @throws IOException if the body is not a valid request
+    */
+   public static long[] parseRequest(Message request) throws IOException {
+      String body = request.messageBody;
+      int separator = body == null ? -1 : body.indexOf(':');
+      if (separator < 0) throw new IOException("Invalid history request.");
+      try {
+         long[] result = {Long.parseLong(body.substring(0, separator)), Integer.parseInt(body.substring(separator + 1))};
+         if (result[0] < 0 || result[1] < 0) throw new IOException("Negative history request.");
+         return result;
+      } catch (NumberFormatException e) {
+         throw new IOException("Invalid history request.", e);
+      }
+   }
+}
@@ -22,6 +22,13 @@ import java.io.Serializable;
  */
 public class Message implements Serializable {
 
+   /**
+    * Fixed to the value computed for the original class, so framed peers that select the serialization codec can
+    * still decode each other's messages as default messages are added. This does not make releases that predate the
+    * framed protocol compatible; they cannot connect at all.
+    */
+   private static final long serialVersionUID = 589266175248309027L;
+
    // Default Messages:
    public static final String CONNECTION_START_ACK = "Connection request received.";
    public static final String DISCONNECT_INTENT = "Goodbye.";
@@ -33,6 +40,13 @@ public class Message implements Serializable {
    public static final String INVITE_TO_JOIN_CONVERSATION = "Invitation to join conversation.";
    public static final String LEFT_CONVERSATION = "Client left conversation.";
    public static final String CLIENT_DISCONNECTED = "Client disconnected from server.";
+   public static final String SLOW_CONSUMER = "Client is not reading messages fast enough. Disconnecting.";
+   public static final String MULTICAST_LEAVE = "Cannot receive multicast. Leaving group.";
+   public static final String CLUSTER_HELLO = "Cluster node connecting.";
+   public static final String CLUSTER_DELIVER = "Deliver the next message to the client.";
+   public static final String NOT_A_MEMBER = "Client is not a member of that conversation.";
+   public static final String INVALID_HISTORY_REQUEST = "History request is not valid.";
+   public static final String DUPLICATE_CLIENT_ID = "ClientID is already in use.";
 
    /** {@link com.tanndev.subwave.common.MessageType} of the message. Defines the intended purpose of the message. */
    public final MessageType messageType;
@@ -0,0 +1,57 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+
+/**
+ * Converts {@link com.tanndev.subwave.common.Message} objects to and from the payloads carried by network frames.
+ * <p/>
+ * Every frame on the wire is a four byte, big-endian payload length followed by the payload produced by {@link
+ * #encode(Message)}. A codec may be stateful, in which case each {@link com.tanndev.subwave.common.Connection} owns its
+ * own instance and payloads must be decoded in the same order they were encoded. Stateless codecs may be shared, and
+ * their payloads may be encoded once and sent to many connections.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.SerializationCodec
+ * @see com.tanndev.subwave.common.SharedFrame
+ */
+public interface MessageCodec {
+
+   /**
+    * Checks whether this codec is stateless. A stateless codec always produces the same payload for the same message,
+    * so one encoded frame may be written to every connection that uses the same codec instance.
+    *
+    * @return true if the codec is stateless, otherwise false
+    */
+   public boolean isStateless();
+
+   /**
+    * Encodes the provided message into a single frame payload.
+    *
+    * @param message message to encode
+    *
+    * @return encoded payload, not including the frame length header
+    *
+    * @throws IOException if the message cannot be encoded
+    */
+   public byte[] encode(Message message) throws IOException;
+
+   /**
+    * Decodes a single frame payload back into a message.
+    *
+    * @param payload array holding the payload
+    * @param offset  index of the first payload byte
+    * @param length  number of payload bytes
+    *
+    * @return decoded message
+    *
+    * @throws IOException if the payload is malformed
+    */
+   public Message decode(byte[] payload, int offset, int length) throws IOException;
+
+   /**
+    * Frees any resources held by the codec, such as native compression streams. Called once the connection using the
+    * codec has closed. Payloads may still be in the middle of being decoded, and must then fail with an exception.
+    * Codecs shared between connections must ignore this.
+    */
+   public void close();
+}
@@ -0,0 +1,129 @@
+package com.tanndev.subwave.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Versioned dictionary of the fixed strings most often used as message bodies.
+ * <p/>
+ * {@link com.tanndev.subwave.common.BinaryCodec} may send a body found in the dictionary as its small numeric code
+ * rather than as text. Decoding a code returns the shared constant itself, so no new string is allocated.
+ * <p/>
+ * The dictionary is append-only: each version contains every entry of the versions before it, in the same order, plus
+ * any new entries at the end. Two peers with different versions therefore agree on every entry of the lower version,
+ * which is the one they negotiate during the handshake. Entries must never be removed or reordered, and new entries
+ * require a new version.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#DICTIONARY
+ */
+public class MessageDictionary {
+
+   /** Every entry of the latest version, in code order. */
+   private static final String[] ENTRIES = {
+         // Version 1
+         Message.CONNECTION_START_ACK,
+         Message.DISCONNECT_INTENT,
+         Message.UNHANDLED_MSG,
+         Message.CRITICAL_ERROR,
+         Message.INVALID_SOURCE_ID,
+         Message.INVALID_CONVERSATION,
+         Message.REQUEST_TO_JOIN_CONVERSATION,
+         Message.INVITE_TO_JOIN_CONVERSATION,
+         Message.LEFT_CONVERSATION,
+         Message.CLIENT_DISCONNECTED,
+         Message.SLOW_CONSUMER,
+         Defaults.DEFAULT_NICKNAME,
+         Defaults.DEFAULT_CONVERSATION_NAME
+   };
+
+   /** Number of entries in each version, indexed by version. Version zero is empty. */
+   private static final int[] VERSION_SIZES = {0, 13};
+
+   /** Latest version supported by this build. */
+   public static final int CURRENT_VERSION = VERSION_SIZES.length - 1;
+
+   /** Dictionary instances, indexed by version. */
+   private static final MessageDictionary[] VERSIONS = new MessageDictionary[VERSION_SIZES.length];
+
+   static {
+      for (int version = 0; version < VERSIONS.length; version++) VERSIONS[version] = new MessageDictionary(version);
+   }
+
+   /** Version of this dictionary. */
+   public final int version;
+
+   /** Number of entries in this version. */
+   private final int size;
+
+   /** Length of the longest entry. Longer strings are never looked up. */
+   private final int maxLength;
+
+   /** Codes of the entries, keyed by entry. */
+   private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+   /**
+    * Constructor
+    *
+    * @param version version to build
+    */
+   private MessageDictionary(int version) {
+      this.version = version;
+      this.size = VERSION_SIZES[version];
+      int longest = 0;
+      for (int code = 0; code < size; code++) {
+         codes.put(ENTRIES[code], code);
+         longest = Math.max(longest, ENTRIES[code].length());
+      }
+      this.maxLength = longest;
+   }
+
+   /**
+    * Returns the dictionary of the provided version. Versions newer than this build supports are not available, so
+    * callers should first negotiate a version no higher than {@link #CURRENT_VERSION}.
+    *
+    * @param version version to return
+    *
+    * @return dictionary of the provided version
+    *
+    * @throws IllegalArgumentException if the version is not supported
+    */
+   public static MessageDictionary forVersion(int version) {
+      if (version < 0 || version > CURRENT_VERSION) {
+         throw new IllegalArgumentException("Unsupported dictionary version: " + version);
+      }
+      return VERSIONS[version];
+   }
+
+   /**
+    * Looks up the code of a string.
+    *
+    * @param value string to look up. May be null.
+    *
+    * @return code of the string, or -1 if it is not in this dictionary
+    */
+   public int codeOf(String value) {
+      if (value == null || value.length() > maxLength) return -1;
+      Integer code = codes.get(value);
+      return code == null ? -1 : code;
+   }
+
+   /**
+    * Returns the entry with the provided code.
+    *
+    * @param code code to look up
+    *
+    * @return shared entry, or null if the code is not in this dictionary
+    */
+   public String entry(int code) {
+      if (code < 0 || code >= size) return null;
+      return ENTRIES[code];
+   }
+
+   /**
+    * @return number of entries in this dictionary
+    */
+   public int size() {
+      return size;
+   }
+}
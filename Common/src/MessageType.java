@@ -7,7 +7,11 @@ package com.tanndev.subwave.common;
  * <p/>
  * Message types are overloaded and have different meanings depending on their source and destination. See the
  * documentation for the server and client for more information.
- *
+ * <p/>
+ * New types must only be added at the end, as {@link com.tanndev.subwave.common.BinaryCodec} sends the ordinal, and
+ * must only be sent to peers that negotiated a {@link com.tanndev.subwave.common.ProtocolFeature} implying support for
+ * them.
+ * <p/>
  * The {@link #toString()} method can be used to print a user-readable name for the message type.
  *
  * @author James Tanner
@@ -24,7 +28,13 @@ public enum MessageType {
    REFUSE("REFUSE"),
    NETWORK_CONNECT("CONNECT"),
    NETWORK_DISCONNECT("DISCONNECT"),
-   DEBUG("DEBUG");
+   DEBUG("DEBUG"),
+   HEARTBEAT("HEARTBEAT"),
+   MULTICAST("MULTICAST"),
+   CLUSTER("CLUSTER"),
+   PRESENCE("PRESENCE"),
+   HISTORY_REQUEST("HISTORY_REQUEST"),
+   HISTORY("HISTORY");
 
    private final String value;
 
@@ -0,0 +1,124 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the UDP datagrams used to multicast server-wide broadcasts.
+ * <p/>
+ * Each datagram carries a single message, laid out as:
+ * <blockquote>sequence number (4 bytes, big-endian) | payload ({@link com.tanndev.subwave.common.BinaryCodec})
+ * </blockquote>
+ * Every message is given the next sequence number, so a receiver can detect lost datagrams and ask for them to be
+ * resent over its connection. A datagram with no payload is a beacon, sent while the server is otherwise quiet, and
+ * carries the sequence number of the last message sent, so a loss is detected even when nothing follows it.
+ * <p/>
+ * Datagrams are always encoded with the shared {@link com.tanndev.subwave.common.BinaryCodec#INSTANCE}, without a
+ * dictionary or compression, as every receiver must be able to decode them regardless of the features it negotiated.
+ * Sequence numbers wrap around, so they must only be compared with {@link #distance(int, int)}.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#MULTICAST
+ */
+public class MulticastDatagram {
+
+   /** Number of bytes in the datagram header. */
+   public static final int HEADER_SIZE = 4;
+
+   /** Largest datagram sent, chosen to fit in a single Ethernet frame so that no datagram is fragmented. */
+   public static final int MAX_DATAGRAM_SIZE = 1400;
+
+   /**
+    * Encodes a message into a datagram.
+    *
+    * @param sequence sequence number of the message
+    * @param message  message to encode
+    *
+    * @return encoded datagram, or null if the message is too large to fit in a single datagram
+    *
+    * @throws IOException if the message cannot be encoded
+    */
+   public static byte[] encode(int sequence, Message message) throws IOException {
+      byte[] payload = BinaryCodec.INSTANCE.encode(message);
+      if (HEADER_SIZE + payload.length > MAX_DATAGRAM_SIZE) return null;
+      byte[] datagram = new byte[HEADER_SIZE + payload.length];
+      writeSequence(datagram, sequence);
+      System.arraycopy(payload, 0, datagram, HEADER_SIZE, payload.length);
+      return datagram;
+   }
+
+   /**
+    * Encodes a beacon carrying the sequence number of the last message sent.
+    *
+    * @param lastSequence sequence number of the last message sent
+    *
+    * @return encoded beacon
+    */
+   public static byte[] encodeBeacon(int lastSequence) {
+      byte[] datagram = new byte[HEADER_SIZE];
+      writeSequence(datagram, lastSequence);
+      return datagram;
+   }
+
+   /**
+    * Reads the sequence number of a datagram.
+    *
+    * @param datagram array holding the datagram
+    * @param offset   index of the first datagram byte
+    *
+    * @return sequence number of the message, or of the last message sent if the datagram is a beacon
+    */
+   public static int readSequence(byte[] datagram, int offset) {
+      return ((datagram[offset] & 0xFF) << 24) | ((datagram[offset + 1] & 0xFF) << 16) |
+            ((datagram[offset + 2] & 0xFF) << 8) | (datagram[offset + 3] & 0xFF);
+   }
+
+   /**
+    * @param length length of the datagram
+    *
+    * @return true if a datagram of this length is a beacon
+    */
+   public static boolean isBeacon(int length) {
+      return length == HEADER_SIZE;
+   }
+
+   /**
+    * Decodes the message carried by a datagram.
+    *
+    * @param datagram array holding the datagram
+    * @param offset   index of the first datagram byte
+    * @param length   length of the datagram
+    *
+    * @return decoded message
+    *
+    * @throws IOException if the datagram is malformed
+    */
+   public static Message decode(byte[] datagram, int offset, int length) throws IOException {
+      if (length <= HEADER_SIZE) throw new IOException("Datagram carries no message.");
+      return BinaryCodec.INSTANCE.decode(datagram, offset + HEADER_SIZE, length - HEADER_SIZE);
+   }
+
+   /**
+    * Returns how far one sequence number is ahead of another, allowing for wrap-around.
+    *
+    * @param from earlier sequence number
+    * @param to   later sequence number
+    *
+    * @return number of messages from the first sequence number to the second, negative if the second is behind
+    */
+   public static int distance(int from, int to) {
+      return to - from;
+   }
+
+   /**
+    * Writes a sequence number into the header of a datagram.
+    *
+    * @param datagram datagram to write to
+    * @param sequence sequence number to write
+    */
+   private static void writeSequence(byte[] datagram, int sequence) {
+      datagram[0] = (byte) (sequence >>> 24);
+      datagram[1] = (byte) (sequence >>> 16);
+      datagram[2] = (byte) (sequence >>> 8);
+      datagram[3] = (byte) sequence;
+   }
+}
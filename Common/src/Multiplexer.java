@@ -0,0 +1,202 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the {@link com.tanndev.subwave.common.SessionConnection}s multiplexed over a single connection, routes their
+ * incoming frames, and interleaves their outgoing frames with the connection's own.
+ * <p/>
+ * Only created once the first session is opened, so connections that never open a session pay nothing for it.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection#openSession()
+ */
+class Multiplexer {
+
+   /** Connection carrying the sessions. */
+   private final Connection carrier;
+
+   /** Open sessions, keyed by stream ID. */
+   private final ConcurrentHashMap<Integer, SessionConnection> sessions = new ConcurrentHashMap<Integer, SessionConnection>();
+
+   /** Sessions with frames waiting to be taken by the carrier. */
+   private final Queue<SessionConnection> readySessions = new ConcurrentLinkedQueue<SessionConnection>();
+
+   /** Stream ID assigned to the next session opened locally. Stream IDs are never reused. */
+   private final AtomicInteger nextStreamID = new AtomicInteger(1);
+
+   /** Highest stream ID of the sessions opened by the remote peer. Only used by the carrier's reader. */
+   private int highestRemoteStreamID = 0;
+
+   /** Set when the carrier should take a session frame before its own next frame. Only used by the carrier's writer. */
+   private boolean sessionTurn = false;
+
+   /**
+    * Constructor
+    *
+    * @param carrier connection carrying the sessions
+    */
+   Multiplexer(Connection carrier) {
+      this.carrier = carrier;
+   }
+
+   /**
+    * Opens a new session with the next free stream ID.
+    *
+    * @return new session
+    */
+   SessionConnection open() {
+      SessionConnection session = new SessionConnection(carrier, this, nextStreamID.getAndIncrement());
+      sessions.put(session.getStreamID(), session);
+      if (carrier.isClosed()) session.close(false);
+      return session;
+   }
+
+   /**
+    * Handles a frame received for a session. A frame on a new stream opens a new session, and an empty frame closes its
+    * session.
+    * <p/>
+    * Stream IDs only ever increase, so a frame on an unknown stream that is not above every stream seen so far belongs
+    * to a session that has already closed on this side, and was sent before the remote peer learned of it. Such frames
+    * are dropped.
+    *
+    * @param streamID stream ID from the frame header
+    * @param payload  array holding the payload
+    * @param offset   index of the first payload byte
+    * @param length   number of payload bytes
+    */
+   void receive(int streamID, byte[] payload, int offset, int length) {
+      SessionConnection session = sessions.get(streamID);
+      if (length == 0) {
+         if (session != null) session.close(false);
+         return;
+      }
+
+      // Only the remote peer opens sessions this way, and only up to the limit.
+      boolean opened = false;
+      if (session == null) {
+         if (streamID <= highestRemoteStreamID || streamID < nextStreamID.get()) return;
+         highestRemoteStreamID = streamID;
+         if (sessions.size() >= Defaults.DEFAULT_MAX_SESSIONS) {
+            carrier.sendSessionClose(streamID);
+            return;
+         }
+         session = new SessionConnection(carrier, this, streamID);
+         sessions.put(streamID, session);
+         opened = true;
+      }
+
+      Message message;
+      try {
+         message = session.getCodec().decode(payload, offset, length);
+      } catch (IOException e) {
+         // Each session has its own codec state, so only this session is affected.
+         if (!session.isClosed()) ErrorHandler.logError("Could not decode frame received for session " + streamID + ".", e);
+         session.close();
+         return;
+      }
+      session.recordReceived(Connection.SESSION_FRAME_HEADER_SIZE + length);
+      if (session.isPrintMessages()) System.out.println("RX - " + streamID + " - " + message.toString());
+
+      SessionHandler handler = carrier.getSessionHandler();
+      if (handler == null) session.close();
+      else if (opened) handler.sessionOpened(session, message);
+      else handler.messageReceived(session, message);
+   }
+
+   /**
+    * Queues a session whose frames are waiting, and asks the carrier to write them.
+    *
+    * @param session session with queued frames
+    */
+   void markReady(SessionConnection session) {
+      readySessions.add(session);
+      carrier.requestWrite();
+   }
+
+   /**
+    * @return true if any session has frames waiting
+    */
+   boolean hasReadySessions() {
+      return !readySessions.isEmpty();
+   }
+
+   /**
+    * Takes the next frame for the carrier to write, alternating between the carrier's own queue and the ready sessions
+    * so neither can starve the other. Sessions take turns a frame at a time. Only called by the carrier's writer.
+    *
+    * @param ownQueue carrier's own outbound queue
+    *
+    * @return next frame to write, or null if nothing is waiting
+    */
+   OutboundFrame poll(Queue<OutboundFrame> ownQueue) {
+      OutboundFrame frame;
+      if (sessionTurn) {
+         frame = pollSession();
+         if (frame == null) frame = ownQueue.poll();
+      } else {
+         frame = ownQueue.poll();
+         if (frame == null) frame = pollSession();
+      }
+      sessionTurn = !sessionTurn;
+      return frame;
+   }
+
+   /**
+    * Takes one frame from the first ready session, which then moves to the back of the line. Sessions that are closing
+    * are closed once their queue is empty.
+    *
+    * @return next session frame, or null if no session has frames waiting
+    */
+   private OutboundFrame pollSession() {
+      SessionConnection session;
+      while ((session = readySessions.poll()) != null) {
+         OutboundFrame frame = session.outboundQueue.poll();
+         if (frame != null) {
+            session.recordWriteProgress();
+            readySessions.add(session);
+            return frame;
+         }
+         if (session.isClosing()) session.close();
+         else if (session.completeWrite()) readySessions.add(session);
+      }
+      return null;
+   }
+
+   /**
+    * Forgets a closed session.
+    *
+    * @param session session that closed
+    */
+   void remove(SessionConnection session) {
+      sessions.remove(session.getStreamID(), session);
+   }
+
+   /**
+    * Tells the carrier's handler that a session has closed.
+    *
+    * @param session session that closed
+    */
+   void sessionClosed(SessionConnection session) {
+      SessionHandler handler = carrier.getSessionHandler();
+      if (handler != null) handler.sessionClosed(session);
+   }
+
+   /**
+    * Closes every session, without notifying the remote peer. Called once the carrier has closed.
+    */
+   void closeAll() {
+      for (SessionConnection session : sessions.values()) session.close(false);
+   }
+
+   /**
+    * @return number of open sessions
+    */
+   int size() {
+      return sessions.size();
+   }
+}
@@ -0,0 +1,45 @@
+package com.tanndev.subwave.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame waiting in a connection's outbound queue.
+ * <p/>
+ * The frame's bytes live in a buffer from the {@link com.tanndev.subwave.common.BufferPool}. Frames sent to a single
+ * connection own their buffer outright. Frames taken from a {@link com.tanndev.subwave.common.SharedFrame} are views of
+ * a buffer shared by every recipient of a broadcast, which is returned to the pool once all of them are released.
+ * <p/>
+ * Whoever removes a frame from the queue is responsible for calling {@link #release()} exactly once, whether or not it
+ * was written.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection
+ */
+public class OutboundFrame {
+
+   /** Bytes of the frame, including the header. The position advances as the frame is written. */
+   public final ByteBuffer data;
+
+   /** Broadcast the buffer is shared with, or null if this frame owns its buffer. */
+   private final SharedFrame owner;
+
+   /**
+    * Constructor
+    *
+    * @param data  bytes of the frame, ready to be written
+    * @param owner broadcast the buffer is shared with, or null if this frame owns its buffer
+    */
+   OutboundFrame(ByteBuffer data, SharedFrame owner) {
+      this.data = data;
+      this.owner = owner;
+   }
+
+   /**
+    * Returns the frame's buffer to the pool, or releases this frame's share of a broadcast buffer. The frame must not
+    * be used afterwards.
+    */
+   public void release() {
+      if (owner != null) owner.release();
+      else BufferPool.release(data);
+   }
+}
@@ -0,0 +1,181 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A list of clients signing on and off, sent as the body of {@link com.tanndev.subwave.common.MessageType#PRESENCE}
+ * messages.
+ * <p/>
+ * The server sends a new client every client already signed on as a single batch, and sends the sign-ons and sign-offs
+ * that follow in batches gathered over a short window, instead of a NETWORK_CONNECT or NETWORK_DISCONNECT message for
+ * each. Each entry of the body is laid out as:
+ * <blockquote>+clientID:name length:name &nbsp; for a sign-on, or &nbsp; -clientID: &nbsp; for a sign-off
+ * </blockquote>
+ * Entries follow each other without separators, and names may contain any character, as their length is given.
+ * <p/>
+ * A large batch is split into several messages, each holding whole entries, so that no single message grows without
+ * bound. The conversationID of each message is the number of messages of the batch still to follow, so the last
+ * message of a batch carries zero. Every message can also be applied on its own.
+ * <p/>
+ * Entries must be applied in order. Applying an entry that is already reflected, such as the sign-on of a client
+ * already listed, must have no effect, as a client may see the same change in both a list and the batch that follows.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.ProtocolFeature#PRESENCE
+ */
+public class PresenceBatch {
+
+   /** Client of each entry, in order. */
+   private final ArrayList<Integer> clientIDs = new ArrayList<Integer>();
+
+   /** Friendly name of each sign-on entry, or null for a sign-off, in order. */
+   private final ArrayList<String> names = new ArrayList<String>();
+
+   /**
+    * Adds the sign-on of a client.
+    *
+    * @param clientID unique ID of the client
+    * @param name     friendly name of the client
+    */
+   public void addConnect(int clientID, String name) {
+      clientIDs.add(clientID);
+      names.add(name == null ? "" : name);
+   }
+
+   /**
+    * Adds the sign-off of a client.
+    *
+    * @param clientID unique ID of the client
+    */
+   public void addDisconnect(int clientID) {
+      clientIDs.add(clientID);
+      names.add(null);
+   }
+
+   /**
+    * Adds the change announced by a NETWORK_CONNECT or NETWORK_DISCONNECT message. Other messages are ignored.
+    *
+    * @param message announcement to add
+    */
+   public void add(Message message) {
+      if (message.messageType == MessageType.NETWORK_CONNECT) addConnect(message.clientID, message.messageBody);
+      else if (message.messageType == MessageType.NETWORK_DISCONNECT) addDisconnect(message.clientID);
+   }
+
+   /**
+    * @return number of entries in the batch
+    */
+   public int size() {
+      return clientIDs.size();
+   }
+
+   /**
+    * @return true if the batch has no entries
+    */
+   public boolean isEmpty() {
+      return clientIDs.isEmpty();
+   }
+
+   /**
+    * @param index position of the entry
+    *
+    * @return unique ID of the client the entry is about
+    */
+   public int getClientID(int index) {
+      return clientIDs.get(index);
+   }
+
+   /**
+    * @param index position of the entry
+    *
+    * @return true if the entry is a sign-on, false if it is a sign-off
+    */
+   public boolean isConnect(int index) {
+      return names.get(index) != null;
+   }
+
+   /**
+    * @param index position of the entry
+    *
+    * @return friendly name of the client for a sign-on, or null for a sign-off
+    */
+   public String getName(int index) {
+      return names.get(index);
+   }
+
+   /**
+    * Encodes the batch as PRESENCE messages, splitting it between entries wherever a message body would otherwise grow
+    * past the provided length. A single entry longer than the limit is sent in a message of its own.
+    *
+    * @param chunkSize longest message body, in characters
+    * @param clientID  clientID to send the messages with
+    *
+    * @return PRESENCE messages carrying the batch, in order, or none if the batch is empty
+    */
+   public Message[] toMessages(int chunkSize, int clientID) {
+      ArrayList<String> bodies = new ArrayList<String>();
+      StringBuilder body = new StringBuilder();
+      StringBuilder entry = new StringBuilder();
+      for (int i = 0; i < clientIDs.size(); i++) {
+         entry.setLength(0);
+         String name = names.get(i);
+         entry.append(name == null ? '-' : '+').append(clientIDs.get(i)).append(':');
+         if (name != null) entry.append(name.length()).append(':').append(name);
+
+         if (body.length() > 0 && body.length() + entry.length() > chunkSize) {
+            bodies.add(body.toString());
+            body.setLength(0);
+         }
+         body.append(entry);
+      }
+      if (body.length() > 0) bodies.add(body.toString());
+
+      Message[] messages = new Message[bodies.size()];
+      for (int i = 0; i < messages.length; i++) {
+         messages[i] = new Message(MessageType.PRESENCE, messages.length - i - 1, clientID, bodies.get(i));
+      }
+      return messages;
+   }
+
+   /**
+    * Decodes the body of a PRESENCE message.
+    *
+    * @param body message body to decode
+    *
+    * @return batch holding the entries of the body
+    *
+    * @throws IOException if the body is not a valid list of entries
+    */
+   public static PresenceBatch parse(String body) throws IOException {
+      PresenceBatch batch = new PresenceBatch();
+      if (body == null) return batch;
+      try {
+         int position = 0;
+         while (position < body.length()) {
+            char sign = body.charAt(position);
+            if (sign != '+' && sign != '-') throw new IOException("Invalid presence entry at " + position + ".");
+            int end = body.indexOf(':', position + 1);
+            if (end < 0) throw new IOException("Unterminated presence entry at " + position + ".");
+            int clientID = Integer.parseInt(body.substring(position + 1, end));
+            position = end + 1;
+
+            if (sign == '-') batch.addDisconnect(clientID);
+            else {
+               end = body.indexOf(':', position);
+               if (end < 0) throw new IOException("Unterminated presence entry at " + position + ".");
+               int nameLength = Integer.parseInt(body.substring(position, end));
+               position = end + 1;
+               if (nameLength < 0 || position + nameLength > body.length()) {
+                  throw new IOException("Presence name overruns the body at " + position + ".");
+               }
+               batch.addConnect(clientID, body.substring(position, position + nameLength));
+               position += nameLength;
+            }
+         }
+      } catch (NumberFormatException e) {
+         throw new IOException("Invalid number in presence entry.", e);
+      }
+      return batch;
+   }
+}
@@ -0,0 +1,144 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Defines optional protocol features that may be negotiated during the NETWORK_CONNECT handshake.
+ * <p/>
+ * Features are exchanged as a bit mask in the conversationID field of the handshake messages. The server's greeting
+ * offers every feature it supports. The client's reply selects the subset that both sides will use, and both sides
+ * switch to the selected features immediately after the reply. A reply of zero selects no features, and the connection
+ * keeps Java serialization. Every peer must still speak the framed protocol; releases that predate framing cannot
+ * connect at all.
+ * <p/>
+ * Bits 16 to 23 of the mask carry the {@link com.tanndev.subwave.common.MessageDictionary} version. The greeting
+ * offers the server's latest version, and the reply selects the lower of the two peers' versions. A reply that does
+ * not select {@link #DICTIONARY} carries no version, and the plain binary layout is kept.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection#applyFeatures(int)
+ */
+public enum ProtocolFeature {
+   /** Frames are encoded with {@link com.tanndev.subwave.common.BinaryCodec} instead of Java serialization. */
+   BINARY_CODEC(0x01),
+
+   /** Large message bodies are compressed with {@link com.tanndev.subwave.common.CompressingCodec}. */
+   COMPRESSION(0x02),
+
+   /**
+    * Common message bodies are sent as {@link com.tanndev.subwave.common.MessageDictionary} codes. Only used together
+    * with {@link #BINARY_CODEC}.
+    */
+   DICTIONARY(0x04),
+
+   /**
+    * The peer answers {@link com.tanndev.subwave.common.MessageType#HEARTBEAT} messages, so a peer that stops answering
+    * can be recognised as gone.
+    */
+   HEARTBEAT(0x08),
+
+   /**
+    * The connection may carry additional client sessions, each with its own client ID, multiplexed over the same
+    * socket.
+    *
+    * @see com.tanndev.subwave.common.SessionConnection
+    */
+   MULTIPLEX(0x10),
+
+   /**
+    * Server-wide broadcasts may be sent once to a UDP multicast group instead of to each client over its connection.
+    * Only offered by servers with multicast enabled, and never used by multiplexed sessions.
+    *
+    * @see com.tanndev.subwave.common.MulticastDatagram
+    */
+   MULTICAST(0x20),
+
+   /**
+    * Clients signing on and off are announced in {@link com.tanndev.subwave.common.MessageType#PRESENCE} batches
+    * rather than one message each. A new client is sent the clients already signed on as a single list.
+    *
+    * @see com.tanndev.subwave.common.PresenceBatch
+    */
+   PRESENCE(0x40),
+
+   /**
+    * The client may ask for pages of a conversation's history with {@link
+    * com.tanndev.subwave.common.MessageType#HISTORY_REQUEST} messages, answered with {@link
+    * com.tanndev.subwave.common.MessageType#HISTORY} messages.
+    *
+    * @see com.tanndev.subwave.common.HistoryEntry
+    */
+   HISTORY(0x80);
+
+   /** Position of the dictionary version within a feature mask. */
+   private static final int DICTIONARY_VERSION_SHIFT = 16;
+
+   /** Largest dictionary version that fits in a feature mask. */
+   private static final int DICTIONARY_VERSION_MASK = 0xFF;
+
+   /** Bit representing this feature in a feature mask. */
+   public final int mask;
+
+   ProtocolFeature(int mask) {
+      this.mask = mask;
+   }
+
+   /**
+    * Checks whether this feature is present in the provided feature mask.
+    *
+    * @param features feature mask to check
+    *
+    * @return true if the feature is set, otherwise false
+    */
+   public boolean isSet(int features) {
+      return (features & mask) != 0;
+   }
+
+   /**
+    * Returns the mask of every feature supported by this build.
+    *
+    * @return supported feature mask
+    */
+   public static int supportedFeatures() {
+      int features = 0;
+      for (ProtocolFeature feature : values()) features |= feature.mask;
+      return features;
+   }
+
+   /**
+    * Returns the feature mask offered in the server's greeting: every supported feature and the latest dictionary
+    * version.
+    *
+    * @return offered feature mask
+    */
+   public static int offeredFeatures() {
+      return supportedFeatures() | (MessageDictionary.CURRENT_VERSION << DICTIONARY_VERSION_SHIFT);
+   }
+
+   /**
+    * Selects the features to use from those offered by the remote peer. Used by the client to build its reply to the
+    * greeting, and by the server to check that reply, so both arrive at the same mask.
+    *
+    * @param offered feature mask received from the remote peer
+    *
+    * @return mask of the features supported by both peers, including the dictionary version to use
+    */
+   public static int selectFeatures(int offered) {
+      int features = offered & supportedFeatures();
+      int version = Math.min((offered >>> DICTIONARY_VERSION_SHIFT) & DICTIONARY_VERSION_MASK,
+            MessageDictionary.CURRENT_VERSION);
+      if (!DICTIONARY.isSet(features) || version == 0) return features & ~DICTIONARY.mask;
+      return features | (version << DICTIONARY_VERSION_SHIFT);
+   }
+
+   /**
+    * Extracts the dictionary version from a negotiated feature mask.
+    *
+    * @param features negotiated feature mask
+    *
+    * @return dictionary version to use, or zero if no dictionary was negotiated
+    */
+   public static int dictionaryVersion(int features) {
+      if (!DICTIONARY.isSet(features)) return 0;
+      return Math.min((features >>> DICTIONARY_VERSION_SHIFT) & DICTIONARY_VERSION_MASK,
+            MessageDictionary.CURRENT_VERSION);
+   }
+}
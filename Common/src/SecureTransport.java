@@ -0,0 +1,157 @@
+package com.tanndev.subwave.common;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Creates the TLS contexts and sockets used to run connections over TLS.
+ * <p/>
+ * A {@link com.tanndev.subwave.common.Connection} only uses its socket's streams, so a TLS socket is used exactly like
+ * a plain one once its handshake has completed. The handshake is started explicitly, so its cost can be measured and
+ * it never runs unexpectedly on the first read or write.
+ * <p/>
+ * A full handshake verifies certificates and agrees new keys, and is by far the most expensive part of a connection.
+ * Clients that reconnect, such as every client after a server restart, resume their previous TLS session instead,
+ * which skips the certificate exchange. Each client reuses one context, which caches its sessions by server address.
+ * With TLS 1.3 the server issues stateless session tickets, so it keeps nothing per session; with TLS 1.2 it resumes
+ * from its own session cache. Sessions expire after {@value Defaults#DEFAULT_TLS_SESSION_TIMEOUT} seconds.
+ *
+ * @author James Tanner
+ */
+public class SecureTransport {
+
+   /** Protocol requested from {@link SSLContext}, which enables every TLS version the runtime supports. */
+   private static final String PROTOCOL = "TLS";
+
+   /**
+    * Creates the context used by a server, which presents the key in the provided key store.
+    *
+    * @param keyStorePath path of the key store holding the server's private key and certificate
+    * @param password     password of the key store and of the key
+    *
+    * @return server context
+    *
+    * @throws IOException if the key store cannot be read or used
+    */
+   public static SSLContext createServerContext(String keyStorePath, char[] password) throws IOException {
+      try {
+         KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+         keyManagers.init(loadKeyStore(keyStorePath, password), password);
+         SSLContext context = SSLContext.getInstance(PROTOCOL);
+         context.init(keyManagers.getKeyManagers(), null, null);
+         context.getServerSessionContext().setSessionCacheSize(Defaults.DEFAULT_TLS_SESSION_CACHE_SIZE);
+         context.getServerSessionContext().setSessionTimeout(Defaults.DEFAULT_TLS_SESSION_TIMEOUT);
+         return context;
+      } catch (GeneralSecurityException e) {
+         throw new IOException("Could not use key store " + keyStorePath + ".", e);
+      }
+   }
+
+   /**
+    * Creates the context used by a client, which trusts the certificates in the provided trust store. A single context
+    * should be used for every connection, so that sessions can be resumed.
+    *
+    * @param trustStorePath path of the trust store holding the certificates to trust, such as a server's self-signed
+    *                       certificate. If null, the runtime's default certificate authorities are trusted.
+    * @param password       password of the trust store
+    *
+    * @return client context
+    *
+    * @throws IOException if the trust store cannot be read or used
+    */
+   public static SSLContext createClientContext(String trustStorePath, char[] password) throws IOException {
+      try {
+         TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+         trustManagers.init(trustStorePath == null ? null : loadKeyStore(trustStorePath, password));
+         SSLContext context = SSLContext.getInstance(PROTOCOL);
+         context.init(null, trustManagers.getTrustManagers(), null);
+         context.getClientSessionContext().setSessionTimeout(Defaults.DEFAULT_TLS_SESSION_TIMEOUT);
+         return context;
+      } catch (GeneralSecurityException e) {
+         throw new IOException("Could not use trust store " + trustStorePath + ".", e);
+      }
+   }
+
+   /**
+    * Opens a TLS connection to a server and completes the handshake. The server's certificate must match the address.
+    *
+    * @param context client context, from {@link #createClientContext(String, char[])}
+    * @param address network address of the server
+    * @param port    listening port of the server
+    *
+    * @return connected socket, with its handshake complete
+    *
+    * @throws IOException if the connection or the handshake fails
+    */
+   public static SSLSocket connect(SSLContext context, String address, int port) throws IOException {
+      SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(address, port);
+      SSLParameters parameters = socket.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      socket.setSSLParameters(parameters);
+      try {
+         socket.startHandshake();
+      } catch (IOException e) {
+         close(socket);
+         throw e;
+      }
+      return socket;
+   }
+
+   /**
+    * Checks whether a completed handshake resumed an earlier session. A resumed session keeps the creation time of the
+    * session it resumed, while a full handshake creates a new session.
+    *
+    * @param session        session negotiated by the handshake
+    * @param handshakeStart time, from {@link System#currentTimeMillis()}, the handshake started
+    *
+    * @return true if the session was resumed, false if the handshake was a full one
+    */
+   public static boolean isResumed(SSLSession session, long handshakeStart) {
+      return session.getCreationTime() < handshakeStart;
+   }
+
+   /**
+    * Loads a key store of the runtime's default type. Key stores created by older runtimes are also accepted.
+    *
+    * @param path     path of the key store
+    * @param password password of the key store
+    *
+    * @return loaded key store
+    *
+    * @throws IOException              if the key store cannot be read
+    * @throws GeneralSecurityException if the key store is invalid
+    */
+   private static KeyStore loadKeyStore(String path, char[] password) throws IOException, GeneralSecurityException {
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      InputStream in = new FileInputStream(path);
+      try {
+         keyStore.load(in, password);
+      } finally {
+         in.close();
+      }
+      return keyStore;
+   }
+
+   /**
+    * Closes a socket whose handshake failed.
+    *
+    * @param socket socket to close
+    */
+   private static void close(Socket socket) {
+      try {
+         socket.close();
+      } catch (IOException e) {
+         // The handshake failure is reported instead.
+      }
+   }
+}
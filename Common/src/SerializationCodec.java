@@ -0,0 +1,203 @@
+package com.tanndev.subwave.common;
+
+import java.io.*;
+
+/**
+ * {@link com.tanndev.subwave.common.MessageCodec} that uses standard Java serialization.
+ * <p/>
+ * A single object stream is kept in each direction for the lifetime of the codec, exactly as the original unframed
+ * protocol did, so class descriptors are not transmitted with every message. The serialization stream header is
+ * carried in the first frame encoded.
+ * <p/>
+ * Object streams keep a reference to every object they have written or read, so that repeated objects can be sent as
+ * back references. To keep long-lived connections from growing without bound, the output stream is reset once a number
+ * of messages or bytes have been written since the last reset. The reset marker is written at the start of the next
+ * frame, and the remote input stream clears its own references when it reads the marker, so both sides stay in sync
+ * without any change to the protocol. Peers that never reset are still decoded correctly.
+ * <p/>
+ * Encoding and decoding are independently synchronized, so one thread may send while another receives.
+ *
+ * @author James Tanner
+ */
+public class SerializationCodec implements MessageCodec {
+
+   /** Buffer collecting the bytes written by {@link #objOutStream} for the current frame. */
+   private final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+
+   /** Input stream exposing the payload of the frame currently being decoded. */
+   private final FrameInputStream inBuffer = new FrameInputStream();
+
+   /** Output stream to serialize message objects. Created with the first frame. */
+   private ObjectOutputStream objOutStream;
+
+   /** Input stream to deserialize message objects. Created with the first frame. */
+   private ObjectInputStream objInStream;
+
+   /** Number of messages written after which the output stream is reset. */
+   private final int resetInterval;
+
+   /** Number of bytes written after which the output stream is reset. */
+   private final int resetBytes;
+
+   /** Number of messages written since the output stream was last reset. */
+   private int messagesSinceReset = 0;
+
+   /** Number of bytes written since the output stream was last reset. Approximates the memory it retains. */
+   private volatile long bytesSinceReset = 0;
+
+   /** Number of bytes read since the remote output stream was last reset. Approximates the memory retained here. */
+   private volatile long bytesSinceRemoteReset = 0;
+
+   /** Number of times the output stream has been reset. */
+   private volatile long resetCount = 0;
+
+   /** Number of reset markers read from the remote output stream. */
+   private volatile long remoteResetCount = 0;
+
+   /**
+    * Constructor
+    * <p/>
+    * Creates a codec that resets its output stream at the default intervals.
+    */
+   public SerializationCodec() {
+      this(Defaults.DEFAULT_SERIALIZATION_RESET_INTERVAL, Defaults.DEFAULT_SERIALIZATION_RESET_BYTES);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param resetInterval number of messages written after which the output stream is reset
+    * @param resetBytes    number of bytes written after which the output stream is reset
+    */
+   public SerializationCodec(int resetInterval, int resetBytes) {
+      this.resetInterval = resetInterval;
+      this.resetBytes = resetBytes;
+   }
+
+   @Override
+   public boolean isStateless() {
+      return false;
+   }
+
+   /**
+    * Does nothing, as the object streams only hold heap memory, which is freed along with the codec.
+    */
+   @Override
+   public void close() {
+   }
+
+   @Override
+   public byte[] encode(Message message) throws IOException {
+      synchronized (outBuffer) {
+         if (objOutStream == null) objOutStream = new ObjectOutputStream(outBuffer);
+         else if (messagesSinceReset >= resetInterval || bytesSinceReset >= resetBytes) {
+            // Written before the message, so the marker leads the frame.
+            objOutStream.reset();
+            messagesSinceReset = 0;
+            bytesSinceReset = 0;
+            resetCount++;
+         }
+         objOutStream.writeObject(message);
+         objOutStream.flush();
+         byte[] payload = outBuffer.toByteArray();
+         outBuffer.reset();
+         messagesSinceReset++;
+         bytesSinceReset += payload.length;
+         return payload;
+      }
+   }
+
+   @Override
+   public Message decode(byte[] payload, int offset, int length) throws IOException {
+      synchronized (inBuffer) {
+         inBuffer.setFrame(payload, offset, length);
+         if (objInStream == null) objInStream = new ObjectInputStream(inBuffer);
+         else if (length > 0 && payload[offset] == ObjectStreamConstants.TC_RESET) {
+            bytesSinceRemoteReset = 0;
+            remoteResetCount++;
+         }
+         bytesSinceRemoteReset += length;
+         try {
+            Object object = objInStream.readObject();
+            if (inBuffer.available() > 0) throw new StreamCorruptedException("Frame contains trailing data.");
+            return (Message) object;
+         } catch (ClassNotFoundException e) {
+            throw new IOException("Frame does not contain a known class.", e);
+         } catch (ClassCastException e) {
+            throw new IOException("Frame does not contain a message.", e);
+         }
+      }
+   }
+
+   /**
+    * Returns the number of bytes written since the output stream was last reset. The output stream holds a reference
+    * to every object in those bytes, so this approximates the memory it retains.
+    *
+    * @return bytes written since the last reset
+    */
+   public long getRetainedOutputBytes() {
+      return bytesSinceReset;
+   }
+
+   /**
+    * Returns the number of bytes read since the remote output stream was last reset. The input stream holds a
+    * reference to every object in those bytes, so this approximates the memory it retains. A remote peer that never
+    * resets will make this value grow without bound.
+    *
+    * @return bytes read since the last remote reset
+    */
+   public long getRetainedInputBytes() {
+      return bytesSinceRemoteReset;
+   }
+
+   /**
+    * @return number of times the output stream has been reset
+    */
+   public long getResetCount() {
+      return resetCount;
+   }
+
+   /**
+    * @return number of reset markers read from the remote output stream
+    */
+   public long getRemoteResetCount() {
+      return remoteResetCount;
+   }
+
+   /**
+    * Input stream over the payload of a single frame. Reading past the end of the frame reports end of stream, so a
+    * malformed payload can never consume bytes belonging to the next frame.
+    */
+   private static class FrameInputStream extends InputStream {
+      private byte[] frame;
+      private int position;
+      private int limit;
+
+      void setFrame(byte[] frame, int offset, int length) {
+         this.frame = frame;
+         this.position = offset;
+         this.limit = offset + length;
+      }
+
+      @Override
+      public int read() {
+         if (position >= limit) return -1;
+         return frame[position++] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) {
+         if (length == 0) return 0;
+         if (position >= limit) return -1;
+         int count = Math.min(length, limit - position);
+         System.arraycopy(frame, position, buffer, offset, count);
+         position += count;
+         return count;
+      }
+
+      @Override
+      public int available() {
+         return limit - position;
+      }
+   }
+}
@@ -0,0 +1,135 @@
+package com.tanndev.subwave.common;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A logical session multiplexed over another {@link com.tanndev.subwave.common.Connection}, called its carrier.
+ * <p/>
+ * Each session has its own client ID, codec state, and bounded outbound queue, and so behaves like a separate
+ * connection to everything above the transport, while many sessions share the carrier's socket. Frames of a session
+ * are tagged with its stream ID. The carrier takes frames from its ready sessions in turn, a frame at a time, so a
+ * session that fills its queue only holds back its own messages.
+ * <p/>
+ * Sessions are opened by the client with {@link Connection#openSession()}, which requires the {@link
+ * ProtocolFeature#MULTIPLEX} feature. A session is closed when either side closes it, or when its carrier closes.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.SessionHandler
+ */
+public class SessionConnection extends Connection {
+
+   /** Connection carrying this session's frames. */
+   private final Connection carrier;
+
+   /** Multiplexer of the carrier that owns this session. */
+   private final Multiplexer multiplexer;
+
+   /** Stream ID tagging this session's frames. */
+   private final int streamID;
+
+   /** Set once the session has been closed. */
+   private final AtomicBoolean closed = new AtomicBoolean(false);
+
+   /**
+    * Constructor
+    * <p/>
+    * The session uses the features negotiated by its carrier, with a codec of its own. Multicast is left out, as
+    * broadcasts received from the group are delivered to the carrier alone.
+    *
+    * @param carrier     connection carrying the session's frames
+    * @param multiplexer multiplexer of the carrier
+    * @param streamID    stream ID of the session
+    */
+   SessionConnection(Connection carrier, Multiplexer multiplexer, int streamID) {
+      this.carrier = carrier;
+      this.multiplexer = multiplexer;
+      this.streamID = streamID;
+      setPrintMessages(carrier.isPrintMessages());
+      applyFeatures(carrier.getFeatures() & ~ProtocolFeature.MULTICAST.mask);
+   }
+
+   /**
+    * @return stream ID tagging this session's frames
+    */
+   @Override
+   public int getStreamID() {
+      return streamID;
+   }
+
+   /**
+    * @return connection carrying this session's frames
+    */
+   public Connection getCarrier() {
+      return carrier;
+   }
+
+   /**
+    * Sessions cannot be nested.
+    *
+    * @return null
+    */
+   @Override
+   public SessionConnection openSession() {
+      return null;
+   }
+
+   /**
+    * Asks the carrier to take this session's queued frames.
+    */
+   @Override
+   protected void scheduleWrite() {
+      multiplexer.markReady(this);
+   }
+
+   /**
+    * Not supported. Messages on this session are delivered to the carrier's {@link SessionHandler}.
+    *
+    * @return null
+    */
+   @Override
+   public Message receive() {
+      ErrorHandler.logError("Attempted to receive directly from a session.");
+      return null;
+   }
+
+   /**
+    * Always false. Messages on this session are delivered to the carrier's {@link SessionHandler}.
+    *
+    * @return false
+    */
+   @Override
+   public boolean messageAvailable() {
+      return false;
+   }
+
+   /**
+    * Closes the session permanently and tells the remote peer. Any frames still queued are discarded. The carrier is
+    * not affected.
+    */
+   @Override
+   public void close() {
+      close(true);
+   }
+
+   /**
+    * Closes the session permanently.
+    *
+    * @param notifyPeer true to tell the remote peer the session has closed
+    */
+   void close(boolean notifyPeer) {
+      if (!closed.compareAndSet(false, true)) return;
+      discardQueuedFrames();
+      getCodec().close();
+      multiplexer.remove(this);
+      if (notifyPeer) carrier.sendSessionClose(streamID);
+      multiplexer.sessionClosed(this);
+   }
+
+   /**
+    * @return true if the session or its carrier has been closed
+    */
+   @Override
+   public boolean isClosed() {
+      return closed.get() || carrier.isClosed();
+   }
+}
@@ -0,0 +1,37 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Receives the events of the sessions multiplexed over a {@link com.tanndev.subwave.common.Connection}.
+ * <p/>
+ * Handlers are called on the thread that reads from the connection, in the order the frames arrived, so they must not
+ * block. The server sets a default handler for every connection with {@link
+ * Connection#setDefaultSessionHandler(SessionHandler)}; clients set one on each connection they open sessions on.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.SessionConnection
+ */
+public interface SessionHandler {
+
+   /**
+    * Called when the remote peer opens a new session. The handler may close the session to refuse it.
+    *
+    * @param session new session
+    * @param message first message received on the session
+    */
+   void sessionOpened(SessionConnection session, Message message);
+
+   /**
+    * Called when a message is received on an open session.
+    *
+    * @param session session the message was received on
+    * @param message message received
+    */
+   void messageReceived(SessionConnection session, Message message);
+
+   /**
+    * Called once a session has closed, whether it was closed locally, by the remote peer, or along with its carrier.
+    *
+    * @param session session that closed
+    */
+   void sessionClosed(SessionConnection session);
+}
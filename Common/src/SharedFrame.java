@@ -0,0 +1,100 @@
+package com.tanndev.subwave.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message being broadcast to many connections, encoded at most once per stateless codec.
+ * <p/>
+ * The first connection to send the frame with a given stateless {@link com.tanndev.subwave.common.MessageCodec}
+ * encodes it. Every other connection using the same codec instance receives its own read-only view of the same bytes,
+ * so a broadcast to a large conversation costs one encoding instead of one per member. Connections with a stateful
+ * codec still encode the message themselves.
+ * <p/>
+ * Encoded frames are held in pooled buffers. The broadcaster holds one reference and each queued view holds another;
+ * the buffers are returned to the {@link com.tanndev.subwave.common.BufferPool} once the broadcaster has called {@link
+ * #release()} and every view has been written or discarded.
+ *
+ * @author James Tanner
+ * @see com.tanndev.subwave.common.Connection#send(SharedFrame)
+ */
+public class SharedFrame {
+
+   /** Message being broadcast. */
+   public final Message message;
+
+   /** Encoded frames, keyed by the codec instance that produced them. */
+   private final ConcurrentHashMap<MessageCodec, ByteBuffer> frames = new ConcurrentHashMap<MessageCodec, ByteBuffer>(2);
+
+   /** Number of references to the encoded frames, starting with the broadcaster's own. */
+   private final AtomicInteger references = new AtomicInteger(1);
+
+   /**
+    * Constructor
+    * <p/>
+    * The caller must call {@link #release()} once it has finished sending the frame.
+    *
+    * @param message message to broadcast
+    */
+   public SharedFrame(Message message) {
+      this.message = message;
+   }
+
+   /**
+    * Returns a read-only view of the frame encoded with the provided stateless codec, encoding it if necessary. Each
+    * view holds a reference to the frame until it is released.
+    *
+    * @param codec stateless codec used by the sending connection
+    *
+    * @return independent, read-only view of the encoded frame
+    *
+    * @throws IOException if the message cannot be encoded
+    */
+   OutboundFrame getFrame(MessageCodec codec) throws IOException {
+      ByteBuffer frame = frames.get(codec);
+      if (frame == null) {
+         // Two threads may race to encode; both results are identical, so either may win.
+         frame = Connection.encodeFrame(codec, message);
+         ByteBuffer existing = frames.putIfAbsent(codec, frame);
+         if (existing != null) {
+            BufferPool.release(frame);
+            frame = existing;
+         }
+      }
+      references.incrementAndGet();
+      return new OutboundFrame(frame.asReadOnlyBuffer(), this);
+   }
+
+   /**
+    * Adds a reference to the encoded frames, for a holder that sends the frame after the holder it was obtained from
+    * may have released it. Must only be called while that holder's reference is held. The new holder must call {@link
+    * #release()} once it has finished sending.
+    *
+    * @return this frame
+    */
+   public SharedFrame retain() {
+      references.incrementAndGet();
+      return this;
+   }
+
+   /**
+    * @return total size, in bytes, of the pooled buffers holding the frames encoded so far
+    */
+   public int getEncodedBytes() {
+      int bytes = 0;
+      for (ByteBuffer frame : frames.values()) bytes += frame.capacity();
+      return bytes;
+   }
+
+   /**
+    * Releases one reference to the encoded frames. The broadcaster must call this once it has finished sending. The
+    * frames are returned to the pool when the last reference is released.
+    */
+   public void release() {
+      if (references.decrementAndGet() > 0) return;
+      for (ByteBuffer frame : frames.values()) BufferPool.release(frame);
+      frames.clear();
+   }
+}
@@ -0,0 +1,44 @@
+package com.tanndev.subwave.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+/**
+ * Defines the kinds of threads that can run per-connection listeners.
+ * <p/>
+ * {@link #PLATFORM} starts one operating system thread per connection, as Subwave always has. {@link #VIRTUAL} starts
+ * one virtual thread per connection, which costs a few hundred bytes of heap while parked rather than a full thread
+ * stack. Virtual threads are looked up at runtime, so the application still builds and runs on older JVMs.
+ *
+ * @author James Tanner
+ */
+public enum ThreadMode {
+   PLATFORM,
+   VIRTUAL;
+
+   /**
+    * Creates an executor that runs each submitted task on a new thread of this kind.
+    * <p/>
+    * If virtual threads are requested but the running JVM does not support them, an error is logged and platform
+    * threads are used instead.
+    *
+    * @return executor for per-connection listeners
+    */
+   public Executor createExecutor() {
+      if (this == VIRTUAL) {
+         try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+         } catch (Exception e) {
+            ErrorHandler.logError("Virtual threads are not supported by this JVM. Using platform threads.");
+         }
+      }
+
+      return new Executor() {
+         @Override
+         public void execute(Runnable task) {
+            new Thread(task).start();
+         }
+      };
+   }
+}
@@ -0,0 +1,55 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Measures the cost of broadcasting a chat message to rooms of increasing size, encoding it for every recipient as
+ * against encoding it once as a {@link SharedFrame}.
+ * <p/>
+ * Recipients are {@link DiscardingConnection}s, so only the cost of encoding and queuing is measured. They use the
+ * stateless binary codec, the only kind of codec that can share frames. Every room is measured twice, and only the
+ * second is reported, so the JIT compiler has warmed up.
+ * <p/>
+ * Usage: BroadcastBench [sends per room size]
+ *
+ * @author James Tanner
+ */
+public class BroadcastBench {
+
+   /** Total number of messages queued for each room size, divided between its broadcasts, if not given. */
+   private static final int DEFAULT_SENDS = 2000000;
+
+   /** Room sizes measured. */
+   private static final int[] ROOM_SIZES = {10, 100, 1000, 2000};
+
+   public static void main(String[] args) {
+      int sends = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SENDS;
+      Message message = new Message(MessageType.CHAT_MESSAGE, 7, 3, "Hello there, how is everyone doing today?");
+
+      System.out.println(" room  per-recipient us/broadcast  shared us/broadcast  per-recipient ns/member  shared ns/member");
+      for (int roomSize : ROOM_SIZES) {
+         Connection[] room = new Connection[roomSize];
+         for (int i = 0; i < roomSize; i++) room[i] = new DiscardingConnection();
+         int broadcasts = sends / roomSize;
+
+         for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < broadcasts; i++) {
+               for (Connection member : room) member.send(message);
+            }
+            long perRecipient = (System.nanoTime() - start) / broadcasts;
+
+            start = System.nanoTime();
+            for (int i = 0; i < broadcasts; i++) {
+               SharedFrame frame = new SharedFrame(message);
+               for (Connection member : room) member.send(frame);
+               frame.release();
+            }
+            long shared = (System.nanoTime() - start) / broadcasts;
+
+            if (pass == 1) {
+               System.out.println(String.format("%5d  %28.1f  %19.1f  %23d  %16d", roomSize, perRecipient / 1000.0,
+                     shared / 1000.0, perRecipient / roomSize, shared / roomSize));
+            }
+         }
+      }
+   }
+}
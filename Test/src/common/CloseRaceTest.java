@@ -0,0 +1,80 @@
+package com.tanndev.subwave.common;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that closing a connection while other threads send to it leaves no frame queued, so every pooled buffer is
+ * returned to the {@link BufferPool}.
+ * <p/>
+ * Each round connects a socket to a peer that never reads, starts threads sending shared and private frames as fast as
+ * they can, and closes the connection under them. A frame left queued keeps its buffer, and its reference to the shared
+ * frame, forever, so once every round is over and the shared frame is released, every pooled buffer must be back.
+ * <p/>
+ * Usage: CloseRaceTest [rounds]
+ *
+ * @author James Tanner
+ */
+public class CloseRaceTest {
+
+   /** Number of rounds run, if not given. */
+   private static final int DEFAULT_ROUNDS = 500;
+
+   /** Number of threads sending to each connection. */
+   private static final int SENDERS = 4;
+
+   public static void main(String[] args) throws Exception {
+      int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+      ServerSocket server = new ServerSocket(0);
+      SharedFrame sharedFrame = new SharedFrame(new Message(MessageType.CHAT_MESSAGE, 1, 2, "Shared frame."));
+      long outstandingBefore = BufferPool.getOutstandingCount();
+
+      for (int round = 0; round < rounds; round++) {
+         final Connection connection = new Connection(new Socket("localhost", server.getLocalPort()));
+         connection.setPrintMessages(false);
+         Socket peer = server.accept();
+
+         final SharedFrame frame = sharedFrame;
+         final CountDownLatch started = new CountDownLatch(SENDERS);
+         Thread[] senders = new Thread[SENDERS];
+         for (int i = 0; i < SENDERS; i++) {
+            final boolean shared = i % 2 == 0;
+            senders[i] = new Thread() {
+               @Override
+               public void run() {
+                  started.countDown();
+                  while (!connection.isClosed()) {
+                     if (shared) connection.send(frame);
+                     else connection.send(new Message(MessageType.CHAT_MESSAGE, 1, 2, "Private frame."));
+                  }
+               }
+            };
+            senders[i].start();
+         }
+         started.await();
+         Thread.sleep(round % 3);
+         connection.close();
+         for (Thread sender : senders) sender.join();
+         peer.close();
+      }
+
+      // A frame left queued holds a reference to the shared frame, which then keeps its buffer.
+      sharedFrame.release();
+
+      // Writers that were running when their connection closed release their frames as they fail.
+      long deadline = System.currentTimeMillis() + 5000;
+      while (BufferPool.getOutstandingCount() > outstandingBefore && System.currentTimeMillis() < deadline) {
+         Thread.sleep(10);
+      }
+      long leaked = BufferPool.getOutstandingCount() - outstandingBefore;
+      server.close();
+
+      if (leaked > 0) {
+         System.out.println("FAILED: " + leaked + " pooled buffers were never released.");
+         System.exit(1);
+      }
+      System.out.println("OK: " + rounds + " connections closed while sending, no buffers leaked.");
+      System.exit(0);
+   }
+}
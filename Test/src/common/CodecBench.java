@@ -0,0 +1,70 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Compares the size of the payloads produced by each {@link MessageCodec}, and the time taken to encode and decode
+ * them.
+ * <p/>
+ * Each codec encodes a stream of messages with a typical chat line and then decodes it in order, as a connection
+ * would. The first payload is reported on its own, as Java serialization sends its class descriptors with it. Every
+ * measurement is taken twice, and only the second is reported, so the JIT compiler has warmed up.
+ * <p/>
+ * Usage: CodecBench [messages]
+ *
+ * @author James Tanner
+ */
+public class CodecBench {
+
+   /** Number of messages encoded and decoded by each measurement, if not given. */
+   private static final int DEFAULT_MESSAGES = 200000;
+
+   /**
+    * Body of every message, a typical chat line. Each message is given its own copy, as real messages are, since Java
+    * serialization would otherwise send a reference to the string already sent.
+    */
+   private static final String BODY = "Hello there, how is everyone doing today?";
+
+   public static void main(String[] args) throws Exception {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+
+      System.out.println("Codec                first  steady  encode ns/op  decode ns/op");
+      for (int pass = 0; pass < 2; pass++) {
+         boolean report = pass == 1;
+         measure("SerializationCodec", new SerializationCodec(), new SerializationCodec(), messages, report);
+         measure("BinaryCodec", BinaryCodec.INSTANCE, BinaryCodec.INSTANCE, messages, report);
+      }
+   }
+
+   /**
+    * Encodes a stream of messages, then decodes it in order.
+    *
+    * @param name     name of the codec, for the report
+    * @param encoder  codec encoding the stream
+    * @param decoder  codec decoding the stream, which must be a fresh instance if the codec is stateful
+    * @param messages number of messages in the stream
+    * @param report   true to print the results
+    */
+   static void measure(String name, MessageCodec encoder, MessageCodec decoder, int messages, boolean report)
+         throws Exception {
+      byte[][] payloads = new byte[messages][];
+      long steadyBytes = 0;
+
+      long start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+         payloads[i] = encoder.encode(new Message(MessageType.CHAT_MESSAGE, 1234, 5678 + i, new String(BODY)));
+      }
+      long encodeNanos = System.nanoTime() - start;
+      for (int i = 1; i < messages; i++) steadyBytes += payloads[i].length;
+
+      start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+         Message message = decoder.decode(payloads[i], 0, payloads[i].length);
+         if (message.clientID != 5678 + i) throw new IllegalStateException(name + " decoded the wrong message.");
+      }
+      long decodeNanos = System.nanoTime() - start;
+
+      if (report) {
+         System.out.println(String.format("%-20s %5d  %6.1f  %12d  %12d", name, payloads[0].length,
+               (double) steadyBytes / (messages - 1), encodeNanos / messages, decodeNanos / messages));
+      }
+   }
+}
@@ -0,0 +1,31 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Connection that releases every frame as soon as it is queued, in place of a socket, so benchmarks measure only the
+ * cost of encoding and queuing. Uses the stateless binary codec, so broadcast frames are shared.
+ *
+ * @author James Tanner
+ */
+public class DiscardingConnection extends Connection {
+
+   /**
+    * Constructor
+    */
+   public DiscardingConnection() {
+      setPrintMessages(false);
+      applyFeatures(ProtocolFeature.BINARY_CODEC.mask);
+   }
+
+   @Override
+   protected void scheduleWrite() {
+      do {
+         OutboundFrame frame;
+         while ((frame = pollFrame()) != null) frame.release();
+      } while (completeWrite());
+   }
+
+   @Override
+   public boolean isClosed() {
+      return false;
+   }
+}
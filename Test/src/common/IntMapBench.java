@@ -0,0 +1,317 @@
+package com.tanndev.subwave.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link ConcurrentIntMap} with the {@link ConcurrentHashMap} of boxed IDs it replaced, at 100,000 entries.
+ * <p/>
+ * The map is first checked against a {@link HashMap} over millions of random operations, and then while writers add
+ * and remove keys and readers look up others, checking readers never see a value beside the wrong key. It is then
+ * measured for:
+ * <ul>
+ * <li>the memory held by the map, excluding its values;</li>
+ * <li>the time taken and bytes allocated by each lookup of a key present and a key missing;</li>
+ * <li>the time taken and bytes allocated by adding and removing a fresh key, as clients sign on and off;</li>
+ * <li>the latency of lookups, timed in batches of 64 to stay above the resolution of the clock.</li>
+ * </ul>
+ * Allocation is read from the JVM's per-thread counters, which every HotSpot JVM provides. The project has no
+ * benchmark framework, so each measurement is simply repeated until the JIT has settled.
+ * <p/>
+ * Usage: IntMapBench
+ *
+ * @author James Tanner
+ */
+public class IntMapBench {
+
+   /** Number of entries in the maps measured. */
+   private static final int ENTRIES = 100000;
+
+   /** Number of random operations checked against a {@link HashMap}. */
+   private static final int CHECKED_OPERATIONS = 2000000;
+
+   /** Time the concurrent check runs for, in milliseconds. */
+   private static final long CONCURRENT_CHECK_MILLIS = 5000;
+
+   /** Number of lookups in each timed run. */
+   private static final int LOOKUPS = 20000000;
+
+   /** Number of fresh keys added and removed in each timed run. */
+   private static final int CHURN = 2000000;
+
+   /** Number of lookups timed together when measuring latency. */
+   private static final int BATCH = 64;
+
+   /** Written with the results of lookups, so they are not optimised away. */
+   static volatile long sink;
+
+   /** Counters of the bytes allocated by each thread. */
+   private static final com.sun.management.ThreadMXBean threads =
+         (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+   /**
+    * A value stored under its own key, so a reader can tell whether it was given the value of another key.
+    */
+   private static class Value {
+
+      final int key;
+
+      Value(int key) {
+         this.key = key;
+      }
+   }
+
+   /**
+    * The lookup measured, on either kind of map.
+    */
+   private interface Lookup {
+
+      Value get(int key);
+   }
+
+   public static void main(String[] args) throws Exception {
+      checkSequential();
+      checkConcurrent();
+
+      long before = usedMemory();
+      final ConcurrentHashMap<Integer, Value> boxed = new ConcurrentHashMap<Integer, Value>();
+      for (int key = 1; key <= ENTRIES; key++) boxed.put(key, new Value(key));
+      long afterBoxed = usedMemory();
+      final ConcurrentIntMap<Value> unboxed = new ConcurrentIntMap<Value>();
+      for (int key = 1; key <= ENTRIES; key++) unboxed.put(key, new Value(key));
+      long afterUnboxed = usedMemory();
+      long values = 16L * ENTRIES;
+      System.out.println(String.format("Memory held at %d entries, excluding values: boxed %.1f MB, int map %.1f MB",
+            ENTRIES, (afterBoxed - before - values) / 1e6, (afterUnboxed - afterBoxed - values) / 1e6));
+
+      Lookup boxedLookup = new Lookup() {
+         @Override
+         public Value get(int key) {
+            return boxed.get(key);
+         }
+      };
+      Lookup unboxedLookup = new Lookup() {
+         @Override
+         public Value get(int key) {
+            return unboxed.get(key);
+         }
+      };
+
+      Random random = new Random(7);
+      int[] present = new int[1 << 20];
+      int[] missing = new int[1 << 20];
+      for (int i = 0; i < present.length; i++) {
+         present[i] = 1 + random.nextInt(ENTRIES);
+         missing[i] = ENTRIES + 1 + random.nextInt(1 << 30);
+      }
+
+      System.out.println("Lookups, time and bytes allocated per lookup:");
+      for (int pass = 0; pass < 6; pass++) {
+         double[] boxedHit = measureLookups(boxedLookup, present);
+         double[] unboxedHit = measureLookups(unboxedLookup, present);
+         double[] boxedMiss = measureLookups(boxedLookup, missing);
+         double[] unboxedMiss = measureLookups(unboxedLookup, missing);
+         if (pass < 4) continue;
+         System.out.println(String.format("   present: boxed %5.1f ns %4.1f B, int map %5.1f ns %4.1f B", boxedHit[0],
+               boxedHit[1], unboxedHit[0], unboxedHit[1]));
+         System.out.println(String.format("   missing: boxed %5.1f ns %4.1f B, int map %5.1f ns %4.1f B", boxedMiss[0],
+               boxedMiss[1], unboxedMiss[0], unboxedMiss[1]));
+      }
+
+      System.out.println("Adding and removing a fresh key, time and bytes allocated per pair:");
+      for (int pass = 0; pass < 3; pass++) {
+         long thread = Thread.currentThread().getId();
+         Value value = new Value(0);
+         long allocated = threads.getThreadAllocatedBytes(thread);
+         long start = System.nanoTime();
+         for (int i = 1; i <= CHURN; i++) {
+            boxed.put(ENTRIES + i, value);
+            boxed.remove(ENTRIES + i);
+         }
+         long boxedAllocated = threads.getThreadAllocatedBytes(thread) - allocated;
+         long boxedNanos = System.nanoTime() - start;
+         allocated = threads.getThreadAllocatedBytes(thread);
+         start = System.nanoTime();
+         for (int i = 1; i <= CHURN; i++) {
+            unboxed.put(ENTRIES + i, value);
+            unboxed.remove(ENTRIES + i);
+         }
+         long unboxedAllocated = threads.getThreadAllocatedBytes(thread) - allocated;
+         long unboxedNanos = System.nanoTime() - start;
+         if (pass < 2) continue;
+         System.out.println(String.format("   boxed %5.1f ns %4.1f B, int map %5.1f ns %4.1f B",
+               (double) boxedNanos / CHURN, (double) boxedAllocated / CHURN, (double) unboxedNanos / CHURN,
+               (double) unboxedAllocated / CHURN));
+      }
+
+      System.out.println("Latency of lookups of a present key:");
+      measureLatency(boxedLookup, present);
+      measureLatency(unboxedLookup, present);
+      printLatency("boxed  ", measureLatency(boxedLookup, present));
+      printLatency("int map", measureLatency(unboxedLookup, present));
+   }
+
+   /**
+    * Checks the map against a {@link HashMap} over random operations on a small range of keys, including negative ones.
+    */
+   private static void checkSequential() {
+      Random random = new Random(1);
+      ConcurrentIntMap<Value> map = new ConcurrentIntMap<Value>();
+      HashMap<Integer, Value> expected = new HashMap<Integer, Value>();
+      for (int i = 0; i < CHECKED_OPERATIONS; i++) {
+         int key = random.nextInt(5000) - 100;
+         Value value = new Value(key);
+         switch (random.nextInt(4)) {
+            case 0:
+               check(map.put(key, value) == expected.put(key, value), "put");
+               break;
+            case 1:
+               Value previous = expected.get(key);
+               if (previous == null) expected.put(key, value);
+               check(map.putIfAbsent(key, value) == previous, "putIfAbsent");
+               break;
+            case 2:
+               check(map.remove(key) == expected.remove(key), "remove");
+               break;
+            default:
+               check(map.get(key) == expected.get(key), "get");
+         }
+         if (i % 100000 == 0) {
+            check(map.size() == expected.size(), "size");
+            check(new HashSet<Value>(map.values()).equals(new HashSet<Value>(expected.values())), "values");
+         }
+      }
+      System.out.println("Checked " + CHECKED_OPERATIONS + " random operations against HashMap.");
+   }
+
+   /**
+    * Checks that readers never see a value beside the wrong key, nor miss a key that is never removed, while writers
+    * add and remove other keys.
+    */
+   private static void checkConcurrent() throws InterruptedException {
+      final ConcurrentIntMap<Value> map = new ConcurrentIntMap<Value>();
+      final int stable = 1000;
+      for (int key = 0; key < stable; key++) map.put(key, new Value(key));
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong wrong = new AtomicLong();
+
+      Thread[] workers = new Thread[6];
+      for (int i = 0; i < workers.length; i++) {
+         final Random random = new Random(i);
+         if (i < workers.length / 2) {
+            workers[i] = new Thread() {
+               @Override
+               public void run() {
+                  while (!stop.get()) {
+                     int key = stable + random.nextInt(20000);
+                     if (random.nextBoolean()) map.put(key, new Value(key));
+                     else map.remove(key);
+                  }
+               }
+            };
+         } else {
+            workers[i] = new Thread() {
+               @Override
+               public void run() {
+                  long count = 0;
+                  while (!stop.get()) {
+                     int key = random.nextInt(stable + 20000);
+                     Value value = map.get(key);
+                     if (value == null ? key < stable : value.key != key) wrong.incrementAndGet();
+                     count++;
+                  }
+                  reads.addAndGet(count);
+               }
+            };
+         }
+      }
+      for (Thread worker : workers) worker.start();
+      Thread.sleep(CONCURRENT_CHECK_MILLIS);
+      stop.set(true);
+      for (Thread worker : workers) worker.join();
+      check(wrong.get() == 0, wrong.get() + " wrong or missing values");
+      System.out.println("Checked " + reads.get() + " reads while 3 threads wrote.");
+   }
+
+   /**
+    * Measures lookups of keys taken in turn from an array.
+    *
+    * @param lookup lookup to measure
+    * @param keys   keys to look up, a power of two in number
+    *
+    * @return nanoseconds and bytes allocated per lookup
+    */
+   private static double[] measureLookups(Lookup lookup, int[] keys) {
+      long thread = Thread.currentThread().getId();
+      long found = 0;
+      long allocated = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < LOOKUPS; i++) {
+         if (lookup.get(keys[i & (keys.length - 1)]) != null) found++;
+      }
+      long nanos = System.nanoTime() - start;
+      allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+      sink += found;
+      return new double[]{(double) nanos / LOOKUPS, (double) allocated / LOOKUPS};
+   }
+
+   /**
+    * Times batches of lookups of keys taken in turn from an array.
+    *
+    * @param lookup lookup to measure
+    * @param keys   keys to look up, a power of two in number
+    *
+    * @return nanoseconds taken by each batch, sorted
+    */
+   private static long[] measureLatency(Lookup lookup, int[] keys) {
+      long[] batches = new long[200000];
+      int next = 0;
+      long found = 0;
+      for (int batch = 0; batch < batches.length; batch++) {
+         long start = System.nanoTime();
+         for (int i = 0; i < BATCH; i++) {
+            if (lookup.get(keys[next++ & (keys.length - 1)]) != null) found++;
+         }
+         batches[batch] = System.nanoTime() - start;
+      }
+      sink += found;
+      Arrays.sort(batches);
+      return batches;
+   }
+
+   /**
+    * Prints percentiles of the time taken per lookup.
+    *
+    * @param label   name of the kind of map, for the report
+    * @param batches nanoseconds taken by each batch, sorted
+    */
+   private static void printLatency(String label, long[] batches) {
+      System.out.println(String.format("   %s: p50 %5.1f ns, p99 %5.1f ns, p99.9 %6.1f ns", label,
+            (double) batches[batches.length / 2] / BATCH, (double) batches[batches.length * 99 / 100] / BATCH,
+            (double) batches[batches.length * 999 / 1000] / BATCH));
+   }
+
+   /**
+    * @return bytes of heap in use once garbage has been collected
+    */
+   private static long usedMemory() {
+      for (int i = 0; i < 4; i++) System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+   /**
+    * @param condition condition expected to hold
+    * @param failure   description of the failure, if it does not
+    */
+   private static void check(boolean condition, String failure) {
+      if (!condition) throw new AssertionError(failure);
+   }
+}
@@ -0,0 +1,86 @@
+package com.tanndev.subwave.common;
+
+/**
+ * Checks that the {@link SerializationCodec} holds a steady amount of memory however many messages pass through it.
+ * <p/>
+ * Millions of chat messages are encoded and decoded by a pair of codecs, as by the two ends of a connection. The heap
+ * is measured after garbage collection at five checkpoints. Once the first has been passed, it must not grow by more
+ * than {@link #MAX_HEAP_GROWTH}, and neither stream may retain more than the reset threshold and one message.
+ * <p/>
+ * Given "noreset", the encoder never resets its stream, which shows the growth the resets prevent. The test then
+ * reports its measurements without failing.
+ * <p/>
+ * Usage: SerializationSoakTest [messages] [noreset]
+ *
+ * @author James Tanner
+ */
+public class SerializationSoakTest {
+
+   /** Number of messages passed through the codecs, if not given. */
+   private static final long DEFAULT_MESSAGES = 3000000;
+
+   /** Number of checkpoints at which memory is measured. */
+   private static final int CHECKPOINTS = 5;
+
+   /** Largest growth in heap use allowed after the first checkpoint, in bytes. */
+   private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+
+   /** Largest size allowed for a single message, in bytes, when checking what the streams retain. */
+   private static final long MAX_MESSAGE_SIZE = 1024;
+
+   public static void main(String[] args) throws Exception {
+      long messages = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MESSAGES;
+      boolean reset = args.length < 2 || !args[1].equals("noreset");
+
+      SerializationCodec encoder;
+      if (reset) encoder = new SerializationCodec();
+      else encoder = new SerializationCodec(Integer.MAX_VALUE, Integer.MAX_VALUE);
+      SerializationCodec decoder = new SerializationCodec();
+
+      long maxRetained = Defaults.DEFAULT_SERIALIZATION_RESET_BYTES + MAX_MESSAGE_SIZE;
+      long firstCheckpoint = -1;
+      boolean failed = false;
+      long bytes = 0;
+      long start = System.nanoTime();
+
+      for (long i = 1; i <= messages; i++) {
+         Message message = new Message(MessageType.CHAT_MESSAGE, 7, 3, "Message number " + i);
+         byte[] payload = encoder.encode(message);
+         bytes += payload.length;
+         Message decoded = decoder.decode(payload, 0, payload.length);
+         if (!decoded.messageBody.equals(message.messageBody)) {
+            System.out.println("FAILED: message " + i + " was decoded as \"" + decoded.messageBody + "\".");
+            System.exit(1);
+         }
+
+         if (i % (messages / CHECKPOINTS) != 0) continue;
+         long heap = heapUsed();
+         if (firstCheckpoint < 0) firstCheckpoint = heap;
+         System.out.println(String.format("%,12d messages: heap %+7.1f MB since first checkpoint, " +
+               "retained %,d B out, %,d B in, %d resets", i, (heap - firstCheckpoint) / 1e6,
+               encoder.getRetainedOutputBytes(), decoder.getRetainedInputBytes(), encoder.getResetCount()));
+         if (heap - firstCheckpoint > MAX_HEAP_GROWTH || encoder.getRetainedOutputBytes() > maxRetained ||
+               decoder.getRetainedInputBytes() > maxRetained) {
+            failed = true;
+         }
+      }
+      System.out.println(String.format("%.0f ns and %.1f bytes per message", (System.nanoTime() - start) /
+            (double) messages, bytes / (double) messages));
+
+      if (!reset) return;
+      if (failed) {
+         System.out.println("FAILED: memory held by the codecs kept growing.");
+         System.exit(1);
+      }
+      System.out.println("OK: memory held by the codecs stayed steady over " + messages + " messages.");
+   }
+
+   /**
+    * @return bytes of heap in use after garbage collection
+    */
+   private static long heapUsed() {
+      for (int i = 0; i < 3; i++) System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,63 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Signs on many clients from a second JVM, so a benchmark running the server counts only the server's costs.
+ * <p/>
+ * The clients either sit idle, never reading, or each read and discard everything they are sent on a thread of their
+ * own. They stay connected until the process is destroyed.
+ * <p/>
+ * Usage: ClientProcess port clients idle|read
+ *
+ * @author James Tanner
+ */
+public class ClientProcess {
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      int port = Integer.parseInt(args[0]);
+      int clients = Integer.parseInt(args[1]);
+      boolean read = args[2].equals("read");
+
+      ArrayList<Connection> connections = new ArrayList<Connection>(clients);
+      for (int i = 0; i < clients; i++) {
+         final Connection connection = TestSupport.connect(port, "client" + i);
+         connections.add(connection);
+         if (!read) continue;
+         Thread reader = new Thread() {
+            @Override
+            public void run() {
+               while (connection.receive() != null) {
+                  // Discard every message.
+               }
+            }
+         };
+         reader.setDaemon(true);
+         reader.start();
+      }
+      Thread.sleep(Long.MAX_VALUE);
+   }
+
+   /**
+    * Starts a second JVM, with the same class path as this one, signing on clients.
+    *
+    * @param port    port of the server
+    * @param clients number of clients to sign on
+    * @param read    true to read and discard everything the clients are sent, false to leave them idle
+    *
+    * @return the process, which must be destroyed once the benchmark is over
+    *
+    * @throws IOException if the process cannot be started
+    */
+   public static Process start(int port, int clients, boolean read) throws IOException {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            ClientProcess.class.getName(), Integer.toString(port), Integer.toString(clients), read ? "read" : "idle");
+      builder.redirectErrorStream(true);
+      return builder.start();
+   }
+}
@@ -0,0 +1,284 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.ProtocolFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks three nodes of a {@link Cluster} on this machine, each with one client, and the loss of one node.
+ * <p/>
+ * The first node runs in this JVM, and the other two in JVMs of their own, as server state is held per JVM. Once the
+ * nodes are linked, every client must be told of the clients of the other nodes. A conversation on the first node is
+ * then joined by the clients of the other two through an invitation delivered to another node, and one routed through
+ * the owner. Chat messages sent from any node must reach every member. A second conversation is owned by the third
+ * node, and the first client joins it.
+ * <p/>
+ * The third node is then killed. The remaining clients must be told its client disconnected, the first conversation
+ * must announce it left, and the first client must be refused the conversation the lost node owned, both unprompted
+ * and when it sends to it. Chat between the remaining nodes must carry on.
+ * <p/>
+ * Clients do not accept {@link ProtocolFeature#PRESENCE}, so each sign-on and sign-off arrives as a message of its own.
+ * <p/>
+ * Usage: ClusterTest port, or ClusterTest node index port to run one of the other nodes. Nodes take client ports from
+ * the port given, and cluster ports from ten above it.
+ *
+ * @author James Tanner
+ */
+public class ClusterTest {
+
+   /** Number of nodes in the cluster. */
+   private static final int NODE_COUNT = 3;
+
+   /** Distance from a node's client port to its cluster port. */
+   private static final int CLUSTER_PORT_OFFSET = 10;
+
+   /** Longest time to wait for a message or for the cluster to link, in milliseconds. */
+   private static final long TIMEOUT = 10000;
+
+   /** Matches any conversationID or clientID when awaiting a message. */
+   private static final int ANY = -1;
+
+   /**
+    * Messages received by each client and not yet awaited. Messages are kept until awaited, as the cluster does not
+    * order presence changes against conversation messages. Each list is its own monitor.
+    */
+   private static final ConcurrentHashMap<Connection, List<Message>> inboxes =
+         new ConcurrentHashMap<Connection, List<Message>>();
+
+   public static void main(String[] args) throws Exception {
+      if (args[0].equals("node")) {
+         runNode(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+         return;
+      }
+      int port = Integer.parseInt(args[0]);
+      PrintStream out = TestSupport.silenceOutput();
+
+      // The other nodes are killed however the test ends.
+      final Process[] nodes = new Process[NODE_COUNT];
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         @Override
+         public void run() {
+            for (Process node : nodes) if (node != null) node.destroy();
+         }
+      });
+      startNode(0, port);
+      for (int i = 1; i < NODE_COUNT; i++) nodes[i] = startProcess(i, port);
+      Cluster cluster = SubwaveServer.getCluster();
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (cluster.getLinks().length < NODE_COUNT - 1) {
+         TestSupport.check(System.currentTimeMillis() < deadline, "Only " + cluster.getLinks().length + " of " +
+               (NODE_COUNT - 1) + " nodes linked.");
+         Thread.sleep(50);
+      }
+
+      // Every client is told of the clients of the other nodes.
+      int allowed = ProtocolFeature.offeredFeatures() & ~ProtocolFeature.PRESENCE.mask;
+      Connection[] clients = new Connection[NODE_COUNT];
+      for (int i = 0; i < NODE_COUNT; i++) clients[i] = connect(port + i, "client" + i, allowed);
+      for (int i = 0; i < NODE_COUNT; i++) {
+         TestSupport.check(cluster.nodeOf(clients[i].getClientID()) == i, "Client of node " + i + " was given ID " +
+               clients[i].getClientID() + ".");
+         for (int j = 0; j < NODE_COUNT; j++) {
+            if (j != i) await(clients[i], MessageType.NETWORK_CONNECT, ANY, clients[j].getClientID());
+         }
+      }
+      Connection first = clients[0];
+      Connection second = clients[1];
+      Connection third = clients[2];
+
+      // The first client invites the second to its conversation, over the link to the second node.
+      first.send(new Message(MessageType.CONVERSATION_NEW, 0, first.getClientID(), "room"));
+      int room = await(first, MessageType.CONVERSATION_INVITE, ANY, ANY).conversationID;
+      first.send(new Message(MessageType.CONVERSATION_JOIN, room, first.getClientID(), "join"));
+      await(first, MessageType.CONVERSATION_JOIN, room, first.getClientID());
+      first.send(new Message(MessageType.CONVERSATION_INVITE, room, second.getClientID(), "invite"));
+      await(second, MessageType.CONVERSATION_INVITE, room, first.getClientID());
+      second.send(new Message(MessageType.CONVERSATION_JOIN, room, second.getClientID(), "join"));
+      await(second, MessageType.CONVERSATION_JOIN, room, second.getClientID());
+
+      // The second invites the third, routed through the first node, which owns the conversation.
+      second.send(new Message(MessageType.CONVERSATION_INVITE, room, third.getClientID(), "invite"));
+      await(third, MessageType.CONVERSATION_INVITE, room, second.getClientID());
+      third.send(new Message(MessageType.CONVERSATION_JOIN, room, third.getClientID(), "join"));
+      for (Connection client : clients) await(client, MessageType.CONVERSATION_JOIN, room, third.getClientID());
+
+      // Chat from each node reaches every member.
+      for (int i = 0; i < NODE_COUNT; i++) {
+         String text = "hello from node " + i;
+         clients[i].send(new Message(MessageType.CHAT_MESSAGE, room, clients[i].getClientID(), text));
+         for (Connection client : clients) {
+            Message message = await(client, MessageType.CHAT_MESSAGE, room, clients[i].getClientID());
+            TestSupport.check(text.equals(message.messageBody), "Received '" + message.messageBody + "' in place of '" +
+                  text + "'.");
+         }
+      }
+
+      // The first client joins a conversation owned by the third node.
+      third.send(new Message(MessageType.CONVERSATION_NEW, 0, third.getClientID(), "far"));
+      int far = await(third, MessageType.CONVERSATION_INVITE, ANY, ANY).conversationID;
+      TestSupport.check(cluster.nodeOf(far) == 2, "Conversation created on node 2 belongs to node " +
+            cluster.nodeOf(far) + ".");
+      third.send(new Message(MessageType.CONVERSATION_JOIN, far, third.getClientID(), "join"));
+      await(third, MessageType.CONVERSATION_JOIN, far, third.getClientID());
+      third.send(new Message(MessageType.CONVERSATION_INVITE, far, first.getClientID(), "invite"));
+      await(first, MessageType.CONVERSATION_INVITE, far, third.getClientID());
+      first.send(new Message(MessageType.CONVERSATION_JOIN, far, first.getClientID(), "join"));
+      await(first, MessageType.CONVERSATION_JOIN, far, first.getClientID());
+
+      // Kill the third node.
+      long killed = System.nanoTime();
+      nodes[2].destroy();
+      nodes[2].waitFor();
+      await(first, MessageType.NETWORK_DISCONNECT, ANY, third.getClientID());
+      await(second, MessageType.NETWORK_DISCONNECT, ANY, third.getClientID());
+      long lostMillis = (System.nanoTime() - killed) / 1000000;
+      await(first, MessageType.CONVERSATION_LEAVE, room, third.getClientID());
+      Message refusal = await(first, MessageType.REFUSE, far, ANY);
+      TestSupport.check(Message.INVALID_CONVERSATION.equals(refusal.messageBody), "Conversation of the lost node " +
+            "was refused with '" + refusal.messageBody + "'.");
+      first.send(new Message(MessageType.CHAT_MESSAGE, far, first.getClientID(), "anyone there?"));
+      refusal = await(first, MessageType.REFUSE, ANY, first.getClientID());
+      TestSupport.check(Message.INVALID_CONVERSATION.equals(refusal.messageBody), "Message to the lost node was " +
+            "refused with '" + refusal.messageBody + "'.");
+
+      // The remaining nodes still chat.
+      second.send(new Message(MessageType.CHAT_MESSAGE, room, second.getClientID(), "still here"));
+      await(first, MessageType.CHAT_MESSAGE, room, second.getClientID());
+      TestSupport.check(cluster.getLinks().length == NODE_COUNT - 2, cluster.getLinks().length + " links remain.");
+
+      out.println("OK: " + NODE_COUNT + " nodes shared presence, routed invitations, joins and chat, and announced " +
+            "the lost node " + lostMillis + " ms after it was killed.");
+      System.exit(0);
+   }
+
+   /**
+    * Runs one of the other nodes until the test ends, which closes its standard in.
+    *
+    * @param index index of the node
+    * @param port  client port of the first node
+    */
+   private static void runNode(int index, int port) throws IOException {
+      TestSupport.silenceOutput();
+      startNode(index, port);
+      while (System.in.read() >= 0) {
+         // Wait for the test to end.
+      }
+      System.exit(0);
+   }
+
+   /**
+    * Makes this JVM a node of the cluster, and starts listening for clients.
+    *
+    * @param index index of the node
+    * @param port  client port of the first node
+    */
+   private static void startNode(int index, int port) throws IOException {
+      InetSocketAddress[] addresses = new InetSocketAddress[NODE_COUNT];
+      for (int i = 0; i < NODE_COUNT; i++) {
+         addresses[i] = new InetSocketAddress("localhost", port + CLUSTER_PORT_OFFSET + i);
+      }
+      SubwaveServer.setCluster(index, addresses);
+      SubwaveServer.getCluster().start();
+      new SocketListener(port + index).start();
+   }
+
+   /**
+    * Starts another JVM, with the same class path as this one, running one of the other nodes. Its errors are passed
+    * through to this JVM's.
+    *
+    * @param index index of the node
+    * @param port  client port of the first node
+    *
+    * @return the process, which ends when destroyed or when this JVM exits
+    */
+   private static Process startProcess(int index, int port) throws IOException {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            ClusterTest.class.getName(), "node", Integer.toString(index), Integer.toString(port));
+      builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+      return builder.start();
+   }
+
+   /**
+    * Signs on to a node, retrying until it listens, and reads everything the client is sent on a thread of its own.
+    *
+    * @param port     client port of the node
+    * @param nickname nickname to sign on with
+    * @param allowed  mask of the features that may be accepted
+    *
+    * @return connection, whose messages are read with {@link #await(Connection, MessageType, int, int)}
+    */
+   private static Connection connect(int port, String nickname, int allowed) throws Exception {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (true) {
+         try {
+            final Connection connection = TestSupport.connect(port, nickname, allowed);
+            final List<Message> inbox = new LinkedList<Message>();
+            inboxes.put(connection, inbox);
+            Thread reader = new Thread() {
+               @Override
+               public void run() {
+                  Message message;
+                  while ((message = connection.receive()) != null) {
+                     synchronized (inbox) {
+                        inbox.add(message);
+                        inbox.notifyAll();
+                     }
+                  }
+               }
+            };
+            reader.setDaemon(true);
+            reader.start();
+            return connection;
+         } catch (IOException e) {
+            TestSupport.check(System.currentTimeMillis() < deadline, "Could not sign on to port " + port + ": " +
+                  e.getMessage());
+            Thread.sleep(100);
+         }
+      }
+   }
+
+   /**
+    * Takes the first matching message received by a client, waiting for one to arrive, and failing the test if none
+    * arrives in time. Other messages are left to be awaited later.
+    *
+    * @param connection     client to receive on
+    * @param type           type of message expected
+    * @param conversationID conversationID expected, or {@link #ANY}
+    * @param clientID       clientID expected, or {@link #ANY}
+    *
+    * @return message expected
+    */
+   private static Message await(Connection connection, MessageType type, int conversationID, int clientID)
+         throws InterruptedException {
+      List<Message> inbox = inboxes.get(connection);
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      synchronized (inbox) {
+         while (true) {
+            for (Iterator<Message> messages = inbox.iterator(); messages.hasNext(); ) {
+               Message message = messages.next();
+               if (message.messageType != type) continue;
+               if (conversationID != ANY && message.conversationID != conversationID) continue;
+               if (clientID != ANY && message.clientID != clientID) continue;
+               messages.remove();
+               return message;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            TestSupport.check(remaining > 0, "Client " + connection.getClientID() + " never received " + type +
+                  (conversationID == ANY ? "" : " for conversation " + conversationID) +
+                  (clientID == ANY ? "" : " with clientID " + clientID) + ".");
+            inbox.wait(remaining);
+         }
+      }
+   }
+}
@@ -0,0 +1,104 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.ThreadMode;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures what idle connections cost the server under each listener: the platform threads it runs, and the heap and
+ * resident memory it holds, once every client has signed on.
+ * <p/>
+ * The clients are signed on by a {@link ClientProcess}, so only the server's costs are counted. Each listener should be
+ * measured in a fresh JVM, as the "bench.footprint" Ant target does.
+ * <p/>
+ * Usage: FootprintBench thread|virtual|nio clients port
+ *
+ * @author James Tanner
+ */
+public class FootprintBench {
+
+   /** Longest time allowed for every client to sign on, in milliseconds. */
+   private static final long SIGN_ON_TIMEOUT = 120000;
+
+   /** Time allowed after the last sign-on for presence announcements to settle, in milliseconds. */
+   private static final long SETTLE_TIME = 2000;
+
+   public static void main(String[] args) throws Exception {
+      String mode = args[0];
+      int clients = Integer.parseInt(args[1]);
+      int port = Integer.parseInt(args[2]);
+
+      PrintStream out = TestSupport.silenceOutput();
+      if (mode.equals("nio")) {
+         new SelectorListener(port, Defaults.DEFAULT_EVENT_LOOP_THREADS).start();
+      } else if (mode.equals("virtual")) {
+         Connection.setWriterExecutor(ThreadMode.VIRTUAL.createExecutor());
+         new SocketListener(port, ThreadMode.VIRTUAL.createExecutor()).start();
+      } else {
+         new SocketListener(port, ThreadMode.PLATFORM.createExecutor()).start();
+      }
+      Thread.sleep(500);
+      long[] before = measure();
+
+      Process clientProcess = ClientProcess.start(port, clients, false);
+      try {
+         TestSupport.awaitClients(clients, SIGN_ON_TIMEOUT);
+         Thread.sleep(SETTLE_TIME);
+         long[] after = measure();
+
+         out.println("Listener: " + mode + ", idle clients: " + clients);
+         out.println("   platform threads: " + before[0] + " -> " + after[0]);
+         out.println("   heap used:        " + before[1] / 1024 + " KB -> " + after[1] / 1024 + " KB, " +
+               (after[1] - before[1]) / clients + " bytes per client");
+         if (after[2] >= 0) {
+            out.println("   resident memory:  " + before[2] / 1024 + " KB -> " + after[2] / 1024 + " KB, " +
+                  (after[2] - before[2]) / clients + " bytes per client");
+         }
+      } finally {
+         clientProcess.destroy();
+      }
+      System.exit(0);
+   }
+
+   /**
+    * @return platform thread count, heap used after collection, and resident memory or -1 if unknown, in bytes
+    */
+   private static long[] measure() throws InterruptedException {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+         Thread.sleep(100);
+      }
+      Runtime runtime = Runtime.getRuntime();
+      long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+      long heap = runtime.totalMemory() - runtime.freeMemory();
+      return new long[]{threads, heap, residentMemory()};
+   }
+
+   /**
+    * Reads the resident memory of this process from /proc, which is only available on Linux.
+    *
+    * @return resident memory, in bytes, or -1 if unknown
+    */
+   private static long residentMemory() {
+      try {
+         BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.startsWith("VmRSS:")) return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (IOException e) {
+         // Not available on this platform.
+      }
+      return -1;
+   }
+}
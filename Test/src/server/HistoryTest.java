@@ -0,0 +1,223 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.HistoryEntry;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.ProtocolFeature;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the pages of history a member fetches from the server, with the message log off or under one {@link
+ * MessageLog.SyncPolicy}.
+ * <p/>
+ * One client chats in a conversation, then keeps chatting while a second joins and asks for the latest page. The page
+ * must be cut exactly between the messages the second client received live: every message received before the page
+ * is in it, and the first received after it follows its newest. The second client then pages back to the first
+ * message, and every page must continue the one before. Finally, a client that is not a member, and a client that did
+ * not accept the {@link ProtocolFeature#HISTORY} feature, must both be refused. With the log off, the page must be
+ * empty.
+ * <p/>
+ * Usage: HistoryTest port off|none|periodic|group [directory]
+ *
+ * @author James Tanner
+ */
+public class HistoryTest {
+
+   /** Number of messages sent before the second client joins. Every seventh is an emote. */
+   private static final int EARLY_COUNT = 230;
+
+   /** Number of messages sent while the second client joins. */
+   private static final int LIVE_COUNT = 300;
+
+   /** Size of the first page asked for. */
+   private static final int FIRST_PAGE_SIZE = 50;
+
+   /** Size of each older page asked for. */
+   private static final int OLDER_PAGE_SIZE = 100;
+
+   public static void main(String[] args) throws Exception {
+      int port = Integer.parseInt(args[0]);
+      boolean logged = !args[1].equals("off");
+      PrintStream out = TestSupport.silenceOutput();
+      if (logged) {
+         File directory = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "subwave-historytest");
+         File[] files = directory.listFiles();
+         if (files != null) for (File file : files) file.delete();
+         SubwaveServer.setMessageLog(directory, args[1].equals("group") ? MessageLog.SyncPolicy.GROUP_COMMIT
+               : MessageLog.SyncPolicy.valueOf(args[1].toUpperCase()));
+      }
+      new SocketListener(port).start();
+
+      final Connection host = TestSupport.connect(port, "host");
+      Connection member = TestSupport.connect(port, "member");
+      Connection outsider = TestSupport.connect(port, "outsider");
+      host.send(new Message(MessageType.CONVERSATION_NEW, 0, host.getClientID(), "room"));
+      final int conversationID = TestSupport.await(host, MessageType.CONVERSATION_INVITE).conversationID;
+      host.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, host.getClientID(), "join"));
+      for (int i = 0; i < EARLY_COUNT; i++) {
+         MessageType type = i % 7 == 0 ? MessageType.CHAT_EMOTE : MessageType.CHAT_MESSAGE;
+         host.send(new Message(type, conversationID, host.getClientID(), "m " + i));
+      }
+      host.send(new Message(MessageType.CONVERSATION_INVITE, conversationID, member.getClientID(), "invite"));
+      TestSupport.await(member, MessageType.CONVERSATION_INVITE);
+
+      // The host keeps chatting while the member joins and asks for the latest page.
+      Thread chatter = new Thread() {
+         @Override
+         public void run() {
+            for (int i = EARLY_COUNT; i < EARLY_COUNT + LIVE_COUNT; i++) {
+               host.send(new Message(MessageType.CHAT_MESSAGE, conversationID, host.getClientID(), "m " + i));
+               if (i % 10 != 0) continue;
+               try {
+                  Thread.sleep(1);
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+      };
+      chatter.setDaemon(true);
+      chatter.start();
+      member.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, member.getClientID(), "join"));
+      member.send(HistoryEntry.createRequest(conversationID, member.getClientID(), 0, FIRST_PAGE_SIZE));
+
+      List<Integer> liveBefore = new ArrayList<Integer>();
+      List<Integer> page = new ArrayList<Integer>();
+      List<Integer> liveAfter = new ArrayList<Integer>();
+      long oldest = 0;
+      long remaining = -1;
+      boolean inPage = false;
+      int emotes = 0;
+      Message message;
+      while ((message = member.receive()) != null) {
+         if (message.messageType == MessageType.CHAT_MESSAGE || message.messageType == MessageType.CHAT_EMOTE) {
+            TestSupport.check(!inPage, "A live message arrived inside a page of history.");
+            int number = parseNumber(message.messageBody);
+            (remaining < 0 ? liveBefore : liveAfter).add(number);
+            if (number == EARLY_COUNT + LIVE_COUNT - 1) break;
+         } else if (message.messageType == MessageType.HISTORY) {
+            if (HistoryEntry.isEnd(message)) {
+               remaining = HistoryEntry.parseRemaining(message);
+               inPage = false;
+               continue;
+            }
+            inPage = true;
+            HistoryEntry entry = HistoryEntry.parse(message);
+            int number = parseNumber(entry.text);
+            TestSupport.check(entry.sequence == number + 1, "Entry '" + entry.text + "' has sequence " +
+                  entry.sequence + ".");
+            if (entry.messageType == MessageType.CHAT_EMOTE) emotes++;
+            page.add(number);
+            oldest = entry.sequence;
+         }
+      }
+      TestSupport.check(message != null, "Member was disconnected while fetching the first page.");
+
+      if (!logged) {
+         TestSupport.check(page.isEmpty() && remaining == 0, "Server without a log sent " + page.size() +
+               " entries and counted " + remaining + " older.");
+         checkRefusals(port, conversationID, outsider);
+         out.println("OK: without a log, the page was empty and refusals were sent.");
+         System.exit(0);
+      }
+
+      // The page is newest first, and cut exactly between the messages received live.
+      TestSupport.check(page.size() == FIRST_PAGE_SIZE, "First page held " + page.size() + " entries.");
+      for (int i = 1; i < page.size(); i++) {
+         TestSupport.check(page.get(i) == page.get(i - 1) - 1, "First page skips from " + page.get(i - 1) + " to " +
+               page.get(i) + ".");
+      }
+      int newest = page.get(0);
+      for (int i = 0; i < liveBefore.size(); i++) {
+         TestSupport.check(liveBefore.get(i) == newest - liveBefore.size() + 1 + i, "Message " + liveBefore.get(i) +
+               " was received live before a page ending at " + newest + ".");
+      }
+      TestSupport.check(liveAfter.isEmpty() || liveAfter.get(0) == newest + 1, "First message after a page ending at " +
+            newest + " was " + liveAfter.get(0) + ".");
+      TestSupport.check(remaining == oldest - 1, remaining + " older messages counted before sequence " + oldest + ".");
+
+      // Page back to the first message.
+      int total = page.size();
+      int pages = 1;
+      long start = System.nanoTime();
+      while (remaining > 0) {
+         member.send(HistoryEntry.createRequest(conversationID, member.getClientID(), oldest, OLDER_PAGE_SIZE));
+         long expected = oldest - 1;
+         while ((message = member.receive()) != null) {
+            if (message.messageType != MessageType.HISTORY) continue;
+            if (HistoryEntry.isEnd(message)) {
+               remaining = HistoryEntry.parseRemaining(message);
+               break;
+            }
+            HistoryEntry entry = HistoryEntry.parse(message);
+            TestSupport.check(entry.sequence == expected, "Older page held sequence " + entry.sequence +
+                  " in place of " + expected + ".");
+            if (entry.messageType == MessageType.CHAT_EMOTE) emotes++;
+            expected--;
+            oldest = entry.sequence;
+            total++;
+         }
+         TestSupport.check(message != null, "Member was disconnected while paging back.");
+         pages++;
+      }
+      long millis = (System.nanoTime() - start) / 1000000;
+      TestSupport.check(oldest == 1 && total == newest + 1, "Paging back ended at sequence " + oldest + " after " +
+            total + " entries.");
+      TestSupport.check(emotes == (Math.min(newest, EARLY_COUNT - 1) + 7) / 7, emotes + " entries kept the emote type.");
+
+      checkRefusals(port, conversationID, outsider);
+      RecentMessageCache cache = SubwaveServer.getRecentMessageCache();
+      out.println("OK: " + args[1] + " log, page cut after " + liveBefore.size() + " live messages, paged back " + total +
+            " messages in " + pages + " pages (" + millis + " ms), cache hits " + cache.getHitCount() + ", misses " +
+            cache.getMissCount() + ".");
+      System.exit(0);
+   }
+
+   /**
+    * Checks that a client outside the conversation, and a client that did not accept the history feature, are refused.
+    *
+    * @param port           port of the server
+    * @param conversationID conversation asked about
+    * @param outsider       signed-on client that is not a member
+    */
+   private static void checkRefusals(int port, int conversationID, Connection outsider) throws Exception {
+      outsider.send(HistoryEntry.createRequest(conversationID, outsider.getClientID(), 0, 10));
+      Message reply = awaitReply(outsider);
+      TestSupport.check(reply.messageType == MessageType.REFUSE && Message.NOT_A_MEMBER.equals(reply.messageBody),
+            "Outsider was sent " + reply + ".");
+
+      int allowed = ProtocolFeature.offeredFeatures() & ~ProtocolFeature.HISTORY.mask;
+      Connection older = TestSupport.connect(port, "older", allowed);
+      older.send(HistoryEntry.createRequest(conversationID, older.getClientID(), 0, 10));
+      reply = awaitReply(older);
+      TestSupport.check(reply.messageType == MessageType.REFUSE, "Client without the history feature was sent " +
+            reply + ".");
+   }
+
+   /**
+    * @param connection connection that asked for history
+    *
+    * @return first REFUSE or HISTORY message received
+    */
+   private static Message awaitReply(Connection connection) {
+      Message message;
+      while ((message = connection.receive()) != null) {
+         if (message.messageType == MessageType.REFUSE || message.messageType == MessageType.HISTORY) return message;
+      }
+      throw new IllegalStateException("Connection closed while waiting for a reply.");
+   }
+
+   /**
+    * @param text body of a message sent by the test, such as "m 12"
+    *
+    * @return number of the message
+    */
+   private static int parseNumber(String text) {
+      return Integer.parseInt(text.substring(2));
+   }
+}
@@ -0,0 +1,151 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the {@link MessageLog} under one {@link MessageLog.SyncPolicy}.
+ * <p/>
+ * Several threads append chat messages of a typical length to a fresh log, spread across 16 conversations each, as the
+ * shards do. Each append is timed until its work runs, which under {@link MessageLog.SyncPolicy#GROUP_COMMIT} is once
+ * its record is forced to disk, and under the other policies is at once. The records per second, bytes per second,
+ * forces made, and time from append to logged are reported.
+ * <p/>
+ * Every conversation is then read back a page at a time, and each record checked, so a policy is never measured
+ * writing something it cannot read.
+ * <p/>
+ * Usage: LogBench none|periodic|group threads messagesPerThread [directory]
+ *
+ * @author James Tanner
+ */
+public class LogBench {
+
+   /** Number of conversations each thread appends to. */
+   private static final int CONVERSATIONS_PER_THREAD = 16;
+
+   /** Number of records read back in each page. */
+   private static final int PAGE_SIZE = 50;
+
+   /** Chat message appended, about as long as a typical chat line. */
+   private static final String BODY = "The quick brown fox jumps over the lazy dog, then sends a typical chat line of ~100 chars.";
+
+   public static void main(String[] args) throws Exception {
+      MessageLog.SyncPolicy policy = parsePolicy(args[0]);
+      int threadCount = Integer.parseInt(args[1]);
+      final int perThread = Integer.parseInt(args[2]);
+      File directory = new File(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir"), "subwave-logbench");
+      deleteSegments(directory);
+
+      final MessageLog log = new MessageLog(directory, Defaults.DEFAULT_LOG_SEGMENT_SIZE, policy,
+            Defaults.DEFAULT_LOG_SYNC_INTERVAL, Defaults.DEFAULT_LOG_INDEX_INTERVAL);
+      final AtomicLong latencySum = new AtomicLong();
+      final AtomicLong latencyMax = new AtomicLong();
+      final CountDownLatch logged = new CountDownLatch(threadCount * perThread);
+
+      long start = System.nanoTime();
+      Thread[] threads = new Thread[threadCount];
+      for (int t = 0; t < threadCount; t++) {
+         final int thread = t;
+         threads[t] = new Thread() {
+            @Override
+            public void run() {
+               for (int i = 0; i < perThread; i++) {
+                  final long appended = System.nanoTime();
+                  int conversationID = 1 + thread * CONVERSATIONS_PER_THREAD + i % CONVERSATIONS_PER_THREAD;
+                  log.append(new Message(MessageType.CHAT_MESSAGE, conversationID, 100 + thread, BODY), new Runnable() {
+                     @Override
+                     public void run() {
+                        long latency = System.nanoTime() - appended;
+                        latencySum.addAndGet(latency);
+                        long max;
+                        while (latency > (max = latencyMax.get()) && !latencyMax.compareAndSet(max, latency)) {
+                           // Retry until the maximum is this latency or above.
+                        }
+                        logged.countDown();
+                     }
+                  });
+               }
+            }
+         };
+         threads[t].start();
+      }
+      logged.await();
+      long nanos = System.nanoTime() - start;
+
+      long total = (long) threadCount * perThread;
+      long syncs = log.getSyncCount();
+      System.out.println(String.format("%-12s %d threads, %d records: %8.0f records/s, %5.1f MB/s, %d forces (mean " +
+            "%.2f ms), append to logged mean %.3f ms, worst %.2f ms", policy, threadCount, total, total * 1e9 / nanos,
+            log.getAppendedBytes() * 1e3 / nanos, syncs, syncs == 0 ? 0 : log.getSyncNanos() / 1e6 / syncs,
+            latencySum.get() / 1e6 / total, latencyMax.get() / 1e6));
+
+      int pages = verify(log, threadCount * CONVERSATIONS_PER_THREAD);
+      System.out.println("   read back " + pages + " pages, every record intact and in order");
+      log.close();
+      deleteSegments(directory);
+      System.exit(0);
+   }
+
+   /**
+    * Reads every conversation back a page at a time, newest first, and checks each record.
+    *
+    * @param log               log to read
+    * @param conversationCount number of conversations appended to, with IDs from 1
+    *
+    * @return number of pages read
+    *
+    * @throws IllegalStateException if a record is missing, out of order, or altered
+    */
+   private static int verify(MessageLog log, int conversationCount) {
+      int pages = 0;
+      for (int conversationID = 1; conversationID <= conversationCount; conversationID++) {
+         long expected = log.getLastSequence(conversationID);
+         long before = 0;
+         List<MessageLog.Entry> page;
+         while (!(page = log.read(conversationID, before, PAGE_SIZE)).isEmpty()) {
+            pages++;
+            for (int i = page.size() - 1; i >= 0; i--) {
+               MessageLog.Entry entry = page.get(i);
+               if (entry.sequence != expected || entry.message.conversationID != conversationID ||
+                     !BODY.equals(entry.message.messageBody)) {
+                  throw new IllegalStateException("Conversation " + conversationID + " expected record " + expected +
+                        " but read record " + entry.sequence + ".");
+               }
+               expected--;
+            }
+            before = page.get(0).sequence;
+         }
+         if (expected != 0) {
+            throw new IllegalStateException("Conversation " + conversationID + " stopped at record " + expected + ".");
+         }
+      }
+      return pages;
+   }
+
+   /**
+    * @param name name of the policy, as given to the server's "-logsync=" argument
+    *
+    * @return sync policy
+    */
+   private static MessageLog.SyncPolicy parsePolicy(String name) {
+      if (name.equalsIgnoreCase("group")) return MessageLog.SyncPolicy.GROUP_COMMIT;
+      return MessageLog.SyncPolicy.valueOf(name.toUpperCase());
+   }
+
+   /**
+    * Deletes the segments of an earlier run, so every run starts from an empty log.
+    *
+    * @param directory directory holding the segments
+    */
+   private static void deleteSegments(File directory) {
+      File[] files = directory.listFiles();
+      if (files == null) return;
+      for (File file : files) file.delete();
+   }
+}
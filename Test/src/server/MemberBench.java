@@ -0,0 +1,300 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.DiscardingConnection;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.SharedFrame;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the copy-on-write member snapshot of {@link Conversation} with a member set guarded by a single lock, as
+ * conversations used to hold their members.
+ * <p/>
+ * Members are {@link DiscardingConnection}s, so only the cost of reaching the members and queuing is measured. Three
+ * things are measured for each:
+ * <ul>
+ * <li>broadcasts per second from several threads sending to one room at once, with and without another thread
+ * repeatedly joining and leaving;</li>
+ * <li>the time taken to list the members;</li>
+ * <li>the time taken to join and leave while other threads broadcast.</li>
+ * </ul>
+ * The project has no benchmark framework, so each measurement simply runs for a fixed time after a warm-up run.
+ * <p/>
+ * Usage: MemberBench [milliseconds per run]
+ *
+ * @author James Tanner
+ */
+public class MemberBench {
+
+   /** Time each throughput run lasts, in milliseconds, if not given. */
+   private static final long DEFAULT_RUN_MILLIS = 2000;
+
+   /** Number of members of the room broadcast to. */
+   private static final int ROOM_SIZE = 100;
+
+   /** Numbers of threads broadcasting at once. */
+   private static final int[] SENDER_COUNTS = {1, 4, 16};
+
+   /** Number of joins and leaves timed. */
+   private static final int JOIN_COUNT = 2000;
+
+   /** Chat message broadcast. */
+   private static final Message MESSAGE = new Message(MessageType.CHAT_MESSAGE, 7, 3,
+         "Hello there, how is everyone doing today?");
+
+   /** Written with the results of listing members, so the listing is not optimised away. */
+   static volatile long sink;
+
+   /**
+    * The operations measured, on either kind of member list.
+    */
+   private interface Room {
+
+      void broadcast(Message message);
+
+      void join(Client client);
+
+      void leave(Client client);
+
+      Client[] list();
+   }
+
+   /**
+    * A {@link Conversation}, holding its members in a copy-on-write snapshot.
+    */
+   private static class SnapshotRoom implements Room {
+
+      private final Conversation conversation = new Conversation(MESSAGE.conversationID, "Snapshot");
+
+      @Override
+      public void broadcast(Message message) {
+         conversation.broadcastToConversation(message);
+      }
+
+      @Override
+      public void join(Client client) {
+         conversation.addMember(client);
+      }
+
+      @Override
+      public void leave(Client client) {
+         conversation.removeMember(client);
+      }
+
+      @Override
+      public Client[] list() {
+         return conversation.getMemberList();
+      }
+   }
+
+   /**
+    * Members held in a set behind one lock, which broadcasts hold while queuing to every member.
+    */
+   private static class LockedRoom implements Room {
+
+      private final ReentrantLock lock = new ReentrantLock();
+
+      private final HashSet<Client> members = new HashSet<Client>();
+
+      @Override
+      public void broadcast(Message message) {
+         lock.lock();
+         try {
+            SharedFrame frame = new SharedFrame(message);
+            try {
+               for (Client client : members) SubwaveServer.sendToClient(client, frame);
+            } finally {
+               frame.release();
+            }
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      @Override
+      public void join(Client client) {
+         lock.lock();
+         try {
+            if (members.add(client)) broadcast(new Message(MessageType.CONVERSATION_JOIN, MESSAGE.conversationID,
+                  client.clientID, client.getNickname()));
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      @Override
+      public void leave(Client client) {
+         lock.lock();
+         try {
+            if (members.remove(client)) broadcast(new Message(MessageType.CONVERSATION_LEAVE, MESSAGE.conversationID,
+                  client.clientID, Message.LEFT_CONVERSATION));
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      @Override
+      public Client[] list() {
+         lock.lock();
+         try {
+            return members.toArray(new Client[members.size()]);
+         } finally {
+            lock.unlock();
+         }
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      long runMillis = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_RUN_MILLIS;
+
+      System.out.println("Broadcasts per second to a room of " + ROOM_SIZE + ":");
+      for (boolean churn : new boolean[]{false, true}) {
+         for (int senders : SENDER_COUNTS) {
+            measureBroadcasts(new LockedRoom(), senders, churn, runMillis / 4);
+            measureBroadcasts(new SnapshotRoom(), senders, churn, runMillis / 4);
+            double locked = measureBroadcasts(new LockedRoom(), senders, churn, runMillis);
+            double snapshot = measureBroadcasts(new SnapshotRoom(), senders, churn, runMillis);
+            System.out.println(String.format("   %2d senders%s: locked %9.0f, snapshot %9.0f (%.2fx)", senders,
+                  churn ? ", join/leave churn" : "                 ", locked, snapshot, snapshot / locked));
+         }
+      }
+
+      System.out.println("Listing members:");
+      for (int size : new int[]{100, 1000}) {
+         double locked = measureListing(new LockedRoom(), size);
+         double snapshot = measureListing(new SnapshotRoom(), size);
+         System.out.println(String.format("   %4d members: locked %7.1f ns, snapshot %5.1f ns", size, locked, snapshot));
+      }
+
+      System.out.println("Join and leave while 4 threads broadcast:");
+      measureJoins(new LockedRoom(), 4, "locked  ");
+      measureJoins(new SnapshotRoom(), 4, "snapshot");
+      System.exit(0);
+   }
+
+   /**
+    * Fills a room with members.
+    *
+    * @param room room to fill
+    * @param size number of members to add
+    */
+   private static void fill(Room room, int size) {
+      for (int i = 0; i < size; i++) room.join(new Client(1000 + i, new DiscardingConnection(), "member" + i));
+   }
+
+   /**
+    * Measures broadcasts per second from several threads to one room.
+    *
+    * @param room      room to broadcast to
+    * @param senders   number of threads broadcasting
+    * @param churn     true to have another thread join and leave the room throughout
+    * @param runMillis time to run for, in milliseconds
+    *
+    * @return broadcasts per second, across every thread
+    */
+   private static double measureBroadcasts(final Room room, int senders, final boolean churn, long runMillis)
+         throws InterruptedException {
+      fill(room, ROOM_SIZE);
+      final Client churner = new Client(99, new DiscardingConnection(), "churner");
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final AtomicLong broadcasts = new AtomicLong();
+
+      Thread[] threads = new Thread[senders + 1];
+      for (int i = 0; i < senders; i++) {
+         threads[i] = new Thread() {
+            @Override
+            public void run() {
+               long count = 0;
+               while (!stop.get()) {
+                  room.broadcast(MESSAGE);
+                  count++;
+               }
+               broadcasts.addAndGet(count);
+            }
+         };
+      }
+      threads[senders] = new Thread() {
+         @Override
+         public void run() {
+            while (!stop.get()) {
+               if (!churn) {
+                  sink += room.list().length;
+                  Thread.yield();
+                  continue;
+               }
+               room.join(churner);
+               room.leave(churner);
+            }
+         }
+      };
+
+      for (Thread thread : threads) thread.start();
+      Thread.sleep(runMillis);
+      stop.set(true);
+      for (Thread thread : threads) thread.join();
+      return broadcasts.get() * 1000.0 / runMillis;
+   }
+
+   /**
+    * Measures the time taken to list the members of a room.
+    *
+    * @param room room to list
+    * @param size number of members
+    *
+    * @return nanoseconds per listing
+    */
+   private static double measureListing(Room room, int size) {
+      fill(room, size);
+      int listings = 20000000 / size;
+      long nanos = 0;
+      for (int pass = 0; pass < 5; pass++) {
+         long start = System.nanoTime();
+         for (int i = 0; i < listings; i++) sink += room.list().length;
+         nanos = System.nanoTime() - start;
+      }
+      return (double) nanos / listings;
+   }
+
+   /**
+    * Measures the time taken to join and leave a room while other threads broadcast to it, and prints the mean and
+    * worst.
+    *
+    * @param room    room to join
+    * @param senders number of threads broadcasting
+    * @param label   name of the kind of room, for the report
+    */
+   private static void measureJoins(final Room room, int senders, String label) throws InterruptedException {
+      fill(room, ROOM_SIZE);
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      Thread[] threads = new Thread[senders];
+      for (int i = 0; i < senders; i++) {
+         threads[i] = new Thread() {
+            @Override
+            public void run() {
+               while (!stop.get()) room.broadcast(MESSAGE);
+            }
+         };
+         threads[i].start();
+      }
+
+      Client client = new Client(99, new DiscardingConnection(), "joiner");
+      long total = 0;
+      long worst = 0;
+      for (int i = 0; i < JOIN_COUNT; i++) {
+         long start = System.nanoTime();
+         room.join(client);
+         room.leave(client);
+         long elapsed = System.nanoTime() - start;
+         total += elapsed;
+         worst = Math.max(worst, elapsed);
+      }
+      stop.set(true);
+      for (Thread thread : threads) thread.join();
+      System.out.println(String.format("   %s: mean %.1f us, worst %.1f ms", label, total / 1000.0 / JOIN_COUNT,
+            worst / 1e6));
+   }
+}
@@ -0,0 +1,188 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.MulticastDatagram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the server's cost of sending server-wide broadcasts to every client over their connections with multicasting
+ * them to the group.
+ * <p/>
+ * The server runs the selector transport. A {@link ClientProcess} signs on the clients and reads everything they are
+ * sent. The server then makes a number of broadcasts, in rounds, waiting after each round for every connection's queue
+ * to drain. The CPU time of every server thread and the bytes written to the clients' connections are reported per
+ * broadcast, along with any messages dropped for slow clients.
+ * <p/>
+ * When multicasting, the test clients are told to join the group but never do; a receiver in the server's own JVM
+ * joins it instead and counts the datagrams delivered, as every client on the network would.
+ * <p/>
+ * Usage: MulticastBench unicast|multicast clients broadcasts port
+ *
+ * @author James Tanner
+ */
+public class MulticastBench {
+
+   /** Number of broadcasts made before waiting for the queues to drain. */
+   private static final int ROUND_SIZE = 50;
+
+   /** Longest time allowed for every client to sign on, or for a round to drain, in milliseconds. */
+   private static final long TIMEOUT = 120000;
+
+   /** Client ID of the first client announced. The announced clients do not exist, and are far above any real ID. */
+   private static final int FIRST_ANNOUNCED_ID = 1000000000;
+
+   public static void main(String[] args) throws Exception {
+      boolean multicast = args[0].equals("multicast");
+      int clients = Integer.parseInt(args[1]);
+      int broadcasts = Integer.parseInt(args[2]);
+      int port = Integer.parseInt(args[3]);
+      int groupPort = port + 1;
+
+      PrintStream out = TestSupport.silenceOutput();
+      if (multicast) SubwaveServer.setMulticast(Defaults.DEFAULT_MULTICAST_GROUP, groupPort);
+      new SelectorListener(port, Defaults.DEFAULT_EVENT_LOOP_THREADS).start();
+      AtomicLong datagramsReceived = new AtomicLong();
+      if (multicast) startReceiver(InetAddress.getByName(Defaults.DEFAULT_MULTICAST_GROUP), groupPort, datagramsReceived);
+
+      Process clientProcess = ClientProcess.start(port, clients, true);
+      try {
+         TestSupport.awaitClients(clients, TIMEOUT);
+         awaitDrained();
+         Thread.sleep(1000);
+
+         MulticastChannel channel = SubwaveServer.getMulticastChannel();
+         long datagramsSentBefore = channel == null ? 0 : channel.getSentCount();
+         long datagramsReceivedBefore = datagramsReceived.get();
+         SlowConsumerPolicy policy = SubwaveServer.getSlowConsumerPolicy();
+         long droppedBefore = policy.getDroppedMessages();
+         long bytesBefore = bytesSent();
+         long cpuBefore = serverCpuNanos();
+         long start = System.nanoTime();
+
+         for (int sent = 0; sent < broadcasts; ) {
+            for (int i = 0; i < ROUND_SIZE && sent < broadcasts; i++, sent++) {
+               int announcedID = FIRST_ANNOUNCED_ID + sent;
+               SubwaveServer.broadcastToAll(new Message(MessageType.NETWORK_CONNECT, 0, announcedID, "user" + sent));
+            }
+            awaitDrained();
+         }
+
+         long elapsed = System.nanoTime() - start;
+         long cpu = serverCpuNanos() - cpuBefore;
+         long bytes = bytesSent() - bytesBefore;
+         long dropped = policy.getDroppedMessages() - droppedBefore;
+
+         out.println(String.format("%-9s %5d clients, %d broadcasts in %d ms: %.1f us server CPU and %d bytes over " +
+               "connections per broadcast, %d messages dropped", args[0], clients, broadcasts, elapsed / 1000000,
+               cpu / 1000.0 / broadcasts, bytes / broadcasts, dropped));
+         if (channel != null) {
+            Thread.sleep(500);
+            out.println(String.format("          %d datagrams sent, %d received on this machine, %d resent",
+                  channel.getSentCount() - datagramsSentBefore, datagramsReceived.get() - datagramsReceivedBefore,
+                  channel.getResentCount()));
+         }
+      } finally {
+         clientProcess.destroy();
+      }
+      System.exit(0);
+   }
+
+   /**
+    * Starts a thread counting the datagrams delivered to the group, other than beacons.
+    *
+    * @param group    multicast group
+    * @param port     port the group is sent to
+    * @param received counter of datagrams received
+    *
+    * @throws IOException if the group cannot be joined
+    */
+   private static void startReceiver(InetAddress group, int port, final AtomicLong received) throws IOException {
+      final MulticastSocket socket = new MulticastSocket(port);
+      socket.joinGroup(new InetSocketAddress(group, port), null);
+      socket.setSoTimeout(1000);
+      Thread receiver = new Thread() {
+         @Override
+         public void run() {
+            byte[] buffer = new byte[MulticastDatagram.MAX_DATAGRAM_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (true) {
+               try {
+                  packet.setLength(buffer.length);
+                  socket.receive(packet);
+                  if (!MulticastDatagram.isBeacon(packet.getLength())) received.incrementAndGet();
+               } catch (SocketTimeoutException e) {
+                  // Keep waiting.
+               } catch (IOException e) {
+                  return;
+               }
+            }
+         }
+      };
+      receiver.setDaemon(true);
+      receiver.start();
+   }
+
+   /**
+    * Waits for the outbound queue of every client's connection to empty.
+    *
+    * @throws IllegalStateException if the queues have not emptied in time
+    */
+   private static void awaitDrained() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (queuedFrames() > 0) {
+         if (System.currentTimeMillis() > deadline) throw new IllegalStateException("Queues did not drain.");
+         Thread.sleep(1);
+      }
+   }
+
+   /**
+    * @return number of frames queued for every client's connection
+    */
+   private static long queuedFrames() {
+      long queued = 0;
+      for (int i = 0; i < SubwaveServer.getShardCount(); i++) {
+         for (Client client : SubwaveServer.getShard(i).clients.values()) {
+            queued += client.clientConnection.getQueueDepth();
+         }
+      }
+      return queued;
+   }
+
+   /**
+    * @return bytes written to every client's connection
+    */
+   private static long bytesSent() {
+      long bytes = 0;
+      for (int i = 0; i < SubwaveServer.getShardCount(); i++) {
+         for (Client client : SubwaveServer.getShard(i).clients.values()) {
+            bytes += client.clientConnection.getBytesSent();
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * @return CPU time used by every thread of this JVM, in nanoseconds
+    */
+   private static long serverCpuNanos() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      long nanos = 0;
+      for (long id : threads.getAllThreadIds()) {
+         long time = threads.getThreadCpuTime(id);
+         if (time > 0) nanos += time;
+      }
+      return nanos;
+   }
+}
@@ -0,0 +1,204 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.BufferPool;
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.SessionConnection;
+import com.tanndev.subwave.common.SessionHandler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks sessions multiplexed over a single connection under one listener.
+ * <p/>
+ * One connection opens a number of sessions, each signing on as a client of its own. Two of them then chat through a
+ * conversation, and the server must refuse a session using another's client ID. Sessions must be removed from the
+ * server when the client closes one, the server removes one, and when the carrying connection closes, after which no
+ * pooled buffer may be left outstanding.
+ * <p/>
+ * Usage: MuxTest thread|nio port sessions
+ *
+ * @author James Tanner
+ */
+public class MuxTest {
+
+   /** Number of chat messages sent from one session to another. */
+   private static final int CHAT_COUNT = 100;
+
+   /** Longest time to wait for a message or for the server to catch up, in milliseconds. */
+   private static final long TIMEOUT = 5000;
+
+   /** Messages received on each session, and on the carrier itself. */
+   private static final ConcurrentHashMap<Connection, BlockingQueue<Message>> inboxes =
+         new ConcurrentHashMap<Connection, BlockingQueue<Message>>();
+
+   /** Sessions the carrier has been told are closed. */
+   private static final BlockingQueue<SessionConnection> closedSessions = new LinkedBlockingQueue<SessionConnection>();
+
+   public static void main(String[] args) throws Exception {
+      boolean nio = args[0].equals("nio");
+      int port = Integer.parseInt(args[1]);
+      int sessionCount = Integer.parseInt(args[2]);
+      PrintStream out = TestSupport.silenceOutput();
+      if (nio) new SelectorListener(port, Defaults.DEFAULT_EVENT_LOOP_THREADS).start();
+      else new SocketListener(port).start();
+      long outstandingBefore = BufferPool.getOutstandingCount();
+
+      final Connection carrier = TestSupport.connect(port, "carrier");
+      TestSupport.check(carrier.isMultiplexed(), "Server did not accept multiplexing.");
+      carrier.setSessionHandler(new SessionHandler() {
+         @Override
+         public void sessionOpened(SessionConnection session, Message message) {
+            // The server never opens sessions.
+            session.close();
+         }
+
+         @Override
+         public void messageReceived(SessionConnection session, Message message) {
+            inbox(session).add(message);
+         }
+
+         @Override
+         public void sessionClosed(SessionConnection session) {
+            closedSessions.add(session);
+         }
+      });
+
+      // Reading the carrier routes the sessions' frames to the handler.
+      Thread reader = new Thread() {
+         @Override
+         public void run() {
+            Message message;
+            while ((message = carrier.receive()) != null) inbox(carrier).add(message);
+         }
+      };
+      reader.setDaemon(true);
+      reader.start();
+
+      List<SessionConnection> sessions = new ArrayList<SessionConnection>();
+      for (int i = 0; i < sessionCount; i++) {
+         SessionConnection session = carrier.openSession();
+         TestSupport.check(session != null, "Session " + i + " could not be opened.");
+         session.send(new Message(MessageType.NETWORK_CONNECT, 0, 0, "session" + i));
+         sessions.add(session);
+      }
+      for (SessionConnection session : sessions) session.setClientID(await(session, MessageType.NETWORK_CONNECT).clientID);
+      TestSupport.awaitClients(sessionCount + 1, TIMEOUT);
+      TestSupport.check(carrier.getSessionCount() == sessionCount, "Carrier holds " + carrier.getSessionCount() +
+            " of " + sessionCount + " sessions.");
+
+      // The first and last sessions chat through a conversation.
+      SessionConnection host = sessions.get(0);
+      SessionConnection guest = sessions.get(sessionCount - 1);
+      host.send(new Message(MessageType.CONVERSATION_NEW, 0, host.getClientID(), "room"));
+      int conversationID = await(host, MessageType.CONVERSATION_INVITE).conversationID;
+      host.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, host.getClientID(), "join"));
+      host.send(new Message(MessageType.CONVERSATION_INVITE, conversationID, guest.getClientID(), "invite"));
+      await(guest, MessageType.CONVERSATION_INVITE);
+      guest.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, guest.getClientID(), "join"));
+      await(guest, MessageType.CONVERSATION_JOIN);
+      for (int i = 0; i < CHAT_COUNT; i++) {
+         host.send(new Message(MessageType.CHAT_MESSAGE, conversationID, host.getClientID(), "hello " + i));
+      }
+      for (int i = 0; i < CHAT_COUNT; i++) {
+         Message message = await(guest, MessageType.CHAT_MESSAGE);
+         TestSupport.check(message.messageBody.equals("hello " + i), "Session received '" + message.messageBody +
+               "' in place of 'hello " + i + "'.");
+      }
+      for (Message message : inbox(carrier)) {
+         TestSupport.check(message.messageType != MessageType.CHAT_MESSAGE, "A session's message reached the carrier.");
+      }
+
+      // A session may not use another's client ID.
+      guest.send(new Message(MessageType.CHAT_MESSAGE, conversationID, host.getClientID(), "spoof"));
+      await(guest, MessageType.REFUSE);
+
+      // The client closes a session.
+      guest.send(new Message(MessageType.NETWORK_DISCONNECT, 0, guest.getClientID(), Message.DISCONNECT_INTENT));
+      guest.closeGracefully();
+      awaitClosed(guest);
+      awaitServerClients(sessionCount);
+
+      // The server removes a session's client, which closes the session on both sides.
+      SessionConnection removed = sessions.get(1);
+      SubwaveServer.removeClient(removed.getClientID());
+      awaitClosed(removed);
+      TestSupport.check(removed.isClosed(), "Session removed by the server is still open.");
+
+      // Closing the carrier removes every remaining session from the server.
+      carrier.close();
+      awaitServerClients(0);
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (BufferPool.getOutstandingCount() > outstandingBefore && System.currentTimeMillis() < deadline) {
+         Thread.sleep(10);
+      }
+      long leaked = BufferPool.getOutstandingCount() - outstandingBefore;
+      TestSupport.check(leaked <= 0, leaked + " pooled buffers were never released.");
+
+      out.println("OK: " + (nio ? "nio" : "thread") + " listener carried " + sessionCount + " sessions, chatted " +
+            CHAT_COUNT + " messages in order, and removed every session.");
+      System.exit(0);
+   }
+
+   /**
+    * @param connection session or carrier
+    *
+    * @return queue of the messages received on the connection
+    */
+   private static BlockingQueue<Message> inbox(Connection connection) {
+      BlockingQueue<Message> inbox = inboxes.get(connection);
+      if (inbox != null) return inbox;
+      inboxes.putIfAbsent(connection, new LinkedBlockingQueue<Message>());
+      return inboxes.get(connection);
+   }
+
+   /**
+    * Takes messages received on a session until one of a type arrives, failing the test if none arrives in time.
+    *
+    * @param session session to receive on
+    * @param type    type of message expected
+    *
+    * @return message of the type expected
+    */
+   private static Message await(SessionConnection session, MessageType type) throws InterruptedException {
+      while (true) {
+         Message message = inbox(session).poll(TIMEOUT, TimeUnit.MILLISECONDS);
+         TestSupport.check(message != null, "Session " + session.getStreamID() + " never received " + type + ".");
+         if (message.messageType == type) return message;
+      }
+   }
+
+   /**
+    * Waits for the carrier to be told a session has closed, failing the test if it is not told in time. Sessions the
+    * carrier is told of meanwhile are passed over.
+    *
+    * @param session session expected to close
+    */
+   private static void awaitClosed(SessionConnection session) throws InterruptedException {
+      while (true) {
+         SessionConnection closed = closedSessions.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+         TestSupport.check(closed != null, "Carrier was never told session " + session.getStreamID() + " closed.");
+         if (closed == session) return;
+      }
+   }
+
+   /**
+    * Waits for the number of clients signed on to the server to fall, failing the test if it does not in time.
+    *
+    * @param count number of clients expected
+    */
+   private static void awaitServerClients(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (TestSupport.countClients() != count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+      TestSupport.check(TestSupport.countClients() == count, TestSupport.countClients() + " clients remain signed on, " +
+            "in place of " + count + ".");
+   }
+}
@@ -0,0 +1,169 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that a full shard mailbox only holds back the connection filling it, and not the other connections of its
+ * {@link EventLoop}.
+ * <p/>
+ * The server runs a single shard and a single event loop. The shard is kept busy while one client sends more chat
+ * messages than its mailbox holds, until the loop has to park that client's next message. A second client on the same
+ * loop must then still be answered. Once the shard is let go, every chat message must be broadcast, in the order sent.
+ * <p/>
+ * Usage: ShardBackpressureTest port
+ *
+ * @author James Tanner
+ */
+public class ShardBackpressureTest {
+
+   /** Number of chat messages sent beyond what the mailbox holds. */
+   private static final int EXCESS = 500;
+
+   /** Longest time allowed for each step, in milliseconds. */
+   private static final long TIMEOUT = 10000;
+
+   public static void main(String[] args) throws Exception {
+      int port = Integer.parseInt(args[0]);
+      PrintStream out = TestSupport.silenceOutput();
+      SubwaveServer.setShardCount(1);
+      new SelectorListener(port, 1).start();
+      ServerShard shard = SubwaveServer.getShard(0);
+
+      // The flooding client joins a conversation of its own, so every message it sends is broadcast back to it.
+      final Connection flooder = TestSupport.connect(port, "flooder");
+      Connection bystander = TestSupport.connect(port, "bystander");
+      flooder.send(new Message(MessageType.CONVERSATION_NEW, 0, flooder.getClientID(), "flood"));
+      final int conversationID = awaitMessage(flooder, MessageType.CONVERSATION_INVITE).conversationID;
+      flooder.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, flooder.getClientID(), "join"));
+      awaitMessage(flooder, MessageType.CONVERSATION_JOIN);
+
+      // Keep the shard busy, so nothing dispatched to it runs.
+      final CountDownLatch busy = new CountDownLatch(1);
+      final CountDownLatch letGo = new CountDownLatch(1);
+      shard.forward(new Runnable() {
+         @Override
+         public void run() {
+            busy.countDown();
+            try {
+               letGo.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      });
+      busy.await();
+
+      final int total = Defaults.DEFAULT_SHARD_MAILBOX_CAPACITY + EXCESS;
+      final AtomicInteger received = new AtomicInteger();
+      final AtomicReference<String> failure = new AtomicReference<String>();
+      Thread reader = new Thread() {
+         @Override
+         public void run() {
+            while (received.get() < total) {
+               Message message = flooder.receive();
+               if (message == null) {
+                  failure.set("Flooding client was disconnected after " + received.get() + " messages.");
+                  return;
+               }
+               if (message.messageType != MessageType.CHAT_MESSAGE) continue;
+               if (!message.messageBody.equals(Integer.toString(received.get()))) {
+                  failure.set("Message " + message.messageBody + " arrived in place of " + received.get() + ".");
+                  return;
+               }
+               received.incrementAndGet();
+            }
+         }
+      };
+      reader.setDaemon(true);
+      reader.start();
+
+      for (int i = 0; i < total; i++) {
+         Message message = new Message(MessageType.CHAT_MESSAGE, conversationID, flooder.getClientID(), Integer.toString(i));
+         while (!flooder.send(message)) Thread.sleep(1);
+      }
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (shard.getWaitCount() == 0) {
+         if (System.currentTimeMillis() > deadline) fail(out, "The shard's mailbox never filled.");
+         Thread.sleep(10);
+      }
+
+      // The loop must still read the other client while the flooding client's message is parked.
+      long start = System.nanoTime();
+      bystander.send(new Message(MessageType.CONVERSATION_NEW, 0, bystander.getClientID(), "bystander"));
+      if (!awaitMessage(bystander, MessageType.CONVERSATION_INVITE, TIMEOUT)) {
+         fail(out, "The event loop stopped reading other connections while the shard was full.");
+      }
+      long answeredMicros = (System.nanoTime() - start) / 1000;
+
+      letGo.countDown();
+      reader.join(TIMEOUT);
+      if (failure.get() != null) fail(out, failure.get());
+      if (received.get() < total) fail(out, "Only " + received.get() + " of " + total + " messages were broadcast.");
+
+      out.println("OK: other connection answered in " + answeredMicros + " us while the shard was full; " + total +
+            " messages broadcast in order, the mailbox found full " + shard.getWaitCount() + " times.");
+      System.exit(0);
+   }
+
+   /**
+    * Receives messages until one of a type arrives.
+    *
+    * @param connection connection to receive on
+    * @param type       type of message expected
+    *
+    * @return message of the type expected
+    *
+    * @throws IllegalStateException if the connection closes first
+    */
+   private static Message awaitMessage(Connection connection, MessageType type) {
+      Message message;
+      while ((message = connection.receive()) != null) {
+         if (message.messageType == type) return message;
+      }
+      throw new IllegalStateException("Connection closed while waiting for " + type + ".");
+   }
+
+   /**
+    * Receives messages on another thread until one of a type arrives, or time runs out.
+    *
+    * @param connection    connection to receive on
+    * @param type          type of message expected
+    * @param timeoutMillis longest time to wait, in milliseconds
+    *
+    * @return true if the message arrived in time
+    */
+   private static boolean awaitMessage(final Connection connection, final MessageType type, long timeoutMillis)
+         throws InterruptedException {
+      final CountDownLatch arrived = new CountDownLatch(1);
+      Thread receiver = new Thread() {
+         @Override
+         public void run() {
+            awaitMessage(connection, type);
+            arrived.countDown();
+         }
+      };
+      receiver.setDaemon(true);
+      receiver.start();
+      return arrived.await(timeoutMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Reports a failure and exits.
+    *
+    * @param out     standard out, for the report
+    * @param failure description of the failure
+    */
+   private static void fail(PrintStream out, String failure) {
+      out.println("FAILED: " + failure);
+      System.exit(1);
+   }
+}
@@ -0,0 +1,78 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Defaults;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+
+import java.io.PrintStream;
+
+/**
+ * Checks the basic life of two clients under one listener: signing on, creating a conversation, inviting and joining,
+ * chatting, and signing off.
+ * <p/>
+ * One client creates a conversation and invites the other. It then sends one chat message larger than a read buffer
+ * and 200 ordinary ones, which the other must receive in order. The other then signs off, and the first must be told.
+ * <p/>
+ * Usage: SmokeTest thread|nio port
+ *
+ * @author James Tanner
+ */
+public class SmokeTest {
+
+   /** Number of ordinary chat messages sent. */
+   private static final int CHAT_COUNT = 200;
+
+   /** Length of the large chat message, longer than an event loop's first read buffer. */
+   private static final int LARGE_LENGTH = 50000;
+
+   public static void main(String[] args) throws Exception {
+      boolean nio = args[0].equals("nio");
+      int port = Integer.parseInt(args[1]);
+      PrintStream out = TestSupport.silenceOutput();
+      if (nio) new SelectorListener(port, Defaults.DEFAULT_EVENT_LOOP_THREADS).start();
+      else new SocketListener(port).start();
+
+      Connection host = TestSupport.connect(port, "host");
+      Connection guest = TestSupport.connect(port, "guest");
+      host.send(new Message(MessageType.CONVERSATION_NEW, 0, host.getClientID(), "room"));
+      int conversationID = TestSupport.await(host, MessageType.CONVERSATION_INVITE).conversationID;
+      host.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, host.getClientID(), "join"));
+      host.send(new Message(MessageType.CONVERSATION_INVITE, conversationID, guest.getClientID(), "invite"));
+      Message invitation = TestSupport.await(guest, MessageType.CONVERSATION_INVITE);
+      TestSupport.check(invitation.conversationID == conversationID, "Guest was invited to conversation " +
+            invitation.conversationID + " in place of " + conversationID + ".");
+      guest.send(new Message(MessageType.CONVERSATION_JOIN, conversationID, guest.getClientID(), "join"));
+      TestSupport.await(guest, MessageType.CONVERSATION_JOIN);
+
+      StringBuilder large = new StringBuilder(LARGE_LENGTH);
+      for (int i = 0; i < LARGE_LENGTH; i++) large.append('z');
+      host.send(new Message(MessageType.CHAT_MESSAGE, conversationID, host.getClientID(), large.toString()));
+      for (int i = 0; i < CHAT_COUNT; i++) {
+         host.send(new Message(MessageType.CHAT_MESSAGE, conversationID, host.getClientID(), "hello " + i));
+      }
+
+      Message message = TestSupport.await(guest, MessageType.CHAT_MESSAGE);
+      TestSupport.check(message.messageBody.length() == LARGE_LENGTH, "Large message arrived with " +
+            message.messageBody.length() + " characters.");
+      for (int i = 0; i < CHAT_COUNT; i++) {
+         message = TestSupport.await(guest, MessageType.CHAT_MESSAGE);
+         TestSupport.check(message.messageBody.equals("hello " + i), "Received '" + message.messageBody +
+               "' in place of 'hello " + i + "'.");
+      }
+
+      // The host learns of the sign-off either from the conversation or from the server's presence updates.
+      guest.send(new Message(MessageType.NETWORK_DISCONNECT, 0, guest.getClientID(), Message.DISCONNECT_INTENT));
+      while ((message = host.receive()) != null) {
+         if (message.clientID != guest.getClientID() && message.messageType != MessageType.PRESENCE) continue;
+         if (message.messageType == MessageType.NETWORK_DISCONNECT) break;
+         if (message.messageType == MessageType.CONVERSATION_LEAVE) break;
+         if (message.messageType == MessageType.PRESENCE && message.messageBody.startsWith("-")) break;
+      }
+      TestSupport.check(message != null, "Host was disconnected before learning the guest signed off.");
+
+      out.println("OK: " + (nio ? "nio" : "thread") + " listener signed on, chatted " + (CHAT_COUNT + 1) +
+            " messages in order, and announced the sign-off.");
+      System.exit(0);
+   }
+}
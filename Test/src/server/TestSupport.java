@@ -0,0 +1,143 @@
+package com.tanndev.subwave.server.core;
+
+import com.tanndev.subwave.common.Connection;
+import com.tanndev.subwave.common.Message;
+import com.tanndev.subwave.common.MessageType;
+import com.tanndev.subwave.common.ProtocolFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+
+/**
+ * Helpers shared by the tests and benchmarks, which run a server in the same JVM and talk to it over real sockets.
+ *
+ * @author James Tanner
+ */
+public class TestSupport {
+
+   /**
+    * Signs on to a server as the client does, accepting every feature offered.
+    *
+    * @param port     port of the server, on this machine
+    * @param nickname nickname to sign on with
+    *
+    * @return connection, with its client ID set and the negotiated features applied
+    *
+    * @throws IOException if the server cannot be reached or the handshake fails
+    */
+   public static Connection connect(int port, String nickname) throws IOException {
+      return connect(port, nickname, ProtocolFeature.offeredFeatures());
+   }
+
+   /**
+    * Signs on to a server as the client does, accepting only some of the features offered.
+    *
+    * @param port     port of the server, on this machine
+    * @param nickname nickname to sign on with
+    * @param allowed  mask of the features, and dictionary version bits, that may be accepted
+    *
+    * @return connection, with its client ID set and the negotiated features applied
+    *
+    * @throws IOException if the server cannot be reached or the handshake fails
+    */
+   public static Connection connect(int port, String nickname, int allowed) throws IOException {
+      Connection connection = new Connection(new Socket("localhost", port));
+      connection.setPrintMessages(false);
+
+      Message serverACK = connection.receive();
+      if (serverACK == null || serverACK.messageType != MessageType.NETWORK_CONNECT) {
+         throw new IOException("Failed server ACK.");
+      }
+      connection.setClientID(serverACK.clientID);
+
+      int features = ProtocolFeature.selectFeatures(serverACK.conversationID & allowed);
+      connection.send(new Message(MessageType.NETWORK_CONNECT, features, serverACK.clientID, nickname));
+      connection.applyFeatures(features);
+
+      Message finalACK = connection.receive();
+      if (finalACK == null || finalACK.messageType != MessageType.NETWORK_CONNECT) {
+         throw new IOException("Failed final ACK.");
+      }
+      return connection;
+   }
+
+   /**
+    * Receives messages until one of a type arrives.
+    *
+    * @param connection connection to receive on
+    * @param type       type of message expected
+    *
+    * @return message of the type expected
+    *
+    * @throws IllegalStateException if the connection closes first
+    */
+   public static Message await(Connection connection, MessageType type) {
+      Message message;
+      while ((message = connection.receive()) != null) {
+         if (message.messageType == type) return message;
+      }
+      throw new IllegalStateException("Connection closed while waiting for " + type + ".");
+   }
+
+   /**
+    * Fails a test, printing why and exiting, if a condition does not hold. Failures are printed to standard error, which
+    * is never silenced.
+    *
+    * @param condition condition expected to hold
+    * @param failure   description of the failure, if it does not
+    */
+   public static void check(boolean condition, String failure) {
+      if (condition) return;
+      System.err.println("FAILED: " + failure);
+      System.exit(1);
+   }
+
+   /**
+    * Discards everything printed to standard out, such as the server's log of each client signing on, so it does not
+    * slow a benchmark down.
+    *
+    * @return original standard out, for printing results
+    */
+   public static PrintStream silenceOutput() {
+      PrintStream original = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+         @Override
+         public void write(int b) {
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) {
+         }
+      }));
+      return original;
+   }
+
+   /**
+    * @return number of clients signed on to this node, across every shard
+    */
+   public static int countClients() {
+      int count = 0;
+      for (int i = 0; i < SubwaveServer.getShardCount(); i++) count += SubwaveServer.getShard(i).getClientCount();
+      return count;
+   }
+
+   /**
+    * Waits for a number of clients to sign on to this node.
+    *
+    * @param count         number of clients expected
+    * @param timeoutMillis longest time to wait, in milliseconds
+    *
+    * @throws IllegalStateException if the clients have not signed on in time
+    */
+   public static void awaitClients(int count, long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (countClients() < count) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Only " + countClients() + " of " + count + " clients signed on.");
+         }
+         Thread.sleep(10);
+      }
+   }
+}